@@ -27,12 +27,15 @@ public final class Constants {
 
 
     public static final String FILE_PARENT_COLLECTION = "RutebankenFileParentCollection";
+    public static final String FILE_PAGE_TOKEN = "RutebankenFilePageToken";
+    public static final String FILE_PAGE_SIZE = "RutebankenFilePageSize";
     public static final String PROVIDER_ID = "RutebankenProviderId";
     public static final String PROVIDER_IDS = "RutebankenProviderIds";
     public static final String ORIGINAL_PROVIDER_ID = "RutebankenOriginalProviderId"; // The original provider id that started this chain of events 
     // (providerId can change during the process when transferring data from one referential to another
     public static final String CORRELATION_ID = "RutebankenCorrelationId";
     public static final String CHOUETTE_REFERENTIAL = "RutebankenChouetteReferential";
+    public static final String SPECULATIVE_IMPORT = "RutebankenSpeculativeImport";
     public static final String JSON_PART = "RutebankenJsonPart";
     public static final String FILE_NAME = "RutebankenFileName";
 
@@ -52,6 +55,11 @@ public final class Constants {
 
     public static final String FILE_TARGET_MD5 = "RutebankenMd5SumRecordedForTargetFile";
 
+    /**
+     * Publish the NeTEx export even if its content is identical to the previous export.
+     */
+    public static final String FORCE_EXPORT = "RutebankenForceExport";
+
     public static final String FILE_APPLY_DUPLICATES_FILTER = "RutebankenApplyDuplicateFilter";
     public static final String FILE_APPLY_DUPLICATES_FILTER_ON_NAME_ONLY = "RutebankenApplyDuplicateFilterOnNameOnly";
     public static final String FILE_SKIP_STATUS_UPDATE_FOR_DUPLICATES = "RutebankenSkipStatusUpdateForDuplicateFiles";
@@ -93,6 +101,10 @@ public final class Constants {
     public static final String OTP_REMOTE_WORK_DIR = "RutebankenOtpRemoteWorkDir";
     public static final String OTP_GRAPH_VERSION = "RutebankenGraphVersion";
     public static final String OTP_BUILD_CANDIDATE = "RutebankenOtpBuildCandidate";
+    /**
+     * Build the OTP graph even if its input data are unchanged since the last published graph.
+     */
+    public static final String FORCE_GRAPH_BUILD = "RutebankenForceGraphBuild";
 
 
     public static final String INCLUDE_SHAPES = "IncludeShapes";
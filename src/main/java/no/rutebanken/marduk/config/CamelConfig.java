@@ -17,12 +17,18 @@
 package no.rutebanken.marduk.config;
 
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import io.micrometer.core.instrument.MeterRegistry;
 import no.rutebanken.marduk.routes.aggregation.IdleRouteAggregationMonitor;
+import no.rutebanken.marduk.routes.flowcontrol.FlowControlSettings;
+import no.rutebanken.marduk.routes.flowcontrol.PubSubFlowController;
 import org.apache.camel.CamelContext;
 import org.apache.camel.builder.ThreadPoolBuilder;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.io.File;
+import java.time.Duration;
 import java.util.concurrent.ExecutorService;
 
 @Configuration
@@ -59,6 +65,37 @@ public class CamelConfig {
                 .build("gtfsExportExecutorService");
     }
 
+    /**
+     * Configure the Camel thread pool used for completing remote Kubernetes jobs.
+     * The job is deleted and the route that started the job is resumed in this pool, since the job completion
+     * is reported by the Kubernetes informer threads that must not be blocked.
+     *
+     */
+    @Bean
+    public ExecutorService kubernetesJobExecutorService(CamelContext camelContext) throws Exception {
+        ThreadPoolBuilder poolBuilder = new ThreadPoolBuilder(camelContext);
+        return poolBuilder
+                .poolSize(4)
+                .maxPoolSize(4)
+                .maxQueueSize(100)
+                .build("kubernetesJobExecutorService");
+    }
+
+    /**
+     * Configure the Camel thread pool used for submitting the queued imports to Chouette.
+     *
+     */
+    @Bean
+    public ExecutorService chouetteImportDispatcherExecutorService(CamelContext camelContext,
+                                                                   @Value("${chouette.import.scheduler.dispatch.threads:4}") int dispatchThreads) throws Exception {
+        ThreadPoolBuilder poolBuilder = new ThreadPoolBuilder(camelContext);
+        return poolBuilder
+                .poolSize(dispatchThreads)
+                .maxPoolSize(dispatchThreads)
+                .maxQueueSize(-1)
+                .build("chouetteImportDispatcherExecutorService");
+    }
+
     /**
      * Register Java Time Module for JSON serialization/deserialization of Java Time objects.
      */
@@ -70,11 +107,38 @@ public class CamelConfig {
 
     /**
      * Configure an idle route monitor that triggers Camel aggregators when a monitored route is idle.
+     * The monitor is an event notifier and is registered automatically in the Camel context.
      */
     @Bean("idleRouteAggregationMonitor")
-    IdleRouteAggregationMonitor idleRouteAggregationMonitor(CamelContext camelContext) {
-        return new IdleRouteAggregationMonitor(camelContext);
+    IdleRouteAggregationMonitor idleRouteAggregationMonitor(CamelContext camelContext,
+                                                            @Value("${marduk.aggregation.idle.debounce.millis:0}") long debounceMillis,
+                                                            @Value("${marduk.aggregation.idle.check.interval.millis:5000}") long checkIntervalMillis) {
+        return new IdleRouteAggregationMonitor(camelContext, debounceMillis, checkIntervalMillis);
     }
 
-
+    /**
+     * Configure per-queue flow control for the PubSub consumers, adapted at runtime to the heap occupancy after garbage collection,
+     * temporary disk usage and processing time.
+     * Each entry has the format queue:maxOutstandingMessages:maxOutstandingBytes:consumers (0 bytes means no limit).
+     * The controller is a route policy factory and is registered before the routes are created.
+     */
+    @Bean
+    PubSubFlowController pubSubFlowController(CamelContext camelContext,
+                                              @Value("${marduk.pubsub.flow.control.queues:ProcessFileQueue:4:0:1,ChouetteMergeWithFlexibleLinesQueue:2:0:1}") String[] queues,
+                                              @Value("${marduk.pubsub.flow.control.heap.usage.threshold:0.85}") double heapUsageThreshold,
+                                              @Value("${marduk.pubsub.flow.control.disk.usage.threshold:0.85}") double diskUsageThreshold,
+                                              @Value("${marduk.pubsub.flow.control.latency.threshold:PT10M}") Duration latencyThreshold,
+                                              @Value("${marduk.pubsub.flow.control.interval:PT15S}") Duration interval,
+                                              @Value("${marduk.pubsub.flow.control.disk.directory:#{systemProperties['java.io.tmpdir']}}") String temporaryDirectory,
+                                              MeterRegistry meterRegistry) throws Exception {
+        PubSubFlowController pubSubFlowController = new PubSubFlowController(camelContext,
+                FlowControlSettings.parse(queues),
+                new PubSubFlowController.Thresholds(heapUsageThreshold, diskUsageThreshold, latencyThreshold),
+                interval,
+                new File(temporaryDirectory),
+                meterRegistry);
+        camelContext.addRoutePolicyFactory(pubSubFlowController);
+        camelContext.addService(pubSubFlowController);
+        return pubSubFlowController;
+    }
 }
@@ -16,15 +16,33 @@
 
 package no.rutebanken.marduk.config;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import no.rutebanken.marduk.repository.BlobContentCache;
+import no.rutebanken.marduk.repository.CachingMardukBlobStoreRepository;
+import no.rutebanken.marduk.repository.ContentAddressedMardukBlobStoreRepository;
 import no.rutebanken.marduk.repository.GcsMardukBlobStoreRepository;
 import no.rutebanken.marduk.repository.MardukBlobStoreRepository;
+import no.rutebanken.marduk.repository.ParallelCompositeUploader;
 import no.rutebanken.marduk.repository.ProviderRepository;
+import no.rutebanken.marduk.repository.SlicedBlobDownloader;
+import org.apache.camel.CamelContext;
+import org.apache.camel.builder.ThreadPoolBuilder;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Profile;
 import org.springframework.context.annotation.Scope;
 
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.stream.Collectors;
+
 @Configuration
 @Profile("gcs-blobstore")
 public class GcsBlobStoreRepositoryConfig {
@@ -34,8 +52,92 @@ public class GcsBlobStoreRepositoryConfig {
     MardukBlobStoreRepository blobStoreRepository(
             @Value("${blobstore.gcs.project.id}") String projectId,
             @Value("${blobstore.gcs.credential.path:#{null}}") String credentialPath,
-            ProviderRepository providerRepository) {
-        return new GcsMardukBlobStoreRepository(projectId, credentialPath, providerRepository);
+            ProviderRepository providerRepository,
+            SlicedBlobDownloader slicedBlobDownloader,
+            ObjectProvider<ParallelCompositeUploader> parallelCompositeUploader,
+            ObjectProvider<BlobContentCache> blobContentCache,
+            @Qualifier("blobListingExecutorService") ExecutorService blobListingExecutorService,
+            @Qualifier("blobBulkOperationExecutorService") ExecutorService blobBulkOperationExecutorService,
+            @Value("${blobstore.content.addressed.containers:}") Set<String> contentAddressedContainers,
+            @Value("${blobstore.content.addressed.gc.grace.period:P1D}") Duration gracePeriod) {
+        MardukBlobStoreRepository repository = new GcsMardukBlobStoreRepository(projectId, credentialPath, providerRepository,
+                slicedBlobDownloader, parallelCompositeUploader.getIfAvailable(), blobListingExecutorService, blobBulkOperationExecutorService);
+        Set<String> containers = contentAddressedContainers.stream().filter(container -> !container.isBlank()).collect(Collectors.toSet());
+        if (!containers.isEmpty()) {
+            repository = new ContentAddressedMardukBlobStoreRepository(repository, containers, gracePeriod);
+        }
+        BlobContentCache cache = blobContentCache.getIfAvailable();
+        return cache == null ? repository : new CachingMardukBlobStoreRepository(repository, cache);
+    }
+
+    /**
+     * Configure the Camel thread pool used for listing several prefixes concurrently, shared by all repositories.
+     */
+    @Bean
+    ExecutorService blobListingExecutorService(CamelContext camelContext) throws Exception {
+        return unboundedQueueThreadPool(camelContext, 8, "blobListingExecutorService");
+    }
+
+    /**
+     * Configure the Camel thread pool used for running the batches of bulk blob operations, shared by all repositories.
+     */
+    @Bean
+    ExecutorService blobBulkOperationExecutorService(CamelContext camelContext) throws Exception {
+        return unboundedQueueThreadPool(camelContext, 8, "blobBulkOperationExecutorService");
+    }
+
+    /**
+     * Downloader for large blobs, shared by all repositories so that the number of concurrent range requests is bounded.
+     */
+    @Bean
+    SlicedBlobDownloader slicedBlobDownloader(
+            CamelContext camelContext,
+            @Value("${blobstore.gcs.sliced.download.directory:#{systemProperties['java.io.tmpdir']}/marduk-sliced-downloads}") String directory,
+            @Value("${blobstore.gcs.sliced.download.threshold.mb:256}") long thresholdMb,
+            @Value("${blobstore.gcs.sliced.download.slice.size.mb:32}") long sliceSizeMb,
+            @Value("${blobstore.gcs.sliced.download.parallelism:8}") int parallelism,
+            @Value("${blobstore.gcs.sliced.download.max.attempts:3}") int maxAttempts) throws Exception {
+        return new SlicedBlobDownloader(Path.of(directory), thresholdMb * 1024 * 1024, sliceSizeMb * 1024 * 1024, maxAttempts,
+                unboundedQueueThreadPool(camelContext, parallelism, "slicedBlobDownloadExecutorService"));
+    }
+
+    /**
+     * Uploader for large blobs, shared by all repositories so that the number of parts held in memory is bounded.
+     * Disabled unless blobstore.gcs.composite.upload.enabled is set to true.
+     */
+    @Bean
+    @ConditionalOnProperty(name = "blobstore.gcs.composite.upload.enabled", havingValue = "true")
+    ParallelCompositeUploader parallelCompositeUploader(
+            @Value("${blobstore.gcs.composite.upload.part.size.mb:64}") int partSizeMb,
+            @Value("${blobstore.gcs.composite.upload.parallelism:4}") int parallelism,
+            CamelContext camelContext,
+            MeterRegistry meterRegistry) throws Exception {
+        return new ParallelCompositeUploader(partSizeMb * 1024 * 1024, parallelism,
+                unboundedQueueThreadPool(camelContext, parallelism, "compositeUploadExecutorService"), meterRegistry);
+    }
+
+    /**
+     * Thread pools managed by Camel are shut down with the Camel context.
+     * The queue is unbounded: the pool size bounds the concurrency, not the number of submitted tasks.
+     */
+    private static ExecutorService unboundedQueueThreadPool(CamelContext camelContext, int poolSize, String name) throws Exception {
+        return new ThreadPoolBuilder(camelContext)
+                .poolSize(poolSize)
+                .maxPoolSize(poolSize)
+                .maxQueueSize(-1)
+                .build(name);
+    }
+
+    /**
+     * Local disk cache of blob contents shared by all repositories. Disabled unless a maximum size is configured.
+     */
+    @Bean(initMethod = "init")
+    @ConditionalOnExpression("${blobstore.content.cache.max.size.mb:0} > 0")
+    BlobContentCache blobContentCache(
+            @Value("${blobstore.content.cache.directory:#{systemProperties['java.io.tmpdir']}/marduk-blob-cache}") String directory,
+            @Value("${blobstore.content.cache.max.size.mb}") long maxSizeMb,
+            MeterRegistry meterRegistry) {
+        return new BlobContentCache(Path.of(directory), maxSizeMb * 1024 * 1024, meterRegistry);
     }
 
 }
@@ -18,6 +18,7 @@ package no.rutebanken.marduk.domain;
 
 import com.fasterxml.jackson.annotation.JsonFormat;
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 import java.nio.file.Paths;
@@ -31,6 +32,10 @@ public class BlobStoreFiles {
     @JsonProperty("files")
     private final List<File> files = new ArrayList<>();
 
+    @JsonProperty("nextPageToken")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String nextPageToken;
+
     public void add(File file) {
         files.add(file);
     }
@@ -43,6 +48,17 @@ public class BlobStoreFiles {
         return files;
     }
 
+    /**
+     * Token to retrieve the next page of files, or null if this is the last page.
+     */
+    public String getNextPageToken() {
+        return nextPageToken;
+    }
+
+    public void setNextPageToken(String nextPageToken) {
+        this.nextPageToken = nextPageToken;
+    }
+
     public static class File {
         public enum Format {NETEX, GTFS, GRAPH, UNKOWN}
 
@@ -113,6 +129,14 @@ public class BlobStoreFiles {
             this.providerId = providerId;
         }
 
+        public String getContentFingerprint() {
+            return contentFingerprint;
+        }
+
+        public void setContentFingerprint(String contentFingerprint) {
+            this.contentFingerprint = contentFingerprint;
+        }
+
         public File(String name, Instant created, Instant updated, Long fileSize) {
             super();
             this.name = name;
@@ -149,6 +173,13 @@ public class BlobStoreFiles {
         @JsonProperty()
         private String url;
 
+        /**
+         * Opaque value that changes whenever the content of the blob changes (MD5 hash or object generation).
+         * Not available in all blob store implementations.
+         */
+        @JsonIgnore
+        private String contentFingerprint;
+
         @JsonIgnore
         public String getFileNameOnly() {
             if (name == null || name.endsWith("/")) {
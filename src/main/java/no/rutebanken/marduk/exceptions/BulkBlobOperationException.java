@@ -0,0 +1,22 @@
+package no.rutebanken.marduk.exceptions;
+
+import no.rutebanken.marduk.repository.BulkOperationResult;
+
+/**
+ * Thrown when a bulk blob operation failed for some of the blobs.
+ */
+public class BulkBlobOperationException extends MardukException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient BulkOperationResult result;
+
+    public BulkBlobOperationException(String message, BulkOperationResult result) {
+        super(message);
+        this.result = result;
+    }
+
+    public BulkOperationResult getResult() {
+        return result;
+    }
+}
@@ -0,0 +1,14 @@
+package no.rutebanken.marduk.exceptions;
+
+/**
+ * Thrown when a Chouette job submission is held back because the limit on the number of in-flight Chouette jobs is reached.
+ * The exchange is not redelivered locally, the message is redelivered by PubSub.
+ */
+public class ChouetteSubmissionHeldBackException extends MardukException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ChouetteSubmissionHeldBackException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,129 @@
+package no.rutebanken.marduk.json;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import no.rutebanken.marduk.domain.BlobStoreFiles;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.stream.Stream;
+
+/**
+ * JSON representation of a {@link BlobStoreFiles} list, serialized lazily from a stream of files as the input stream is read.
+ * Only the files being serialized are kept in memory, and the first bytes are available as soon as the first file is retrieved.
+ * The output has the same format as the serialization of {@link BlobStoreFiles}.
+ * The first file is retrieved when the input stream is created, so that a listing that fails immediately is reported before
+ * the response status is sent. A listing that fails later is reported as an {@link IOException} from {@link #read()},
+ * so that the HTTP response is aborted instead of being completed with a truncated list.
+ * Closing the input stream, reading it to the end or a listing failure closes the underlying stream of files.
+ */
+public class BlobStoreFilesJsonInputStream extends InputStream {
+
+    private static final ObjectWriter FILE_WRITER = ObjectMapperFactory.getSharedObjectMapper().writerFor(BlobStoreFiles.File.class);
+
+    private final Stream<BlobStoreFiles.File> files;
+    private final Iterator<BlobStoreFiles.File> fileIterator;
+    private final String nextPageToken;
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private final JsonGenerator jsonGenerator;
+
+    private byte[] chunk = new byte[0];
+    private int position;
+    private boolean finished;
+
+    public BlobStoreFilesJsonInputStream(Stream<BlobStoreFiles.File> files) {
+        this(files, null);
+    }
+
+    /**
+     * @param files         the files to serialize.
+     * @param nextPageToken the token to the next page of files, or null if there is no next page.
+     */
+    public BlobStoreFilesJsonInputStream(Stream<BlobStoreFiles.File> files, String nextPageToken) {
+        this.files = files;
+        this.fileIterator = files.iterator();
+        this.nextPageToken = nextPageToken;
+        try {
+            jsonGenerator = ObjectMapperFactory.getSharedObjectMapper().getFactory().createGenerator(buffer);
+            jsonGenerator.writeStartObject();
+            jsonGenerator.writeArrayFieldStart("files");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        try {
+            fileIterator.hasNext();
+        } catch (RuntimeException e) {
+            files.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return chunk[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int nbBytes = Math.min(len, chunk.length - position);
+        System.arraycopy(chunk, position, b, off, nbBytes);
+        position += nbBytes;
+        return nbBytes;
+    }
+
+    /**
+     * Serialize the next file if all bytes of the current chunk have been read.
+     *
+     * @return false if the end of the stream is reached.
+     */
+    private boolean fill() throws IOException {
+        while (position == chunk.length) {
+            if (finished) {
+                return false;
+            }
+            if (hasNextFile()) {
+                FILE_WRITER.writeValue(jsonGenerator, fileIterator.next());
+                jsonGenerator.flush();
+            } else {
+                jsonGenerator.writeEndArray();
+                if (nextPageToken != null) {
+                    jsonGenerator.writeStringField("nextPageToken", nextPageToken);
+                }
+                jsonGenerator.writeEndObject();
+                jsonGenerator.close();
+                finished = true;
+                files.close();
+            }
+            chunk = buffer.toByteArray();
+            buffer.reset();
+            position = 0;
+        }
+        return true;
+    }
+
+    private boolean hasNextFile() throws IOException {
+        try {
+            return fileIterator.hasNext();
+        } catch (RuntimeException e) {
+            files.close();
+            throw new IOException("Error while listing files, the list is incomplete", e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        files.close();
+        super.close();
+    }
+}
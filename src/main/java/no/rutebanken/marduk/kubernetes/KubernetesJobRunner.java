@@ -1,23 +1,26 @@
 package no.rutebanken.marduk.kubernetes;
 
 import io.fabric8.kubernetes.api.model.EnvVar;
-import io.fabric8.kubernetes.api.model.Pod;
 import io.fabric8.kubernetes.api.model.batch.v1.CronJob;
 import io.fabric8.kubernetes.api.model.batch.v1.CronJobSpec;
 import io.fabric8.kubernetes.api.model.batch.v1.Job;
 import io.fabric8.kubernetes.api.model.batch.v1.JobBuilder;
 import io.fabric8.kubernetes.api.model.batch.v1.JobSpec;
-import io.fabric8.kubernetes.api.model.batch.v1.JobStatus;
-import io.fabric8.kubernetes.client.*;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClientException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Run a Kubernetes job.
@@ -40,59 +43,76 @@ public class KubernetesJobRunner {
     @Value("${otp.graph.build.remote.kubernetes.timeout:9000}")
     private long jobTimeoutSecond;
 
+    private final KubernetesJobTracker kubernetesJobTracker;
+    private final KubernetesWarmPool kubernetesWarmPool;
+    private final ExecutorService kubernetesJobExecutorService;
+
+    public KubernetesJobRunner(KubernetesJobTracker kubernetesJobTracker,
+                               KubernetesWarmPool kubernetesWarmPool,
+                               @Qualifier("kubernetesJobExecutorService") ExecutorService kubernetesJobExecutorService) {
+        this.kubernetesJobTracker = kubernetesJobTracker;
+        this.kubernetesWarmPool = kubernetesWarmPool;
+        this.kubernetesJobExecutorService = kubernetesJobExecutorService;
+    }
+
     /**
-     * Run a Kubernetes job
+     * Run a Kubernetes job asynchronously.
+     * The job is created (or reconnected to) synchronously and its completion is tracked by the shared {@link KubernetesJobTracker}.
+     * If the warm pool is enabled, the job is dispatched to an idle worker of the pool when one is available.
      *
      * @param cronJobName   name of the CronJob used as a template
      * @param jobNamePrefix prefix for the Kubernetes job name
      * @param envVars       environment variables to be provided to the job
      * @param timestamp     timestamp used to create a unique name for the Kubernetes job.
+     * @return a future completed when the job completes, or completed exceptionally with a {@link KubernetesJobRunnerException}
+     * if the job fails or does not complete before the timeout. The future is completed by a thread of the Kubernetes job executor service,
+     * after the job is deleted.
      */
-    public void runJob(String cronJobName, String jobNamePrefix, List<EnvVar> envVars, String timestamp) {
-        try (final KubernetesClient kubernetesClient =  new KubernetesClientBuilder().build()) {
-            String jobName = jobNamePrefix + '-' + timestamp;
-
-            final Job job = retrieveOrCreateJob(jobName, cronJobName, envVars, kubernetesClient);
-
+    public CompletableFuture<Void> runJobAsync(String cronJobName, String jobNamePrefix, List<EnvVar> envVars, String timestamp) {
+        KubernetesClient kubernetesClient = kubernetesJobTracker.getClient();
+        String jobName = jobNamePrefix + '-' + timestamp;
+        final Job job;
+        try {
+            job = retrieveOrCreateJob(jobName, cronJobName, envVars, kubernetesClient);
+        } catch (KubernetesClientException e) {
+            throw new KubernetesJobRunnerException("Could not create job " + jobName, e);
+        }
 
-            final CountDownLatch watchLatch = new CountDownLatch(1);
-            MardukPodWatcher mardukPodWatcher = new MardukPodWatcher(job, watchLatch, jobName);
-            try (Watch watch = kubernetesClient.pods().inNamespace(kubernetesNamespace).withLabel("job-name", jobName).watch(mardukPodWatcher)) {
+        CompletableFuture<Void> jobCompletion;
+        try {
+            jobCompletion = kubernetesJobTracker.track(job);
+        } catch (KubernetesClientException e) {
+            throw new KubernetesJobRunnerException("Could not watch pod", e);
+        }
 
-                boolean jobCompletedBeforeTimeout = watchLatch.await(jobTimeoutSecond, TimeUnit.SECONDS);
-                if (!jobCompletedBeforeTimeout) {
-                    throw new KubernetesJobRunnerException("Timeout while waiting for the Graph Builder job " + jobName + " to complete.");
-                }
-                JobStatus status = kubernetesClient.batch().v1().jobs().inNamespace(kubernetesNamespace).withName(jobName).get().getStatus();
-                LOGGER.debug("Kubernetes Job status on completion: {}", status);
-                // test the pod status rather than the job status since the job status may be out of sync with the pod status
-                if (mardukPodWatcher.isSucceeded()) {
+        return jobCompletion
+                .orTimeout(jobTimeoutSecond, TimeUnit.SECONDS)
+                .handleAsync((result, throwable) -> {
+                    Throwable cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+                    // Delete job after completion unless there was a Kubernetes error that can be retried
+                    if (!(cause instanceof KubernetesJobWatchException) && deleteJobAfterCompletion) {
+                        LOGGER.info("Deleting job {} after completion.", jobName);
+                        deleteKubernetesJob(kubernetesClient, job);
+                        LOGGER.info("Deleted job {} after completion.", jobName);
+                    }
+                    if (cause instanceof TimeoutException) {
+                        throw new KubernetesJobRunnerException("Timeout while waiting for the Graph Builder job " + jobName + " to complete.");
+                    }
+                    if (cause instanceof KubernetesJobRunnerException kubernetesJobRunnerException) {
+                        throw kubernetesJobRunnerException;
+                    }
+                    if (cause != null) {
+                        throw new KubernetesJobRunnerException("Error while waiting for the Graph Builder job " + jobName + " to complete.", cause);
+                    }
                     LOGGER.info("The Graph Builder job {} completed successfully.", jobName);
-                } else if (mardukPodWatcher.isKubernetesClientError()) {
-                    throw new KubernetesJobRunnerException("Kubernetes client error while watching the Graph Builder job " + jobName);
-                } else {
-                    throw new KubernetesJobRunnerException("The Graph Builder job " + jobName + " failed.");
-                }
-            } catch (KubernetesClientException e) {
-                throw new KubernetesJobRunnerException("Could not watch pod", e);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                throw new KubernetesJobRunnerException("Interrupted while watching pod", e);
-            } finally {
-                // Delete job after completion unless there was a Kubernetes error that can be retried
-                if (!mardukPodWatcher.isKubernetesClientError() && deleteJobAfterCompletion) {
-                    LOGGER.info("Deleting job {} after completion.", jobName);
-                    deleteKubernetesJob(kubernetesClient, job);
-                    LOGGER.info("Deleted job {} after completion.", jobName);
-                }
-            }
-        }
+                    return null;
+                }, kubernetesJobExecutorService);
     }
 
     /**
      * Retrieve a job or create a new one.
      * If a job with the same name is already running (presumably created during a previous attempt that failed due to network
-     * issues), this job is retrieved. Otherwise, a new job is created.
+     * issues), this job is retrieved. Otherwise, the job is dispatched to a worker of the warm pool if possible, or a new job is created.
      *
      * @param jobName          the Kubernetes job name.
      * @param kubernetesClient the Kubernetes client.
@@ -104,12 +124,20 @@ public class KubernetesJobRunner {
         Job job = kubernetesClient.batch().v1().jobs().inNamespace(kubernetesNamespace).withName(jobName).get();
         if (job != null) {
             LOGGER.info("Reconnecting to existing Graph builder job with name {} ", jobName);
-        } else {
-            LOGGER.info("Creating Graph builder job with name {} ", jobName);
-            CronJobSpec specTemplate = getCronJobSpecTemplate(cronJobName, kubernetesClient);
-            job = buildJobFromCronJobSpecTemplate(specTemplate, jobName, envVars);
-            kubernetesClient.batch().v1().jobs().inNamespace(kubernetesNamespace).resource(job).create();
+            return job;
         }
+        if (kubernetesWarmPool.isEnabled()) {
+            Optional<Job> worker = kubernetesWarmPool.findAssignedWorker(cronJobName, jobName)
+                    .or(() -> kubernetesWarmPool.assign(cronJobName, jobName, envVars));
+            kubernetesWarmPool.requestReplenish(cronJobName, workerName -> buildJobFromCronJobSpecTemplate(getCronJobSpecTemplate(cronJobName, kubernetesClient), workerName, List.of()));
+            if (worker.isPresent()) {
+                return worker.get();
+            }
+        }
+        LOGGER.info("Creating Graph builder job with name {} ", jobName);
+        CronJobSpec specTemplate = getCronJobSpecTemplate(cronJobName, kubernetesClient);
+        job = buildJobFromCronJobSpecTemplate(specTemplate, jobName, envVars);
+        kubernetesClient.batch().v1().jobs().inNamespace(kubernetesNamespace).resource(job).create();
         return job;
     }
 
@@ -136,9 +164,13 @@ public class KubernetesJobRunner {
                 .withSpec(jobSpec)
                 .withNewMetadata()
                 .withName(jobName)
+                .addToLabels(KubernetesJobTracker.MARDUK_JOB_LABEL, KubernetesJobTracker.MARDUK_JOB_LABEL_VALUE)
                 .endMetadata()
                 .editOrNewSpec()
                 .editTemplate()
+                .editOrNewMetadata()
+                .addToLabels(KubernetesJobTracker.MARDUK_JOB_LABEL, KubernetesJobTracker.MARDUK_JOB_LABEL_VALUE)
+                .endMetadata()
                 .editSpec()
                 .editFirstContainer()
                 .addAllToEnv(envVars)
@@ -148,57 +180,4 @@ public class KubernetesJobRunner {
                 .endSpec()
                 .build();
     }
-
-    private static class MardukPodWatcher implements Watcher<Pod> {
-
-        private final CountDownLatch watchLatch;
-        private final String jobName;
-        private final int backoffLimit;
-        private final AtomicInteger podFailureCounter;
-        private volatile boolean kubernetesClientError;
-        private volatile boolean succeeded;
-
-        public boolean isKubernetesClientError() {
-            return kubernetesClientError;
-        }
-
-        public boolean isSucceeded() {
-            return succeeded;
-        }
-
-        public MardukPodWatcher(Job job, CountDownLatch watchLatch, String jobName) {
-            this.watchLatch = watchLatch;
-            this.jobName = jobName;
-            backoffLimit = job.getSpec().getBackoffLimit();
-            podFailureCounter = new AtomicInteger(0);
-        }
-
-        @Override
-        public void eventReceived(Action action, Pod pod) {
-            String podName = pod.getMetadata().getName();
-            LOGGER.info("The Graph Builder pod {} is in phase {} (Action: {}).", podName, pod.getStatus().getPhase(), action.name());
-            if (pod.getStatus().getPhase().equals("Succeeded")) {
-                succeeded = true;
-                watchLatch.countDown();
-            }
-            // counting only actions of type "MODIFIED" since Kubernetes can send multiple events in the phase "Failed" (action=MODIFIED, action=DELETED)
-            if (pod.getStatus().getPhase().equals("Failed") && action.name().equals("MODIFIED")) {
-                if (podFailureCounter.incrementAndGet() >= backoffLimit) {
-                    LOGGER.error("The Graph Builder job {} failed (reason: {}) after {} retries, exceeding the backoff limit. Giving up.", jobName, pod.getStatus().getReason(), podFailureCounter);
-                    watchLatch.countDown();
-                } else {
-                    LOGGER.warn("The Graph Builder job {} failed (reason: {}), retrying {}/{}", jobName, pod.getStatus().getReason(), podFailureCounter, backoffLimit);
-                }
-            }
-        }
-
-        @Override
-        public void onClose(WatcherException cause) {
-            if (cause != null) {
-                LOGGER.warn("Kubernetes client error while watching the Graph Builder job {}. Trying to reconnect...", jobName, cause);
-                kubernetesClientError = true;
-                watchLatch.countDown();
-            }
-        }
-    }
 }
@@ -0,0 +1,303 @@
+package no.rutebanken.marduk.kubernetes;
+
+import io.fabric8.kubernetes.api.model.Pod;
+import io.fabric8.kubernetes.api.model.batch.v1.Job;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClientBuilder;
+import io.fabric8.kubernetes.client.informers.ResourceEventHandler;
+import io.fabric8.kubernetes.client.informers.SharedIndexInformer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Track the completion of Kubernetes jobs created by Marduk.
+ * A single Kubernetes client and a pair of shared informers (one on jobs, one on pods) are used for all jobs, so that
+ * any number of jobs can be tracked concurrently without holding a thread or a watch connection per job.
+ * The informers are filtered on the label {@link #MARDUK_JOB_LABEL} and re-list/re-watch transparently after a reconnection.
+ * They are started on first use and restarted if they stopped after a Kubernetes client error.
+ * Jobs that do not have the label (for example jobs created by a previous version of Marduk and reconnected to after a restart)
+ * are watched by name, with informers dedicated to the job.
+ * <p>
+ * A job is successful when one of its pods succeeds. It fails when the number of failed pods reaches the job backoff limit,
+ * when the job is marked as failed by Kubernetes or when the job is deleted.
+ * The pod status is tested rather than the job status since the job status may be out of sync with the pod status.
+ */
+@Component
+public class KubernetesJobTracker implements DisposableBean {
+
+    /**
+     * Label set on the jobs and pods created by Marduk.
+     * The label is specific to Marduk, so that the informers do not pick up resources managed by other tools in the namespace.
+     */
+    public static final String MARDUK_JOB_LABEL = "marduk.rutebanken.org/job";
+    public static final String MARDUK_JOB_LABEL_VALUE = "true";
+
+    private static final String JOB_NAME_LABEL = "job-name";
+    private static final String POD_PHASE_SUCCEEDED = "Succeeded";
+    private static final String POD_PHASE_FAILED = "Failed";
+    private static final String JOB_CONDITION_FAILED = "Failed";
+    private static final int DEFAULT_BACKOFF_LIMIT = 6;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(KubernetesJobTracker.class);
+
+    private final String kubernetesNamespace;
+    private final Map<String, TrackedJob> trackedJobs = new ConcurrentHashMap<>();
+
+    private KubernetesClient kubernetesClient;
+    private SharedIndexInformer<Pod> podInformer;
+    private SharedIndexInformer<Job> jobInformer;
+
+    public KubernetesJobTracker(@Value("${otp.graph.build.remote.kubernetes.namespace:default}") String kubernetesNamespace) {
+        this.kubernetesNamespace = kubernetesNamespace;
+    }
+
+    /**
+     * Return the Kubernetes client shared by all jobs. The client is created on first use.
+     */
+    public synchronized KubernetesClient getClient() {
+        if (kubernetesClient == null) {
+            kubernetesClient = new KubernetesClientBuilder().build();
+        }
+        return kubernetesClient;
+    }
+
+    /**
+     * Start tracking a job.
+     * The returned future completes when the job succeeds, or completes exceptionally with a {@link KubernetesJobRunnerException}
+     * when the job fails, or with a {@link KubernetesJobWatchException} when the job cannot be tracked any longer because of a Kubernetes client error.
+     * The job stops being tracked once the future is completed, including when it is completed or cancelled by the caller (for example on timeout).
+     *
+     * @param job the Kubernetes job.
+     * @return a future completed when the job completes.
+     */
+    public CompletableFuture<Void> track(Job job) {
+        CompletableFuture<Void> jobCompletion = register(job);
+        if (!isLabelled(job)) {
+            watchByName(job.getMetadata().getName(), jobCompletion);
+            return jobCompletion;
+        }
+        synchronized (this) {
+            startInformers();
+            // the job may have progressed before it was registered: replaying the current state of the informer caches.
+            podInformer.getStore().list().forEach(this::onPodEvent);
+            jobInformer.getStore().list().forEach(this::onJobEvent);
+        }
+        return jobCompletion;
+    }
+
+    static boolean isLabelled(Job job) {
+        Map<String, String> labels = job.getMetadata().getLabels();
+        return labels != null && MARDUK_JOB_LABEL_VALUE.equals(labels.get(MARDUK_JOB_LABEL));
+    }
+
+    /**
+     * Watch a job that is not labelled with {@link #MARDUK_JOB_LABEL}, with informers filtered on the job name.
+     * The informers are closed when the job completes.
+     */
+    private void watchByName(String jobName, CompletableFuture<Void> jobCompletion) {
+        LOGGER.info("The job {} is not labelled with {}, watching it by name", jobName, MARDUK_JOB_LABEL);
+        SharedIndexInformer<Pod> jobPodInformer = getClient().pods().inNamespace(kubernetesNamespace).withLabel(JOB_NAME_LABEL, jobName).inform(podEventHandler(), 0);
+        SharedIndexInformer<Job> namedJobInformer = getClient().batch().v1().jobs().inNamespace(kubernetesNamespace).withName(jobName).inform(jobEventHandler(), 0);
+        jobCompletion.whenComplete((result, throwable) -> {
+            jobPodInformer.close();
+            namedJobInformer.close();
+        });
+        jobPodInformer.stopped().whenComplete((result, throwable) -> onNamedInformerStopped(jobName, jobCompletion, throwable));
+        namedJobInformer.stopped().whenComplete((result, throwable) -> onNamedInformerStopped(jobName, jobCompletion, throwable));
+    }
+
+    private static void onNamedInformerStopped(String jobName, CompletableFuture<Void> jobCompletion, Throwable cause) {
+        if (cause != null) {
+            jobCompletion.completeExceptionally(new KubernetesJobWatchException("Kubernetes client error while watching the job " + jobName, cause));
+        }
+    }
+
+    CompletableFuture<Void> register(Job job) {
+        String jobName = job.getMetadata().getName();
+        int backoffLimit = Objects.requireNonNullElse(job.getSpec().getBackoffLimit(), DEFAULT_BACKOFF_LIMIT);
+        TrackedJob trackedJob = new TrackedJob(jobName, backoffLimit);
+        TrackedJob previous = trackedJobs.put(jobName, trackedJob);
+        if (previous != null) {
+            previous.completion.completeExceptionally(new KubernetesJobRunnerException("The job " + jobName + " is tracked by another caller"));
+        }
+        trackedJob.completion.whenComplete((result, throwable) -> trackedJobs.remove(jobName, trackedJob));
+        return trackedJob.completion;
+    }
+
+    void onPodEvent(Pod pod) {
+        String jobName = pod.getMetadata().getLabels() == null ? null : pod.getMetadata().getLabels().get(JOB_NAME_LABEL);
+        TrackedJob trackedJob = jobName == null ? null : trackedJobs.get(jobName);
+        if (trackedJob == null || pod.getStatus() == null || pod.getStatus().getPhase() == null) {
+            return;
+        }
+        String podName = pod.getMetadata().getName();
+        String phase = pod.getStatus().getPhase();
+        if (!phase.equals(trackedJob.podPhases.put(podName, phase))) {
+            LOGGER.info("The pod {} of job {} is in phase {}.", podName, jobName, phase);
+        }
+        if (POD_PHASE_SUCCEEDED.equals(phase)) {
+            LOGGER.info("The job {} completed successfully.", jobName);
+            trackedJob.completion.complete(null);
+        } else if (POD_PHASE_FAILED.equals(phase) && trackedJob.failedPods.add(podName)) {
+            // counting each failed pod once, since the informer can deliver several events for the same failed pod (update, re-list)
+            int nbFailedPods = trackedJob.failedPods.size();
+            if (nbFailedPods >= trackedJob.backoffLimit) {
+                LOGGER.error("The job {} failed (reason: {}) after {} retries, exceeding the backoff limit. Giving up.", jobName, pod.getStatus().getReason(), nbFailedPods);
+                trackedJob.completion.completeExceptionally(new KubernetesJobRunnerException("The job " + jobName + " failed."));
+            } else {
+                LOGGER.warn("The job {} failed (reason: {}), retrying {}/{}", jobName, pod.getStatus().getReason(), nbFailedPods, trackedJob.backoffLimit);
+            }
+        }
+    }
+
+    void onJobEvent(Job job) {
+        TrackedJob trackedJob = trackedJobs.get(job.getMetadata().getName());
+        if (trackedJob == null || job.getStatus() == null || job.getStatus().getConditions() == null) {
+            return;
+        }
+        job.getStatus().getConditions().stream()
+                .filter(condition -> JOB_CONDITION_FAILED.equals(condition.getType()) && "True".equals(condition.getStatus()))
+                .findFirst()
+                .ifPresent(condition -> {
+                    LOGGER.error("The job {} failed (reason: {}).", trackedJob.jobName, condition.getReason());
+                    trackedJob.completion.completeExceptionally(new KubernetesJobRunnerException("The job " + trackedJob.jobName + " failed: " + condition.getReason()));
+                });
+    }
+
+    void onJobDeleted(Job job) {
+        TrackedJob trackedJob = trackedJobs.get(job.getMetadata().getName());
+        if (trackedJob != null) {
+            trackedJob.completion.completeExceptionally(new KubernetesJobRunnerException("The job " + trackedJob.jobName + " was deleted before completion."));
+        }
+    }
+
+    /**
+     * Fail all tracked jobs when an informer stops unexpectedly. The informers are restarted on the next call to {@link #track(Job)}.
+     */
+    void onInformerStopped(Throwable cause) {
+        if (cause == null) {
+            return;
+        }
+        LOGGER.warn("Kubernetes client error while watching jobs, {} tracked jobs will be reconnected", trackedJobs.size(), cause);
+        trackedJobs.values().forEach(trackedJob -> trackedJob.completion.completeExceptionally(
+                new KubernetesJobWatchException("Kubernetes client error while watching the job " + trackedJob.jobName, cause)));
+    }
+
+    /**
+     * Return the pods of a job, as currently known by the pod informer.
+     */
+    public synchronized List<Pod> getPods(String jobName) {
+        startInformers();
+        return podInformer.getStore().list().stream()
+                .filter(pod -> pod.getMetadata().getLabels() != null && jobName.equals(pod.getMetadata().getLabels().get(JOB_NAME_LABEL)))
+                .toList();
+    }
+
+    /**
+     * Return the jobs created by Marduk that have the given label, as currently known by the job informer.
+     */
+    public synchronized List<Job> getJobs(String label, String value) {
+        startInformers();
+        return jobInformer.getStore().list().stream()
+                .filter(job -> job.getMetadata().getLabels() != null && value.equals(job.getMetadata().getLabels().get(label)))
+                .toList();
+    }
+
+    int getTrackedJobCount() {
+        return trackedJobs.size();
+    }
+
+    private void startInformers() {
+        if (podInformer != null && podInformer.isRunning() && jobInformer != null && jobInformer.isRunning()) {
+            return;
+        }
+        stopInformers();
+        LOGGER.info("Starting Kubernetes job informers in namespace {}", kubernetesNamespace);
+        podInformer = getClient().pods().inNamespace(kubernetesNamespace).withLabel(MARDUK_JOB_LABEL, MARDUK_JOB_LABEL_VALUE).inform(podEventHandler(), 0);
+        jobInformer = getClient().batch().v1().jobs().inNamespace(kubernetesNamespace).withLabel(MARDUK_JOB_LABEL, MARDUK_JOB_LABEL_VALUE).inform(jobEventHandler(), 0);
+        podInformer.stopped().whenComplete((result, throwable) -> onInformerStopped(throwable));
+        jobInformer.stopped().whenComplete((result, throwable) -> onInformerStopped(throwable));
+    }
+
+    private ResourceEventHandler<Pod> podEventHandler() {
+        return new ResourceEventHandler<>() {
+            @Override
+            public void onAdd(Pod pod) {
+                onPodEvent(pod);
+            }
+
+            @Override
+            public void onUpdate(Pod oldPod, Pod newPod) {
+                onPodEvent(newPod);
+            }
+
+            @Override
+            public void onDelete(Pod pod, boolean deletedFinalStateUnknown) {
+                // a deleted pod is replaced by the job controller, the job deletion is tracked by the job informer.
+            }
+        };
+    }
+
+    private ResourceEventHandler<Job> jobEventHandler() {
+        return new ResourceEventHandler<>() {
+            @Override
+            public void onAdd(Job job) {
+                onJobEvent(job);
+            }
+
+            @Override
+            public void onUpdate(Job oldJob, Job newJob) {
+                onJobEvent(newJob);
+            }
+
+            @Override
+            public void onDelete(Job job, boolean deletedFinalStateUnknown) {
+                onJobDeleted(job);
+            }
+        };
+    }
+
+    private void stopInformers() {
+        if (podInformer != null) {
+            podInformer.close();
+            podInformer = null;
+        }
+        if (jobInformer != null) {
+            jobInformer.close();
+            jobInformer = null;
+        }
+    }
+
+    @Override
+    public synchronized void destroy() {
+        stopInformers();
+        if (kubernetesClient != null) {
+            kubernetesClient.close();
+            kubernetesClient = null;
+        }
+    }
+
+    private static final class TrackedJob {
+
+        private final String jobName;
+        private final int backoffLimit;
+        private final CompletableFuture<Void> completion = new CompletableFuture<>();
+        private final Map<String, String> podPhases = new ConcurrentHashMap<>();
+        private final Set<String> failedPods = ConcurrentHashMap.newKeySet();
+
+        private TrackedJob(String jobName, int backoffLimit) {
+            this.jobName = jobName;
+            this.backoffLimit = backoffLimit;
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package no.rutebanken.marduk.kubernetes;
+
+/**
+ * Signals that a Kubernetes job could not be tracked because of a Kubernetes client error.
+ * The job itself may still be running and can be reconnected to in a later attempt.
+ */
+public class KubernetesJobWatchException extends KubernetesJobRunnerException {
+
+    private static final long serialVersionUID = 1L;
+
+    public KubernetesJobWatchException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,337 @@
+package no.rutebanken.marduk.kubernetes;
+
+import io.fabric8.kubernetes.api.model.ConfigMap;
+import io.fabric8.kubernetes.api.model.ConfigMapBuilder;
+import io.fabric8.kubernetes.api.model.EnvVar;
+import io.fabric8.kubernetes.api.model.Pod;
+import io.fabric8.kubernetes.api.model.batch.v1.Job;
+import io.fabric8.kubernetes.api.model.batch.v1.JobBuilder;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.apache.camel.CamelContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Optional pool of pre-provisioned Kubernetes jobs ("workers") that are started ahead of time from a CronJob template and
+ * wait for a work assignment. Dispatching a job to a running worker saves the pod scheduling, node scale-up and image pull time.
+ * <p>
+ * Work assignment handshake: the worker pod gets the environment variable {@link #WORK_ASSIGNMENT_FILE_ENV_VAR} pointing to a file
+ * projected from an optional ConfigMap named after the worker job. The file is absent until Marduk assigns work to the worker by
+ * creating the ConfigMap with a list of NAME='value' lines, one per environment variable of the job, quoted as in a POSIX shell.
+ * Since the ConfigMap belongs to the job rather than to a pod, a pod that replaces a failed pod of the worker receives the same assignment.
+ * The worker is expected to poll the file, export the variables and run the job as usual, then terminate.
+ * The worker job is then tracked and deleted like any other job, and its ConfigMap is garbage-collected with it.
+ * <p>
+ * Only workers whose pod is running are assigned work, so that dispatching never waits longer than creating a new job.
+ * The pool is replenished in the background after each dispatch and periodically. Idle workers expire when no job was dispatched
+ * to the pool for the idle timeout, so that an unused pool does not hold resources.
+ * The pool is disabled when its size is 0.
+ */
+@Component
+public class KubernetesWarmPool {
+
+    /**
+     * Label identifying the CronJob template of a worker.
+     */
+    public static final String WARM_POOL_LABEL = "marduk.entur.org/warm-pool";
+
+    /**
+     * Annotation set on a worker job when it is assigned work, referring to the name of the job it runs.
+     */
+    public static final String ASSIGNED_JOB_ANNOTATION = "marduk.entur.org/assigned-job";
+
+    /**
+     * Environment variable giving the worker the path to the work assignment file.
+     */
+    public static final String WORK_ASSIGNMENT_FILE_ENV_VAR = "MARDUK_WORK_ASSIGNMENT_FILE";
+
+    private static final String WORK_ASSIGNMENT_VOLUME = "marduk-work-assignment";
+    private static final String WORK_ASSIGNMENT_DIRECTORY = "/etc/marduk";
+    private static final String WORK_ASSIGNMENT_FILE = "work-assignment";
+    private static final Pattern ENV_VAR_NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+    private static final String POD_PHASE_RUNNING = "Running";
+    private static final String POD_PHASE_SUCCEEDED = "Succeeded";
+    private static final String POD_PHASE_FAILED = "Failed";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(KubernetesWarmPool.class);
+
+    private final KubernetesJobTracker kubernetesJobTracker;
+    private final CamelContext camelContext;
+    private final int poolSize;
+    private final String kubernetesNamespace;
+    private final Duration checkInterval;
+    private final Duration idleTimeout;
+    private final Map<String, Function<String, Job>> workerFactories = new ConcurrentHashMap<>();
+    private final Map<String, Instant> lastDispatches = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService scheduler;
+
+    public KubernetesWarmPool(KubernetesJobTracker kubernetesJobTracker,
+                              CamelContext camelContext,
+                              @Value("${otp.graph.build.remote.kubernetes.warm.pool.size:0}") int poolSize,
+                              @Value("${otp.graph.build.remote.kubernetes.namespace:default}") String kubernetesNamespace,
+                              @Value("${otp.graph.build.remote.kubernetes.warm.pool.check.interval:PT1M}") Duration checkInterval,
+                              @Value("${otp.graph.build.remote.kubernetes.warm.pool.idle.timeout:PT2H}") Duration idleTimeout) {
+        this.kubernetesJobTracker = kubernetesJobTracker;
+        this.camelContext = camelContext;
+        this.poolSize = poolSize;
+        this.kubernetesNamespace = kubernetesNamespace;
+        this.checkInterval = checkInterval;
+        this.idleTimeout = idleTimeout;
+    }
+
+    @PostConstruct
+    public void start() {
+        if (isEnabled()) {
+            scheduler = camelContext.getExecutorServiceManager().newSingleThreadScheduledExecutor(this, "KubernetesWarmPool");
+            scheduler.scheduleWithFixedDelay(this::replenishAll, checkInterval.toMillis(), checkInterval.toMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (scheduler != null) {
+            camelContext.getExecutorServiceManager().shutdown(scheduler);
+        }
+    }
+
+    public boolean isEnabled() {
+        return poolSize > 0;
+    }
+
+    /**
+     * Return the worker that was assigned a job during a previous attempt, if any.
+     *
+     * @param cronJobName the name of the CronJob used as a template for the workers.
+     * @param jobName     the name of the job.
+     * @return the worker job running the given job.
+     */
+    public synchronized Optional<Job> findAssignedWorker(String cronJobName, String jobName) {
+        return workers(cronJobName).stream()
+                .filter(worker -> jobName.equals(assignedJob(worker)))
+                .findFirst();
+    }
+
+    /**
+     * Assign a job to an idle worker.
+     *
+     * @param cronJobName the name of the CronJob used as a template for the workers.
+     * @param jobName     the name of the job.
+     * @param envVars     environment variables to be provided to the job.
+     * @return the worker job running the given job, or an empty optional if no worker is idle.
+     */
+    public synchronized Optional<Job> assign(String cronJobName, String jobName, List<EnvVar> envVars) {
+        Optional<Pod> idleWorkerPod = selectIdleWorkerPod(workers(cronJobName), kubernetesJobTracker::getPods);
+        if (idleWorkerPod.isEmpty()) {
+            LOGGER.info("No idle worker in the warm pool {}, creating a new job {}", cronJobName, jobName);
+            return Optional.empty();
+        }
+        Pod pod = idleWorkerPod.get();
+        String workerName = pod.getMetadata().getLabels().get("job-name");
+        Job worker;
+        try {
+            worker = kubernetesJobTracker.getClient().batch().v1().jobs().inNamespace(kubernetesNamespace).withName(workerName)
+                    .edit(job -> new JobBuilder(job).editMetadata().addToAnnotations(ASSIGNED_JOB_ANNOTATION, jobName).endMetadata().build());
+        } catch (KubernetesClientException e) {
+            LOGGER.warn("Could not assign job {} to worker {} in the warm pool {}, creating a new job", jobName, workerName, cronJobName, e);
+            return Optional.empty();
+        }
+        try {
+            kubernetesJobTracker.getClient().configMaps().inNamespace(kubernetesNamespace).resource(toWorkAssignment(worker, envVars)).create();
+        } catch (KubernetesClientException e) {
+            // the worker is marked as assigned but did not receive its assignment: it is deleted so that it does not wait forever
+            LOGGER.warn("Could not send the work assignment of job {} to worker {} in the warm pool {}, creating a new job", jobName, workerName, cronJobName, e);
+            deleteQuietly(worker);
+            return Optional.empty();
+        }
+        LOGGER.info("Assigned job {} to worker {} in the warm pool {}", jobName, workerName, cronJobName);
+        return Optional.of(worker);
+    }
+
+    /**
+     * Request the replenishment of the pool after a dispatch. The pool is replenished in the background.
+     *
+     * @param cronJobName   the name of the CronJob used as a template for the workers.
+     * @param workerFactory creates a job from the CronJob template, given the name of the job.
+     */
+    public void requestReplenish(String cronJobName, Function<String, Job> workerFactory) {
+        workerFactories.put(cronJobName, workerFactory);
+        lastDispatches.put(cronJobName, Instant.now());
+        if (scheduler != null) {
+            scheduler.execute(() -> replenish(cronJobName, workerFactory));
+        }
+    }
+
+    private void replenishAll() {
+        workerFactories.forEach(this::replenish);
+    }
+
+    /**
+     * Create new workers until the pool contains the configured number of idle workers, and delete idle workers that terminated.
+     * When no job was dispatched to the pool for the idle timeout, the idle workers are deleted and the pool is not replenished.
+     * Errors are logged and ignored: the pool is replenished again on the next dispatch or periodic check.
+     * Called only from the pool scheduler thread, so that it does not hold back the dispatch of jobs.
+     *
+     * @param cronJobName   the name of the CronJob used as a template for the workers.
+     * @param workerFactory creates a job from the CronJob template, given the name of the job.
+     */
+    void replenish(String cronJobName, Function<String, Job> workerFactory) {
+        try {
+            boolean expired = isExpired(lastDispatches.get(cronJobName), Instant.now(), idleTimeout);
+            int nbIdleWorkers = 0;
+            for (Job worker : workers(cronJobName)) {
+                if (assignedJob(worker) != null) {
+                    continue;
+                }
+                if (expired) {
+                    LOGGER.info("Deleting idle worker {} from the warm pool {}: no job dispatched for {}", worker.getMetadata().getName(), cronJobName, idleTimeout);
+                    deleteQuietly(worker);
+                } else if (isTerminated(kubernetesJobTracker.getPods(worker.getMetadata().getName()))) {
+                    LOGGER.info("Deleting terminated idle worker {} from the warm pool {}", worker.getMetadata().getName(), cronJobName);
+                    deleteQuietly(worker);
+                } else {
+                    nbIdleWorkers++;
+                }
+            }
+            if (expired) {
+                return;
+            }
+            for (int i = nbIdleWorkers; i < poolSize; i++) {
+                String workerName = cronJobName + "-warm-" + UUID.randomUUID().toString().substring(0, 8);
+                LOGGER.info("Adding worker {} to the warm pool {}", workerName, cronJobName);
+                Job worker = toWorker(workerFactory.apply(workerName), cronJobName);
+                kubernetesJobTracker.getClient().batch().v1().jobs().inNamespace(kubernetesNamespace).resource(worker).create();
+            }
+        } catch (RuntimeException e) {
+            LOGGER.warn("Could not replenish the warm pool {}", cronJobName, e);
+        }
+    }
+
+    static boolean isExpired(Instant lastDispatch, Instant now, Duration idleTimeout) {
+        return lastDispatch == null || lastDispatch.plus(idleTimeout).isBefore(now);
+    }
+
+    private void deleteQuietly(Job worker) {
+        try {
+            kubernetesJobTracker.getClient().batch().v1().jobs().inNamespace(kubernetesNamespace).resource(worker).delete();
+        } catch (KubernetesClientException e) {
+            LOGGER.warn("Could not delete worker {}", worker.getMetadata().getName(), e);
+        }
+    }
+
+    private List<Job> workers(String cronJobName) {
+        return kubernetesJobTracker.getJobs(WARM_POOL_LABEL, cronJobName);
+    }
+
+    /**
+     * Add to a job the label identifying the worker pool and the optional ConfigMap volume exposing the work assignment.
+     */
+    static Job toWorker(Job job, String cronJobName) {
+        return new JobBuilder(job)
+                .editMetadata()
+                .addToLabels(WARM_POOL_LABEL, cronJobName)
+                .endMetadata()
+                .editSpec()
+                .editTemplate()
+                .editOrNewMetadata()
+                .addToLabels(WARM_POOL_LABEL, cronJobName)
+                .endMetadata()
+                .editSpec()
+                .addNewVolume()
+                .withName(WORK_ASSIGNMENT_VOLUME)
+                .withNewConfigMap()
+                .withName(job.getMetadata().getName())
+                .withOptional(true)
+                .endConfigMap()
+                .endVolume()
+                .editFirstContainer()
+                .addNewVolumeMount()
+                .withName(WORK_ASSIGNMENT_VOLUME)
+                .withMountPath(WORK_ASSIGNMENT_DIRECTORY)
+                .withReadOnly(true)
+                .endVolumeMount()
+                .addNewEnv()
+                .withName(WORK_ASSIGNMENT_FILE_ENV_VAR)
+                .withValue(WORK_ASSIGNMENT_DIRECTORY + '/' + WORK_ASSIGNMENT_FILE)
+                .endEnv()
+                .endContainer()
+                .endSpec()
+                .endTemplate()
+                .endSpec()
+                .build();
+    }
+
+    /**
+     * Create the ConfigMap holding the work assignment of a worker. The ConfigMap is owned by the worker job and deleted with it.
+     */
+    static ConfigMap toWorkAssignment(Job worker, List<EnvVar> envVars) {
+        return new ConfigMapBuilder()
+                .withNewMetadata()
+                .withName(worker.getMetadata().getName())
+                .addNewOwnerReference()
+                .withApiVersion("batch/v1")
+                .withKind("Job")
+                .withName(worker.getMetadata().getName())
+                .withUid(worker.getMetadata().getUid())
+                .endOwnerReference()
+                .endMetadata()
+                .addToData(WORK_ASSIGNMENT_FILE, encodeWorkAssignment(envVars))
+                .build();
+    }
+
+    /**
+     * Select the pod of an unassigned worker that is running.
+     */
+    static Optional<Pod> selectIdleWorkerPod(List<Job> workers, Function<String, List<Pod>> podsByJobName) {
+        return workers.stream()
+                .filter(worker -> assignedJob(worker) == null)
+                .map(worker -> podsByJobName.apply(worker.getMetadata().getName()))
+                .filter(pods -> !isTerminated(pods))
+                .flatMap(List::stream)
+                .filter(pod -> pod.getStatus() != null && POD_PHASE_RUNNING.equals(pod.getStatus().getPhase()))
+                .findFirst();
+    }
+
+    /**
+     * Encode the environment variables as NAME='value' lines. Values are single-quoted as in a POSIX shell,
+     * so that they can contain any character, including quotes and line breaks.
+     */
+    static String encodeWorkAssignment(List<EnvVar> envVars) {
+        return envVars.stream().map(envVar -> {
+            if (!ENV_VAR_NAME.matcher(envVar.getName()).matches()) {
+                throw new KubernetesJobRunnerException("Invalid environment variable name in work assignment: " + envVar.getName());
+            }
+            String value = Objects.requireNonNullElse(envVar.getValue(), "");
+            return envVar.getName() + "='" + value.replace("'", "'\\''") + "'";
+        }).collect(Collectors.joining("\n", "", "\n"));
+    }
+
+    private static String assignedJob(Job worker) {
+        Map<String, String> annotations = worker.getMetadata().getAnnotations();
+        return annotations == null ? null : annotations.get(ASSIGNED_JOB_ANNOTATION);
+    }
+
+    private static boolean isTerminated(List<Pod> pods) {
+        return pods.stream().anyMatch(pod -> pod.getStatus() != null
+                && (POD_PHASE_SUCCEEDED.equals(pod.getStatus().getPhase()) || POD_PHASE_FAILED.equals(pod.getStatus().getPhase())));
+    }
+}
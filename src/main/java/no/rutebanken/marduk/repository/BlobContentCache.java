@@ -0,0 +1,198 @@
+package no.rutebanken.marduk.repository;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import no.rutebanken.marduk.exceptions.MardukException;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.file.PathUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Disk-backed cache of blob contents, with a least-recently-used eviction policy bounded by the total size of the cached blobs.
+ * Entries are identified by a key that must change whenever the content of the blob changes (for example the blob name and generation),
+ * so that entries never need to be invalidated: outdated entries are simply evicted when they are not used any more.
+ * Concurrent requests for the same missing entry are coalesced into a single download.
+ * The index of cached entries is kept in memory and the cache directory is emptied at startup.
+ */
+public class BlobContentCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BlobContentCache.class);
+
+    private final Path directory;
+    private final long maxSizeBytes;
+
+    /**
+     * Cached entries and their size, in access order. Guarded by this.
+     */
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalSize;
+
+    private final Map<String, CompletableFuture<Path>> downloads = new ConcurrentHashMap<>();
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter coalescedDownloads;
+
+    private final MeterRegistry meterRegistry;
+
+    public BlobContentCache(Path directory, long maxSizeBytes, MeterRegistry meterRegistry) {
+        this.directory = directory;
+        this.maxSizeBytes = maxSizeBytes;
+        this.meterRegistry = meterRegistry;
+        hits = Counter.builder("marduk.blobstore.content.cache.requests").tag("result", "hit").register(meterRegistry);
+        misses = Counter.builder("marduk.blobstore.content.cache.requests").tag("result", "miss").register(meterRegistry);
+        coalescedDownloads = Counter.builder("marduk.blobstore.content.cache.requests").tag("result", "coalesced").register(meterRegistry);
+    }
+
+    /**
+     * Empty the cache directory and register the cache size gauge. Must be called before the cache is used.
+     */
+    public void init() {
+        try {
+            if (Files.exists(directory)) {
+                PathUtils.cleanDirectory(directory);
+            } else {
+                Files.createDirectories(directory);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not initialize the blob content cache in " + directory, e);
+        }
+        Gauge.builder("marduk.blobstore.content.cache.size.bytes", this, BlobContentCache::getTotalSize).register(meterRegistry);
+    }
+
+    /**
+     * Return the cached content for the given key, or download it if it is not cached.
+     *
+     * @param key        identifies the content of the blob.
+     * @param downloader downloads the blob content. It may return null if the blob does not exist.
+     * @return the blob content, or null if the blob does not exist.
+     */
+    public InputStream getBlob(String key, Supplier<InputStream> downloader) {
+        String fileName = toFileName(key);
+        if (isCached(fileName)) {
+            InputStream cachedContent = open(fileName);
+            if (cachedContent != null) {
+                hits.increment();
+                return cachedContent;
+            }
+        }
+        CompletableFuture<Path> download = new CompletableFuture<>();
+        CompletableFuture<Path> ongoingDownload = downloads.putIfAbsent(fileName, download);
+        if (ongoingDownload != null) {
+            coalescedDownloads.increment();
+            try {
+                if (ongoingDownload.join() == null) {
+                    return null;
+                }
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException runtimeException ? runtimeException : e;
+            }
+        } else {
+            misses.increment();
+            try {
+                download.complete(download(fileName, downloader));
+            } catch (RuntimeException e) {
+                download.completeExceptionally(e);
+                throw e;
+            } finally {
+                downloads.remove(fileName);
+            }
+            if (download.join() == null) {
+                return null;
+            }
+        }
+        InputStream content = open(fileName);
+        if (!isCached(fileName)) {
+            // blob larger than the cache: the file is deleted as soon as it is opened.
+            // On POSIX file systems, readers that have already opened the file can still read it.
+            deleteQuietly(directory.resolve(fileName));
+        }
+        // the entry may have been evicted in the meantime
+        return content != null ? content : downloader.get();
+    }
+
+    private Path download(String fileName, Supplier<InputStream> downloader) {
+        Path target = directory.resolve(fileName);
+        Path temporaryFile = null;
+        try (InputStream inputStream = downloader.get()) {
+            if (inputStream == null) {
+                return null;
+            }
+            temporaryFile = Files.createTempFile(directory, "download-", ".tmp");
+            long size = Files.copy(inputStream, temporaryFile, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temporaryFile, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            if (size <= maxSizeBytes) {
+                register(fileName, size);
+            }
+            return target;
+        } catch (IOException e) {
+            deleteQuietly(temporaryFile);
+            throw new MardukException("Could not download blob into the blob content cache", e);
+        }
+    }
+
+    private synchronized boolean isCached(String fileName) {
+        return entries.get(fileName) != null;
+    }
+
+    private synchronized void register(String fileName, long size) {
+        Long previousSize = entries.put(fileName, size);
+        totalSize += size - (previousSize == null ? 0 : previousSize);
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        // evicting the least recently used entries. The new entry is the most recently used one and fits in the cache.
+        while (totalSize > maxSizeBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            LOGGER.debug("Evicting {} from the blob content cache", entry.getKey());
+            totalSize -= entry.getValue();
+            iterator.remove();
+            // on POSIX file systems, readers that have already opened the file can still read it.
+            deleteQuietly(directory.resolve(entry.getKey()));
+        }
+    }
+
+    private InputStream open(String fileName) {
+        try {
+            return Files.newInputStream(directory.resolve(fileName));
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        if (path == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            LOGGER.warn("Could not delete {} from the blob content cache", path, e);
+        }
+    }
+
+    private static String toFileName(String key) {
+        return DigestUtils.sha256Hex(key);
+    }
+
+    synchronized long getTotalSize() {
+        return totalSize;
+    }
+}
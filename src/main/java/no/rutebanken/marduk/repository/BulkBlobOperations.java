@@ -0,0 +1,89 @@
+package no.rutebanken.marduk.repository;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * Run an operation on many blobs with bounded concurrency.
+ * The operation is applied to batches of blobs, so that implementations can group the requests of a batch into a single call.
+ * A failure on a batch does not stop the processing of the other batches, and the failures are reported in the result.
+ * The batches run on the executor given by the caller, which bounds the concurrency.
+ */
+public final class BulkBlobOperations {
+
+    /**
+     * Maximum number of requests in a Google Cloud Storage batch request.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    /**
+     * Run the batches one after the other in the calling thread.
+     */
+    public static final Executor SEQUENTIAL = Runnable::run;
+
+    private BulkBlobOperations() {
+    }
+
+    /**
+     * Process a batch of blobs.
+     */
+    @FunctionalInterface
+    public interface BatchOperation<T> {
+
+        /**
+         * @param batch    the items of the batch.
+         * @param failures collects the failures of individual items. Items that are not reported as failed are considered successful.
+         *                 If the operation throws an exception, all items of the batch are considered failed.
+         */
+        void apply(List<T> batch, Map<T, String> failures);
+    }
+
+    /**
+     * Apply an operation to each item individually, running items concurrently.
+     */
+    public static <T> BulkOperationResult forEach(Collection<T> items, Consumer<T> operation, Executor executor) {
+        return inBatches(items, 1, (batch, failures) -> batch.forEach(operation), executor);
+    }
+
+    /**
+     * Apply an operation to batches of items, running batches concurrently.
+     */
+    public static <T> BulkOperationResult inBatches(Collection<T> items, int batchSize, BatchOperation<T> operation, Executor executor) {
+        if (items.isEmpty()) {
+            return BulkOperationResult.empty();
+        }
+        Map<T, String> failures = new ConcurrentHashMap<>();
+        List<CompletableFuture<Void>> batches = new ArrayList<>();
+        List<T> batch = new ArrayList<>(batchSize);
+        for (T item : items) {
+            batch.add(item);
+            if (batch.size() == batchSize) {
+                batches.add(runBatch(batch, operation, failures, executor));
+                batch = new ArrayList<>(batchSize);
+            }
+        }
+        if (!batch.isEmpty()) {
+            batches.add(runBatch(batch, operation, failures, executor));
+        }
+        CompletableFuture.allOf(batches.toArray(CompletableFuture[]::new)).join();
+        Map<String, String> failuresByName = new ConcurrentHashMap<>();
+        failures.forEach((item, message) -> failuresByName.put(String.valueOf(item), message));
+        return new BulkOperationResult(items.size() - failures.size(), Map.copyOf(failuresByName));
+    }
+
+    private static <T> CompletableFuture<Void> runBatch(List<T> batch, BatchOperation<T> operation, Map<T, String> failures, Executor executor) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                operation.apply(batch, failures);
+            } catch (RuntimeException e) {
+                batch.forEach(item -> failures.put(item, String.valueOf(e.getMessage())));
+            }
+        }, executor);
+    }
+}
@@ -0,0 +1,37 @@
+package no.rutebanken.marduk.repository;
+
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Outcome of a bulk blob operation: the number of blobs processed successfully and the blobs for which the operation failed.
+ *
+ * @param nbSucceeded the number of blobs processed successfully.
+ * @param failures    the error message for each blob for which the operation failed.
+ */
+public record BulkOperationResult(int nbSucceeded, Map<String, String> failures) {
+
+    private static final int MAX_REPORTED_FAILURES = 10;
+
+    public static BulkOperationResult empty() {
+        return new BulkOperationResult(0, Map.of());
+    }
+
+    public boolean hasFailures() {
+        return !failures.isEmpty();
+    }
+
+    /**
+     * Summary of the result for logging, listing at most the first failures.
+     */
+    public String summary() {
+        if (!hasFailures()) {
+            return nbSucceeded + " succeeded";
+        }
+        String reportedFailures = failures.entrySet().stream()
+                .limit(MAX_REPORTED_FAILURES)
+                .map(failure -> failure.getKey() + ": " + failure.getValue())
+                .collect(Collectors.joining(", "));
+        return nbSucceeded + " succeeded, " + failures.size() + " failed (" + reportedFailures + (failures.size() > MAX_REPORTED_FAILURES ? ", ..." : "") + ")";
+    }
+}
@@ -0,0 +1,146 @@
+package no.rutebanken.marduk.repository;
+
+import no.rutebanken.marduk.domain.BlobStoreFiles;
+import org.rutebanken.helper.storage.model.BlobDescriptor;
+
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.stream.Stream;
+
+/**
+ * Blob store repository that serves blob contents from a local {@link BlobContentCache}.
+ * Before downloading a blob, the repository retrieves its fingerprint (the GCS generation) with a metadata-only request:
+ * the blob is downloaded only if this version of the blob is not already cached.
+ * All other operations are delegated to the underlying repository.
+ */
+public class CachingMardukBlobStoreRepository implements MardukBlobStoreRepository {
+
+    private final MardukBlobStoreRepository delegate;
+    private final BlobContentCache blobContentCache;
+    private String containerName;
+
+    public CachingMardukBlobStoreRepository(MardukBlobStoreRepository delegate, BlobContentCache blobContentCache) {
+        this.delegate = delegate;
+        this.blobContentCache = blobContentCache;
+    }
+
+    @Override
+    public InputStream getBlob(String name) {
+        String fingerprint = delegate.getBlobFingerprint(name);
+        if (fingerprint == null) {
+            return delegate.getBlob(name);
+        }
+        return blobContentCache.getBlob(containerName + '/' + name + '@' + fingerprint, () -> delegate.getBlob(name));
+    }
+
+    @Override
+    public boolean exist(String name) {
+        return delegate.exist(name);
+    }
+
+    @Override
+    public long uploadBlob(BlobDescriptor blobDescriptor) {
+        return delegate.uploadBlob(blobDescriptor);
+    }
+
+    @Override
+    public long uploadBlob(String name, InputStream inputStream) {
+        return delegate.uploadBlob(name, inputStream);
+    }
+
+    @Override
+    public long uploadBlob(String name, InputStream inputStream, String contentType) {
+        return delegate.uploadBlob(name, inputStream, contentType);
+    }
+
+    @Override
+    public long uploadNewBlob(String name, InputStream inputStream) {
+        return delegate.uploadNewBlob(name, inputStream);
+    }
+
+    @Override
+    public void copyBlob(String sourceContainerName, String sourceObjectName, String targetContainerName, String targetObjectName) {
+        delegate.copyBlob(sourceContainerName, sourceObjectName, targetContainerName, targetObjectName);
+    }
+
+    @Override
+    public void copyVersionedBlob(String sourceContainerName, String sourceObjectName, Long sourceVersion, String targetContainerName, String targetObjectName) {
+        delegate.copyVersionedBlob(sourceContainerName, sourceObjectName, sourceVersion, targetContainerName, targetObjectName);
+    }
+
+    @Override
+    public void copyAllBlobs(String sourceContainerName, String prefix, String targetContainerName, String targetPrefix) {
+        delegate.copyAllBlobs(sourceContainerName, prefix, targetContainerName, targetPrefix);
+    }
+
+    @Override
+    public boolean delete(String objectName) {
+        return delegate.delete(objectName);
+    }
+
+    @Override
+    public boolean deleteAllFilesInFolder(String folder) {
+        return delegate.deleteAllFilesInFolder(folder);
+    }
+
+    @Override
+    public void setContainerName(String containerName) {
+        this.containerName = containerName;
+        delegate.setContainerName(containerName);
+    }
+
+    @Override
+    public BlobStoreFiles listBlobs(Collection<String> prefixes) {
+        return delegate.listBlobs(prefixes);
+    }
+
+    @Override
+    public BlobStoreFiles listBlobs(String prefix) {
+        return delegate.listBlobs(prefix);
+    }
+
+    @Override
+    public BlobStoreFiles listBlobsFlat(String prefix) {
+        return delegate.listBlobsFlat(prefix);
+    }
+
+    @Override
+    public String getBlobFingerprint(String name) {
+        return delegate.getBlobFingerprint(name);
+    }
+
+    @Override
+    public BulkOperationResult deleteBlobs(Collection<String> names) {
+        return delegate.deleteBlobs(names);
+    }
+
+    @Override
+    public BulkOperationResult deleteBlobsInFolder(String folder) {
+        return delegate.deleteBlobsInFolder(folder);
+    }
+
+    @Override
+    public BulkOperationResult copyBlobsInFolder(String sourceContainerName, String prefix, String targetContainerName, String targetPrefix) {
+        return delegate.copyBlobsInFolder(sourceContainerName, prefix, targetContainerName, targetPrefix);
+    }
+
+    @Override
+    public void collectUnreferencedContent() {
+        delegate.collectUnreferencedContent();
+    }
+
+    @Override
+    public Stream<BlobStoreFiles.File> streamBlobs(Collection<String> prefixes) {
+        return delegate.streamBlobs(prefixes);
+    }
+
+    @Override
+    public Stream<BlobStoreFiles.File> streamBlobsFlat(String prefix) {
+        return delegate.streamBlobsFlat(prefix);
+    }
+
+    @Override
+    public BlobStoreFiles listBlobsFlat(String prefix, String pageToken, int pageSize) {
+        return delegate.listBlobsFlat(prefix, pageToken, pageSize);
+    }
+}
@@ -0,0 +1,165 @@
+package no.rutebanken.marduk.repository;
+
+import no.rutebanken.marduk.exceptions.MardukException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * List blobs under several prefixes concurrently and merge the results into a single stream.
+ * Each prefix is listed page by page in a separate task. The listed items are handed over to the consumer through a bounded buffer,
+ * so that the memory footprint does not depend on the number of listed blobs, and the first items are available as soon as
+ * the first page of any prefix is retrieved.
+ * The order of the items is not defined. Closing the stream cancels the listing tasks.
+ * The listing tasks are also cancelled when a listing fails, or when the consumer does not read any item for
+ * {@link #DEFAULT_CONSUMER_TIMEOUT}, so that an abandoned stream that is not closed does not hold a listing thread forever.
+ */
+public final class ConcurrentBlobLister {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConcurrentBlobLister.class);
+
+    private static final int BUFFER_SIZE = 1000;
+    private static final long POLL_TIMEOUT_MILLIS = 100;
+    static final Duration DEFAULT_CONSUMER_TIMEOUT = Duration.ofMinutes(5);
+
+    private static final Object END_OF_PREFIX = new Object();
+
+    private ConcurrentBlobLister() {
+    }
+
+    /**
+     * @param prefixes the prefixes to list.
+     * @param lister   return a lazy iterator over the items under a given prefix. The iterator is expected to retrieve one page at a time.
+     * @param executor runs the listing tasks. Its size bounds the number of prefixes listed concurrently.
+     *                 If null, the prefixes are listed one after the other.
+     * @return a stream of the items under all prefixes. The stream must be closed after use.
+     */
+    public static <T> Stream<T> list(Collection<String> prefixes, Function<String, Iterator<T>> lister, ExecutorService executor) {
+        return list(prefixes, lister, executor, DEFAULT_CONSUMER_TIMEOUT);
+    }
+
+    static <T> Stream<T> list(Collection<String> prefixes, Function<String, Iterator<T>> lister, ExecutorService executor, Duration consumerTimeout) {
+        if (prefixes.size() == 1) {
+            Iterator<T> iterator = lister.apply(prefixes.iterator().next());
+            return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.NONNULL), false);
+        }
+        if (executor == null) {
+            return prefixes.stream().flatMap(prefix -> StreamSupport.stream(Spliterators.spliteratorUnknownSize(lister.apply(prefix), Spliterator.NONNULL), false));
+        }
+        MergingIterator<T> mergingIterator = new MergingIterator<>(prefixes, lister, executor, consumerTimeout);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(mergingIterator, Spliterator.NONNULL), false)
+                .onClose(mergingIterator::cancel);
+    }
+
+    private static final class MergingIterator<T> implements Iterator<T> {
+
+        private final BlockingQueue<Object> buffer = new ArrayBlockingQueue<>(BUFFER_SIZE);
+        private final List<Future<?>> listingTasks = new ArrayList<>();
+        private final long consumerTimeoutNanos;
+        private volatile boolean cancelled;
+        private int remainingPrefixes;
+        private Object next;
+
+        private MergingIterator(Collection<String> prefixes, Function<String, Iterator<T>> lister, ExecutorService executor, Duration consumerTimeout) {
+            consumerTimeoutNanos = consumerTimeout.toNanos();
+            remainingPrefixes = prefixes.size();
+            for (String prefix : prefixes) {
+                listingTasks.add(executor.submit(() -> listPrefix(prefix, lister)));
+            }
+        }
+
+        private void listPrefix(String prefix, Function<String, Iterator<T>> lister) {
+            Object endMarker = END_OF_PREFIX;
+            try {
+                Iterator<T> iterator = lister.apply(prefix);
+                while (!cancelled && iterator.hasNext()) {
+                    put(iterator.next());
+                }
+            } catch (RuntimeException e) {
+                endMarker = new ListingFailure(prefix, e);
+            } finally {
+                put(endMarker);
+            }
+        }
+
+        private void put(Object item) {
+            long start = System.nanoTime();
+            try {
+                while (!cancelled && !buffer.offer(item, POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    // waiting for the consumer, unless the stream is closed or abandoned
+                    if (System.nanoTime() - start > consumerTimeoutNanos) {
+                        LOGGER.warn("Cancelling blob listing: the consumer did not read any item for {} ms", TimeUnit.NANOSECONDS.toMillis(consumerTimeoutNanos));
+                        cancelled = true;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancelled = true;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && remainingPrefixes > 0) {
+                Object item;
+                try {
+                    item = buffer.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    cancel();
+                    throw new MardukException("Interrupted while listing blobs", e);
+                }
+                if (item == null) {
+                    if (cancelled && buffer.isEmpty()) {
+                        cancel();
+                        throw new MardukException("The blob listing was cancelled after the consumer timeout");
+                    }
+                } else if (item == END_OF_PREFIX) {
+                    remainingPrefixes--;
+                } else if (item instanceof ListingFailure listingFailure) {
+                    cancel();
+                    throw new MardukException("Error while listing blobs under prefix " + listingFailure.prefix, listingFailure.cause);
+                } else {
+                    next = item;
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            T item = (T) next;
+            next = null;
+            return item;
+        }
+
+        private void cancel() {
+            cancelled = true;
+            remainingPrefixes = 0;
+            listingTasks.forEach(task -> task.cancel(true));
+        }
+    }
+
+    private record ListingFailure(String prefix, RuntimeException cause) {
+    }
+}
@@ -0,0 +1,467 @@
+package no.rutebanken.marduk.repository;
+
+import no.rutebanken.marduk.domain.BlobStoreFiles;
+import no.rutebanken.marduk.exceptions.MardukException;
+import org.apache.commons.codec.binary.Hex;
+import org.rutebanken.helper.storage.BlobAlreadyExistsException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Blob store repository that stores the content of each blob once, under a name derived from its SHA-256 digest.
+ * Named blobs are small references to the content, so that re-uploading identical content and copying blobs within the container
+ * are metadata operations. Copies to other containers are materialized as regular blobs through a server-side copy of the content.
+ * Unreferenced contents are deleted by a mark-and-sweep garbage collection ({@link #collectUnreferencedContent()}).
+ * The marks are stored in the container, so that the garbage collection can be continued by another instance.
+ * Content addressing is enabled only for the configured containers, and only containers that are read exclusively through Marduk
+ * should be configured, since other applications cannot resolve the references. For other containers, all operations are delegated
+ * to the underlying repository. Blobs written before content addressing was enabled are still served as regular blobs.
+ */
+public class ContentAddressedMardukBlobStoreRepository implements MardukBlobStoreRepository {
+
+    /**
+     * Prefix of the blobs managed by this repository, hidden from listings.
+     */
+    private static final String INTERNAL_PREFIX = "content-addressed/";
+
+    /**
+     * Prefix of the content blobs.
+     */
+    public static final String CONTENT_PREFIX = INTERNAL_PREFIX + "sha256/";
+
+    /**
+     * Blob holding the digests of the contents found unreferenced during the previous garbage collection, one per line.
+     */
+    static final String UNREFERENCED_CONTENTS_BLOB = INTERNAL_PREFIX + "unreferenced-contents";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ContentAddressedMardukBlobStoreRepository.class);
+
+    private static final byte[] REFERENCE_MAGIC = "marduk-blob-reference/v1\n".getBytes(StandardCharsets.UTF_8);
+    private static final long MAX_REFERENCE_SIZE = 256;
+
+    private final MardukBlobStoreRepository delegate;
+    private final Set<String> contentAddressedContainers;
+    private final Duration gracePeriod;
+
+    private String containerName;
+    private boolean enabled;
+
+    /**
+     * References resolved in listings, by blob name. The cached entry is valid as long as the fingerprint of the blob is unchanged.
+     */
+    private final Map<String, ResolvedBlob> resolvedBlobs = new ConcurrentHashMap<>();
+
+    /**
+     * @param delegate                   the repository storing the contents and references.
+     * @param contentAddressedContainers the containers in which content addressing is enabled.
+     * @param gracePeriod                contents younger than this are never garbage-collected.
+     */
+    public ContentAddressedMardukBlobStoreRepository(MardukBlobStoreRepository delegate, Set<String> contentAddressedContainers, Duration gracePeriod) {
+        this.delegate = delegate;
+        this.contentAddressedContainers = contentAddressedContainers;
+        this.gracePeriod = gracePeriod;
+    }
+
+    @Override
+    public void setContainerName(String containerName) {
+        this.containerName = containerName;
+        this.enabled = contentAddressedContainers.contains(containerName);
+        delegate.setContainerName(containerName);
+    }
+
+    @Override
+    public InputStream getBlob(String name) {
+        InputStream inputStream = delegate.getBlob(name);
+        if (!enabled || inputStream == null) {
+            return inputStream;
+        }
+        PushbackInputStream pushbackInputStream = new PushbackInputStream(inputStream, REFERENCE_MAGIC.length);
+        try {
+            byte[] header = pushbackInputStream.readNBytes(REFERENCE_MAGIC.length);
+            if (!Arrays.equals(header, REFERENCE_MAGIC)) {
+                // regular blob
+                pushbackInputStream.unread(header);
+                return pushbackInputStream;
+            }
+            Reference reference = Reference.parse(new String(pushbackInputStream.readAllBytes(), StandardCharsets.UTF_8));
+            pushbackInputStream.close();
+            InputStream content = delegate.getBlob(contentName(reference.digest()));
+            if (content == null) {
+                throw new MardukException("The content " + reference.digest() + " referenced by blob " + name + " does not exist");
+            }
+            return content;
+        } catch (IOException e) {
+            throw new MardukException("Error while reading blob " + name, e);
+        }
+    }
+
+    @Override
+    public long uploadBlob(String name, InputStream inputStream) {
+        return uploadBlob(name, inputStream, null);
+    }
+
+    @Override
+    public long uploadBlob(String name, InputStream inputStream, String contentType) {
+        if (!enabled) {
+            return contentType == null ? delegate.uploadBlob(name, inputStream) : delegate.uploadBlob(name, inputStream, contentType);
+        }
+        Path temporaryFile = null;
+        try {
+            temporaryFile = Files.createTempFile("content-addressed-upload-", ".tmp");
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+            long size;
+            try (DigestInputStream digestInputStream = new DigestInputStream(inputStream, messageDigest)) {
+                size = Files.copy(digestInputStream, temporaryFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+            Reference reference = new Reference(Hex.encodeHexString(messageDigest.digest()), size);
+            String contentName = contentName(reference.digest());
+            boolean contentExists = delegate.exist(contentName);
+            if (contentExists) {
+                LOGGER.debug("Content of blob {} is already stored as {}", name, contentName);
+            } else {
+                uploadContent(contentName, temporaryFile, contentType);
+            }
+            long generation = writeReference(name, reference);
+            if (!delegate.exist(contentName)) {
+                // the content was garbage-collected while the reference was written
+                uploadContent(contentName, temporaryFile, contentType);
+            } else if (contentExists && isGarbageCollectionCandidate(contentName)) {
+                // a garbage collection that listed the references before this one was written may be about to delete the content:
+                // re-writing the content restarts its grace period
+                LOGGER.debug("Refreshing content {} referenced by blob {}", contentName, name);
+                uploadContent(contentName, temporaryFile, contentType);
+            }
+            return generation;
+        } catch (IOException e) {
+            throw new MardukException("Error while uploading blob " + name, e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            deleteQuietly(temporaryFile);
+        }
+    }
+
+    /**
+     * A content is refreshed when it is referenced again after half of its grace period, so that it is never deleted
+     * by a garbage collection running concurrently with the upload of the reference.
+     */
+    private boolean isGarbageCollectionCandidate(String contentName) {
+        Instant created = getCreated(contentName);
+        return created == null || !created.isAfter(Instant.now().minus(gracePeriod.dividedBy(2)));
+    }
+
+    private Instant getCreated(String contentName) {
+        return delegate.listBlobs(contentName).getFiles().stream()
+                .filter(file -> file.getName().equals(contentName))
+                .map(BlobStoreFiles.File::getCreated)
+                .filter(Objects::nonNull)
+                .findFirst()
+                .orElse(null);
+    }
+
+    private void uploadContent(String contentName, Path file, String contentType) throws IOException {
+        try (InputStream content = Files.newInputStream(file)) {
+            if (contentType == null) {
+                delegate.uploadBlob(contentName, content);
+            } else {
+                delegate.uploadBlob(contentName, content, contentType);
+            }
+        }
+    }
+
+    private long writeReference(String name, Reference reference) {
+        resolvedBlobs.remove(name);
+        return delegate.uploadBlob(name, new ByteArrayInputStream(reference.serialize()));
+    }
+
+    @Override
+    public long uploadNewBlob(String name, InputStream inputStream) {
+        if (!enabled) {
+            return delegate.uploadNewBlob(name, inputStream);
+        }
+        if (delegate.exist(name)) {
+            throw new BlobAlreadyExistsException("The blob " + name + " already exists");
+        }
+        return uploadBlob(name, inputStream);
+    }
+
+    @Override
+    public void copyBlob(String sourceContainerName, String sourceObjectName, String targetContainerName, String targetObjectName) {
+        copyVersionedBlob(sourceContainerName, sourceObjectName, null, targetContainerName, targetObjectName);
+    }
+
+    /**
+     * Copy a blob. A reference is copied as a reference within the container, and as a regular blob to other containers.
+     * Since references are replaced atomically and contents are immutable, the copy is based on the current reference of the source blob.
+     */
+    @Override
+    public void copyVersionedBlob(String sourceContainerName, String sourceObjectName, Long sourceVersion, String targetContainerName, String targetObjectName) {
+        Reference reference = enabled && containerName.equals(sourceContainerName) ? readReference(sourceObjectName) : null;
+        if (reference == null) {
+            delegate.copyVersionedBlob(sourceContainerName, sourceObjectName, sourceVersion, targetContainerName, targetObjectName);
+        } else if (containerName.equals(targetContainerName)) {
+            writeReference(targetObjectName, reference);
+        } else {
+            delegate.copyBlob(containerName, contentName(reference.digest()), targetContainerName, targetObjectName);
+        }
+    }
+
+    @Override
+    public void copyAllBlobs(String sourceContainerName, String prefix, String targetContainerName, String targetPrefix) {
+        if (!enabled || !containerName.equals(sourceContainerName)) {
+            delegate.copyAllBlobs(sourceContainerName, prefix, targetContainerName, targetPrefix);
+            return;
+        }
+        for (BlobStoreFiles.File file : listBlobs(prefix).getFiles()) {
+            copyBlob(sourceContainerName, file.getName(), targetContainerName, file.getName().replace(prefix, targetPrefix));
+        }
+    }
+
+    @Override
+    public boolean exist(String name) {
+        return delegate.exist(name);
+    }
+
+    /**
+     * Delete the blob. The content is deleted by the garbage collection once it is not referenced any more.
+     */
+    @Override
+    public boolean delete(String objectName) {
+        resolvedBlobs.remove(objectName);
+        return delegate.delete(objectName);
+    }
+
+    @Override
+    public BulkOperationResult deleteBlobs(Collection<String> names) {
+        names.forEach(resolvedBlobs::remove);
+        return delegate.deleteBlobs(names);
+    }
+
+    @Override
+    public boolean deleteAllFilesInFolder(String folder) {
+        resolvedBlobs.keySet().removeIf(name -> name.startsWith(folder));
+        return delegate.deleteAllFilesInFolder(folder);
+    }
+
+    @Override
+    public BlobStoreFiles listBlobs(Collection<String> prefixes) {
+        BlobStoreFiles blobStoreFiles = delegate.listBlobs(prefixes);
+        if (!enabled) {
+            return blobStoreFiles;
+        }
+        BlobStoreFiles result = new BlobStoreFiles();
+        result.add(blobStoreFiles.getFiles().stream()
+                .filter(file -> !file.getName().startsWith(INTERNAL_PREFIX))
+                .map(file -> resolve(file, file.getName()))
+                .toList());
+        return result;
+    }
+
+    @Override
+    public BlobStoreFiles listBlobs(String prefix) {
+        return listBlobs(List.of(prefix));
+    }
+
+    @Override
+    public BlobStoreFiles listBlobsFlat(String prefix) {
+        BlobStoreFiles blobStoreFiles = delegate.listBlobsFlat(prefix);
+        if (!enabled) {
+            return blobStoreFiles;
+        }
+        BlobStoreFiles result = new BlobStoreFiles();
+        result.add(blobStoreFiles.getFiles().stream()
+                .filter(file -> !(prefix + file.getName()).startsWith(INTERNAL_PREFIX))
+                .map(file -> resolve(file, prefix + file.getName()))
+                .toList());
+        return result;
+    }
+
+    /**
+     * The fingerprint of a reference is the digest of its content, so that identical contents share cache entries.
+     */
+    @Override
+    public String getBlobFingerprint(String name) {
+        if (enabled) {
+            Reference reference = readReference(name);
+            if (reference != null) {
+                return "sha256:" + reference.digest();
+            }
+        }
+        return delegate.getBlobFingerprint(name);
+    }
+
+    /**
+     * Delete the contents that are not referenced by any blob in the container.
+     * A content is deleted only if it is older than the grace period and was already unreferenced during the previous garbage collection.
+     * Contents are listed before references, so that a content uploaded during the garbage collection is either not listed or referenced.
+     * The age of the content is checked again just before it is deleted, since a content referenced again while the references are listed
+     * is re-written by the upload.
+     */
+    @Override
+    public synchronized void collectUnreferencedContent() {
+        if (!enabled) {
+            return;
+        }
+        List<BlobStoreFiles.File> contents = delegate.listBlobs(CONTENT_PREFIX).getFiles();
+        Instant gracePeriodStart = Instant.now().minus(gracePeriod);
+        Map<String, Integer> referenceCounts = new HashMap<>();
+        for (BlobStoreFiles.File file : delegate.listBlobs("").getFiles()) {
+            if (!file.getName().startsWith(INTERNAL_PREFIX)) {
+                Reference reference = resolveReference(file, file.getName());
+                if (reference != null) {
+                    referenceCounts.merge(reference.digest(), 1, Integer::sum);
+                }
+            }
+        }
+        Set<String> unreferencedContents = readUnreferencedContents();
+        Set<String> unreferenced = new HashSet<>();
+        int nbDeleted = 0;
+        for (BlobStoreFiles.File content : contents) {
+            String digest = content.getName().substring(CONTENT_PREFIX.length());
+            if (referenceCounts.containsKey(digest) || content.getCreated() == null || content.getCreated().isAfter(gracePeriodStart)) {
+                continue;
+            }
+            if (!unreferencedContents.contains(digest)) {
+                unreferenced.add(digest);
+            } else if (isExpired(content.getName())) {
+                delegate.delete(content.getName());
+                nbDeleted++;
+            }
+        }
+        writeUnreferencedContents(unreferenced);
+        LOGGER.info("Garbage collection of contents in container {}: {} contents, {} referenced, {} deleted, {} marked for deletion",
+                containerName, contents.size(), referenceCounts.size(), nbDeleted, unreferenced.size());
+    }
+
+    private boolean isExpired(String contentName) {
+        Instant created = getCreated(contentName);
+        return created != null && !created.isAfter(Instant.now().minus(gracePeriod));
+    }
+
+    private Set<String> readUnreferencedContents() {
+        try (InputStream inputStream = delegate.getBlob(UNREFERENCED_CONTENTS_BLOB)) {
+            if (inputStream == null) {
+                return Set.of();
+            }
+            return new String(inputStream.readAllBytes(), StandardCharsets.UTF_8).lines()
+                    .filter(line -> !line.isBlank())
+                    .collect(Collectors.toSet());
+        } catch (IOException e) {
+            throw new MardukException("Error while reading the unreferenced contents", e);
+        }
+    }
+
+    private void writeUnreferencedContents(Set<String> unreferencedContents) {
+        String body = unreferencedContents.stream().map(digest -> digest + "\n").collect(Collectors.joining());
+        delegate.uploadBlob(UNREFERENCED_CONTENTS_BLOB, new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private BlobStoreFiles.File resolve(BlobStoreFiles.File file, String name) {
+        Reference reference = resolveReference(file, name);
+        if (reference != null) {
+            file.setFileSize(reference.size());
+            file.setContentFingerprint("sha256:" + reference.digest());
+        }
+        return file;
+    }
+
+    /**
+     * Return the reference held by a listed blob, or null if the blob is a regular blob.
+     * Only small blobs are read, and the result is cached as long as the blob is unchanged.
+     */
+    private Reference resolveReference(BlobStoreFiles.File file, String name) {
+        if (file.getFileSize() == null || file.getFileSize() > MAX_REFERENCE_SIZE) {
+            return null;
+        }
+        String fingerprint = file.getContentFingerprint();
+        ResolvedBlob resolvedBlob = resolvedBlobs.get(name);
+        if (fingerprint != null && resolvedBlob != null && fingerprint.equals(resolvedBlob.fingerprint())) {
+            return resolvedBlob.reference();
+        }
+        Reference reference = readReference(name);
+        if (fingerprint != null) {
+            resolvedBlobs.put(name, new ResolvedBlob(fingerprint, reference));
+        }
+        return reference;
+    }
+
+    private Reference readReference(String name) {
+        try (InputStream inputStream = delegate.getBlob(name)) {
+            if (inputStream == null) {
+                return null;
+            }
+            byte[] header = inputStream.readNBytes(REFERENCE_MAGIC.length);
+            if (!Arrays.equals(header, REFERENCE_MAGIC)) {
+                return null;
+            }
+            return Reference.parse(new String(inputStream.readNBytes((int) MAX_REFERENCE_SIZE), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new MardukException("Error while reading blob " + name, e);
+        }
+    }
+
+    static String contentName(String digest) {
+        return CONTENT_PREFIX + digest;
+    }
+
+    private static void deleteQuietly(Path file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOGGER.warn("Could not delete temporary file {}", file, e);
+        }
+    }
+
+    record Reference(String digest, long size) {
+
+        byte[] serialize() {
+            String body = "sha256=" + digest + "\nsize=" + size + "\n";
+            byte[] serialized = Arrays.copyOf(REFERENCE_MAGIC, REFERENCE_MAGIC.length + body.length());
+            System.arraycopy(body.getBytes(StandardCharsets.UTF_8), 0, serialized, REFERENCE_MAGIC.length, body.length());
+            return serialized;
+        }
+
+        static Reference parse(String body) {
+            String digest = null;
+            Long size = null;
+            for (String line : body.split("\n")) {
+                if (line.startsWith("sha256=")) {
+                    digest = line.substring("sha256=".length());
+                } else if (line.startsWith("size=")) {
+                    size = Long.parseLong(line.substring("size=".length()));
+                }
+            }
+            return new Reference(Objects.requireNonNull(digest, "Invalid blob reference"), Objects.requireNonNull(size, "Invalid blob reference"));
+        }
+    }
+
+    private record ResolvedBlob(String fingerprint, Reference reference) {
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ */
+
+package no.rutebanken.marduk.repository;
+
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import javax.sql.DataSource;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Store the canonical digest of the latest NeTEx export for each referential.
+ * The digest is shared between all Marduk instances through the database, so that an export whose content has not changed
+ * since the previous export can be detected regardless of the node that processes it.
+ */
+@Repository
+public class ExportDigestRepository {
+
+    private static final String SELECT_STRING = "SELECT digest FROM EXPORT_DIGEST WHERE referential = ?";
+    private static final String UPDATE_STRING = "UPDATE EXPORT_DIGEST SET digest = ?, updatedAt = ? WHERE referential = ?";
+    private static final String INSERT_STRING = "INSERT INTO EXPORT_DIGEST (referential, digest, updatedAt) VALUES (?, ?, ?)";
+    private static final String DELETE_STRING = "DELETE FROM EXPORT_DIGEST WHERE referential = ?";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public ExportDigestRepository(DataSource dataSource) {
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+    }
+
+    /**
+     * Return the digest of the latest export recorded for the given referential.
+     */
+    public Optional<String> getDigest(String referential) {
+        List<String> digests = jdbcTemplate.queryForList(SELECT_STRING, String.class, referential);
+        return digests.stream().findFirst();
+    }
+
+    /**
+     * Record the digest of the latest export for the given referential, replacing any previous value.
+     */
+    public void saveDigest(String referential, String digest) {
+        Timestamp now = Timestamp.from(Instant.now());
+        if (jdbcTemplate.update(UPDATE_STRING, digest, now, referential) == 0) {
+            try {
+                jdbcTemplate.update(INSERT_STRING, referential, digest, now);
+            } catch (DuplicateKeyException e) {
+                // another node inserted a digest for the same referential in the meantime
+                jdbcTemplate.update(UPDATE_STRING, digest, now, referential);
+            }
+        }
+    }
+
+    /**
+     * Forget the digest recorded for the given referential, so that the next export is published unconditionally.
+     */
+    public void deleteDigest(String referential) {
+        jdbcTemplate.update(DELETE_STRING, referential);
+    }
+
+}
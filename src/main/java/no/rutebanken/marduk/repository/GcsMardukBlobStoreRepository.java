@@ -16,27 +16,111 @@
 
 package no.rutebanken.marduk.repository;
 
+import com.google.api.gax.paging.Page;
+import com.google.cloud.ReadChannel;
 import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageBatch;
+import com.google.cloud.storage.StorageBatchResult;
+import com.google.cloud.storage.StorageException;
 import no.rutebanken.marduk.domain.BlobStoreFiles;
 import no.rutebanken.marduk.domain.Provider;
 import org.apache.commons.lang3.StringUtils;
 import org.rutebanken.helper.gcp.BlobStoreHelper;
 import org.rutebanken.helper.gcp.repository.GcsBlobStoreRepository;
 
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Blob store repository targeting Google Cloud Storage.
  */
 public class GcsMardukBlobStoreRepository extends GcsBlobStoreRepository implements MardukBlobStoreRepository {
 
+    /**
+     * Cache control set by {@link org.rutebanken.helper.gcp.BlobStoreHelper} on blobs uploaded in a single stream.
+     */
+    private static final String COMPOSED_BLOB_CACHE_CONTROL = "public, max-age=600";
+
     private final ProviderRepository providerRepository;
+    private final SlicedBlobDownloader slicedBlobDownloader;
+    private final ParallelCompositeUploader parallelCompositeUploader;
+    private final ExecutorService listingExecutorService;
+    private final Executor bulkOperationExecutor;
 
     public GcsMardukBlobStoreRepository(String projectId, String credentialPath, ProviderRepository providerRepository) {
+        this(projectId, credentialPath, providerRepository, null, null, null, null);
+    }
+
+    /**
+     * @param slicedBlobDownloader      downloader used for large blobs, or null to always download blobs in a single stream.
+     * @param parallelCompositeUploader uploader used for large blobs, or null to always upload blobs in a single stream.
+     * @param listingExecutorService    lists several prefixes concurrently, or null to list them one after the other.
+     * @param bulkOperationExecutor     runs the batches of bulk operations concurrently, or null to run them one after the other.
+     */
+    public GcsMardukBlobStoreRepository(String projectId, String credentialPath, ProviderRepository providerRepository,
+                                        SlicedBlobDownloader slicedBlobDownloader, ParallelCompositeUploader parallelCompositeUploader,
+                                        ExecutorService listingExecutorService, Executor bulkOperationExecutor) {
         super(projectId, credentialPath);
         this.providerRepository = providerRepository;
+        this.slicedBlobDownloader = slicedBlobDownloader;
+        this.parallelCompositeUploader = parallelCompositeUploader;
+        this.listingExecutorService = listingExecutorService;
+        this.bulkOperationExecutor = bulkOperationExecutor == null ? BulkBlobOperations.SEQUENTIAL : bulkOperationExecutor;
+    }
+
+    @Override
+    public long uploadBlob(String name, InputStream inputStream) {
+        return uploadBlob(name, inputStream, BlobStoreHelper.DEFAULT_CONTENT_TYPE);
+    }
+
+    /**
+     * Upload the blob. Blobs larger than one part are uploaded as parts in parallel and composed server-side.
+     * Composite objects have a CRC32C checksum but no MD5 hash: the MD5 digest computed during the upload is stored in their metadata.
+     */
+    @Override
+    public long uploadBlob(String name, InputStream inputStream, String contentType) {
+        if (parallelCompositeUploader == null) {
+            return super.uploadBlob(name, inputStream, contentType);
+        }
+        return parallelCompositeUploader.upload(name, inputStream, contentType, new GcsCompositeUploadTarget());
+    }
+
+    /**
+     * Download the blob. Blobs above the sliced download threshold are downloaded as concurrent byte ranges of the same generation,
+     * and verified against the blob checksum.
+     */
+    @Override
+    public InputStream getBlob(String name) {
+        if (slicedBlobDownloader != null) {
+            Blob blob = storage().get(BlobId.of(containerName(), name),
+                    Storage.BlobGetOption.fields(Storage.BlobField.SIZE, Storage.BlobField.GENERATION, Storage.BlobField.CRC32C, Storage.BlobField.MD5HASH));
+            if (blob != null && slicedBlobDownloader.isApplicable(blob.getSize())) {
+                BlobId blobId = BlobId.of(containerName(), name, blob.getGeneration());
+                return slicedBlobDownloader.download(name, blob.getSize(), (offset, length) -> {
+                    ReadChannel reader = storage().reader(blobId);
+                    reader.seek(offset);
+                    reader.limit(offset + length);
+                    return reader;
+                }, new SlicedBlobDownloader.Checksums(blob.getCrc32c(), blob.getMd5()));
+            }
+        }
+        return super.getBlob(name);
     }
 
     @Override
@@ -63,16 +147,120 @@ public class GcsMardukBlobStoreRepository extends GcsBlobStoreRepository impleme
         Iterator<Blob> blobIterator = BlobStoreHelper.listAllBlobsRecursively(storage(), containerName(), prefix);
         BlobStoreFiles blobStoreFiles = new BlobStoreFiles();
         while (blobIterator.hasNext()) {
-            Blob blob = blobIterator.next();
-            String fileName = blob.getName().replace(prefix, "");
-            if (!StringUtils.isEmpty(fileName)) {
-                blobStoreFiles.add(toBlobStoreFile(blob, fileName));
+            BlobStoreFiles.File file = toFlatBlobStoreFile(blobIterator.next(), prefix);
+            if (file != null) {
+                blobStoreFiles.add(file);
             }
         }
 
         return blobStoreFiles;
     }
 
+    @Override
+    public Stream<BlobStoreFiles.File> streamBlobs(Collection<String> prefixes) {
+        return ConcurrentBlobLister.list(prefixes, prefix -> toBlobStoreFiles(BlobStoreHelper.listAllBlobsRecursively(storage(), containerName(), prefix), blob -> toBlobStoreFile(blob, blob.getName())), listingExecutorService);
+    }
+
+    @Override
+    public Stream<BlobStoreFiles.File> streamBlobsFlat(String prefix) {
+        return ConcurrentBlobLister.list(List.of(prefix), p -> toBlobStoreFiles(BlobStoreHelper.listAllBlobsRecursively(storage(), containerName(), p), blob -> toFlatBlobStoreFile(blob, prefix)), listingExecutorService);
+    }
+
+    @Override
+    public BlobStoreFiles listBlobsFlat(String prefix, String pageToken, int pageSize) {
+        List<Storage.BlobListOption> options = new ArrayList<>();
+        options.add(Storage.BlobListOption.prefix(prefix));
+        options.add(Storage.BlobListOption.pageSize(pageSize));
+        if (pageToken != null) {
+            options.add(Storage.BlobListOption.pageToken(pageToken));
+        }
+        Page<Blob> page = storage().list(containerName(), options.toArray(Storage.BlobListOption[]::new));
+        BlobStoreFiles blobStoreFiles = new BlobStoreFiles();
+        for (Blob blob : page.getValues()) {
+            BlobStoreFiles.File file = toFlatBlobStoreFile(blob, prefix);
+            if (file != null) {
+                blobStoreFiles.add(file);
+            }
+        }
+        blobStoreFiles.setNextPageToken(page.getNextPageToken());
+        return blobStoreFiles;
+    }
+
+    /**
+     * Delete blobs using batch requests, several batches being submitted concurrently.
+     */
+    @Override
+    public BulkOperationResult deleteBlobs(Collection<String> names) {
+        return BulkBlobOperations.inBatches(names, BulkBlobOperations.DEFAULT_BATCH_SIZE, (batch, failures) -> {
+            StorageBatch storageBatch = storage().batch();
+            List<StorageBatchResult<Boolean>> results = batch.stream()
+                    .map(name -> storageBatch.delete(BlobId.of(containerName(), name)))
+                    .toList();
+            storageBatch.submit();
+            for (int i = 0; i < batch.size(); i++) {
+                try {
+                    results.get(i).get();
+                } catch (StorageException e) {
+                    failures.put(batch.get(i), e.getMessage());
+                }
+            }
+        }, bulkOperationExecutor);
+    }
+
+    /**
+     * Return the generation of the blob, retrieved with a metadata-only request. The generation changes whenever the blob is overwritten.
+     */
+    @Override
+    public String getBlobFingerprint(String name) {
+        Blob blob = storage().get(BlobId.of(containerName(), name), Storage.BlobGetOption.fields(Storage.BlobField.GENERATION));
+        return blob == null ? null : String.valueOf(blob.getGeneration());
+    }
+
+    private class GcsCompositeUploadTarget implements ParallelCompositeUploader.CompositeUploadTarget {
+
+        @Override
+        public long uploadBlob(String name, InputStream inputStream, String contentType) {
+            return GcsMardukBlobStoreRepository.super.uploadBlob(name, inputStream, contentType);
+        }
+
+        @Override
+        public void uploadPart(String partName, byte[] content, int length) {
+            storage().create(BlobInfo.newBuilder(containerName(), partName).build(), content, 0, length);
+        }
+
+        @Override
+        public long compose(List<String> sourceNames, String targetName, String contentType, Map<String, String> metadata) {
+            // same content type and cache control as a blob uploaded in a single stream
+            BlobInfo target = BlobInfo.newBuilder(containerName(), targetName)
+                    .setContentType(contentType)
+                    .setCacheControl(COMPOSED_BLOB_CACHE_CONTROL)
+                    .setMetadata(metadata)
+                    .build();
+            Storage.ComposeRequest composeRequest = Storage.ComposeRequest.newBuilder()
+                    .addSource(sourceNames)
+                    .setTarget(target)
+                    .build();
+            return storage().compose(composeRequest).getGeneration();
+        }
+
+        @Override
+        public void deletePart(String partName) {
+            storage().delete(BlobId.of(containerName(), partName));
+        }
+    }
+
+    private static Iterator<BlobStoreFiles.File> toBlobStoreFiles(Iterator<Blob> blobIterator, Function<Blob, BlobStoreFiles.File> mapper) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(blobIterator, Spliterator.NONNULL), false)
+                .map(mapper)
+                .filter(Objects::nonNull)
+                .iterator();
+    }
+
+    private BlobStoreFiles.File toFlatBlobStoreFile(Blob blob, String prefix) {
+        String fileName = blob.getName().replace(prefix, "");
+        return StringUtils.isEmpty(fileName) ? null : toBlobStoreFile(blob, fileName);
+    }
+
 
 
     private BlobStoreFiles.File toBlobStoreFile(Blob blob, String fileName) {
@@ -96,11 +284,26 @@ public class GcsMardukBlobStoreRepository extends GcsBlobStoreRepository impleme
         }
 
         file.setUrl(blob.getMediaLink());
+        file.setContentFingerprint(contentFingerprint(blob));
 
         return file;
     }
 
 
+    /**
+     * Return the MD5 hash of the blob. Composite objects have no MD5 hash, the digest computed during the composite upload is used instead.
+     * For composite objects uploaded by other means, the generation is used: it changes whenever the object is overwritten.
+     */
+    static String contentFingerprint(BlobInfo blob) {
+        if (blob.getMd5() != null) {
+            return blob.getMd5();
+        }
+        if (blob.getMetadata() != null && blob.getMetadata().get(ParallelCompositeUploader.MD5_METADATA) != null) {
+            return blob.getMetadata().get(ParallelCompositeUploader.MD5_METADATA);
+        }
+        return String.valueOf(blob.getGeneration());
+    }
+
     private Provider parseProviderFromFileName(String fileName) {
         if (fileName == null) {
             return null;
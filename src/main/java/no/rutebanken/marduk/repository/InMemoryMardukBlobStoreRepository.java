@@ -17,11 +17,15 @@
 package no.rutebanken.marduk.repository;
 
 import no.rutebanken.marduk.domain.BlobStoreFiles;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.rutebanken.helper.storage.repository.InMemoryBlobStoreRepository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
 import java.time.Instant;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
@@ -34,8 +38,69 @@ public class InMemoryMardukBlobStoreRepository extends InMemoryBlobStoreReposito
 
     private static final Logger LOGGER = LoggerFactory.getLogger(InMemoryMardukBlobStoreRepository.class);
 
+    private final ParallelCompositeUploader parallelCompositeUploader;
+
     public InMemoryMardukBlobStoreRepository(Map<String, Map<String, byte[]>> blobsInContainers) {
+        this(blobsInContainers, null);
+    }
+
+    /**
+     * @param parallelCompositeUploader uploader used for large blobs, or null to always upload blobs in a single stream.
+     *                                  Used for testing the composite upload path without a Google Cloud Storage bucket.
+     */
+    public InMemoryMardukBlobStoreRepository(Map<String, Map<String, byte[]>> blobsInContainers, ParallelCompositeUploader parallelCompositeUploader) {
         super(blobsInContainers);
+        this.parallelCompositeUploader = parallelCompositeUploader;
+    }
+
+    @Override
+    public long uploadBlob(String name, InputStream inputStream) {
+        if (parallelCompositeUploader == null) {
+            return super.uploadBlob(name, inputStream);
+        }
+        return parallelCompositeUploader.upload(name, inputStream, null, new InMemoryCompositeUploadTarget());
+    }
+
+    /**
+     * Bulk operations run concurrently, while the underlying maps are not thread-safe.
+     */
+    @Override
+    public synchronized boolean delete(String objectName) {
+        return super.delete(objectName);
+    }
+
+    @Override
+    public synchronized void copyBlob(String sourceContainerName, String sourceObjectName, String targetContainerName, String targetObjectName) {
+        super.copyBlob(sourceContainerName, sourceObjectName, targetContainerName, targetObjectName);
+    }
+
+    private class InMemoryCompositeUploadTarget implements ParallelCompositeUploader.CompositeUploadTarget {
+
+        @Override
+        public long uploadBlob(String name, InputStream inputStream, String contentType) {
+            return InMemoryMardukBlobStoreRepository.super.uploadBlob(name, inputStream);
+        }
+
+        @Override
+        public void uploadPart(String partName, byte[] content, int length) {
+            // parts are uploaded concurrently, and the map of the container may be created by the first part
+            synchronized (InMemoryMardukBlobStoreRepository.this) {
+                getBlobsForCurrentContainer().put(partName, Arrays.copyOf(content, length));
+            }
+        }
+
+        @Override
+        public long compose(List<String> sourceNames, String targetName, String contentType, Map<String, String> metadata) {
+            ByteArrayOutputStream composed = new ByteArrayOutputStream();
+            sourceNames.forEach(sourceName -> composed.writeBytes(getBlobsForCurrentContainer().get(sourceName)));
+            getBlobsForCurrentContainer().put(targetName, composed.toByteArray());
+            return 0;
+        }
+
+        @Override
+        public void deletePart(String partName) {
+            getBlobsForCurrentContainer().remove(partName);
+        }
     }
 
     @Override
@@ -48,13 +113,19 @@ public class InMemoryMardukBlobStoreRepository extends InMemoryBlobStoreReposito
         LOGGER.debug("list blobs called in in-memory blob store");
         List<BlobStoreFiles.File> files = getBlobsForCurrentContainer().keySet().stream()
                 .filter(fileName -> prefixes.stream().anyMatch(fileName::startsWith))
-                .map(fileName -> new BlobStoreFiles.File(fileName, Instant.now(), Instant.now(), (long) getBlobsForCurrentContainer().get(fileName).length))
+                .map(fileName -> toBlobStoreFile(fileName, getBlobsForCurrentContainer().get(fileName)))
                 .toList();
         BlobStoreFiles blobStoreFiles = new BlobStoreFiles();
         blobStoreFiles.add(files);
         return blobStoreFiles;
     }
 
+    private static BlobStoreFiles.File toBlobStoreFile(String fileName, byte[] content) {
+        BlobStoreFiles.File file = new BlobStoreFiles.File(fileName, Instant.now(), Instant.now(), (long) content.length);
+        file.setContentFingerprint(DigestUtils.md5Hex(content));
+        return file;
+    }
+
     @Override
     public BlobStoreFiles listBlobsFlat(String prefix) {
         List<BlobStoreFiles.File> files = listBlobs(prefix).getFiles();
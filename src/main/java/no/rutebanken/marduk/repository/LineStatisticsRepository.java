@@ -0,0 +1,98 @@
+package no.rutebanken.marduk.repository;
+
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import javax.sql.DataSource;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Store the line statistics computed by Chouette for each referential.
+ * The statistics are refreshed by the leader node, only for the referentials marked as stale, and are shared with all Marduk instances
+ * through the database. Each refresh writes its entries with a new version, so that nodes load only the entries updated since their last load.
+ */
+@Repository
+public class LineStatisticsRepository {
+
+    /**
+     * Line statistics of a referential. The statistics are null if Chouette did not return any statistics for the referential.
+     */
+    public record LineStatisticsEntry(String referential, String statistics, long version) {
+    }
+
+    private static final String MARK_STALE_STRING = "UPDATE LINE_STATISTICS SET staleAt = ? WHERE referential = ?";
+    private static final String INSERT_STALE_STRING = "INSERT INTO LINE_STATISTICS (referential, version, staleAt) VALUES (?, 0, ?)";
+    private static final String SELECT_UP_TO_DATE_STRING = "SELECT referential FROM LINE_STATISTICS WHERE staleAt IS NULL AND updatedAt >= ?";
+    private static final String SELECT_MAX_VERSION_STRING = "SELECT COALESCE(MAX(version), 0) FROM LINE_STATISTICS";
+    private static final String UPDATE_STRING = "UPDATE LINE_STATISTICS SET statistics = ?, version = ?, updatedAt = ?, "
+            + "staleAt = CASE WHEN staleAt > ? THEN staleAt ELSE NULL END WHERE referential = ?";
+    private static final String INSERT_STRING = "INSERT INTO LINE_STATISTICS (referential, statistics, version, updatedAt) VALUES (?, ?, ?, ?)";
+    private static final String SELECT_SINCE_VERSION_STRING = "SELECT referential, statistics, version FROM LINE_STATISTICS WHERE version >= ?";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public LineStatisticsRepository(DataSource dataSource) {
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+    }
+
+    /**
+     * Mark the statistics of the given referential as stale, so that they are refreshed by the next update.
+     */
+    public void markStale(String referential) {
+        Timestamp now = Timestamp.from(Instant.now());
+        if (jdbcTemplate.update(MARK_STALE_STRING, now, referential) == 0) {
+            try {
+                jdbcTemplate.update(INSERT_STALE_STRING, referential, now);
+            } catch (DuplicateKeyException e) {
+                // another node inserted the referential in the meantime
+                jdbcTemplate.update(MARK_STALE_STRING, now, referential);
+            }
+        }
+    }
+
+    /**
+     * Return the referentials whose statistics are not stale and were refreshed after the given instant.
+     */
+    public List<String> findUpToDateReferentials(Instant refreshedAfter) {
+        return jdbcTemplate.queryForList(SELECT_UP_TO_DATE_STRING, String.class, Timestamp.from(refreshedAfter));
+    }
+
+    /**
+     * Return the version of the latest refresh.
+     */
+    public long getMaxVersion() {
+        Long maxVersion = jdbcTemplate.queryForObject(SELECT_MAX_VERSION_STRING, Long.class);
+        return maxVersion == null ? 0 : maxVersion;
+    }
+
+    /**
+     * Save the statistics of a referential.
+     * The stale flag is cleared unless the referential was marked as stale again after the statistics were requested from Chouette.
+     */
+    public void save(String referential, String statistics, long version, Instant requestedAt) {
+        Timestamp now = Timestamp.from(Instant.now());
+        Timestamp requestedAtTimestamp = Timestamp.from(requestedAt);
+        if (jdbcTemplate.update(UPDATE_STRING, statistics, version, now, requestedAtTimestamp, referential) == 0) {
+            try {
+                jdbcTemplate.update(INSERT_STRING, referential, statistics, version, now);
+            } catch (DuplicateKeyException e) {
+                // another node marked the referential as stale in the meantime
+                jdbcTemplate.update(UPDATE_STRING, statistics, version, now, requestedAtTimestamp, referential);
+            }
+        }
+    }
+
+    /**
+     * Return the entries written with the given version or a later one.
+     * The entries of the given version are returned again, since a refresh may still have been in progress at the previous load.
+     */
+    public List<LineStatisticsEntry> findSinceVersion(long version) {
+        return jdbcTemplate.query(SELECT_SINCE_VERSION_STRING,
+                (rs, rowNum) -> new LineStatisticsEntry(rs.getString("referential"), rs.getString("statistics"), rs.getLong("version")),
+                version);
+    }
+
+}
@@ -17,27 +17,52 @@ package no.rutebanken.marduk.repository;
 
 import no.rutebanken.marduk.domain.BlobStoreFiles;
 import no.rutebanken.marduk.exceptions.MardukException;
+import org.rutebanken.helper.storage.BlobAlreadyExistsException;
+import org.rutebanken.helper.storage.BlobStoreException;
 import org.rutebanken.helper.storage.repository.LocalDiskBlobStoreRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemException;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
-import java.util.stream.Stream;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 /**
- * Simple file-based blob store repository for testing purpose.
+ * File-based blob store repository, used in local and on-premise test environments.
+ * Directories are walked in parallel and the attributes of each file are read in a single system call.
+ * Uploads are written to a temporary file and atomically renamed into place, so that readers never see a partially written blob.
+ * Since blobs are never modified in place, copies within the same file system are performed as hard links,
+ * with a fallback to a byte copy when hard links are not supported.
  */
-
 public class LocalDiskMardukBlobStoreRepository extends LocalDiskBlobStoreRepository implements MardukBlobStoreRepository {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(LocalDiskMardukBlobStoreRepository.class);
+
+    /**
+     * Folder holding uploads in progress, outside any container but on the same file system, so that uploads can be renamed into place.
+     */
+    private static final String UPLOAD_FOLDER = ".uploads";
+
+    private static final ForkJoinPool DIRECTORY_WALKER_POOL = new ForkJoinPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+    private final String baseFolder;
+
     public LocalDiskMardukBlobStoreRepository(String baseFolder) {
         super(baseFolder);
+        this.baseFolder = baseFolder;
     }
 
     @Override
@@ -47,47 +72,204 @@ public class LocalDiskMardukBlobStoreRepository extends LocalDiskBlobStoreReposi
 
     @Override
     public BlobStoreFiles listBlobs(Collection<String> prefixes) {
-
+        Path containerFolder = Path.of(getContainerFolder());
         BlobStoreFiles blobStoreFiles = new BlobStoreFiles();
         for (String prefix : prefixes) {
-            if (Paths.get(getContainerFolder(), prefix).toFile().isDirectory()) {
-                try (Stream<Path> walk = Files.walk(Paths.get(getContainerFolder(), prefix))) {
-                    List<BlobStoreFiles.File> result = walk.filter(Files::isRegularFile)
-                            .map(path -> new BlobStoreFiles.File(Paths.get(getContainerFolder()).relativize(path).toString(), getFileCreationDate(path), getFileLastModifiedDate(path), getFileSize(path))).toList();
-                    blobStoreFiles.add(result);
-                } catch (IOException e) {
-                    throw new MardukException(e);
-                }
+            Path folder = containerFolder.resolve(prefix);
+            if (Files.isDirectory(folder)) {
+                blobStoreFiles.add(DIRECTORY_WALKER_POOL.invoke(new DirectoryListingTask(containerFolder, folder)));
             }
-
         }
         return blobStoreFiles;
     }
 
     @Override
     public BlobStoreFiles listBlobsFlat(String prefix) {
-        List<BlobStoreFiles.File> files = listBlobs(prefix).getFiles();
-        List<BlobStoreFiles.File> result = files.stream().map(file -> new BlobStoreFiles.File(file.getName().replaceFirst(prefix, ""), file.getCreated(), file.getUpdated(), file.getFileSize())).toList();
+        List<BlobStoreFiles.File> result = listBlobs(prefix).getFiles().stream()
+                .map(file -> {
+                    BlobStoreFiles.File flatFile = new BlobStoreFiles.File(file.getName().substring(prefix.length()), file.getCreated(), file.getUpdated(), file.getFileSize());
+                    flatFile.setContentFingerprint(file.getContentFingerprint());
+                    return flatFile;
+                })
+                .toList();
         BlobStoreFiles blobStoreFiles = new BlobStoreFiles();
         blobStoreFiles.add(result);
         return blobStoreFiles;
     }
 
-
-    private static Instant getFileCreationDate(Path path) {
+    @Override
+    public String getBlobFingerprint(String name) {
         try {
-            BasicFileAttributes attr = Files.readAttributes(path, BasicFileAttributes.class);
-            return Instant.ofEpochMilli(attr.creationTime().toMillis());
+            return fingerprint(Files.readAttributes(Path.of(getContainerFolder(), name), BasicFileAttributes.class));
+        } catch (NoSuchFileException e) {
+            return null;
         } catch (IOException e) {
             throw new MardukException(e);
         }
     }
 
-    private static Instant getFileLastModifiedDate(Path path) {
-        return Instant.ofEpochMilli(path.toFile().lastModified());
+    @Override
+    public InputStream getBlob(String name) {
+        try {
+            return Files.newInputStream(Path.of(getContainerFolder(), name));
+        } catch (NoSuchFileException e) {
+            LOGGER.debug("Blob {} not found", name);
+            return null;
+        } catch (IOException e) {
+            throw new BlobStoreException(e);
+        }
+    }
+
+    @Override
+    public long uploadBlob(String name, InputStream inputStream) {
+        Path target = Path.of(getContainerFolder(), name);
+        Path temporaryFile = null;
+        try {
+            Path uploadFolder = Files.createDirectories(Path.of(baseFolder, UPLOAD_FOLDER));
+            temporaryFile = Files.createTempFile(uploadFolder, "upload-", ".tmp");
+            Files.copy(inputStream, temporaryFile, StandardCopyOption.REPLACE_EXISTING);
+            Files.createDirectories(target.getParent());
+            Files.move(temporaryFile, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return 0;
+        } catch (IOException e) {
+            deleteQuietly(temporaryFile);
+            throw new BlobStoreException(e);
+        }
+    }
+
+    /**
+     * Check the existence of the blob without opening it, the inherited implementation leaks the stream returned by getBlob.
+     */
+    @Override
+    public long uploadNewBlob(String name, InputStream inputStream) {
+        if (Files.exists(Path.of(getContainerFolder(), name))) {
+            throw new BlobAlreadyExistsException("The blob with name '" + name + "' already exists");
+        }
+        return uploadBlob(name, inputStream);
+    }
+
+    @Override
+    public long uploadBlob(String name, InputStream inputStream, String contentType) {
+        return uploadBlob(name, inputStream);
+    }
+
+    @Override
+    public void copyVersionedBlob(String sourceContainerName, String sourceObjectName, Long sourceVersion, String targetContainerName, String targetObjectName) {
+        linkOrCopy(Path.of(baseFolder, sourceContainerName, sourceObjectName), Path.of(baseFolder, targetContainerName, targetObjectName));
+    }
+
+    @Override
+    public void copyAllBlobs(String sourceContainerName, String prefix, String targetContainerName, String targetPrefix) {
+        Path sourceContainerFolder = Path.of(baseFolder, sourceContainerName);
+        Path sourceFolder = sourceContainerFolder.resolve(prefix);
+        if (!Files.isDirectory(sourceFolder)) {
+            return;
+        }
+        Path targetContainerFolder = Path.of(baseFolder, targetContainerName);
+        DIRECTORY_WALKER_POOL.invoke(new DirectoryListingTask(sourceContainerFolder, sourceFolder)).parallelStream()
+                .forEach(file -> linkOrCopy(sourceContainerFolder.resolve(file.getName()),
+                        targetContainerFolder.resolve(file.getName().replace(prefix, targetPrefix))));
+    }
+
+    /**
+     * Copy a file as a hard link when possible, or as a byte copy otherwise.
+     * The link or copy is created under a temporary name and renamed into place.
+     */
+    private void linkOrCopy(Path source, Path target) {
+        Path temporaryFile = null;
+        try {
+            Files.createDirectories(target.getParent());
+            temporaryFile = target.resolveSibling("." + target.getFileName() + "." + System.nanoTime() + ".tmp");
+            try {
+                Files.createLink(temporaryFile, source);
+            } catch (NoSuchFileException e) {
+                throw e;
+            } catch (UnsupportedOperationException | FileSystemException e) {
+                // for example across file systems
+                LOGGER.debug("Could not create a hard link from {} to {}, copying the file", source, target, e);
+                Files.copy(source, temporaryFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.move(temporaryFile, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            deleteQuietly(temporaryFile);
+            throw new BlobStoreException(e);
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOGGER.warn("Could not delete temporary file {}", file, e);
+        }
+    }
+
+    /**
+     * The blobs are never modified in place: the modification time and size identify the content of the file.
+     */
+    private static String fingerprint(BasicFileAttributes attributes) {
+        return attributes.lastModifiedTime().toMillis() + "-" + attributes.size();
     }
 
-    private static long getFileSize(Path path) {
-        return path.toFile().length();
+    /**
+     * List the regular files under a directory, forking a sub-task for each sub-directory.
+     */
+    private static final class DirectoryListingTask extends RecursiveTask<List<BlobStoreFiles.File>> {
+
+        private static final long serialVersionUID = 1L;
+
+        // the task is never serialized
+        private final transient Path containerFolder;
+        private final transient Path directory;
+
+        private DirectoryListingTask(Path containerFolder, Path directory) {
+            this.containerFolder = containerFolder;
+            this.directory = directory;
+        }
+
+        @Override
+        protected List<BlobStoreFiles.File> compute() {
+            List<BlobStoreFiles.File> files = new ArrayList<>();
+            List<DirectoryListingTask> subTasks = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                for (Path entry : entries) {
+                    BasicFileAttributes attributes;
+                    try {
+                        attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (NoSuchFileException e) {
+                        // deleted while listing
+                        continue;
+                    }
+                    if (attributes.isDirectory()) {
+                        DirectoryListingTask subTask = new DirectoryListingTask(containerFolder, entry);
+                        subTask.fork();
+                        subTasks.add(subTask);
+                    } else if (attributes.isRegularFile() && !isTemporaryFile(entry)) {
+                        files.add(toBlobStoreFile(entry, attributes));
+                    }
+                }
+            } catch (NoSuchFileException e) {
+                // deleted while listing
+            } catch (IOException e) {
+                throw new MardukException(e);
+            }
+            subTasks.forEach(subTask -> files.addAll(subTask.join()));
+            return files;
+        }
+
+        private BlobStoreFiles.File toBlobStoreFile(Path path, BasicFileAttributes attributes) {
+            BlobStoreFiles.File file = new BlobStoreFiles.File(containerFolder.relativize(path).toString(),
+                    attributes.creationTime().toInstant(), attributes.lastModifiedTime().toInstant(), attributes.size());
+            file.setContentFingerprint(fingerprint(attributes));
+            return file;
+        }
+
+        private static boolean isTemporaryFile(Path path) {
+            String fileName = path.getFileName().toString();
+            return fileName.startsWith(".") && fileName.endsWith(".tmp");
+        }
     }
 }
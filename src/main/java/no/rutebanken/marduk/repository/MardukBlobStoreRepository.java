@@ -20,6 +20,9 @@ import no.rutebanken.marduk.domain.BlobStoreFiles;
 import org.rutebanken.helper.storage.repository.BlobStoreRepository;
 
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
 
 /**
  * Repository interface for managing binary files.
@@ -46,5 +49,107 @@ public interface MardukBlobStoreRepository  extends BlobStoreRepository {
      */
     BlobStoreFiles listBlobsFlat(String prefix);
 
+    /**
+     * Return a fingerprint of the current content of a blob, that changes whenever the blob is overwritten.
+     * The default implementation looks up the blob metadata through a listing.
+     * @param name the blob name.
+     * @return the fingerprint of the blob, or null if the blob does not exist or if the repository does not support fingerprints.
+     */
+    default String getBlobFingerprint(String name) {
+        return listBlobs(name).getFiles().stream()
+                .filter(file -> name.equals(file.getName()))
+                .map(BlobStoreFiles.File::getContentFingerprint)
+                .findFirst()
+                .orElse(null);
+    }
+
+    /**
+     * Delete the stored contents that are not referenced by any blob any more, in repositories that store contents separately from blob names.
+     * The default implementation does nothing.
+     */
+    default void collectUnreferencedContent() {
+    }
+
+    /**
+     * Delete blobs. Blobs that do not exist are ignored.
+     * The default implementation deletes the blobs one after the other.
+     * @param names the names of the blobs to delete.
+     * @return the number of deleted blobs and the blobs that could not be deleted.
+     */
+    default BulkOperationResult deleteBlobs(Collection<String> names) {
+        return BulkBlobOperations.forEach(names, this::delete, BulkBlobOperations.SEQUENTIAL);
+    }
+
+    /**
+     * Delete all blobs under the given prefix, using {@link #deleteBlobs(Collection)}.
+     * @param folder the prefix of the blobs to delete.
+     * @return the number of deleted blobs and the blobs that could not be deleted.
+     */
+    default BulkOperationResult deleteBlobsInFolder(String folder) {
+        return deleteBlobs(listBlobs(folder).getFiles().stream().map(BlobStoreFiles.File::getName).toList());
+    }
+
+    /**
+     * Copy all blobs under the given prefix, replacing the prefix with the target prefix in the blob names.
+     * The default implementation copies the blobs one after the other.
+     * @param sourceContainerName the source container. This must be the container of this repository.
+     * @param prefix the prefix of the blobs to copy.
+     * @param targetContainerName the target container.
+     * @param targetPrefix the prefix of the copied blobs.
+     * @return the number of copied blobs and the blobs that could not be copied.
+     */
+    default BulkOperationResult copyBlobsInFolder(String sourceContainerName, String prefix, String targetContainerName, String targetPrefix) {
+        List<String> names = listBlobs(prefix).getFiles().stream().map(BlobStoreFiles.File::getName).toList();
+        return BulkBlobOperations.forEach(names, name -> copyBlob(sourceContainerName, name, targetContainerName, name.replace(prefix, targetPrefix)), BulkBlobOperations.SEQUENTIAL);
+    }
+
+    /**
+     * Stream the files in the blob store under the given prefixes. The files are retrieved lazily, and the order of the files
+     * is not defined. The stream must be closed after use.
+     * @param prefixes the prefixes under which to look up files in the blob store.
+     * @return The files in the blob store under the given prefixes.
+     */
+    default Stream<BlobStoreFiles.File> streamBlobs(Collection<String> prefixes) {
+        return listBlobs(prefixes).getFiles().stream();
+    }
+
+    /**
+     * Stream the files in the blob store under the given prefix. The file names are stripped of the prefix, as in {@link #listBlobsFlat(String)}.
+     * The stream must be closed after use.
+     * @param prefix the prefix under which to look up files in the blob store.
+     * @return The files in the blob store under the given prefix. The prefix is removed from the file names.
+     */
+    default Stream<BlobStoreFiles.File> streamBlobsFlat(String prefix) {
+        return listBlobsFlat(prefix).getFiles().stream();
+    }
+
+    /**
+     * Retrieve one page of the files in the blob store under the given prefix. The file names are stripped of the prefix,
+     * as in {@link #listBlobsFlat(String)}.
+     * The default implementation lists all files and returns the files sorted by name, using the last file name of the page as page token.
+     * @param prefix the prefix under which to look up files in the blob store.
+     * @param pageToken the token returned with the previous page, or null for the first page.
+     * @param pageSize the maximum number of files in the page, at least 1.
+     * @return The files in the page, with a token to the next page if there are more files.
+     */
+    default BlobStoreFiles listBlobsFlat(String prefix, String pageToken, int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("Invalid page size: " + pageSize);
+        }
+        List<BlobStoreFiles.File> files = listBlobsFlat(prefix).getFiles().stream()
+                .filter(file -> pageToken == null || file.getName().compareTo(pageToken) > 0)
+                .sorted(Comparator.comparing(BlobStoreFiles.File::getName))
+                .limit(pageSize + 1L)
+                .toList();
+        BlobStoreFiles page = new BlobStoreFiles();
+        if (files.size() > pageSize) {
+            page.add(files.subList(0, pageSize));
+            page.setNextPageToken(files.get(pageSize - 1).getName());
+        } else {
+            page.add(files);
+        }
+        return page;
+    }
+
 
 }
@@ -0,0 +1,259 @@
+package no.rutebanken.marduk.repository;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import no.rutebanken.marduk.exceptions.MardukException;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Upload large blobs as parts uploaded concurrently and composed server-side into the target blob.
+ * The input stream is read sequentially and split into parts of a fixed size. At most a bounded number of parts are held in memory
+ * and uploaded at the same time. Blobs that fit in a single part are uploaded in a single stream: the first part is read
+ * into a buffer that grows with the data read, so that small blobs do not allocate a full part.
+ * Parts are uploaded as temporary blobs under a dedicated prefix and deleted once composed.
+ * Since composite objects have no MD5 hash, the MD5 digest of the content is computed while reading the parts and stored
+ * in the custom metadata {@link #MD5_METADATA} of the composed blob.
+ * The upload throughput of each blob is recorded as a distribution summary.
+ */
+public class ParallelCompositeUploader {
+
+    /**
+     * Prefix of the temporary blobs holding the uploaded parts.
+     */
+    public static final String PARTS_PREFIX = "composite-upload-parts/";
+
+    /**
+     * Maximum number of source blobs in a compose request, as in Google Cloud Storage.
+     */
+    static final int MAX_COMPOSE_SOURCES = 32;
+
+    /**
+     * Custom metadata of a composed blob holding the base64-encoded MD5 digest of its content, in the same format as the MD5 hash of a blob.
+     */
+    public static final String MD5_METADATA = "marduk-md5";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ParallelCompositeUploader.class);
+
+    /**
+     * Blob store operations needed to perform a composite upload.
+     */
+    public interface CompositeUploadTarget {
+
+        /**
+         * Upload a blob in a single stream.
+         *
+         * @return the generation of the uploaded blob.
+         */
+        long uploadBlob(String name, InputStream inputStream, String contentType);
+
+        /**
+         * Upload a part as a temporary blob.
+         */
+        void uploadPart(String partName, byte[] content, int length);
+
+        /**
+         * Concatenate the source blobs, in order, into the target blob.
+         *
+         * @param metadata custom metadata of the target blob.
+         * @return the generation of the composed blob.
+         */
+        long compose(List<String> sourceNames, String targetName, String contentType, Map<String, String> metadata);
+
+        /**
+         * Delete a temporary blob.
+         */
+        void deletePart(String partName);
+    }
+
+    private final int partSizeBytes;
+    private final Semaphore bufferedParts;
+    private final ExecutorService executorService;
+    private final DistributionSummary singleUploadThroughput;
+    private final DistributionSummary compositeUploadThroughput;
+
+    /**
+     * @param partSizeBytes size of a part. Blobs that do not exceed this size are uploaded in a single stream.
+     * @param parallelism     maximum number of parts buffered or uploaded concurrently, shared by all uploads.
+     * @param executorService uploads the parts.
+     */
+    public ParallelCompositeUploader(int partSizeBytes, int parallelism, ExecutorService executorService, MeterRegistry meterRegistry) {
+        this.partSizeBytes = partSizeBytes;
+        this.bufferedParts = new Semaphore(parallelism);
+        this.executorService = executorService;
+        singleUploadThroughput = uploadThroughput(meterRegistry, "single");
+        compositeUploadThroughput = uploadThroughput(meterRegistry, "composite");
+    }
+
+    private static DistributionSummary uploadThroughput(MeterRegistry meterRegistry, String mode) {
+        return DistributionSummary.builder("marduk.blobstore.upload.throughput")
+                .description("Upload throughput per blob")
+                .baseUnit("bytes.per.second")
+                .tag("mode", mode)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Upload the blob, in parts if it is larger than one part.
+     *
+     * @return the generation of the uploaded blob.
+     */
+    public long upload(String name, InputStream inputStream, String contentType, CompositeUploadTarget target) {
+        long start = System.nanoTime();
+        byte[] firstPart = readFirstPart(inputStream);
+        if (firstPart.length < partSizeBytes || isEndOfStream(inputStream)) {
+            long generation = target.uploadBlob(name, new ByteArrayInputStream(firstPart), contentType);
+            record(singleUploadThroughput, firstPart.length, start);
+            return generation;
+        }
+
+        String uploadPrefix = PARTS_PREFIX + UUID.randomUUID() + "/";
+        List<String> temporaryBlobs = new ArrayList<>();
+        List<CompletableFuture<Void>> partUploads = new ArrayList<>();
+        MessageDigest md5 = DigestUtils.getMd5Digest();
+        long size = 0;
+        try {
+            byte[] part = firstPart;
+            int partLength = firstPart.length;
+            while (partLength > 0) {
+                failFast(partUploads);
+                md5.update(part, 0, partLength);
+                String partName = uploadPrefix + String.format("%06d", temporaryBlobs.size());
+                temporaryBlobs.add(partName);
+                partUploads.add(uploadPartAsync(target, partName, part, partLength));
+                size += partLength;
+                part = new byte[partSizeBytes];
+                partLength = readPart(inputStream, part);
+            }
+            CompletableFuture.allOf(partUploads.toArray(CompletableFuture[]::new)).join();
+            Map<String, String> metadata = Map.of(MD5_METADATA, Base64.getEncoder().encodeToString(md5.digest()));
+            long generation = compose(target, new ArrayList<>(temporaryBlobs), name, contentType, metadata, uploadPrefix, temporaryBlobs);
+            record(compositeUploadThroughput, size, start);
+            LOGGER.info("Uploaded blob {} ({} bytes) in {} parts", name, size, partUploads.size());
+            return generation;
+        } catch (CompletionException e) {
+            awaitQuietly(partUploads);
+            throw new MardukException("Error while uploading blob " + name + " in parts", e.getCause());
+        } catch (RuntimeException e) {
+            awaitQuietly(partUploads);
+            throw e;
+        } finally {
+            temporaryBlobs.forEach(temporaryBlob -> deleteQuietly(target, temporaryBlob));
+        }
+    }
+
+    /**
+     * Read at most one part. The buffer grows with the data read, rather than being allocated for a full part.
+     */
+    private byte[] readFirstPart(InputStream inputStream) {
+        try {
+            return inputStream.readNBytes(partSizeBytes);
+        } catch (IOException e) {
+            throw new MardukException("Error while reading the blob to upload", e);
+        }
+    }
+
+    /**
+     * Upload a part asynchronously, once fewer than the maximum number of parts are being uploaded.
+     * This bounds the number of parts held in memory.
+     */
+    private CompletableFuture<Void> uploadPartAsync(CompositeUploadTarget target, String partName, byte[] part, int partLength) {
+        bufferedParts.acquireUninterruptibly();
+        return CompletableFuture.runAsync(() -> target.uploadPart(partName, part, partLength), executorService)
+                .whenComplete((result, throwable) -> bufferedParts.release());
+    }
+
+    /**
+     * Compose the parts into the target blob. Since a compose request accepts a limited number of sources,
+     * the parts are first composed into intermediate blobs if needed.
+     */
+    private static long compose(CompositeUploadTarget target, List<String> sources, String name, String contentType, Map<String, String> metadata,
+                                String uploadPrefix, List<String> temporaryBlobs) {
+        List<String> currentSources = sources;
+        int level = 0;
+        while (currentSources.size() > MAX_COMPOSE_SOURCES) {
+            level++;
+            List<String> intermediateBlobs = new ArrayList<>();
+            for (int i = 0; i < currentSources.size(); i += MAX_COMPOSE_SOURCES) {
+                String intermediateBlob = uploadPrefix + "composed-" + level + "-" + String.format("%06d", intermediateBlobs.size());
+                temporaryBlobs.add(intermediateBlob);
+                target.compose(currentSources.subList(i, Math.min(i + MAX_COMPOSE_SOURCES, currentSources.size())), intermediateBlob, contentType, Map.of());
+                intermediateBlobs.add(intermediateBlob);
+            }
+            currentSources = intermediateBlobs;
+        }
+        return target.compose(currentSources, name, contentType, metadata);
+    }
+
+    private static void failFast(List<CompletableFuture<Void>> partUploads) {
+        for (CompletableFuture<Void> partUpload : partUploads) {
+            if (partUpload.isCompletedExceptionally()) {
+                partUpload.join();
+            }
+        }
+    }
+
+    /**
+     * Wait for the ongoing part uploads to complete, so that the uploaded parts can be deleted.
+     */
+    private static void awaitQuietly(List<CompletableFuture<Void>> partUploads) {
+        for (CompletableFuture<Void> partUpload : partUploads) {
+            try {
+                partUpload.join();
+            } catch (CompletionException | CancellationException e) {
+                // already reported
+            }
+        }
+    }
+
+    private static int readPart(InputStream inputStream, byte[] part) {
+        try {
+            return inputStream.readNBytes(part, 0, part.length);
+        } catch (IOException e) {
+            throw new MardukException("Error while reading the blob to upload", e);
+        }
+    }
+
+    private static boolean isEndOfStream(InputStream inputStream) {
+        if (!inputStream.markSupported()) {
+            return false;
+        }
+        inputStream.mark(1);
+        try {
+            boolean endOfStream = inputStream.read() < 0;
+            inputStream.reset();
+            return endOfStream;
+        } catch (IOException e) {
+            throw new MardukException("Error while reading the blob to upload", e);
+        }
+    }
+
+    private static void record(DistributionSummary throughput, long size, long start) {
+        double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+        throughput.record(size / seconds);
+    }
+
+    private static void deleteQuietly(CompositeUploadTarget target, String temporaryBlob) {
+        try {
+            target.deletePart(temporaryBlob);
+        } catch (RuntimeException e) {
+            LOGGER.warn("Could not delete temporary blob {}", temporaryBlob, e);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package no.rutebanken.marduk.repository;
+
+import no.rutebanken.marduk.exceptions.MardukException;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.CRC32C;
+
+/**
+ * Download large blobs by fetching byte ranges (slices) concurrently into a preallocated local file.
+ * Each slice is written at its position in the file, retried independently on failure, and the downloaded file is verified
+ * against the checksum of the blob before it is handed over to the caller.
+ * The downloaded file is deleted when the returned input stream is closed.
+ */
+public class SlicedBlobDownloader {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SlicedBlobDownloader.class);
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * Open a channel on a byte range of the blob.
+     */
+    @FunctionalInterface
+    public interface RangeReader {
+        ReadableByteChannel open(long offset, long length) throws IOException;
+    }
+
+    /**
+     * Expected checksums of the blob, base64-encoded as in the Google Cloud Storage metadata. Either may be null.
+     * CRC32C is verified when available, as it is cheaper to compute and is present on composite objects as well.
+     */
+    public record Checksums(String crc32c, String md5) {
+    }
+
+    private final Path directory;
+    private final long thresholdBytes;
+    private final long sliceSizeBytes;
+    private final int maxAttempts;
+    private final ExecutorService executorService;
+
+    /**
+     * @param directory      directory where blobs are downloaded.
+     * @param thresholdBytes minimum size of the blobs downloaded in slices. 0 disables sliced downloads.
+     * @param sliceSizeBytes size of a slice.
+     * @param maxAttempts     maximum number of attempts to download a slice.
+     * @param executorService downloads the slices. Its size bounds the number of slices downloaded concurrently, shared by all downloads.
+     */
+    public SlicedBlobDownloader(Path directory, long thresholdBytes, long sliceSizeBytes, int maxAttempts, ExecutorService executorService) {
+        this.directory = directory;
+        this.thresholdBytes = thresholdBytes;
+        this.sliceSizeBytes = sliceSizeBytes;
+        this.maxAttempts = maxAttempts;
+        this.executorService = executorService;
+    }
+
+    /**
+     * Return true if a blob of the given size should be downloaded in slices.
+     */
+    public boolean isApplicable(long size) {
+        return thresholdBytes > 0 && size >= thresholdBytes;
+    }
+
+    /**
+     * Download the blob in slices and return a stream on the downloaded file.
+     *
+     * @param name        the blob name, for logging.
+     * @param size        the blob size.
+     * @param rangeReader opens a byte range of the blob. All ranges must be read from the same version of the blob.
+     * @param checksums   the expected checksums of the blob.
+     * @return a stream on the downloaded blob. The local file is deleted when the stream is closed.
+     */
+    public InputStream download(String name, long size, RangeReader rangeReader, Checksums checksums) {
+        Path file = null;
+        try {
+            Files.createDirectories(directory);
+            file = Files.createTempFile(directory, "sliced-download-", ".tmp");
+            long start = System.currentTimeMillis();
+            try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                if (size > 0) {
+                    // preallocating the file so that slices can be written in any order
+                    fileChannel.write(ByteBuffer.allocate(1), size - 1);
+                }
+                downloadSlices(name, size, rangeReader, fileChannel);
+            }
+            verifyChecksum(name, file, checksums);
+            LOGGER.info("Downloaded blob {} ({} bytes) in {} slices in {} ms", name, size, nbSlices(size), System.currentTimeMillis() - start);
+            return Files.newInputStream(file, StandardOpenOption.READ, StandardOpenOption.DELETE_ON_CLOSE);
+        } catch (IOException e) {
+            deleteQuietly(file);
+            throw new MardukException("Error while downloading blob " + name + " in slices", e);
+        } catch (RuntimeException e) {
+            deleteQuietly(file);
+            throw e;
+        }
+    }
+
+    private void downloadSlices(String name, long size, RangeReader rangeReader, FileChannel fileChannel) {
+        List<CompletableFuture<Void>> slices = new ArrayList<>();
+        for (long offset = 0; offset < size; offset += sliceSizeBytes) {
+            long sliceOffset = offset;
+            long sliceLength = Math.min(sliceSizeBytes, size - offset);
+            slices.add(CompletableFuture.runAsync(() -> downloadSliceWithRetry(name, sliceOffset, sliceLength, rangeReader, fileChannel), executorService));
+        }
+        try {
+            CompletableFuture.allOf(slices.toArray(CompletableFuture[]::new)).join();
+        } catch (CompletionException e) {
+            slices.forEach(slice -> slice.cancel(true));
+            throw e.getCause() instanceof RuntimeException runtimeException ? runtimeException : e;
+        }
+    }
+
+    private void downloadSliceWithRetry(String name, long offset, long length, RangeReader rangeReader, FileChannel fileChannel) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                downloadSlice(offset, length, rangeReader, fileChannel);
+                return;
+            } catch (IOException | RuntimeException e) {
+                if (attempt >= maxAttempts) {
+                    throw new MardukException("Could not download slice [" + offset + ", " + (offset + length) + ") of blob " + name + " after " + attempt + " attempts", e);
+                }
+                LOGGER.warn("Error while downloading slice [{}, {}) of blob {} (attempt {}/{}), retrying", offset, offset + length, name, attempt, maxAttempts, e);
+            }
+        }
+    }
+
+    private static void downloadSlice(long offset, long length, RangeReader rangeReader, FileChannel fileChannel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, length));
+        long position = offset;
+        long end = offset + length;
+        try (ReadableByteChannel channel = rangeReader.open(offset, length)) {
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                int nbBytes = channel.read(buffer);
+                if (nbBytes < 0) {
+                    throw new IOException("Unexpected end of range at position " + position + ", expected " + end);
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    position += fileChannel.write(buffer, position);
+                }
+            }
+        }
+    }
+
+    private static void verifyChecksum(String name, Path file, Checksums checksums) throws IOException {
+        if (checksums.crc32c() != null) {
+            String crc32c = crc32c(file);
+            if (!checksums.crc32c().equals(crc32c)) {
+                throw new MardukException("CRC32C mismatch for blob " + name + ": expected " + checksums.crc32c() + ", downloaded " + crc32c);
+            }
+        } else if (checksums.md5() != null) {
+            String md5;
+            try (InputStream inputStream = Files.newInputStream(file)) {
+                md5 = Base64.getEncoder().encodeToString(DigestUtils.md5(inputStream));
+            }
+            if (!checksums.md5().equals(md5)) {
+                throw new MardukException("MD5 mismatch for blob " + name + ": expected " + checksums.md5() + ", downloaded " + md5);
+            }
+        } else {
+            LOGGER.warn("No checksum available for blob {}, the download is not verified", name);
+        }
+    }
+
+    /**
+     * Base64-encoded big-endian CRC32C of the file, as in the Google Cloud Storage metadata.
+     */
+    static String crc32c(Path file) throws IOException {
+        CRC32C crc32c = new CRC32C();
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (fileChannel.read(buffer) >= 0) {
+                buffer.flip();
+                crc32c.update(buffer);
+                buffer.clear();
+            }
+        }
+        return Base64.getEncoder().encodeToString(ByteBuffer.allocate(Integer.BYTES).putInt((int) crc32c.getValue()).array());
+    }
+
+    private long nbSlices(long size) {
+        return (size + sliceSizeBytes - 1) / sliceSizeBytes;
+    }
+
+    private static void deleteQuietly(Path file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOGGER.warn("Could not delete partially downloaded file {}", file, e);
+        }
+    }
+}
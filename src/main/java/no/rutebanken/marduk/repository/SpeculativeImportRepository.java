@@ -0,0 +1,111 @@
+package no.rutebanken.marduk.repository;
+
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import javax.sql.DataSource;
+import java.sql.Timestamp;
+import java.time.Instant;
+
+/**
+ * Track the Chouette imports that are started before the NeTEx pre-validation in Antu is complete.
+ * A speculative import is promoted (its post-import processing is triggered) once both the Chouette import and the Antu validation
+ * have succeeded, whichever completes last. The state is shared between all Marduk instances through the database,
+ * so that the import result and the validation result can be processed by different nodes.
+ */
+@Repository
+public class SpeculativeImportRepository {
+
+    private static final String INSERT_STRING = "INSERT INTO SPECULATIVE_IMPORT (correlation_id, referential, createdat) VALUES (?, ?, ?)";
+    private static final String EXISTS_STRING = "SELECT COUNT(*) FROM SPECULATIVE_IMPORT WHERE correlation_id = ?";
+    private static final String IMPORT_OK_STRING = "UPDATE SPECULATIVE_IMPORT SET import_ok = true WHERE correlation_id = ?";
+    private static final String VALIDATION_RESULT_STRING = "UPDATE SPECULATIVE_IMPORT SET validation_ok = ? WHERE correlation_id = ?";
+    private static final String PROMOTE_STRING = "UPDATE SPECULATIVE_IMPORT SET promoted = true WHERE correlation_id = ? AND import_ok = true AND validation_ok = true AND promoted = false";
+    private static final String DELETE_STRING = "DELETE FROM SPECULATIVE_IMPORT WHERE correlation_id = ?";
+    // older imports that are still in progress are kept, so that they are not imported again when their pre-validation completes
+    private static final String DELETE_SUPERSEDED_STRING = "DELETE FROM SPECULATIVE_IMPORT s WHERE s.referential = (SELECT p.referential FROM SPECULATIVE_IMPORT p WHERE p.correlation_id = ?) "
+            + "AND s.createdat < (SELECT p.createdat FROM SPECULATIVE_IMPORT p WHERE p.correlation_id = ?) AND s.import_ok = true AND s.validation_ok IS NOT NULL";
+    private static final String DELETE_DISCARDED_STRING = "DELETE FROM SPECULATIVE_IMPORT WHERE referential = ? AND import_ok = true AND validation_ok = false";
+    private static final String UNAPPROVED_STRING = "SELECT COUNT(*) FROM SPECULATIVE_IMPORT s WHERE s.referential = ? AND s.promoted = false "
+            + "AND NOT EXISTS (SELECT 1 FROM SPECULATIVE_IMPORT p WHERE p.referential = s.referential AND p.promoted = true AND p.createdat > s.createdat)";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public SpeculativeImportRepository(DataSource dataSource) {
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+    }
+
+    /**
+     * Record a speculative import, before it is submitted to Chouette and before the file is sent to the pre-validation.
+     *
+     * @return false if the import was already registered, that is if the file is processed again.
+     */
+    public boolean register(String correlationId, String referential) {
+        try {
+            jdbcTemplate.update(INSERT_STRING, correlationId, referential, Timestamp.from(Instant.now()));
+            return true;
+        } catch (DuplicateKeyException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Return true if the import with the given correlation id was started speculatively.
+     */
+    public boolean isSpeculative(String correlationId) {
+        Integer count = jdbcTemplate.queryForObject(EXISTS_STRING, Integer.class, correlationId);
+        return count != null && count > 0;
+    }
+
+    public void importSucceeded(String correlationId) {
+        jdbcTemplate.update(IMPORT_OK_STRING, correlationId);
+    }
+
+    public void validationCompleted(String correlationId, boolean validationOk) {
+        jdbcTemplate.update(VALIDATION_RESULT_STRING, validationOk, correlationId);
+    }
+
+    /**
+     * Forget a speculative import that failed in Chouette: it left no data in the dataspace.
+     * If the pre-validation succeeds afterwards, the file is imported again, as it would have been without speculative import.
+     */
+    public void importFailed(String correlationId) {
+        jdbcTemplate.update(DELETE_STRING, correlationId);
+    }
+
+    /**
+     * Forget the discarded speculative imports of the referential whose import is complete:
+     * their data has been replaced by a later successful import, or published by a transfer triggered by an operator.
+     * The discarded imports still in progress in Chouette are kept.
+     */
+    public void supersede(String referential) {
+        jdbcTemplate.update(DELETE_DISCARDED_STRING, referential);
+    }
+
+    /**
+     * Mark the speculative import as promoted if both the import and the validation succeeded.
+     * The update is atomic: when the import result and the validation result are processed concurrently,
+     * exactly one of the callers promotes the import.
+     * The completed speculative imports of the same referential that are older than the promoted import are forgotten.
+     *
+     * @return true if the caller should trigger the processing that follows the import.
+     */
+    public boolean promote(String correlationId) {
+        if (jdbcTemplate.update(PROMOTE_STRING, correlationId) == 0) {
+            return false;
+        }
+        jdbcTemplate.update(DELETE_SUPERSEDED_STRING, correlationId, correlationId);
+        return true;
+    }
+
+    /**
+     * Return true if the dataspace may contain data from a speculative import that is not promoted,
+     * that is, if a speculative import is pending or was discarded, and no later speculative import was promoted.
+     */
+    public boolean hasUnapprovedImport(String referential) {
+        Integer count = jdbcTemplate.queryForObject(UNAPPROVED_STRING, Integer.class, referential);
+        return count != null && count > 0;
+    }
+
+}
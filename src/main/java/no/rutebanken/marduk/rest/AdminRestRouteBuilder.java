@@ -57,6 +57,7 @@ public class AdminRestRouteBuilder extends BaseRouteBuilder {
     private static final String PLAIN = "text/plain";
     private static final String OPENAPI_DATA_TYPE_STRING = "string";
     private static final String OPENAPI_DATA_TYPE_INTEGER = "integer";
+    private static final String OPENAPI_DATA_TYPE_BOOLEAN = "boolean";
 
     @Value("${server.port:8080}")
     private String port;
@@ -67,6 +68,9 @@ public class AdminRestRouteBuilder extends BaseRouteBuilder {
     @Autowired
     private MardukAuthorizationService mardukAuthorizationService;
 
+    @Autowired
+    private SingleFlightRequests singleFlightRequests;
+
     @Override
     public void configure() throws Exception {
         super.configure();
@@ -237,6 +241,7 @@ public class AdminRestRouteBuilder extends BaseRouteBuilder {
 
                 .get("/export/files")
                 .description("List files containing exported time table data and graphs")
+                .bindingMode(RestBindingMode.off)
                 .outType(BlobStoreFiles.class)
                 .consumes(PLAIN)
                 .produces(JSON)
@@ -277,6 +282,13 @@ public class AdminRestRouteBuilder extends BaseRouteBuilder {
 
                 .post("routing_graph/build")
                 .description("Triggers building of the OTP graph using existing NeTEx and and a pre-prepared base graph with map data")
+                .param()
+                .required(Boolean.FALSE)
+                .name("force")
+                .type(RestParamType.query)
+                .dataType(OPENAPI_DATA_TYPE_BOOLEAN)
+                .description("Build the graph even if its input data are unchanged since the last published graph")
+                .endParam()
                 .consumes(PLAIN)
                 .produces(PLAIN)
                 .responseMessage().code(200).message("Command accepted").endResponseMessage()
@@ -347,7 +359,10 @@ public class AdminRestRouteBuilder extends BaseRouteBuilder {
 
                 .get("/files")
                 .description("List files available for reimport")
+                .bindingMode(RestBindingMode.off)
                 .param().name("providerId").type(RestParamType.path).description("Provider id as obtained from the nabu service").dataType(OPENAPI_DATA_TYPE_INTEGER).endParam()
+                .param().name("limit").type(RestParamType.query).required(Boolean.FALSE).description("Maximum number of files to return. All files are returned if not set").dataType(OPENAPI_DATA_TYPE_INTEGER).endParam()
+                .param().name("pageToken").type(RestParamType.query).required(Boolean.FALSE).description("Token to the next page of files, as returned with the previous page").dataType(OPENAPI_DATA_TYPE_STRING).endParam()
                 .outType(BlobStoreFiles.class)
                 .consumes(PLAIN)
                 .produces(JSON)
@@ -521,7 +536,7 @@ public class AdminRestRouteBuilder extends BaseRouteBuilder {
                 .log(LoggingLevel.DEBUG, correlation() + "Get chouette active jobs all providers")
                 .process(this::removeAllCamelHttpHeaders)
                 .process(e -> e.getIn().setHeader("status", e.getIn().getHeader("status") != null ? e.getIn().getHeader("status") : Arrays.asList("STARTED", "SCHEDULED")))
-                .to("direct:chouetteGetJobsAll")
+                .process(e -> singleFlightRequests.execute(e, "list-jobs-all", "status=" + e.getIn().getHeader("status") + "&action=" + e.getIn().getHeader("action"), "direct:chouetteGetJobsAll"))
                 .routeId("admin-chouette-list-jobs-all");
 
         from("direct:adminChouetteCancelAllJobsAll")
@@ -572,7 +587,7 @@ public class AdminRestRouteBuilder extends BaseRouteBuilder {
                 .to("direct:authorizeAdminRequest")
                 .log(LoggingLevel.INFO, correlation() + "refresh stats cache")
                 .process(this::removeAllCamelHttpHeaders)
-                .to("direct:chouetteRefreshStatsCache")
+                .process(e -> singleFlightRequests.execute(e, "refresh-line-stats", "", "direct:chouetteRefreshStatsCache"))
                 .routeId("admin-chouette-stats-refresh-cache");
 
         from("direct:adminChouetteTimetableFilesGet")
@@ -580,7 +595,8 @@ public class AdminRestRouteBuilder extends BaseRouteBuilder {
                 .to("direct:authorizeAdminRequest")
                 .log(LoggingLevel.INFO, correlation() + "List time table and graph files")
                 .process(this::removeAllCamelHttpHeaders)
-                .to("direct:listTimetableExportAndGraphBlobs")
+                .process(e -> singleFlightRequests.execute(e, "list-export-files", "", "direct:listTimetableExportAndGraphBlobs"))
+                .setHeader(Exchange.CONTENT_TYPE, constant(JSON))
                 .routeId("admin-chouette-timetable-files-get");
 
         from("direct:adminDatasetFileDownload")
@@ -629,6 +645,7 @@ public class AdminRestRouteBuilder extends BaseRouteBuilder {
         from("direct:adminBuildGraphNetex")
                 .to("direct:authorizeAdminRequest")
                 .log(LoggingLevel.INFO, "OTP build graph from NeTEx")
+                .setHeader(Constants.FORCE_GRAPH_BUILD, header("force").convertTo(Boolean.class))
                 .process(this::removeAllCamelHttpHeaders)
                 .setBody(simple(""))
                 .to(ExchangePattern.InOnly, "google-pubsub:{{marduk.pubsub.project.id}}:Otp2GraphBuildQueue")
@@ -657,7 +674,7 @@ public class AdminRestRouteBuilder extends BaseRouteBuilder {
                 .to("direct:authorizeAdminRequest")
                 .log(LoggingLevel.INFO, correlation() + "List graphs status")
                 .process(this::removeAllCamelHttpHeaders)
-                .to("direct:listGraphs")
+                .process(e -> singleFlightRequests.execute(e, "list-graphs", "", "direct:listGraphs"))
                 .routeId("admin-chouette-graph-list");
 
         from("direct:adminUploadFile")
@@ -733,8 +750,17 @@ public class AdminRestRouteBuilder extends BaseRouteBuilder {
                 .to("direct:authorizeAdminRequest")
                 .to("direct:validateProvider")
                 .log(LoggingLevel.INFO, correlation() + "List files in blob store")
+                .filter(e -> !isValidPageSize(e.getIn().getHeader("limit", String.class)))
+                .setBody(constant("Invalid limit: expected a positive integer"))
+                .setHeader(Exchange.HTTP_RESPONSE_CODE, constant(400))
+                .setHeader(Exchange.CONTENT_TYPE, constant(PLAIN))
+                .stop()
+                .end()
+                .setHeader(FILE_PAGE_TOKEN, header("pageToken"))
+                .setHeader(FILE_PAGE_SIZE, header("limit"))
                 .process(this::removeAllCamelHttpHeaders)
-                .to("direct:listInternalBlobsFlat")
+                .to("direct:streamInternalBlobsFlat")
+                .setHeader(Exchange.CONTENT_TYPE, constant(JSON))
                 .routeId("admin-chouette-import-list");
 
         from("direct:adminUploadFlexFile")
@@ -791,6 +817,7 @@ public class AdminRestRouteBuilder extends BaseRouteBuilder {
                 .to("direct:validateProvider")
                 .log(LoggingLevel.INFO, correlation() + "Chouette start export")
                 .process(this::removeAllCamelHttpHeaders)
+                .setHeader(Constants.FORCE_EXPORT, constant(true))
                 .to(ExchangePattern.InOnly, "google-pubsub:{{marduk.pubsub.project.id}}:ChouetteExportNetexQueue")
                 .routeId("admin-chouette-export");
 
@@ -875,6 +902,18 @@ public class AdminRestRouteBuilder extends BaseRouteBuilder {
             return files.getFiles().stream().map(File::getName).toList();
         }
     }
-}
-
 
+    /**
+     * A page size is valid if it is not set (all files are returned) or if it is a positive integer.
+     */
+    static boolean isValidPageSize(String limit) {
+        if (limit == null) {
+            return true;
+        }
+        try {
+            return Integer.parseInt(limit) > 0;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+}
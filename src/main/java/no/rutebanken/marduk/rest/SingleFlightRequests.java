@@ -0,0 +1,149 @@
+package no.rutebanken.marduk.rest;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import no.rutebanken.marduk.exceptions.MardukException;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.ProducerTemplate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.InputStream;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Coalesce concurrent identical admin requests that trigger expensive operations.
+ * The first request executes the operation, the requests received while it is in progress, or shortly after it completed,
+ * share its result instead of executing the operation again. Failed results are not shared with later requests.
+ */
+@Component
+public class SingleFlightRequests {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SingleFlightRequests.class);
+
+    /**
+     * Result of an operation executed through a Camel endpoint.
+     */
+    private record ExchangeResult(Object body, Object contentType, Object responseCode) {
+    }
+
+    private static final class Flight {
+        private final CompletableFuture<Object> result = new CompletableFuture<>();
+        private volatile Instant completedAt;
+    }
+
+    private final ProducerTemplate producerTemplate;
+    private final Duration resultTtl;
+    private final Clock clock;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, Flight> flights = new ConcurrentHashMap<>();
+
+    @Autowired
+    public SingleFlightRequests(CamelContext camelContext,
+                                @Value("${marduk.admin.single.flight.result.ttl:PT5S}") Duration resultTtl,
+                                MeterRegistry meterRegistry) {
+        this(camelContext.createProducerTemplate(), resultTtl, Clock.systemUTC(), meterRegistry);
+    }
+
+    SingleFlightRequests(ProducerTemplate producerTemplate, Duration resultTtl, Clock clock, MeterRegistry meterRegistry) {
+        this.producerTemplate = producerTemplate;
+        this.resultTtl = resultTtl;
+        this.clock = clock;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Send the exchange to the endpoint, or share the result of an identical request in progress or completed less than the result TTL ago.
+     * Requests are identical if they target the same operation with the same parameters.
+     * Streamed response bodies are read into memory so that they can be shared.
+     */
+    public void execute(Exchange exchange, String operation, String parameters, String endpoint) {
+        try {
+            ExchangeResult result = (ExchangeResult) execute(operation, parameters, () -> {
+                producerTemplate.send(endpoint, exchange);
+                if (exchange.getException() != null) {
+                    throw new MardukException("Error while executing " + operation, exchange.getException());
+                }
+                Object body = exchange.getMessage().getBody();
+                if (body instanceof InputStream) {
+                    body = exchange.getMessage().getBody(byte[].class);
+                    exchange.getMessage().setBody(body);
+                }
+                return new ExchangeResult(body,
+                        exchange.getMessage().getHeader(Exchange.CONTENT_TYPE),
+                        exchange.getMessage().getHeader(Exchange.HTTP_RESPONSE_CODE));
+            });
+            exchange.getMessage().setBody(result.body());
+            if (result.contentType() != null) {
+                exchange.getMessage().setHeader(Exchange.CONTENT_TYPE, result.contentType());
+            }
+            if (result.responseCode() != null) {
+                exchange.getMessage().setHeader(Exchange.HTTP_RESPONSE_CODE, result.responseCode());
+            }
+        } catch (MardukException e) {
+            exchange.setException(e.getCause() instanceof Exception cause ? cause : e);
+        }
+    }
+
+    /**
+     * Execute the operation, or share the result of an identical operation in progress or completed less than the result TTL ago.
+     */
+    Object execute(String operation, String parameters, Supplier<Object> supplier) {
+        String key = operation + '?' + parameters;
+        Flight flight = new Flight();
+        Flight current = flights.compute(key, (k, existing) -> isShareable(existing) ? existing : flight);
+        if (current != flight) {
+            counter(operation, true).increment();
+            LOGGER.debug("Coalescing request for {} with parameters [{}]", operation, parameters);
+            return join(current);
+        }
+
+        counter(operation, false).increment();
+        try {
+            flight.result.complete(supplier.get());
+            flight.completedAt = clock.instant();
+        } catch (RuntimeException e) {
+            flights.remove(key, flight);
+            flight.result.completeExceptionally(e);
+        }
+        return join(flight);
+    }
+
+    private boolean isShareable(Flight flight) {
+        if (flight == null || flight.result.isCompletedExceptionally()) {
+            return false;
+        }
+        Instant completedAt = flight.completedAt;
+        return completedAt == null || completedAt.plus(resultTtl).isAfter(clock.instant());
+    }
+
+    private static Object join(Flight flight) {
+        try {
+            return flight.result.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    private Counter counter(String operation, boolean coalesced) {
+        return Counter.builder("marduk.admin.single.flight.requests")
+                .description("Number of admin requests executed or coalesced with an identical request")
+                .tag("operation", operation)
+                .tag("coalesced", Boolean.toString(coalesced))
+                .register(meterRegistry);
+    }
+}
@@ -17,6 +17,7 @@
 package no.rutebanken.marduk.routes;
 
 import no.rutebanken.marduk.Constants;
+import no.rutebanken.marduk.exceptions.ChouetteSubmissionHeldBackException;
 import no.rutebanken.marduk.exceptions.MardukException;
 import no.rutebanken.marduk.repository.ProviderRepository;
 import no.rutebanken.marduk.routes.aggregation.IdleRouteAggregationMonitor;
@@ -41,10 +42,8 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.ParseException;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 import java.util.UUID;
 
 
@@ -61,6 +60,9 @@ public abstract class BaseRouteBuilder extends RouteBuilder {
     @Autowired
     protected IdleRouteAggregationMonitor idleRouteAggregationMonitor;
 
+    @Autowired
+    private PubSubAttributeCodec pubSubAttributeCodec;
+
     @Value("${quartz.lenient.fire.time.ms:180000}")
     private int lenientFireTimeMs;
 
@@ -85,6 +87,11 @@ public abstract class BaseRouteBuilder extends RouteBuilder {
                 .logExhausted(true)
                 .logRetryStackTrace(true));
 
+        // A Chouette job submission held back by the submission limiter is not redelivered locally, the message is redelivered by PubSub.
+        onException(ChouetteSubmissionHeldBackException.class)
+                .maximumRedeliveries(0)
+                .logExhausted(false);
+
         // Copy all PubSub headers except the internal Camel PubSub headers from the PubSub message into the Camel message headers.
         interceptFrom(".*google-pubsub:.*")
                 .process(exchange ->
@@ -93,23 +100,13 @@ public abstract class BaseRouteBuilder extends RouteBuilder {
                     if (pubSubAttributes == null) {
                         throw new IllegalStateException("Missing PubSub attribute maps in Exchange");
                     }
-                    pubSubAttributes.entrySet()
-                            .stream()
-                            .filter(entry -> !entry.getKey().startsWith("CamelGooglePubsub"))
-                            .forEach(entry -> exchange.getIn().setHeader(entry.getKey(), entry.getValue()));
+                    pubSubAttributeCodec.decode(pubSubAttributes, exchange.getIn());
                 });
 
-        // Copy all PubSub headers except the internal Camel PubSub headers from the Camel message into the PubSub message.
+        // Copy the declared Marduk headers from the Camel message into the PubSub message.
         interceptSendToEndpoint("google-pubsub:*").process(
-                exchange -> {
-                    Map<String, String> pubSubAttributes = new HashMap<>();
-                    exchange.getIn().getHeaders().entrySet().stream()
-                            .filter(entry -> !entry.getKey().startsWith("CamelGooglePubsub"))
-                            .filter(entry -> Objects.toString(entry.getValue()).length() <= 1024)
-                            .forEach(entry -> pubSubAttributes.put(entry.getKey(), Objects.toString(entry.getValue(), "")));
-                    exchange.getIn().setHeader(GooglePubsubConstants.ATTRIBUTES, pubSubAttributes);
-
-                });
+                exchange -> exchange.getIn().setHeader(GooglePubsubConstants.ATTRIBUTES,
+                        pubSubAttributeCodec.encode(exchange.getProperty(Exchange.INTERCEPTED_ENDPOINT, String.class), exchange.getIn())));
 
     }
 
@@ -158,7 +155,14 @@ public abstract class BaseRouteBuilder extends RouteBuilder {
      * Create a new singleton route definition from URI. Only one such route should be active throughout the cluster at any time.
      */
     protected RouteDefinition singletonFrom(String uri) {
-        String lockName = getMasterLockName(uri);
+        return singletonFrom(getMasterLockName(uri), uri);
+    }
+
+    /**
+     * Create a new singleton route definition from URI, using the given lock name.
+     * Singleton routes that share a lock name are active on the same instance.
+     */
+    protected RouteDefinition singletonFrom(String lockName, String uri) {
         return this.from("master:" + lockName + ':' + uri);
     }
 
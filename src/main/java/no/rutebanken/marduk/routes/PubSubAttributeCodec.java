@@ -0,0 +1,225 @@
+package no.rutebanken.marduk.routes;
+
+import no.rutebanken.marduk.Constants;
+import no.rutebanken.marduk.exceptions.MardukException;
+import org.apache.camel.Message;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.temporal.TemporalAccessor;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Map Camel message headers to PubSub message attributes and back.
+ * Only the declared Marduk headers are sent: the headers prefixed with Rutebanken or Entur, a fixed set of other headers
+ * used across PubSub queues, and the headers configured in marduk.pubsub.attributes.additional.headers.
+ * Incidental headers (Camel, HTTP, REST parameters) are not sent. Whether a header is sent is computed once per header name,
+ * and the encoding settings are computed once per endpoint.
+ * <p>
+ * Queues listed in marduk.pubsub.attributes.envelope.queues carry the headers in a compact binary envelope prepended to the message body
+ * instead of in the message attributes. The envelope is not limited by the size limit of PubSub attributes.
+ * Since the envelope must be decoded by the consumer, it should only be enabled for queues that are both produced and consumed by Marduk.
+ * Messages without envelope are still decoded, so that the envelope can be enabled while messages are in flight.
+ */
+@Component
+public class PubSubAttributeCodec {
+
+    /**
+     * PubSub limits the size of an attribute value to 1024 bytes.
+     */
+    static final int MAX_ATTRIBUTE_VALUE_LENGTH = 1024;
+
+    private static final byte[] ENVELOPE_MAGIC = "MRDK\u0001".getBytes(StandardCharsets.US_ASCII);
+
+    private static final List<String> HEADER_PREFIXES = List.of("Rutebanken", "Entur");
+
+    private static final Set<String> HEADERS = Set.of(
+            Constants.ET_CLIENT_NAME_HEADER,
+            Constants.INCLUDE_SHAPES,
+            Constants.IMPORT_TYPE,
+            "loopCounter");
+
+    private static final String CAMEL_PUBSUB_HEADER_PREFIX = "CamelGooglePubsub";
+
+    /**
+     * Encoding settings of an endpoint.
+     */
+    private record EndpointCodec(boolean envelope) {
+    }
+
+    private final Set<String> additionalHeaders;
+    private final Set<String> envelopeQueues;
+    private final Map<String, Boolean> sentHeaders = new ConcurrentHashMap<>();
+    private final Map<String, EndpointCodec> endpointCodecs = new ConcurrentHashMap<>();
+
+    public PubSubAttributeCodec(@Value("${marduk.pubsub.attributes.additional.headers:}") String[] additionalHeaders,
+                                @Value("${marduk.pubsub.attributes.envelope.queues:}") String[] envelopeQueues) {
+        this.additionalHeaders = nonBlank(additionalHeaders);
+        this.envelopeQueues = nonBlank(envelopeQueues);
+    }
+
+    private static Set<String> nonBlank(String[] values) {
+        return Arrays.stream(values).map(String::trim).filter(value -> !value.isEmpty()).collect(Collectors.toUnmodifiableSet());
+    }
+
+    /**
+     * Encode the headers of an outbound message as PubSub attributes, or into an envelope prepended to the message body.
+     *
+     * @param endpointUri the URI of the PubSub endpoint the message is sent to.
+     * @return the PubSub attributes of the message.
+     */
+    public Map<String, String> encode(String endpointUri, Message message) {
+        EndpointCodec endpointCodec = endpointUri == null ? new EndpointCodec(false) : endpointCodecs.computeIfAbsent(endpointUri, this::compile);
+        if (endpointCodec.envelope()) {
+            byte[] body = bodyAsBytes(message);
+            if (body != null) {
+                message.setBody(envelope(message.getHeaders(), body));
+                return Map.of();
+            }
+        }
+        return toAttributes(message.getHeaders());
+    }
+
+    private EndpointCodec compile(String endpointUri) {
+        return new EndpointCodec(envelopeQueues.contains(destinationName(endpointUri)));
+    }
+
+    /**
+     * The destination name is the last segment of google-pubsub:project:destination?options.
+     */
+    public static String destinationName(String endpointUri) {
+        int optionsStart = endpointUri.indexOf('?');
+        String path = optionsStart < 0 ? endpointUri : endpointUri.substring(0, optionsStart);
+        return path.substring(path.lastIndexOf(':') + 1);
+    }
+
+    /**
+     * Encode the declared Marduk headers as PubSub attributes. Values exceeding the PubSub attribute size limit are not sent.
+     */
+    public Map<String, String> toAttributes(Map<String, Object> headers) {
+        Map<String, String> attributes = new HashMap<>();
+        for (Map.Entry<String, Object> header : headers.entrySet()) {
+            if (isSent(header.getKey())) {
+                String value = encodeValue(header.getValue());
+                if (value.length() <= MAX_ATTRIBUTE_VALUE_LENGTH) {
+                    attributes.put(header.getKey(), value);
+                }
+            }
+        }
+        return attributes;
+    }
+
+    /**
+     * Decode an inbound message: all attributes except the internal Camel PubSub attributes are copied into the message headers,
+     * and the headers in the envelope, if any, are restored and the envelope removed from the body.
+     */
+    public void decode(Map<String, String> attributes, Message message) {
+        for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+            if (!attribute.getKey().startsWith(CAMEL_PUBSUB_HEADER_PREFIX)) {
+                message.setHeader(attribute.getKey(), attribute.getValue());
+            }
+        }
+        if (message.getBody() instanceof byte[] body && hasEnvelope(body)) {
+            openEnvelope(body, message);
+        }
+    }
+
+    boolean isSent(String headerName) {
+        return sentHeaders.computeIfAbsent(headerName, name -> !name.startsWith(CAMEL_PUBSUB_HEADER_PREFIX)
+                && (HEADERS.contains(name) || additionalHeaders.contains(name) || HEADER_PREFIXES.stream().anyMatch(name::startsWith)));
+    }
+
+    /**
+     * Encode a header value with a type-specific encoder.
+     */
+    static String encodeValue(Object value) {
+        return switch (value) {
+            case null -> "";
+            case String string -> string;
+            case Number number -> number.toString();
+            case Boolean bool -> bool.toString();
+            case Enum<?> enumValue -> enumValue.name();
+            case TemporalAccessor temporal -> temporal.toString();
+            default -> value.toString();
+        };
+    }
+
+    private static byte[] bodyAsBytes(Message message) {
+        Object body = message.getBody();
+        try {
+            return switch (body) {
+                case null -> new byte[0];
+                case byte[] bytes -> bytes;
+                case String string -> string.getBytes(StandardCharsets.UTF_8);
+                case InputStream inputStream -> inputStream.readAllBytes();
+                // other body types are serialized by the PubSub component, the headers are then sent as attributes
+                default -> null;
+            };
+        } catch (IOException e) {
+            throw new MardukException("Error while reading the PubSub message body", e);
+        }
+    }
+
+    private byte[] envelope(Map<String, Object> headers, byte[] body) {
+        Map<String, String> sent = new HashMap<>();
+        for (Map.Entry<String, Object> header : headers.entrySet()) {
+            if (isSent(header.getKey())) {
+                sent.put(header.getKey(), encodeValue(header.getValue()));
+            }
+        }
+        ByteArrayOutputStream envelope = new ByteArrayOutputStream(body.length + 64 * sent.size());
+        try (DataOutputStream out = new DataOutputStream(envelope)) {
+            out.write(ENVELOPE_MAGIC);
+            out.writeShort(sent.size());
+            for (Map.Entry<String, String> header : sent.entrySet()) {
+                out.writeUTF(header.getKey());
+                writeString(out, header.getValue());
+            }
+            out.write(body);
+        } catch (IOException e) {
+            throw new MardukException("Error while encoding the PubSub message envelope", e);
+        }
+        return envelope.toByteArray();
+    }
+
+    /**
+     * Header values are not limited to the 64 KB of {@link DataOutputStream#writeUTF(String)}.
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static boolean hasEnvelope(byte[] body) {
+        return body.length >= ENVELOPE_MAGIC.length && Arrays.equals(body, 0, ENVELOPE_MAGIC.length, ENVELOPE_MAGIC, 0, ENVELOPE_MAGIC.length);
+    }
+
+    private static void openEnvelope(byte[] envelope, Message message) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(envelope, ENVELOPE_MAGIC.length, envelope.length - ENVELOPE_MAGIC.length))) {
+            int nbHeaders = in.readUnsignedShort();
+            for (int i = 0; i < nbHeaders; i++) {
+                String name = in.readUTF();
+                byte[] value = new byte[in.readInt()];
+                in.readFully(value);
+                message.setHeader(name, new String(value, StandardCharsets.UTF_8));
+            }
+            message.setBody(in.readAllBytes());
+        } catch (IOException e) {
+            throw new MardukException("Error while decoding the PubSub message envelope", e);
+        }
+    }
+}
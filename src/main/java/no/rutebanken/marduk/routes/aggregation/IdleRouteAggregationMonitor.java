@@ -1,60 +1,252 @@
 package no.rutebanken.marduk.routes.aggregation;
 
 import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.ExchangePropertyKey;
 import org.apache.camel.processor.aggregate.AggregateController;
+import org.apache.camel.processor.aggregate.AggregateProcessor;
 import org.apache.camel.processor.aggregate.DefaultAggregateController;
+import org.apache.camel.spi.CamelEvent;
+import org.apache.camel.spi.InflightRepository;
+import org.apache.camel.support.EventNotifierSupport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Monitor a list of Camel routes and triggers associated aggregators only if the route is idle (i.e. the route has no inflight exchange).
  * This can be used to implement back pressure from a downstream route to an aggregator: the aggregator keeps accumulating requests while a downstream route is busy processing an earlier request.
+ * <p>
+ * The monitor is event-driven: it listens to exchange completion and failure events and checks whether the monitored route
+ * is idle when an exchange originating from the monitored route or from one of its aggregators completes.
+ * An optional debounce window lets the aggregator keep accumulating requests for a while after the route becomes idle.
+ * A periodic check is kept as a fallback, for the case where two exchanges complete at the same time and each of them
+ * sees the other one still in flight.
  */
-public class IdleRouteAggregationMonitor {
+public class IdleRouteAggregationMonitor extends EventNotifierSupport {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(IdleRouteAggregationMonitor.class);
 
+    private static final String AGGREGATION_COMPLETED_BY_FORCE = "force";
+    private static final long DEFAULT_CHECK_INTERVAL_MILLIS = 5000;
+
     private final CamelContext camelContext;
-    private final Map<String, List<AggregateController>> aggregateControllerMap;
+    private final long debounceMillis;
+    private final long checkIntervalMillis;
+    private final Map<String, MonitoredRoute> monitoredRoutes = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService scheduler;
 
     public IdleRouteAggregationMonitor(CamelContext camelContext) {
+        this(camelContext, 0, DEFAULT_CHECK_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param camelContext        the Camel context.
+     * @param debounceMillis      delay in milliseconds between the time the route becomes idle and the time the aggregation is triggered.
+     * @param checkIntervalMillis interval in milliseconds between two periodic checks of the monitored routes, 0 to disable the periodic check.
+     */
+    public IdleRouteAggregationMonitor(CamelContext camelContext, long debounceMillis, long checkIntervalMillis) {
         this.camelContext = camelContext;
-        this.aggregateControllerMap = new HashMap<>();
+        this.debounceMillis = debounceMillis;
+        this.checkIntervalMillis = checkIntervalMillis;
     }
 
     /**
      * Return an aggregate controller for a given route.
+     * The monitored route can be the route in which the aggregator itself is defined: the route is then considered busy
+     * as long as an exchange aggregated by this route is being processed. This lets several aggregators feeding
+     * the same downstream route accumulate requests independently of each other.
      *
      * @param routeId the Camel route id.
      * @return an aggregate controller that will trigger aggregation when the route is idle.
      */
     public AggregateController getAggregateControllerForRoute(String routeId) {
-        List<AggregateController> aggregateControllers = this.aggregateControllerMap.computeIfAbsent(routeId, k -> new ArrayList<>());
-        AggregateController aggregateController = new DefaultAggregateController();
-        aggregateControllers.add(aggregateController);
+        MonitoredAggregateController aggregateController = new MonitoredAggregateController();
+        monitoredRoutes.computeIfAbsent(routeId, MonitoredRoute::new).aggregateControllers.add(aggregateController);
         return aggregateController;
     }
 
+    @Override
+    public boolean isEnabled(CamelEvent event) {
+        return event instanceof CamelEvent.ExchangeCompletedEvent || event instanceof CamelEvent.ExchangeFailedEvent;
+    }
+
+    @Override
+    public void notify(CamelEvent event) {
+        Exchange exchange = ((CamelEvent.ExchangeEvent) event).getExchange();
+        String fromRouteId = exchange.getFromRouteId();
+        if (fromRouteId == null) {
+            return;
+        }
+        boolean forcedAggregation = AGGREGATION_COMPLETED_BY_FORCE.equals(exchange.getProperty(ExchangePropertyKey.AGGREGATED_COMPLETED_BY, String.class));
+        for (MonitoredRoute monitoredRoute : monitoredRoutes.values()) {
+            if (monitoredRoute.isTriggeredBy(fromRouteId)) {
+                if (forcedAggregation) {
+                    monitoredRoute.runningAggregations.decrementAndGet();
+                }
+                checkAggregation(monitoredRoute, exchange.getExchangeId());
+            }
+        }
+    }
+
+    /**
+     * Schedule the aggregation if the route is idle, ignoring the exchange that is completing.
+     * At most one aggregation is scheduled at any time for a given route.
+     */
+    private void checkAggregation(MonitoredRoute monitoredRoute, String completedExchangeId) {
+        monitoredRoute.completedExchangeIds.add(completedExchangeId);
+        if (!monitoredRoute.isIdle()) {
+            LOGGER.debug("Route {} has inflight exchanges, postponing aggregation", monitoredRoute.routeId);
+            monitoredRoute.completedExchangeIds.remove(completedExchangeId);
+            return;
+        }
+        if (monitoredRoute.scheduled.compareAndSet(false, true)) {
+            scheduler.schedule(() -> triggerAggregation(monitoredRoute), debounceMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Periodic fallback check, running on the single-threaded scheduler.
+     */
+    private void checkAllAggregations() {
+        for (MonitoredRoute monitoredRoute : monitoredRoutes.values()) {
+            if (!monitoredRoute.scheduled.get() && monitoredRoute.isIdle()) {
+                try {
+                    forceCompletion(monitoredRoute);
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Error while checking aggregation for route {}", monitoredRoute.routeId, e);
+                }
+            }
+        }
+    }
+
     /**
-     * Scheduled method that checks each registered route and trigger aggregation if the route has no inflight exchange.
+     * Runs on the single-threaded scheduler, so that the idle check and the start of the aggregation are not interleaved
+     * with another trigger for the same route.
      */
-    public void checkAggregation() {
-        aggregateControllerMap.forEach((routeId, aggregateControllers) -> {
+    private void triggerAggregation(MonitoredRoute monitoredRoute) {
+        monitoredRoute.scheduled.set(false);
+        boolean idle = monitoredRoute.isIdle();
+        monitoredRoute.completedExchangeIds.clear();
+        if (!idle) {
+            LOGGER.debug("Route {} is busy again, postponing aggregation", monitoredRoute.routeId);
+            return;
+        }
+        LOGGER.debug("Route {} has no inflight exchange, triggering aggregation", monitoredRoute.routeId);
+        forceCompletion(monitoredRoute);
+    }
+
+    private void forceCompletion(MonitoredRoute monitoredRoute) {
+        // the aggregated exchanges are processed asynchronously by the aggregators.
+        // The route is marked as busy before forcing the completion, in case an aggregated exchange completes before the count is updated.
+        monitoredRoute.runningAggregations.incrementAndGet();
+        int nbGroups = 0;
+        try {
+            nbGroups = monitoredRoute.aggregateControllers.stream().mapToInt(AggregateController::forceCompletionOfAllGroups).sum();
+        } finally {
+            monitoredRoute.runningAggregations.addAndGet(nbGroups - 1);
+        }
+        LOGGER.debug("{} groups aggregated for route {}", nbGroups, monitoredRoute.routeId);
+    }
+
+    @Override
+    protected void doInit() throws Exception {
+        super.doInit();
+        setIgnoreCamelContextEvents(true);
+        setIgnoreRouteEvents(true);
+        setIgnoreServiceEvents(true);
+        setIgnoreExchangeCreatedEvent(true);
+        setIgnoreExchangeRedeliveryEvents(true);
+        setIgnoreExchangeSendingEvents(true);
+        setIgnoreExchangeSentEvents(true);
+        setIgnoreStepEvents(true);
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        super.doStart();
+        scheduler = camelContext.getExecutorServiceManager().newSingleThreadScheduledExecutor(this, "IdleRouteAggregationMonitor");
+        if (checkIntervalMillis > 0) {
+            scheduler.scheduleWithFixedDelay(this::checkAllAggregations, checkIntervalMillis, checkIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        camelContext.getExecutorServiceManager().shutdown(scheduler);
+        super.doStop();
+    }
+
+    private final class MonitoredRoute {
+
+        private final String routeId;
+        private final List<MonitoredAggregateController> aggregateControllers = new CopyOnWriteArrayList<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        /**
+         * Number of aggregated exchanges created by forcing the completion and not yet completed.
+         * Tracked explicitly since the aggregated exchange reuses the id of the first aggregated request, and may
+         * therefore be temporarily missing from the inflight repository.
+         */
+        private final AtomicInteger runningAggregations = new AtomicInteger();
+        /**
+         * Exchanges that have completed but may not yet be removed from the inflight repository.
+         */
+        private final Set<String> completedExchangeIds = ConcurrentHashMap.newKeySet();
+
+        private MonitoredRoute(String routeId) {
+            this.routeId = routeId;
+        }
+
+        private boolean isTriggeredBy(String fromRouteId) {
+            return routeId.equals(fromRouteId) || aggregateControllers.stream().anyMatch(c -> fromRouteId.equals(c.aggregatorRouteId));
+        }
+
+        /**
+         * The route is idle if the only exchanges still counted as inflight are exchanges created by this route that
+         * are completing, and if no exchange aggregated by this route is being processed.
+         */
+        private boolean isIdle() {
+            if (runningAggregations.get() > 0) {
+                return false;
+            }
             int nbInflightExchanges = camelContext.getInflightRepository().size(routeId);
-            if (nbInflightExchanges == 0) {
-                LOGGER.debug("Route {} has no inflight exchange, triggering aggregation", routeId);
-                int nbGroups = aggregateControllers.stream().map(AggregateController::forceCompletionOfAllGroups).mapToInt(Integer::intValue).sum();
-                LOGGER.debug("{} groups aggregated for route {}", nbGroups, routeId);
-            } else {
-                LOGGER.debug("Route {} has {} inflight exchanges, postponing aggregation", routeId, nbInflightExchanges);
+            long nbCompletingExchanges = 0;
+            for (InflightRepository.InflightExchange inflightExchange : camelContext.getInflightRepository().browse(routeId)) {
+                Exchange exchange = inflightExchange.getExchange();
+                if (completedExchangeIds.contains(exchange.getExchangeId())) {
+                    nbCompletingExchanges++;
+                } else if (exchange.getProperty(ExchangePropertyKey.AGGREGATED_SIZE) != null) {
+                    // aggregated exchanges are not counted in the route inflight exchanges
+                    return false;
+                }
             }
-        });
+            return nbInflightExchanges <= nbCompletingExchanges;
+        }
+    }
+
+    /**
+     * Aggregate controller keeping track of the route in which the aggregator is defined, so that requests arriving
+     * while the monitored route is idle trigger the aggregation.
+     */
+    private static final class MonitoredAggregateController extends DefaultAggregateController {
+
+        private volatile String aggregatorRouteId;
 
+        @Override
+        public void onStart(AggregateProcessor processor) {
+            super.onStart(processor);
+            aggregatorRouteId = processor.getRouteId();
+        }
     }
 
 }
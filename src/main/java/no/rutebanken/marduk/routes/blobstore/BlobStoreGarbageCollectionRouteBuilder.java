@@ -0,0 +1,43 @@
+package no.rutebanken.marduk.routes.blobstore;
+
+import no.rutebanken.marduk.routes.BaseRouteBuilder;
+import no.rutebanken.marduk.services.AbstractBlobStoreService;
+import org.apache.camel.LoggingLevel;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * Route deleting the contents that are not referenced any more in the containers using content-addressed storage.
+ */
+@Component
+public class BlobStoreGarbageCollectionRouteBuilder extends BaseRouteBuilder {
+
+    @Value("${blobstore.content.addressed.gc.cron.schedule:0+30+2+?+*+*}")
+    private String cronSchedule;
+
+    private final List<AbstractBlobStoreService> blobStoreServices;
+
+    public BlobStoreGarbageCollectionRouteBuilder(List<AbstractBlobStoreService> blobStoreServices) {
+        this.blobStoreServices = blobStoreServices;
+    }
+
+    @Override
+    public void configure() throws Exception {
+        super.configure();
+
+        singletonFrom("quartz://marduk/blobStoreGarbageCollection?cron=" + cronSchedule + "&trigger.timeZone=Europe/Oslo")
+                .autoStartup("{{blobstore.content.addressed.gc.autoStartup:true}}")
+                .filter(e -> shouldQuartzRouteTrigger(e, cronSchedule))
+                .process(this::setNewCorrelationId)
+                .log(LoggingLevel.INFO, correlation() + "Quartz triggers garbage collection of unreferenced blob contents.")
+                .to("direct:blobStoreGarbageCollection")
+                .routeId("blobstore-garbage-collection-quartz");
+
+        from("direct:blobStoreGarbageCollection")
+                .process(e -> blobStoreServices.forEach(AbstractBlobStoreService::collectUnreferencedContent))
+                .log(LoggingLevel.INFO, correlation() + "Completed garbage collection of unreferenced blob contents.")
+                .routeId("blobstore-garbage-collection");
+    }
+}
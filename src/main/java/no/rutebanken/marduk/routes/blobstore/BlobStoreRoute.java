@@ -99,6 +99,12 @@ public class BlobStoreRoute extends BaseRouteBuilder {
                 .log(LoggingLevel.INFO, correlation() + "Returning from fetching file list from blob store for multiple folders.")
                 .routeId("blobstore-list-in-folders");
 
+        from("direct:streamBlobsInFolders")
+                .to(logDebugShowAll())
+                .bean(mardukPublicBlobStoreService, "streamBlobsInFolders")
+                .log(LoggingLevel.INFO, correlation() + "Streaming file list from blob store for multiple folders.")
+                .routeId("blobstore-stream-in-folders");
+
         from("direct:deleteAllBlobsInFolder")
                 .to(logDebugShowAll())
                 .bean(mardukPublicBlobStoreService, "deleteAllBlobsInFolder")
@@ -106,6 +112,12 @@ public class BlobStoreRoute extends BaseRouteBuilder {
                 .log(LoggingLevel.INFO, correlation() + "Returning from deleting all blobs in folder.")
                 .routeId("blobstore-delete-in-folder");
 
+        from("direct:deleteBlob")
+                .to(logDebugShowAll())
+                .bean(mardukPublicBlobStoreService, "deleteBlob")
+                .to(logDebugShowAll())
+                .log(LoggingLevel.INFO, correlation() + "Deleted file ${header." + FILE_HANDLE + "} from blob store.")
+                .routeId("blobstore-delete");
 
     }
 }
@@ -101,9 +101,16 @@ public class InternalBlobStoreRoute extends BaseRouteBuilder {
                 .log(LoggingLevel.INFO, correlation() + "Returning from fetching flat file list from internal blob store.")
                 .routeId("blobstore-internal-list-flat");
 
+        from("direct:streamInternalBlobsFlat")
+                .to(logDebugShowAll())
+                .process(e -> e.getIn().setHeader(CHOUETTE_REFERENTIAL, getProviderRepository().getProvider(e.getIn().getHeader(PROVIDER_ID, Long.class)).getChouetteInfo().getReferential()))
+                .bean(mardukInternalBlobStoreService, "streamBlobsFlat")
+                .log(LoggingLevel.INFO, correlation() + "Streaming flat file list from internal blob store.")
+                .routeId("blobstore-internal-stream-flat");
+
         from("direct:listInternalBlobsInFolders")
                 .to(logDebugShowAll())
-                .bean(mardukInternalBlobStoreService, "listBlobsInFolders")
+                .bean(mardukInternalBlobStoreService, "listCachedBlobsInFolders")
                 .to(logDebugShowAll())
                 .log(LoggingLevel.INFO, correlation() + "Returning from fetching file list from internal blob store for multiple folders.")
                 .routeId("blobstore-internal-list-in-folders");
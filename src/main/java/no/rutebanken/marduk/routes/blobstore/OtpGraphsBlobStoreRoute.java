@@ -42,7 +42,7 @@ public class OtpGraphsBlobStoreRoute extends BaseRouteBuilder {
 
         from("direct:listOtpGraphBlobsInFolders")
                 .to(logDebugShowAll())
-                .bean(otpGraphsBlobStoreService, "listBlobsInFolders")
+                .bean(otpGraphsBlobStoreService, "listCachedBlobsInFolders")
                 .to(logDebugShowAll())
                 .log(LoggingLevel.INFO, correlation() + "Returning from fetching file list from blob store for multiple folders.")
                 .routeId("blobstore-otp-graph-list-in-folders");
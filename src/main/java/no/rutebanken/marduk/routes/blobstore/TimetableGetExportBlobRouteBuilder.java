@@ -36,7 +36,7 @@ public class TimetableGetExportBlobRouteBuilder extends BaseRouteBuilder {
 
         from("direct:listTimetableExportAndGraphBlobs")
                 .process(e -> e.getIn().setHeader(Constants.FILE_PARENT_COLLECTION, staticPrefixes))
-                .to("direct:listBlobsInFolders")
+                .to("direct:streamBlobsInFolders")
                 .routeId("timetable-get-export-blobs");
     }
 }
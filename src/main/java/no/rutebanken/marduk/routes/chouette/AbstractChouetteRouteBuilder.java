@@ -23,6 +23,7 @@ import org.apache.camel.Exchange;
 import org.apache.camel.component.http.HttpMethods;
 import org.apache.hc.client5.http.entity.mime.MultipartEntityBuilder;
 import org.apache.hc.core5.http.ContentType;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.util.StringUtils;
 
 import java.io.InputStream;
@@ -32,6 +33,9 @@ import static no.rutebanken.marduk.Constants.JSON_PART;
 
 public abstract class AbstractChouetteRouteBuilder extends BaseRouteBuilder{
 
+	@Autowired
+	protected ChouetteSubmissionLimiter chouetteSubmissionLimiter;
+
 	protected void toGenericChouetteMultipart(Exchange exchange) {
 	    String jsonPart = exchange.getIn().getHeader(JSON_PART, String.class);
 		if (!StringUtils.hasText(jsonPart)) {
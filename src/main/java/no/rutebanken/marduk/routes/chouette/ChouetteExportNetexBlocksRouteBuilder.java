@@ -91,7 +91,9 @@ public class ChouetteExportNetexBlocksRouteBuilder extends AbstractChouetteRoute
                 .log(LoggingLevel.DEBUG, correlation() + "Creating multipart request")
                 .process(this::toGenericChouetteMultipart)
                 .setHeader(Exchange.CONTENT_TYPE, simple("multipart/form-data"))
+                .process(chouetteSubmissionLimiter::acquire)
                 .toD(chouetteUrl + "/chouette_iev/referentials/${header." + CHOUETTE_REFERENTIAL + "}/exporter/netexprofile")
+                .process(chouetteSubmissionLimiter::submitted)
                 .process(e -> {
                     e.getIn().setHeader(CHOUETTE_JOB_STATUS_URL, e.getIn().getHeader("Location", String.class));
                     e.getIn().setHeader(Constants.CHOUETTE_JOB_ID, getLastPathElementOfUrl(e.getIn().getHeader("Location", String.class)));
@@ -115,6 +117,9 @@ public class ChouetteExportNetexBlocksRouteBuilder extends AbstractChouetteRoute
                 .log(LoggingLevel.ERROR, correlation() + "Something went wrong on Netex blocks export")
                 .process(e -> JobEvent.providerJobBuilder(e).timetableAction(JobEvent.TimetableAction.EXPORT_NETEX_BLOCKS).state(JobEvent.State.FAILED).build())
                 .end()
+                .filter(simple("${header.action_report_result} != 'OK'"))
+                .to("direct:forgetExportDigest")
+                .end()
                 .to("direct:updateStatus")
                 .removeHeader(Constants.CHOUETTE_JOB_ID)
                 .routeId("chouette-process-export-netex-block-status");
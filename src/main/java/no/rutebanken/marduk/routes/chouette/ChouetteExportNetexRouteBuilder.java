@@ -18,14 +18,22 @@ package no.rutebanken.marduk.routes.chouette;
 
 import no.rutebanken.marduk.Constants;
 import no.rutebanken.marduk.domain.Provider;
+import no.rutebanken.marduk.repository.ExportDigestRepository;
+import no.rutebanken.marduk.routes.file.ZipFileUtils;
 import no.rutebanken.marduk.routes.chouette.json.ActionReportWrapper;
 import no.rutebanken.marduk.routes.chouette.json.Parameters;
 import no.rutebanken.marduk.routes.status.JobEvent;
 import org.apache.camel.Exchange;
 import org.apache.camel.LoggingLevel;
+import org.apache.camel.builder.PredicateBuilder;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.List;
 import java.util.Locale;
 
@@ -51,17 +59,28 @@ import static no.rutebanken.marduk.Utils.getLastPathElementOfUrl;
 @Component
 public class ChouetteExportNetexRouteBuilder extends AbstractChouetteRouteBuilder {
 
+    private static final String PROP_EXPORT_FILE = "RutebankenExportFile";
+    private static final String PROP_EXPORT_STREAM = "RutebankenExportStream";
+    private static final String PROP_EXPORT_DIGEST = "RutebankenExportDigest";
+    private static final String PROP_EXPORT_UNCHANGED = "RutebankenExportUnchanged";
+
     private final String chouetteUrl;
     private final boolean enablePostValidation;
     private final List<String> allowedCodespacesForStopExport;
+    private final boolean skipUnchangedExport;
+    private final ExportDigestRepository exportDigestRepository;
 
     public ChouetteExportNetexRouteBuilder(
             @Value("${chouette.url}") String chouetteUrl,
             @Value("${chouette.enablePostValidation:true}") boolean enablePostValidation,
-            @Value("${chouette.include.stops.codespaces:}") List<String> allowedCodespacesForStopExport) {
+            @Value("${chouette.include.stops.codespaces:}") List<String> allowedCodespacesForStopExport,
+            @Value("${chouette.export.skip.unchanged:true}") boolean skipUnchangedExport,
+            ExportDigestRepository exportDigestRepository) {
         this.chouetteUrl = chouetteUrl;
         this.enablePostValidation = enablePostValidation;
         this.allowedCodespacesForStopExport = allowedCodespacesForStopExport;
+        this.skipUnchangedExport = skipUnchangedExport;
+        this.exportDigestRepository = exportDigestRepository;
     }
 
     @Override
@@ -85,7 +104,9 @@ public class ChouetteExportNetexRouteBuilder extends AbstractChouetteRouteBuilde
                 .log(LoggingLevel.DEBUG, correlation() + "Creating multipart request")
                 .process(this::toGenericChouetteMultipart)
                 .setHeader(Exchange.CONTENT_TYPE, simple("multipart/form-data"))
+                .process(chouetteSubmissionLimiter::acquire)
                 .toD(chouetteUrl + "/chouette_iev/referentials/${header." + CHOUETTE_REFERENTIAL + "}/exporter/netexprofile")
+                .process(chouetteSubmissionLimiter::submitted)
                 .process(e -> {
                     e.getIn().setHeader(CHOUETTE_JOB_STATUS_URL, e.getIn().getHeader("Location", String.class));
                     e.getIn().setHeader(Constants.CHOUETTE_JOB_ID, getLastPathElementOfUrl(e.getIn().getHeader("Location", String.class)));
@@ -123,7 +144,16 @@ public class ChouetteExportNetexRouteBuilder extends AbstractChouetteRouteBuilde
                 .setBody(simple(""))
                 .setHeader(Exchange.HTTP_METHOD, constant(org.apache.camel.component.http.HttpMethods.GET))
                 .toD("${header.data_url}")
+                .doTry()
+                .process(this::checkExportDigest)
                 .choice()
+                // the digest does not cover the blocks, which are exported separately: the blocks export is triggered even if the NeTEx export is unchanged
+                .when(PredicateBuilder.and(exchangeProperty(PROP_EXPORT_UNCHANGED).isEqualTo(true), constant(enablePostValidation)))
+                .log(LoggingLevel.INFO, correlation() + "NeTEx export is identical to the previous export (digest ${exchangeProperty." + PROP_EXPORT_DIGEST + "}). Skipping publication and merge with flexible lines, triggering blocks export")
+                .setBody(constant(""))
+                .to("google-pubsub:{{marduk.pubsub.project.id}}:ChouetteExportNetexBlocksQueue")
+                .when(exchangeProperty(PROP_EXPORT_UNCHANGED).isEqualTo(true))
+                .log(LoggingLevel.INFO, correlation() + "NeTEx export is identical to the previous export (digest ${exchangeProperty." + PROP_EXPORT_DIGEST + "}). Skipping publication and downstream processing")
                 .when(constant(enablePostValidation))
                 .setHeader(FILE_HANDLE, simple(BLOBSTORE_PATH_NETEX_EXPORT + "${header." + CHOUETTE_REFERENTIAL + "}-" + Constants.CURRENT_AGGREGATED_NETEX_FILENAME))
                 .to("direct:uploadInternalBlob")
@@ -134,12 +164,19 @@ public class ChouetteExportNetexRouteBuilder extends AbstractChouetteRouteBuilde
                 .setHeader(FILE_HANDLE, simple(BLOBSTORE_PATH_NETEX_EXPORT_BEFORE_VALIDATION + "${header." + CHOUETTE_REFERENTIAL + "}-" + Constants.CURRENT_AGGREGATED_NETEX_FILENAME))
                 .to("direct:uploadInternalBlob")
                 .setBody(constant(""))
-                // end otherwise
-                .end()
-                // end choice
+                .endDoTry()
+                .doFinally()
+                .process(this::deleteExportFile)
                 .end()
+                .choice()
+                .when(exchangeProperty(PROP_EXPORT_UNCHANGED).isEqualTo(true))
+                .process(e -> JobEvent.providerJobBuilder(e).timetableAction(JobEvent.TimetableAction.EXPORT_NETEX).state(JobEvent.State.SKIPPED).build())
+                .otherwise()
                 .to("direct:antuNetexPostValidation")
+                // the digest is forgotten if a downstream step fails, so that the next export is not skipped
+                .process(e -> exportDigestRepository.saveDigest(e.getIn().getHeader(CHOUETTE_REFERENTIAL, String.class), e.getProperty(PROP_EXPORT_DIGEST, String.class)))
                 .process(e -> JobEvent.providerJobBuilder(e).timetableAction(JobEvent.TimetableAction.EXPORT_NETEX).state(JobEvent.State.OK).build())
+                .end()
                 .routeId("process-successful-export");
 
         from("direct:processFailedExport")
@@ -157,6 +194,18 @@ public class ChouetteExportNetexRouteBuilder extends AbstractChouetteRouteBuilde
                 .process(e -> JobEvent.providerJobBuilder(e).timetableAction(JobEvent.TimetableAction.EXPORT_NETEX).state(JobEvent.State.FAILED).build())
                 .routeId("process-failed-export");
 
+        // Called when a step following the NeTEx export failed (post-validation, merge with flexible lines, blocks export):
+        // the export is published again at the next attempt even if it is unchanged.
+        from("direct:forgetExportDigest")
+                .process(e -> {
+                    String referential = e.getIn().getHeader(CHOUETTE_REFERENTIAL, e.getIn().getHeader(DATASET_REFERENTIAL, String.class), String.class);
+                    if (referential != null) {
+                        exportDigestRepository.deleteDigest(referential);
+                    }
+                })
+                .log(LoggingLevel.INFO, correlation() + "Forgot NeTEx export digest after a failure in the export chain")
+                .routeId("forget-export-digest");
+
         from("direct:antuNetexPostValidation")
                 .to("direct:copyInternalBlobToValidationBucket")
                 .process(e -> {
@@ -183,5 +232,42 @@ public class ChouetteExportNetexRouteBuilder extends AbstractChouetteRouteBuilde
         return allowedCodespacesForStopExport.contains(codespace);
     }
 
+    /**
+     * Save the exported dataset to a temporary file and compare its canonical digest with the digest of the previous
+     * export for the same referential.
+     * The export is flagged as unchanged if the digests match, unless the export was explicitly forced.
+     */
+    private void checkExportDigest(Exchange e) throws IOException {
+        Path exportFile = Files.createTempFile("marduk-netex-export-", ".zip");
+        e.setProperty(PROP_EXPORT_FILE, exportFile);
+        try (InputStream exportData = e.getIn().getBody(InputStream.class)) {
+            Files.copy(exportData, exportFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+        String digest;
+        try (InputStream exportData = Files.newInputStream(exportFile)) {
+            digest = ZipFileUtils.computeCanonicalDigest(exportData);
+        }
+        e.setProperty(PROP_EXPORT_DIGEST, digest);
+
+        String referential = e.getIn().getHeader(CHOUETTE_REFERENTIAL, String.class);
+        boolean forceExport = e.getIn().getHeader(Constants.FORCE_EXPORT, false, Boolean.class);
+        boolean unchanged = skipUnchangedExport && !forceExport && exportDigestRepository.getDigest(referential).map(digest::equals).orElse(false);
+        e.setProperty(PROP_EXPORT_UNCHANGED, unchanged);
+        InputStream exportData = Files.newInputStream(exportFile);
+        e.setProperty(PROP_EXPORT_STREAM, exportData);
+        e.getIn().setBody(exportData);
+    }
+
+    private void deleteExportFile(Exchange e) throws IOException {
+        InputStream exportData = e.getProperty(PROP_EXPORT_STREAM, InputStream.class);
+        if (exportData != null) {
+            exportData.close();
+        }
+        Path exportFile = e.getProperty(PROP_EXPORT_FILE, Path.class);
+        if (exportFile != null) {
+            Files.deleteIfExists(exportFile);
+        }
+    }
+
 
 }
@@ -18,6 +18,7 @@ package no.rutebanken.marduk.routes.chouette;
 
 import no.rutebanken.marduk.Constants;
 import no.rutebanken.marduk.domain.Provider;
+import no.rutebanken.marduk.routes.chouette.json.JobResponse;
 import no.rutebanken.marduk.routes.chouette.json.Parameters;
 import no.rutebanken.marduk.routes.file.FileType;
 import no.rutebanken.marduk.routes.status.JobEvent;
@@ -25,7 +26,10 @@ import no.rutebanken.marduk.routes.status.JobEvent.State;
 import no.rutebanken.marduk.routes.status.JobEvent.TimetableAction;
 import org.apache.camel.Exchange;
 import org.apache.camel.LoggingLevel;
+import org.apache.camel.Message;
 import org.apache.camel.component.http.HttpMethods;
+import org.apache.camel.component.jackson.ListJacksonDataFormat;
+import org.apache.camel.processor.aggregate.GroupedMessageAggregationStrategy;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
@@ -38,6 +42,7 @@ import static no.rutebanken.marduk.Constants.FILE_NAME;
 import static no.rutebanken.marduk.Constants.FILE_TYPE;
 import static no.rutebanken.marduk.Constants.JSON_PART;
 import static no.rutebanken.marduk.Constants.PROVIDER_ID;
+import static no.rutebanken.marduk.Constants.SPECULATIVE_IMPORT;
 import static no.rutebanken.marduk.Constants.TARGET_CONTAINER;
 import static no.rutebanken.marduk.Constants.TARGET_FILE_HANDLE;
 import static no.rutebanken.marduk.Utils.getLastPathElementOfUrl;
@@ -54,15 +59,21 @@ public class ChouetteImportRouteBuilder extends AbstractChouetteRouteBuilder {
     private final String nisabaExchangeContainerName;
     private final boolean enablePreValidation;
     private final List<String> allowedCodespacesForStopUpdate;
+    private final ChouetteImportScheduler chouetteImportScheduler;
+    private final int importCompletionQuietPeriod;
 
     public ChouetteImportRouteBuilder(@Value("${chouette.url}") String chouetteUrl,
                                       @Value("${chouette.enablePreValidation:true}") boolean enablePreValidation,
                                       @Value("${chouette.include.stops.codespaces:}") List<String> allowedCodespacesForStopUpdate,
-                                      @Value("${blobstore.gcs.nisaba.exchange.container.name}") String nisabaExchangeContainerName) {
+                                      @Value("${blobstore.gcs.nisaba.exchange.container.name}") String nisabaExchangeContainerName,
+                                      @Value("${chouette.import.completion.quiet.period:120000}") int importCompletionQuietPeriod,
+                                      ChouetteImportScheduler chouetteImportScheduler) {
         this.chouetteUrl = chouetteUrl;
         this.enablePreValidation = enablePreValidation;
         this.nisabaExchangeContainerName = nisabaExchangeContainerName;
         this.allowedCodespacesForStopUpdate= allowedCodespacesForStopUpdate;
+        this.chouetteImportScheduler = chouetteImportScheduler;
+        this.importCompletionQuietPeriod = importCompletionQuietPeriod;
     }
 
     @Override
@@ -111,23 +122,37 @@ public class ChouetteImportRouteBuilder extends AbstractChouetteRouteBuilder {
                 .setHeader(Exchange.HTTP_METHOD, constant(HttpMethods.POST))
                 .setProperty("chouette_url", simple(chouetteUrl + "/chouette_iev/referentials/${header." + CHOUETTE_REFERENTIAL + "}/clean"))
                 .toD("${exchangeProperty.chouette_url}")
+                .to("direct:chouetteMarkStatsStale")
                 .routeId("chouette-clean-dataspace");
 
-        from("google-pubsub:{{marduk.pubsub.project.id}}:ChouetteImportQueue").streamCaching()
+        // Import requests are queued per referential by the import scheduler on the cluster leader, the message is acknowledged when the import is submitted.
+        singletonFrom(ChouetteImportScheduler.LEADER_LOCK_NAME, "google-pubsub:{{marduk.pubsub.project.id}}:ChouetteImportQueue?maxAckExtensionPeriod=" + ChouetteImportScheduler.MAX_ACK_EXTENSION_PERIOD.toSeconds())
                 .log(LoggingLevel.INFO, correlation() + "Starting Chouette import")
                 .removeHeader(Constants.CHOUETTE_JOB_ID)
                 .process(e -> JobEvent.providerJobBuilder(e).timetableAction(JobEvent.TimetableAction.IMPORT).state(State.PENDING).build())
                 .to("direct:updateStatus")
+                .process(e -> {
+                    Provider provider = getProviderRepository().getProvider(e.getIn().getHeader(PROVIDER_ID, Long.class));
+                    e.getIn().setHeader(CHOUETTE_REFERENTIAL, provider.getChouetteInfo().getReferential());
+                })
+                .process(chouetteImportScheduler::enqueue)
+                .routeId(ChouetteImportScheduler.IMPORT_QUEUE_ROUTE_ID);
+
+        // Release the import slot on the cluster leader when an import job is done, the job status may have been processed by another instance
+        singletonFrom(ChouetteImportScheduler.LEADER_LOCK_NAME, ChouetteImportScheduler.IMPORT_JOB_DONE_ENDPOINT)
+                .process(e -> chouetteImportScheduler.release(e.getIn().getHeader(CHOUETTE_REFERENTIAL, String.class), e.getIn().getHeader(Constants.CORRELATION_ID, String.class)))
+                .routeId("chouette-import-job-done");
+
+        from(ChouetteImportScheduler.IMPORT_ENDPOINT).streamCaching()
+                .log(LoggingLevel.INFO, correlation() + "Submitting Chouette import")
                 .to("direct:getInternalBlob")
                 .choice()
                 .when(body().isNull())
                 .log(LoggingLevel.WARN, correlation() + "Import failed because blob could not be found")
+                .process(e -> chouetteImportScheduler.release(e.getIn().getHeader(CHOUETTE_REFERENTIAL, String.class), e.getIn().getHeader(Constants.CORRELATION_ID, String.class)))
                 .process(e -> JobEvent.providerJobBuilder(e).timetableAction(TimetableAction.IMPORT).state(State.FAILED).build())
+                .to("direct:updateStatus")
                 .otherwise()
-                .process(e -> {
-                    Provider provider = getProviderRepository().getProvider(e.getIn().getHeader(PROVIDER_ID, Long.class));
-                    e.getIn().setHeader(CHOUETTE_REFERENTIAL, provider.getChouetteInfo().getReferential());
-                })
                 .to(logDebugShowAll())
                 .to("direct:addImportParameters")
                 .end()
@@ -158,8 +183,10 @@ public class ChouetteImportRouteBuilder extends AbstractChouetteRouteBuilder {
                 .setProperty("chouette_url", simple(chouetteUrl + "/chouette_iev/referentials/${header." + CHOUETTE_REFERENTIAL + "}/importer/${header." + FILE_TYPE + ".toLowerCase()}"))
                 .log(LoggingLevel.DEBUG, correlation() + "Calling Chouette with URL: ${exchangeProperty.chouette_url}")
                 .setHeader(Exchange.HTTP_METHOD, constant(HttpMethods.POST))
+                .process(chouetteSubmissionLimiter::acquire)
                 // Attempt to retrigger delivery in case of errors
                 .toD("${exchangeProperty.chouette_url}")
+                .process(chouetteSubmissionLimiter::submitted)
                 .to(logDebugShowAll())
                 .process(e -> {
                     e.getIn().setHeader(Constants.CHOUETTE_JOB_STATUS_URL, e.getIn().getHeader("Location", String.class));
@@ -187,33 +214,62 @@ public class ChouetteImportRouteBuilder extends AbstractChouetteRouteBuilder {
                 .when(simple("${header.action_report_result} == 'OK' && ${header.validation_report_result} == 'NOK'"))
                 .log(LoggingLevel.INFO, correlation() + "Import ok but validation failed")
                 .process(e -> JobEvent.providerJobBuilder(e).timetableAction(TimetableAction.IMPORT).state(State.FAILED).build())
+                .to("direct:speculativeImportFailed")
                 .when(simple("${header.action_report_result} == 'NOK'"))
                 .choice()
                 .when(simple("${header.action_report_result} == 'NOK'"))
                 .log(LoggingLevel.WARN, correlation() + "Import not ok")
                 .process(e -> JobEvent.providerJobBuilder(e).timetableAction(JobEvent.TimetableAction.IMPORT).state(State.FAILED).build())
+                .to("direct:speculativeImportFailed")
                 .endChoice()
                 .otherwise()
                 .log(LoggingLevel.ERROR, correlation() + "Something went wrong on import")
                 .process(e -> JobEvent.providerJobBuilder(e).timetableAction(TimetableAction.IMPORT).state(State.FAILED).build())
+                .to("direct:speculativeImportFailed")
                 .end()
                 .to("direct:updateStatus")
                 .routeId("chouette-process-import-status");
 
-        // Check that no other import jobs in status SCHEDULED exists for this referential. If so, do not trigger export
+        // Import completions are debounced per referential before triggering validation, so that a burst of imports triggers a single validation and export
         from("direct:checkScheduledJobsBeforeTriggeringNextAction")
-                .setProperty("job_status_url", simple("{{chouette.url}}/chouette_iev/referentials/${header." + CHOUETTE_REFERENTIAL + "}/jobs?timetableAction=importer&status=SCHEDULED&status=STARTED"))
-                .toD("${exchangeProperty.job_status_url}")
                 .choice()
-                .when().jsonpath("$.*[?(@.status == 'SCHEDULED')].status")
-                .log(LoggingLevel.INFO, correlation() + "Import ok, skipping next step as there are more import jobs active")
+                .when(header(SPECULATIVE_IMPORT).isEqualTo(true))
+                .to("direct:speculativeImportSucceeded")
+                .otherwise()
+                .to("direct:supersedeSpeculativeImports")
+                .setBody(constant(""))
+                .to("google-pubsub:{{marduk.pubsub.project.id}}:ChouetteImportCompletedQueue")
+                .end()
+                .routeId("chouette-process-job-list-after-import");
+
+        // the completions are aggregated on the instance that holds the import queues, so that the pending and running imports of the whole cluster are known
+        singletonFrom(ChouetteImportScheduler.LEADER_LOCK_NAME, "google-pubsub:{{marduk.pubsub.project.id}}:ChouetteImportCompletedQueue")
+                .process(this::removeSynchronizationForAggregatedExchange)
+                .aggregate(header(CHOUETTE_REFERENTIAL)).aggregationStrategy(new GroupedMessageAggregationStrategy()).completionSize(100).completionTimeout(importCompletionQuietPeriod)
+                .process(this::addSynchronizationForAggregatedExchange)
+                .process(this::useLatestImportCompletion)
+                .log(LoggingLevel.INFO, correlation() + "Aggregated ${exchangeProperty.CamelAggregatedSize} import completions (aggregation completion triggered by ${exchangeProperty.CamelAggregatedCompletedBy}).")
+                .choice()
+                .when(e -> chouetteImportScheduler.hasPendingOrRunningImports(e.getIn().getHeader(CHOUETTE_REFERENTIAL, String.class)))
+                .log(LoggingLevel.INFO, correlation() + "Import ok, skipping next step as there are more imports queued or running")
                 .otherwise()
                 .setBody(constant(""))
                 .log(LoggingLevel.INFO, correlation() + "Import ok, triggering validation")
                 .setHeader(CHOUETTE_JOB_STATUS_JOB_VALIDATION_LEVEL, constant(JobEvent.TimetableAction.VALIDATION_LEVEL_1.name()))
                 .to("google-pubsub:{{marduk.pubsub.project.id}}:ChouetteValidationQueue")
                 .end()
-                .routeId("chouette-process-job-list-after-import");
+                .routeId("chouette-debounce-import-completions");
+
+        // Count the import jobs scheduled or started in Chouette for this referential, used by the import scheduler to reconcile its slots
+        from(ChouetteImportScheduler.ACTIVE_IMPORT_JOBS_ENDPOINT)
+                .process(this::removeAllCamelHeaders)
+                .setBody(constant(""))
+                .setHeader(Exchange.HTTP_METHOD, constant(HttpMethods.GET))
+                .setProperty("job_status_url", simple("{{chouette.url}}/chouette_iev/referentials/${header." + CHOUETTE_REFERENTIAL + "}/jobs?timetableAction=importer&status=SCHEDULED&status=STARTED"))
+                .toD("${exchangeProperty.job_status_url}")
+                .unmarshal(new ListJacksonDataFormat(JobResponse.class))
+                .setBody(simple("${body.size}"))
+                .routeId("chouette-count-active-import-jobs");
 
         // copy the original NeTEx archive and publish it on an exchange bucket
         from("direct:copyOriginalDataset")
@@ -228,6 +284,18 @@ public class ChouetteImportRouteBuilder extends AbstractChouetteRouteBuilder {
 
     }
 
+    /**
+     * The validation triggered by a group of import completions belongs to the latest import.
+     */
+    private void useLatestImportCompletion(Exchange exchange) {
+        @SuppressWarnings("unchecked")
+        List<Message> importCompletions = exchange.getIn().getBody(List.class);
+        Message latestImportCompletion = importCompletions.getLast();
+        exchange.getIn().setHeader(PROVIDER_ID, latestImportCompletion.getHeader(PROVIDER_ID));
+        exchange.getIn().setHeader(CHOUETTE_REFERENTIAL, latestImportCompletion.getHeader(CHOUETTE_REFERENTIAL));
+        exchange.getIn().setHeader(Constants.CORRELATION_ID, latestImportCompletion.getHeader(Constants.CORRELATION_ID));
+    }
+
     private boolean isAllowedCodespaceForStopUpdate(String codespace) {
         return allowedCodespacesForStopUpdate.contains(codespace);
     }
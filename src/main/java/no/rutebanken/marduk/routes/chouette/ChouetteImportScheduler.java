@@ -0,0 +1,456 @@
+package no.rutebanken.marduk.routes.chouette;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import no.rutebanken.marduk.Constants;
+import no.rutebanken.marduk.exceptions.MardukException;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.Route;
+import org.apache.camel.component.google.pubsub.GooglePubsubConstants;
+import org.apache.camel.component.google.pubsub.consumer.AcknowledgeCompletion;
+import org.apache.camel.component.master.MasterConsumer;
+import org.apache.camel.support.DefaultExchange;
+import org.apache.camel.support.SynchronizationAdapter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+import java.util.stream.Collectors;
+
+/**
+ * Fair-share scheduler for Chouette imports.
+ * Import requests are queued per referential and dispatched in weighted round-robin order across referentials:
+ * the next import is taken from the least recently served referential that has a free slot, and a referential keeps its turn
+ * for as many imports as its weight. A provider uploading many files does thus not delay the imports of other providers.
+ * A referential holds a slot from the time its import is dispatched until the Chouette import job is done, or until the submission fails.
+ * The number of slots per referential is limited (the referential concurrency multiplied by the referential weight),
+ * and so is the total number of slots, if configured.
+ * The import requests are consumed by the cluster leader only, so that the queues and slots are shared by the whole cluster.
+ * The status of a Chouette job may be polled by any instance: the instance that processes the import result notifies the leader
+ * through the ChouetteImportJobDoneQueue. The slots of a referential are also periodically reconciled with the import jobs
+ * that are active in Chouette, and a slot that is never released expires after a timeout.
+ * <p>
+ * The PubSub message of a queued import request is acknowledged only when the import is submitted,
+ * so that queued requests are redelivered if the application stops. The acknowledgement deadline of a queued message is extended
+ * for at most {@link #MAX_ACK_EXTENSION_PERIOD}: an import that has waited for longer than the max wait time, which must be shorter,
+ * is submitted regardless of the slots, Chouette then queues the job. An instance that loses the leadership releases its queued
+ * requests for redelivery to the new leader.
+ */
+@Component
+public class ChouetteImportScheduler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChouetteImportScheduler.class);
+
+    static final String IMPORT_ENDPOINT = "direct:chouetteImportDataspace";
+    static final String ACTIVE_IMPORT_JOBS_ENDPOINT = "direct:chouetteCountActiveImportJobs";
+    static final String IMPORT_JOB_DONE_ENDPOINT = "google-pubsub:{{marduk.pubsub.project.id}}:ChouetteImportJobDoneQueue";
+    static final String IMPORT_QUEUE_ROUTE_ID = "chouette-import-queue";
+    /**
+     * Lock shared by the singleton routes that access the queues and slots, so that they are active on the same instance.
+     */
+    static final String LEADER_LOCK_NAME = "ChouetteImportQueue";
+    static final Duration MAX_ACK_EXTENSION_PERIOD = Duration.ofHours(4);
+
+    private final int referentialConcurrency;
+    private final int maxConcurrency;
+    private final Map<String, Integer> weights;
+    private final Duration slotTimeout;
+    private final Duration reconcileInterval;
+    private final Duration maxWait;
+    private final CamelContext camelContext;
+    private final Consumer<Exchange> dispatcher;
+    private final ToIntFunction<String> activeImportJobs;
+    private final BiConsumer<String, String> importJobDoneNotifier;
+    private final BooleanSupplier leader;
+    private ScheduledExecutorService reconciler;
+    private final Clock clock;
+    private final MeterRegistry meterRegistry;
+
+    private final Map<String, ReferentialQueue> queues = new HashMap<>();
+    private int nbRunning;
+    private long nbTurns;
+
+    @Autowired
+    public ChouetteImportScheduler(CamelContext camelContext,
+                                   @Value("${chouette.import.scheduler.referential.concurrency:1}") int referentialConcurrency,
+                                   @Value("${chouette.import.scheduler.max.concurrency:0}") int maxConcurrency,
+                                   @Value("${chouette.import.scheduler.weights:}") String[] weights,
+                                   @Value("${chouette.import.scheduler.slot.timeout:PT6H}") Duration slotTimeout,
+                                   @Value("${chouette.import.scheduler.reconcile.interval:PT1M}") Duration reconcileInterval,
+                                   @Value("${chouette.import.scheduler.max.wait:PT3H}") Duration maxWait,
+                                   @Qualifier("chouetteImportDispatcherExecutorService") ExecutorService dispatcherExecutorService,
+                                   MeterRegistry meterRegistry) {
+        this(camelContext, referentialConcurrency, maxConcurrency, parseWeights(weights), slotTimeout, reconcileInterval, maxWait,
+                dispatcher(camelContext.createProducerTemplate(), dispatcherExecutorService), activeImportJobs(camelContext.createProducerTemplate()),
+                importJobDoneNotifier(camelContext.createProducerTemplate()), () -> isLeader(camelContext), Clock.systemUTC(), meterRegistry);
+    }
+
+    ChouetteImportScheduler(CamelContext camelContext, int referentialConcurrency, int maxConcurrency, Map<String, Integer> weights, Duration slotTimeout,
+                            Duration reconcileInterval, Duration maxWait, Consumer<Exchange> dispatcher, ToIntFunction<String> activeImportJobs,
+                            BiConsumer<String, String> importJobDoneNotifier, BooleanSupplier leader, Clock clock, MeterRegistry meterRegistry) {
+        if (maxWait.compareTo(MAX_ACK_EXTENSION_PERIOD) >= 0) {
+            throw new IllegalArgumentException("The max wait time of a queued import must be shorter than the acknowledgement extension period " + MAX_ACK_EXTENSION_PERIOD);
+        }
+        this.camelContext = camelContext;
+        this.referentialConcurrency = referentialConcurrency;
+        this.maxConcurrency = maxConcurrency;
+        this.weights = weights;
+        this.slotTimeout = slotTimeout;
+        this.reconcileInterval = reconcileInterval;
+        this.maxWait = maxWait;
+        this.dispatcher = dispatcher;
+        this.activeImportJobs = activeImportJobs;
+        this.importJobDoneNotifier = importJobDoneNotifier;
+        this.leader = leader;
+        this.clock = clock;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void start() {
+        reconciler = camelContext.getExecutorServiceManager().newSingleThreadScheduledExecutor(this, "ChouetteImportReconciler");
+        reconciler.scheduleWithFixedDelay(this::reconcileQuietly, reconcileInterval.toMillis(), reconcileInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Parse referential weights in the format referential:weight.
+     */
+    static Map<String, Integer> parseWeights(String[] weights) {
+        return Arrays.stream(weights)
+                .map(String::trim)
+                .filter(weight -> !weight.isEmpty())
+                .map(weight -> weight.split(":"))
+                .collect(Collectors.toMap(weight -> weight[0], weight -> Math.max(1, Integer.parseInt(weight[1]))));
+    }
+
+    /**
+     * Submit the queued imports asynchronously to the Chouette import route.
+     */
+    private static Consumer<Exchange> dispatcher(ProducerTemplate producerTemplate, ExecutorService executorService) {
+        return exchange -> executorService.execute(() -> producerTemplate.send(IMPORT_ENDPOINT, exchange));
+    }
+
+    /**
+     * Count the import jobs that are scheduled or started in Chouette for a referential.
+     */
+    private static ToIntFunction<String> activeImportJobs(ProducerTemplate producerTemplate) {
+        return referential -> producerTemplate.requestBodyAndHeader(ACTIVE_IMPORT_JOBS_ENDPOINT, null, Constants.CHOUETTE_REFERENTIAL, referential, Integer.class);
+    }
+
+    /**
+     * Notify the cluster leader that an import job is done.
+     */
+    private static BiConsumer<String, String> importJobDoneNotifier(ProducerTemplate producerTemplate) {
+        return (referential, correlationId) -> producerTemplate.sendBodyAndHeaders(IMPORT_JOB_DONE_ENDPOINT, "",
+                Map.of(Constants.CHOUETTE_REFERENTIAL, referential, Constants.CORRELATION_ID, correlationId));
+    }
+
+    /**
+     * Return true if this instance consumes the import requests.
+     */
+    private static boolean isLeader(CamelContext camelContext) {
+        Route route = camelContext.getRoute(IMPORT_QUEUE_ROUTE_ID);
+        return route != null && route.getConsumer() instanceof MasterConsumer masterConsumer && masterConsumer.isMaster();
+    }
+
+    /**
+     * Queue an import request. The referential must be set in the exchange headers.
+     * The PubSub acknowledgement of the request is moved to the queued exchange, so that the request is acknowledged
+     * when the import is submitted to Chouette, not when the current exchange completes.
+     */
+    public void enqueue(Exchange exchange) {
+        String referential = Objects.requireNonNull(exchange.getIn().getHeader(Constants.CHOUETTE_REFERENTIAL, String.class), "Missing referential");
+        Exchange queuedExchange = new DefaultExchange(exchange.getContext());
+        queuedExchange.getIn().copyFrom(exchange.getIn());
+        if (exchange.getUnitOfWork() != null) {
+            exchange.getUnitOfWork().handoverSynchronization(queuedExchange, AcknowledgeCompletion.class::isInstance);
+        }
+        String messageId = exchange.getIn().getHeader(GooglePubsubConstants.MESSAGE_ID, String.class);
+        List<PendingImport> dispatched;
+        synchronized (this) {
+            ReferentialQueue queue = queues.computeIfAbsent(referential, this::newQueue);
+            if (messageId != null && queue.pending.removeIf(pendingImport -> messageId.equals(pendingImport.messageId))) {
+                LOGGER.info("Import request {} for referential {} was redelivered while queued, replacing the queued request", messageId, referential);
+            }
+            queue.pending.addLast(new PendingImport(messageId, queuedExchange, clock.instant()));
+            LOGGER.info("Queued import for referential {} ({} pending)", referential, queue.pending.size());
+            dispatched = nextDispatches();
+        }
+        dispatch(dispatched);
+    }
+
+    /**
+     * Notify the instance that holds the import slots that the import job of the referential with the given correlation id is done.
+     * The job status may be processed by any instance, the slot is released by the cluster leader.
+     */
+    public void importJobDone(String referential, String correlationId) {
+        importJobDoneNotifier.accept(referential, correlationId);
+    }
+
+    /**
+     * Release the slot held by an import of the referential with the given correlation id, and dispatch the next imports.
+     */
+    public void release(String referential, String correlationId) {
+        List<PendingImport> dispatched;
+        synchronized (this) {
+            ReferentialQueue queue = queues.get(referential);
+            if (queue == null) {
+                return;
+            }
+            Iterator<Slot> slots = queue.running.iterator();
+            while (slots.hasNext()) {
+                if (Objects.equals(slots.next().correlationId, correlationId)) {
+                    slots.remove();
+                    nbRunning--;
+                    LOGGER.debug("Released import slot for referential {}", referential);
+                    break;
+                }
+            }
+            dispatched = nextDispatches();
+        }
+        dispatch(dispatched);
+    }
+
+    /**
+     * Release the slots of the referentials that have imports waiting, when Chouette reports fewer active import jobs
+     * than slots held. This covers the imports whose completion was processed by another instance.
+     * Slots dispatched less than a reconcile interval ago are kept, since their import may not yet be submitted to Chouette.
+     * The imports that have waited for longer than the max wait time are then submitted.
+     */
+    void reconcile() {
+        List<PendingImport> aged;
+        synchronized (this) {
+            aged = nextDispatches();
+        }
+        dispatch(aged);
+        List<String> referentials;
+        synchronized (this) {
+            referentials = queues.values().stream()
+                    .filter(queue -> !queue.pending.isEmpty() && !queue.running.isEmpty())
+                    .map(queue -> queue.referential)
+                    .toList();
+        }
+        for (String referential : referentials) {
+            int nbActiveJobs = activeImportJobs.applyAsInt(referential);
+            List<PendingImport> dispatched;
+            synchronized (this) {
+                ReferentialQueue queue = queues.get(referential);
+                Instant settled = clock.instant().minus(reconcileInterval);
+                Iterator<Slot> slots = queue.running.iterator();
+                int nbReleasable = queue.running.size() - nbActiveJobs;
+                while (nbReleasable > 0 && slots.hasNext()) {
+                    if (slots.next().dispatchedAt.isBefore(settled)) {
+                        slots.remove();
+                        nbRunning--;
+                        nbReleasable--;
+                        LOGGER.info("Released import slot for referential {} as the import job is no longer active in Chouette", referential);
+                    }
+                }
+                dispatched = nextDispatches();
+            }
+            dispatch(dispatched);
+        }
+    }
+
+    private void reconcileQuietly() {
+        try {
+            reconcile();
+        } catch (RuntimeException e) {
+            LOGGER.warn("Error while reconciling Chouette import slots", e);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (reconciler != null) {
+            camelContext.getExecutorServiceManager().shutdown(reconciler);
+        }
+    }
+
+    /**
+     * Return true if imports are waiting to be dispatched for the referential.
+     * The queues of the whole cluster are held by the leader: the caller must be a singleton route using {@link #LEADER_LOCK_NAME}.
+     */
+    public synchronized boolean hasPendingImports(String referential) {
+        ReferentialQueue queue = queues.get(referential);
+        return queue != null && !queue.pending.isEmpty();
+    }
+
+    /**
+     * Return true if imports are waiting to be dispatched or are running in Chouette for the referential.
+     * The queues of the whole cluster are held by the leader: the caller must be a singleton route using {@link #LEADER_LOCK_NAME}.
+     */
+    public synchronized boolean hasPendingOrRunningImports(String referential) {
+        return hasPendingImports(referential) || getNbRunning(referential) > 0;
+    }
+
+    /**
+     * Select the imports that can be dispatched, in weighted round-robin order, followed by the imports that have waited
+     * for longer than the max wait time. If this instance is no longer the leader, the queued imports are released instead.
+     */
+    private List<PendingImport> nextDispatches() {
+        if (!leader.getAsBoolean()) {
+            releasePendingImports();
+            return List.of();
+        }
+        expireSlots();
+        List<PendingImport> dispatched = new ArrayList<>();
+        while (maxConcurrency <= 0 || nbRunning < maxConcurrency) {
+            ReferentialQueue queue = queues.values().stream()
+                    .filter(candidate -> !candidate.pending.isEmpty() && candidate.running.size() < referentialConcurrency * candidate.weight)
+                    .min(Comparator.comparingLong(candidate -> candidate.lastTurn))
+                    .orElse(null);
+            if (queue == null) {
+                break;
+            }
+            PendingImport pendingImport = queue.pending.pollFirst();
+            queue.running.add(new Slot(pendingImport.exchange.getIn().getHeader(Constants.CORRELATION_ID, String.class), clock.instant()));
+            nbRunning++;
+            queue.waitTime.record(Duration.between(pendingImport.enqueuedAt, clock.instant()).toMillis(), TimeUnit.MILLISECONDS);
+            dispatched.add(pendingImport);
+            queue.turnsLeft--;
+            if (queue.turnsLeft <= 0 || queue.pending.isEmpty()) {
+                queue.lastTurn = ++nbTurns;
+                queue.turnsLeft = queue.weight;
+            }
+        }
+        Instant maxEnqueuedAt = clock.instant().minus(maxWait);
+        for (ReferentialQueue queue : queues.values()) {
+            while (!queue.pending.isEmpty() && queue.pending.peekFirst().enqueuedAt.isBefore(maxEnqueuedAt)) {
+                PendingImport pendingImport = queue.pending.pollFirst();
+                LOGGER.warn("Import for referential {} waited for more than {}, submitting it before its acknowledgement deadline expires", queue.referential, maxWait);
+                queue.running.add(new Slot(pendingImport.exchange.getIn().getHeader(Constants.CORRELATION_ID, String.class), clock.instant()));
+                nbRunning++;
+                queue.waitTime.record(Duration.between(pendingImport.enqueuedAt, clock.instant()).toMillis(), TimeUnit.MILLISECONDS);
+                dispatched.add(pendingImport);
+            }
+        }
+        return dispatched;
+    }
+
+    /**
+     * Fail the queued imports, so that their PubSub messages are nacked and redelivered to the new leader, and forget the slots.
+     */
+    private void releasePendingImports() {
+        for (ReferentialQueue queue : queues.values()) {
+            if (!queue.pending.isEmpty()) {
+                LOGGER.info("No longer consuming import requests, releasing {} queued imports for referential {}", queue.pending.size(), queue.referential);
+            }
+            for (PendingImport pendingImport : queue.pending) {
+                Exchange exchange = pendingImport.exchange;
+                exchange.setException(new MardukException("Import request released after a change of leadership"));
+                exchange.getExchangeExtension().handoverCompletions().forEach(synchronization -> synchronization.onFailure(exchange));
+            }
+            queue.pending.clear();
+            nbRunning -= queue.running.size();
+            queue.running.clear();
+        }
+    }
+
+    private void expireSlots() {
+        Instant expiry = clock.instant().minus(slotTimeout);
+        for (ReferentialQueue queue : queues.values()) {
+            Iterator<Slot> slots = queue.running.iterator();
+            while (slots.hasNext()) {
+                if (slots.next().dispatchedAt.isBefore(expiry)) {
+                    slots.remove();
+                    nbRunning--;
+                    LOGGER.warn("Import slot for referential {} expired without being released", queue.referential);
+                }
+            }
+        }
+    }
+
+    /**
+     * Submit the dispatched imports. The slot of an import is released if its submission fails, the PubSub message is then
+     * nacked and the import request is queued again when it is redelivered.
+     */
+    private void dispatch(List<PendingImport> dispatched) {
+        for (PendingImport pendingImport : dispatched) {
+            Exchange exchange = pendingImport.exchange;
+            String referential = exchange.getIn().getHeader(Constants.CHOUETTE_REFERENTIAL, String.class);
+            String correlationId = exchange.getIn().getHeader(Constants.CORRELATION_ID, String.class);
+            exchange.getExchangeExtension().addOnCompletion(new SynchronizationAdapter() {
+                @Override
+                public void onFailure(Exchange failedExchange) {
+                    LOGGER.info("Submission of import for referential {} failed, releasing its import slot", referential);
+                    release(referential, correlationId);
+                }
+            });
+            dispatcher.accept(exchange);
+        }
+    }
+
+    synchronized int getNbRunning(String referential) {
+        ReferentialQueue queue = queues.get(referential);
+        return queue == null ? 0 : queue.running.size();
+    }
+
+    private ReferentialQueue newQueue(String referential) {
+        ReferentialQueue queue = new ReferentialQueue(referential, weights.getOrDefault(referential, 1));
+        Gauge.builder("marduk.chouette.import.queue.depth", this, scheduler -> scheduler.getQueueDepth(referential))
+                .description("Number of Chouette imports waiting to be submitted")
+                .tag("referential", referential)
+                .register(meterRegistry);
+        queue.waitTime = Timer.builder("marduk.chouette.import.wait.time")
+                .description("Time spent by a Chouette import waiting to be submitted")
+                .tag("referential", referential)
+                .register(meterRegistry);
+        return queue;
+    }
+
+    synchronized int getQueueDepth(String referential) {
+        ReferentialQueue queue = queues.get(referential);
+        return queue == null ? 0 : queue.pending.size();
+    }
+
+    private record PendingImport(String messageId, Exchange exchange, Instant enqueuedAt) {
+    }
+
+    private record Slot(String correlationId, Instant dispatchedAt) {
+    }
+
+    private static final class ReferentialQueue {
+        private final String referential;
+        private final int weight;
+        private final Deque<PendingImport> pending = new ArrayDeque<>();
+        private final List<Slot> running = new ArrayList<>();
+        private int turnsLeft;
+        private long lastTurn;
+        private Timer waitTime;
+
+        private ReferentialQueue(String referential, int weight) {
+            this.referential = referential;
+            this.weight = weight;
+            this.turnsLeft = weight;
+        }
+    }
+}
@@ -32,7 +32,9 @@ import org.apache.camel.component.google.pubsub.GooglePubsubConstants;
 import org.apache.camel.component.http.HttpMethods;
 import org.apache.camel.component.jackson.ListJacksonDataFormat;
 import org.apache.camel.model.dataformat.JsonLibrary;
+import org.apache.camel.support.SynchronizationAdapter;
 import org.apache.hc.core5.net.URIBuilder;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
@@ -63,6 +65,9 @@ public class ChouettePollJobStatusRoute extends AbstractChouetteRouteBuilder {
     @Value("${chouette.url}")
     private String chouetteUrl;
 
+    @Autowired
+    private ChouetteImportScheduler chouetteImportScheduler;
+
     /**
      * This routebuilder polls a job until it is terminated. It expects a few headers set on the message it receives:
      * Constants.CHOUETTE_JOB_STATUS_URL - the url to poll
@@ -215,6 +220,10 @@ public class ChouettePollJobStatusRoute extends AbstractChouetteRouteBuilder {
 
         from("direct:jobStatusDone")
                 .log(LoggingLevel.DEBUG, correlation() + "Exited retry loop with status ${header.current_status} for job ${header."+ Constants.CHOUETTE_JOB_ID + "} [PubSub message id: ${header." + PUBSUB_MESSAGE_ID + "}]")
+                .filter(header(Constants.CHOUETTE_JOB_STATUS_JOB_TYPE).isEqualTo(TimetableAction.IMPORT.name()))
+                .process(this::notifyImportJobDoneOnCompletion)
+                .end()
+                .to("direct:chouetteMarkStatsStale")
                 .to(logDebugShowAll())
                 .choice()
                 .when(simple("${header.current_status} == '" + SCHEDULED + "' || ${header.current_status} == '" + STARTED + "' || ${header.current_status} == '" + RESCHEDULED + "'"))
@@ -226,11 +235,13 @@ public class ChouettePollJobStatusRoute extends AbstractChouetteRouteBuilder {
                 .log(LoggingLevel.WARN, correlation() + "Job ended in state FAILED. Stopping route.")
                 .process(e -> JobEvent.providerJobBuilder(e).timetableAction(JobEvent.TimetableAction.valueOf((String) e.getIn().getHeader(Constants.CHOUETTE_JOB_STATUS_JOB_TYPE))).state(State.FAILED).build())
                 .to("direct:updateStatus")
+                .to("direct:speculativeImportFailed")
                 .stop()
                 .when(simple("${header.current_status} == '" + CANCELED + "'"))
                 .log(LoggingLevel.WARN, correlation() + "Job ended in state CANCELLED. Stopping route.")
                 .process(e -> JobEvent.providerJobBuilder(e).timetableAction(JobEvent.TimetableAction.valueOf((String) e.getIn().getHeader(Constants.CHOUETTE_JOB_STATUS_JOB_TYPE))).state(State.CANCELLED).build())
                 .to("direct:updateStatus")
+                .to("direct:speculativeImportFailed")
                 .stop()
                 .end()
                 .process(e -> {
@@ -314,6 +325,21 @@ public class ChouettePollJobStatusRoute extends AbstractChouetteRouteBuilder {
 
     }
 
+    /**
+     * Notify the import scheduler when the import result has been processed, so that the import slot of the referential is released
+     * and the next queued import for the referential is not submitted before the import is complete.
+     */
+    private void notifyImportJobDoneOnCompletion(Exchange exchange) {
+        String referential = exchange.getIn().getHeader(CHOUETTE_REFERENTIAL, String.class);
+        String correlationId = exchange.getIn().getHeader(Constants.CORRELATION_ID, String.class);
+        exchange.getExchangeExtension().addOnCompletion(new SynchronizationAdapter() {
+            @Override
+            public void onDone(Exchange completedExchange) {
+                chouetteImportScheduler.importJobDone(referential, correlationId);
+            }
+        });
+    }
+
 
 }
 
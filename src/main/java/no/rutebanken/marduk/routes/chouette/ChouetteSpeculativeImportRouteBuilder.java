@@ -0,0 +1,120 @@
+package no.rutebanken.marduk.routes.chouette;
+
+import no.rutebanken.marduk.Constants;
+import no.rutebanken.marduk.domain.Provider;
+import no.rutebanken.marduk.repository.SpeculativeImportRepository;
+import no.rutebanken.marduk.routes.file.FileType;
+import org.apache.camel.Exchange;
+import org.apache.camel.LoggingLevel;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import static no.rutebanken.marduk.Constants.CHOUETTE_REFERENTIAL;
+import static no.rutebanken.marduk.Constants.CORRELATION_ID;
+import static no.rutebanken.marduk.Constants.FILE_TYPE;
+import static no.rutebanken.marduk.Constants.PROVIDER_ID;
+import static no.rutebanken.marduk.Constants.SPECULATIVE_IMPORT;
+
+/**
+ * Speculative Chouette import: when the pre-validation is performed by Antu only (chouette.enablePreValidation=false),
+ * a NeTEx file is imported into Chouette while Antu validates it, instead of after Antu has validated it.
+ * Only providers whose data is transferred to another dataspace after validation are imported speculatively:
+ * their import dataspace acts as a scratch dataspace, and the data is published only after being transferred.
+ * <p>
+ * The import is promoted, that is the validation and transfer that follow the import are triggered, once both the import and the
+ * Antu validation have succeeded. If the Antu validation fails, the import is discarded: it is not promoted,
+ * and the data in the import dataspace is not transferred until a later import succeeds or an operator transfers the data.
+ * A speculative import that fails in Chouette is forgotten.
+ */
+@Component
+public class ChouetteSpeculativeImportRouteBuilder extends AbstractChouetteRouteBuilder {
+
+    private final boolean enableSpeculativeImport;
+    private final boolean enablePreValidation;
+    private final SpeculativeImportRepository speculativeImportRepository;
+
+    public ChouetteSpeculativeImportRouteBuilder(@Value("${chouette.speculative.import.enabled:false}") boolean enableSpeculativeImport,
+                                                 @Value("${chouette.enablePreValidation:true}") boolean enablePreValidation,
+                                                 SpeculativeImportRepository speculativeImportRepository) {
+        this.enableSpeculativeImport = enableSpeculativeImport;
+        this.enablePreValidation = enablePreValidation;
+        this.speculativeImportRepository = speculativeImportRepository;
+    }
+
+    @Override
+    public void configure() throws Exception {
+        super.configure();
+
+        // Called before the file is sent to the pre-validation, so that the import is registered before the validation result can be received
+        from("direct:startSpeculativeImport")
+                .filter(this::isSpeculativeImportCandidate)
+                .filter(e -> speculativeImportRepository.register(e.getIn().getHeader(CORRELATION_ID, String.class), getReferential(e)))
+                .setHeader(SPECULATIVE_IMPORT, constant(true))
+                .setBody(constant(""))
+                .log(LoggingLevel.INFO, correlation() + "Posting " + Constants.FILE_HANDLE + " ${header." + Constants.FILE_HANDLE + "} on chouette import queue while pre-validation is in progress.")
+                .to("google-pubsub:{{marduk.pubsub.project.id}}:ChouetteImportQueue")
+                .removeHeader(SPECULATIVE_IMPORT)
+                .routeId("chouette-start-speculative-import");
+
+        // Called when the speculative import completed successfully in Chouette
+        from("direct:speculativeImportSucceeded")
+                .process(e -> speculativeImportRepository.importSucceeded(e.getIn().getHeader(CORRELATION_ID, String.class)))
+                .to("direct:promoteSpeculativeImport")
+                .routeId("chouette-speculative-import-succeeded");
+
+        // Called when the Antu pre-validation completed successfully: promote the speculative import, or start the import
+        from("direct:importAfterPreValidation")
+                .choice()
+                .when(e -> speculativeImportRepository.isSpeculative(e.getIn().getHeader(CORRELATION_ID, String.class)))
+                .process(e -> speculativeImportRepository.validationCompleted(e.getIn().getHeader(CORRELATION_ID, String.class), true))
+                .to("direct:promoteSpeculativeImport")
+                .when(e -> !enablePreValidation)
+                .log(LoggingLevel.INFO, correlation() + "Posting " + Constants.FILE_HANDLE + " ${header." + Constants.FILE_HANDLE + "} and " + FILE_TYPE + " ${header." + FILE_TYPE + "} on chouette import queue.")
+                .setBody(constant(""))
+                .to("google-pubsub:{{marduk.pubsub.project.id}}:ChouetteImportQueue")
+                .end()
+                .routeId("chouette-import-after-pre-validation");
+
+        // Called when the Antu pre-validation failed: discard the speculative import, if any
+        from("direct:discardSpeculativeImport")
+                .filter(e -> speculativeImportRepository.isSpeculative(e.getIn().getHeader(CORRELATION_ID, String.class)))
+                .process(e -> speculativeImportRepository.validationCompleted(e.getIn().getHeader(CORRELATION_ID, String.class), false))
+                .log(LoggingLevel.INFO, correlation() + "Pre-validation failed, discarding speculative import")
+                .routeId("chouette-discard-speculative-import");
+
+        // Called when the speculative import failed in Chouette
+        from("direct:speculativeImportFailed")
+                .filter(header(SPECULATIVE_IMPORT).isEqualTo(true))
+                .process(e -> speculativeImportRepository.importFailed(e.getIn().getHeader(CORRELATION_ID, String.class)))
+                .log(LoggingLevel.INFO, correlation() + "Speculative import failed, the file will be imported again if the pre-validation succeeds")
+                .routeId("chouette-speculative-import-failed");
+
+        // Called when a non-speculative import or a transfer succeeded: the discarded speculative imports no longer block the transfer
+        from("direct:supersedeSpeculativeImports")
+                .process(e -> speculativeImportRepository.supersede(e.getIn().getHeader(CHOUETTE_REFERENTIAL, String.class)))
+                .routeId("chouette-supersede-speculative-imports");
+
+        from("direct:promoteSpeculativeImport")
+                .choice()
+                .when(e -> speculativeImportRepository.promote(e.getIn().getHeader(CORRELATION_ID, String.class)))
+                .log(LoggingLevel.INFO, correlation() + "Import and pre-validation ok, promoting speculative import")
+                .removeHeader(SPECULATIVE_IMPORT)
+                .to("direct:checkScheduledJobsBeforeTriggeringNextAction")
+                .otherwise()
+                .log(LoggingLevel.INFO, correlation() + "Speculative import not promoted, waiting for the import or the pre-validation to succeed")
+                .end()
+                .routeId("chouette-promote-speculative-import");
+    }
+
+    private String getReferential(Exchange exchange) {
+        return getProviderRepository().getProvider(exchange.getIn().getHeader(PROVIDER_ID, Long.class)).getChouetteInfo().getReferential();
+    }
+
+    private boolean isSpeculativeImportCandidate(Exchange exchange) {
+        if (!enableSpeculativeImport || enablePreValidation || !FileType.NETEXPROFILE.name().equals(exchange.getIn().getHeader(FILE_TYPE, String.class))) {
+            return false;
+        }
+        Provider provider = getProviderRepository().getProvider(exchange.getIn().getHeader(PROVIDER_ID, Long.class));
+        return provider.getChouetteInfo().getMigrateDataToProvider() != null;
+    }
+}
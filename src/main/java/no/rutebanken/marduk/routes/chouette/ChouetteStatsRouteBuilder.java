@@ -17,31 +17,60 @@
 package no.rutebanken.marduk.routes.chouette;
 
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.node.JsonNodeFactory;
-import com.fasterxml.jackson.databind.node.ObjectNode;
 import no.rutebanken.marduk.domain.Provider;
+import no.rutebanken.marduk.repository.LineStatisticsRepository;
+import no.rutebanken.marduk.routes.status.JobEvent.TimetableAction;
 import org.apache.camel.Exchange;
 import org.apache.camel.LoggingLevel;
 import org.apache.camel.component.http.HttpMethods;
 import org.apache.camel.http.base.HttpOperationFailedException;
 import org.apache.camel.model.dataformat.JsonLibrary;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import org.springframework.util.CollectionUtils;
 import org.springframework.util.StringUtils;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
+import static no.rutebanken.marduk.Constants.CHOUETTE_JOB_STATUS_JOB_TYPE;
+import static no.rutebanken.marduk.Constants.CHOUETTE_REFERENTIAL;
 import static no.rutebanken.marduk.Constants.PROVIDER_ID;
 import static no.rutebanken.marduk.Constants.PROVIDER_IDS;
 
 
+/**
+ * Line statistics per referential, computed by Chouette.
+ * The leader node requests from Chouette the statistics of the referentials that were modified since the last refresh
+ * (marked as stale when a Chouette job completes) or whose statistics are older than the maximum age,
+ * and saves them in the database with a new version. Every node keeps an in-memory copy of the statistics
+ * and periodically loads from the database the entries updated since its last load.
+ */
 @Component
 public class ChouetteStatsRouteBuilder extends AbstractChouetteRouteBuilder {
 
+    private static final String REFERENTIALS_TO_REFRESH = "REFERENTIALS_TO_REFRESH";
+    private static final String REFRESH_REQUESTED_AT = "REFRESH_REQUESTED_AT";
+    private static final String ETAG = "ETag";
+    private static final String IF_NONE_MATCH = "If-None-Match";
+    private static final byte[] NULL_STATS = "null".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Line statistics of a referential, serialized in JSON, and the version of the refresh that produced them.
+     */
+    private record CachedLineStats(byte[] json, long version) {
+    }
+
     @Value("${chouette.url}")
     private String chouetteUrl;
 
@@ -52,15 +81,45 @@ public class ChouetteStatsRouteBuilder extends AbstractChouetteRouteBuilder {
     private int days;
 
     /**
-     * Every ten minutes as default.
+     * Every minute as default.
      */
-    @Value("${chouette.stats.cache.refresh.quartz.trigger:trigger.repeatInterval=600000&trigger.repeatCount=-1&stateful=true}")
+    @Value("${chouette.stats.cache.refresh.quartz.trigger:trigger.repeatInterval=60000&trigger.repeatCount=-1&stateful=true}")
     private String quartzTrigger;
 
     @Value("${chouette.stats.cache.initial.refresh.quartz.trigger:trigger.repeatInterval=600000&trigger.repeatCount=0&stateful=true}")
     private String initialQuartzTrigger;
 
-    private JsonNode cache;
+    /**
+     * Every minute as default.
+     */
+    @Value("${chouette.stats.cache.update.quartz.trigger:trigger.repeatInterval=60000&trigger.repeatCount=-1&stateful=true}")
+    private String updateQuartzTrigger;
+
+    /**
+     * The statistics depend on the current date and are refreshed at least at this interval, even if the referential was not modified.
+     */
+    @Value("${chouette.stats.cache.max.age:PT6H}")
+    private Duration maxAge;
+
+    /**
+     * Maximum number of referentials requested from Chouette in a single update.
+     */
+    @Value("${chouette.stats.cache.update.batch.size:20}")
+    private int updateBatchSize;
+
+    @Autowired
+    private LineStatisticsRepository lineStatisticsRepository;
+
+    /**
+     * Line statistics per referential.
+     * The statistics are kept serialized, so that responses are assembled without parsing and re-serializing them.
+     */
+    private final Map<String, CachedLineStats> cache = new ConcurrentHashMap<>();
+
+    /**
+     * Version of the latest entries loaded from the database, -1 if the cache is not initialized yet.
+     */
+    private volatile long cacheVersion = -1;
 
     @Override
     public void configure() throws Exception {
@@ -71,35 +130,44 @@ public class ChouetteStatsRouteBuilder extends AbstractChouetteRouteBuilder {
         // Quartz job must run on all nodes.
         from("quartz://marduk/initialRefreshLine?" + initialQuartzTrigger)
                 .process(this::setNewCorrelationId)
-                .log(LoggingLevel.DEBUG, correlation() + "Quartz triggers initial refresh of line stats.")
-                .to("direct:chouetteRefreshStatsCache")
+                .log(LoggingLevel.DEBUG, correlation() + "Quartz triggers initial load of line stats.")
+                .to("direct:chouetteLoadStatsCache")
 
-                .log(LoggingLevel.DEBUG, correlation() + "Quartz initial refresh of line stats done.")
+                .log(LoggingLevel.DEBUG, correlation() + "Quartz initial load of line stats done.")
                 .routeId("chouette-line-stats-cache-initial-refresh-quartz");
 
-        // Periodically refresh the cache.
+        // Periodically load the statistics updated by the leader node.
         // Quartz job must run on all nodes.
         from("quartz://marduk/refreshLine?" + quartzTrigger)
                 .process(this::setNewCorrelationId)
-                .log(LoggingLevel.DEBUG, correlation() + "Quartz triggers refresh of line stats.")
-                .to("direct:chouetteRefreshStatsCache")
+                .log(LoggingLevel.DEBUG, correlation() + "Quartz triggers load of line stats.")
+                .to("direct:chouetteLoadStatsCache")
 
-                .log(LoggingLevel.DEBUG, correlation() + "Quartz refresh of line stats done.")
+                .log(LoggingLevel.DEBUG, correlation() + "Quartz load of line stats done.")
                 .routeId("chouette-line-stats-cache-refresh-quartz");
 
+        // Periodically request from Chouette the statistics of the stale referentials.
+        // Quartz job must run only on the leader node.
+        singletonFrom("quartz://marduk/updateLineStats?" + updateQuartzTrigger)
+                .process(this::setNewCorrelationId)
+                .log(LoggingLevel.DEBUG, correlation() + "Quartz triggers update of line stats.")
+                .to("direct:chouetteUpdateStaleStats")
+                .log(LoggingLevel.DEBUG, correlation() + "Quartz update of line stats done.")
+                .routeId("chouette-line-stats-update-quartz");
+
 
         from("direct:chouetteGetStatsSingleProvider")
-                .choice().when(e -> cache == null)
+                .choice().when(e -> cacheVersion < 0)
                 .to("direct:chouetteRejectGetStats")
                 .end()
-                .process(e -> e.getIn().setBody(cache.get(e.getIn().getHeader(PROVIDER_ID, String.class))))
-                .choice().when(body().isNull())
+                .process(this::populateWithLineStatsFromCache)
+                .choice().when(header(ETAG).isNull())
                 .log(LoggingLevel.WARN, correlation() + "No line statistics cached for provider: ${header." + PROVIDER_ID + "}")
                 .end()
                 .routeId("chouette-line-stats-get-single");
 
         from("direct:chouetteGetStats")
-                .choice().when(e -> cache == null)
+                .choice().when(e -> cacheVersion < 0)
                 .to("direct:chouetteRejectGetStats")
                 .end()
                 .process(this::populateWithMatchingLineStatsFromCache)
@@ -121,7 +189,7 @@ public class ChouetteStatsRouteBuilder extends AbstractChouetteRouteBuilder {
                 .process(this::removeAllCamelHeaders)
                 .setBody(constant(""))
                 .setHeader(Exchange.HTTP_METHOD, constant(HttpMethods.GET))
-                .process(e -> e.getIn().setHeader("refParam", getAllReferentialsAsParam()))
+                .process(e -> e.getIn().setHeader("refParam", "&referentials=" + String.join(",", getReferentialsToRefresh(e))))
                 .setProperty("chouette_url", simple(chouetteUrl + "/chouette_iev/statistics/line?days=" + days + "&" + getValidityCategories() + "${header.refParam}"))
                 .log(LoggingLevel.DEBUG, getClass().getName(), correlation() + "Calling chouette with ${exchangeProperty.chouette_url}")
                 .doTry()
@@ -135,46 +203,161 @@ public class ChouetteStatsRouteBuilder extends AbstractChouetteRouteBuilder {
                 .stop()
                 .end()
                 .log(LoggingLevel.INFO, correlation() + "Received refreshed statistics")
-                .unmarshal().json(JsonLibrary.Jackson, Map.class)
-                .process(e -> e.getIn().setBody(mapReferentialToProviderId(e.getIn().getBody(Map.class))))
-                .marshal().json(JsonLibrary.Jackson)
                 .routeId("chouette-line-stats-get-fresh");
 
-
-        from("direct:chouetteRefreshStatsCache")
-                .log(LoggingLevel.INFO, correlation() + "Refreshing line stats")
+        // Request from Chouette the statistics of the stale referentials and save them with a new version.
+        // The referentials stay stale if Chouette is busy, and are retried at the next update.
+        from("direct:chouetteUpdateStaleStats")
+                .process(e -> e.setProperty(REFERENTIALS_TO_REFRESH, getReferentialsToRefresh()))
+                .filter(e -> !getReferentialsToRefresh(e).isEmpty())
+                .log(LoggingLevel.INFO, correlation() + "Refreshing line stats for referentials ${exchangeProperty." + REFERENTIALS_TO_REFRESH + "}")
+                .process(e -> e.setProperty(REFRESH_REQUESTED_AT, Instant.now()))
                 .to("direct:chouetteGetFreshStats")
                 .unmarshal().json(JsonLibrary.Jackson, JsonNode.class)
-                .process(e -> cache = e.getIn().getBody(JsonNode.class))
+                .process(this::saveFreshStats)
                 .setBody(constant(""))
+                .to("direct:chouetteLoadStatsCache")
                 .log(LoggingLevel.INFO, correlation() + "Refresh of line stats done")
-                .routeId("chouette-line-stats-cache-refresh");
-    }
+                .routeId("chouette-line-stats-update");
 
+        from("direct:chouetteLoadStatsCache")
+                .process(e -> loadStatsCache())
+                .routeId("chouette-line-stats-cache-load");
+
+        // Mark all referentials as stale, they are refreshed by the leader node in the next updates.
+        from("direct:chouetteRefreshStatsCache")
+                .log(LoggingLevel.INFO, correlation() + "Scheduling refresh of line stats for all referentials")
+                .process(e -> getAllReferentials().forEach(lineStatisticsRepository::markStale))
+                .setBody(constant(""))
+                .routeId("chouette-line-stats-cache-refresh");
 
-    private Map<Long, Object> mapReferentialToProviderId(Map<String, Object> statsPerReferential) {
-        return getProviderRepository().getProviders().stream().filter(provider -> statsPerReferential.containsKey(provider.getChouetteInfo().getReferential()))
-                .collect(Collectors.toMap(Provider::getId, provider -> statsPerReferential.get(provider.getChouetteInfo().getReferential())));
+        // Called when a Chouette job completed: the statistics of the referential, and of the target referential in case of a transfer, are stale.
+        from("direct:chouetteMarkStatsStale")
+                .process(this::markStatsStale)
+                .routeId("chouette-line-stats-mark-stale");
     }
 
-    private String getAllReferentialsAsParam() {
-        List<String> referentials = getProviderRepository().getProviders().stream()
+    private List<String> getAllReferentials() {
+        return getProviderRepository().getProviders().stream()
                 .filter(provider -> provider.getChouetteInfo() != null && provider.getChouetteInfo().getReferential() != null)
                 .map(provider -> provider.getChouetteInfo().getReferential()).toList();
-        return "&referentials=" + String.join(",", referentials);
+    }
+
+    private List<String> getReferentialsToRefresh() {
+        Set<String> upToDate = new HashSet<>(lineStatisticsRepository.findUpToDateReferentials(Instant.now().minus(maxAge)));
+        return getAllReferentials().stream().filter(referential -> !upToDate.contains(referential)).limit(updateBatchSize).toList();
+    }
+
+    private static List<String> getReferentialsToRefresh(Exchange e) {
+        @SuppressWarnings("unchecked")
+        List<String> referentials = e.getProperty(REFERENTIALS_TO_REFRESH, List.class);
+        return referentials;
+    }
+
+    private void saveFreshStats(Exchange e) {
+        JsonNode statsPerReferential = e.getIn().getBody(JsonNode.class);
+        Instant requestedAt = e.getProperty(REFRESH_REQUESTED_AT, Instant.class);
+        long version = lineStatisticsRepository.getMaxVersion() + 1;
+        for (String referential : getReferentialsToRefresh(e)) {
+            JsonNode stats = statsPerReferential.get(referential);
+            lineStatisticsRepository.save(referential, stats == null ? null : stats.toString(), version, requestedAt);
+        }
+    }
+
+    private void loadStatsCache() {
+        long loadedVersion = Math.max(cacheVersion, 0);
+        for (LineStatisticsRepository.LineStatisticsEntry entry : lineStatisticsRepository.findSinceVersion(loadedVersion)) {
+            if (entry.statistics() == null) {
+                cache.remove(entry.referential());
+            } else {
+                cache.put(entry.referential(), new CachedLineStats(entry.statistics().getBytes(StandardCharsets.UTF_8), entry.version()));
+            }
+            loadedVersion = Math.max(loadedVersion, entry.version());
+        }
+        cacheVersion = loadedVersion;
+    }
+
+    private void markStatsStale(Exchange e) {
+        String referential = e.getIn().getHeader(CHOUETTE_REFERENTIAL, String.class);
+        if (referential == null) {
+            return;
+        }
+        lineStatisticsRepository.markStale(referential);
+        if (TimetableAction.DATASPACE_TRANSFER.name().equals(e.getIn().getHeader(CHOUETTE_JOB_STATUS_JOB_TYPE, String.class))) {
+            Provider provider = getProviderRepository().getProvider(e.getIn().getHeader(PROVIDER_ID, Long.class));
+            if (provider != null && provider.getChouetteInfo().getMigrateDataToProvider() != null) {
+                lineStatisticsRepository.markStale(getProviderRepository().getReferential(provider.getChouetteInfo().getMigrateDataToProvider()));
+            }
+        }
+    }
+
+    private CachedLineStats getCachedStats(String referential) {
+        return referential == null ? null : cache.get(referential);
     }
 
     private List<Provider> getMatchingProviders(Exchange e) {
+        @SuppressWarnings("unchecked")
         List<String> providerIds = e.getIn().getHeader(PROVIDER_IDS, List.class);
         String filter = e.getIn().getHeader("filter", String.class);
 
         return getProviderRepository().getProviders().stream().filter(provider -> isMatch(provider, filter, providerIds)).toList();
     }
 
+    private void populateWithLineStatsFromCache(Exchange e) {
+        CachedLineStats stats = getCachedStats(getProviderRepository().getReferential(e.getIn().getHeader(PROVIDER_ID, Long.class)));
+        if (stats == null) {
+            e.getIn().setBody(null);
+        } else {
+            setLineStatsResponse(e, stats.json(), "\"" + Long.toHexString(stats.version()) + "\"");
+        }
+    }
+
+    /**
+     * Assemble the statistics of the matching providers by concatenating their cached JSON fragments.
+     * The entity tag is derived from the matching providers and the versions of their statistics.
+     */
     private void populateWithMatchingLineStatsFromCache(Exchange e) {
-        ObjectNode stats = JsonNodeFactory.instance.objectNode();
-        getMatchingProviders(e).stream().map(provider -> provider.getId().toString()).forEach(providerId -> stats.set(providerId, cache.get(providerId)));
-        e.getIn().setBody(stats);
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        StringBuilder versions = new StringBuilder();
+        long maxVersion = 0;
+        json.writeBytes(new byte[]{'{'});
+        for (Provider provider : getMatchingProviders(e)) {
+            CachedLineStats stats = getCachedStats(provider.getChouetteInfo().getReferential());
+            if (!versions.isEmpty()) {
+                json.writeBytes(new byte[]{','});
+            }
+            json.writeBytes(("\"" + provider.getId() + "\":").getBytes(StandardCharsets.UTF_8));
+            json.writeBytes(stats == null ? NULL_STATS : stats.json());
+            long version = stats == null ? 0 : stats.version();
+            versions.append(provider.getId()).append(':').append(version).append(',');
+            maxVersion = Math.max(maxVersion, version);
+        }
+        json.writeBytes(new byte[]{'}'});
+        setLineStatsResponse(e, json.toByteArray(), "\"" + Long.toHexString(maxVersion) + "-" + Integer.toHexString(versions.toString().hashCode()) + "\"");
+    }
+
+    private static void setLineStatsResponse(Exchange e, byte[] json, String etag) {
+        e.getIn().setHeader(ETAG, etag);
+        if (isNotModified(e.getIn().getHeader(IF_NONE_MATCH, String.class), etag)) {
+            e.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE, 304);
+            e.getIn().setBody(null);
+        } else {
+            e.getIn().setHeader(Exchange.CONTENT_TYPE, "application/json");
+            e.getIn().setBody(json);
+        }
+    }
+
+    /**
+     * Return true if the If-None-Match request header matches the entity tag of the current statistics.
+     */
+    static boolean isNotModified(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        return Arrays.stream(ifNoneMatch.split(","))
+                .map(String::trim)
+                .map(tag -> tag.startsWith("W/") ? tag.substring(2) : tag)
+                .anyMatch(tag -> "*".equals(tag) || etag.equals(tag));
     }
 
 
@@ -0,0 +1,265 @@
+package no.rutebanken.marduk.routes.chouette;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import no.rutebanken.marduk.exceptions.ChouetteSubmissionHeldBackException;
+import no.rutebanken.marduk.exceptions.MardukException;
+import no.rutebanken.marduk.routes.chouette.json.JobResponse;
+import no.rutebanken.marduk.routes.chouette.json.Status;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.http.base.HttpOperationFailedException;
+import org.apache.camel.support.SynchronizationAdapter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Adaptive limit on the number of jobs running in Chouette, applied to the submission of import, validation, export and transfer jobs.
+ * A submission is held back when the number of in-flight jobs reaches the limit: the exchange fails without local redelivery
+ * and the message is redelivered by PubSub, no thread waits for the limit.
+ * The in-flight jobs are the jobs scheduled or started in Chouette, queried at each refresh interval so that the submissions
+ * of all instances are counted, plus the jobs submitted by this instance since the last refresh.
+ * <p>
+ * The limit is adjusted with an AIMD algorithm at each refresh interval: it is decreased multiplicatively when Chouette shows
+ * signs of overload (submissions rejected with HTTP 423, 429 or 503, slow submission responses, or too many jobs waiting in the
+ * Chouette job queue), and increased by one when submissions were held back without Chouette being overloaded.
+ */
+@Component
+public class ChouetteSubmissionLimiter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChouetteSubmissionLimiter.class);
+
+    private static final String SUBMISSION_START = "CHOUETTE_SUBMISSION_START";
+    private static final Set<Integer> OVERLOAD_STATUS_CODES = Set.of(423, 429, 503);
+
+    /**
+     * The jobs that are active in Chouette.
+     */
+    record ActiveJobs(int nbActive, int nbScheduled) {
+        static ActiveJobs of(List<JobResponse> jobs) {
+            return new ActiveJobs(jobs.size(), (int) jobs.stream().filter(job -> job.getStatus() == Status.SCHEDULED).count());
+        }
+    }
+
+    private final CamelContext camelContext;
+    private final Supplier<ActiveJobs> activeJobsSupplier;
+    private final int minLimit;
+    private final int maxLimit;
+    private final double backoffRatio;
+    private final Duration latencyThreshold;
+    private final int maxScheduledJobs;
+    private final Duration refreshInterval;
+    private final Timer submissionLatency;
+    private final MeterRegistry meterRegistry;
+    private ScheduledExecutorService scheduler;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private int limit;
+    private int nbActiveJobs;
+    private int nbSubmitting;
+    private int nbOverloadResponses;
+    private int nbSlowResponses;
+    private boolean heldBack;
+
+    @Autowired
+    public ChouetteSubmissionLimiter(CamelContext camelContext,
+                                     @Value("${chouette.url}") String chouetteUrl,
+                                     @Value("${chouette.submission.limit.initial:20}") int initialLimit,
+                                     @Value("${chouette.submission.limit.min:2}") int minLimit,
+                                     @Value("${chouette.submission.limit.max:200}") int maxLimit,
+                                     @Value("${chouette.submission.limit.backoff.ratio:0.75}") double backoffRatio,
+                                     @Value("${chouette.submission.latency.threshold:PT30S}") Duration latencyThreshold,
+                                     @Value("${chouette.submission.max.scheduled.jobs:20}") int maxScheduledJobs,
+                                     @Value("${chouette.submission.refresh.interval:PT30S}") Duration refreshInterval,
+                                     MeterRegistry meterRegistry) {
+        this(camelContext, activeJobs(camelContext.createProducerTemplate(), chouetteUrl), initialLimit, minLimit, maxLimit, backoffRatio,
+                latencyThreshold, maxScheduledJobs, refreshInterval, meterRegistry);
+    }
+
+    ChouetteSubmissionLimiter(CamelContext camelContext, Supplier<ActiveJobs> activeJobsSupplier, int initialLimit, int minLimit, int maxLimit, double backoffRatio,
+                              Duration latencyThreshold, int maxScheduledJobs, Duration refreshInterval, MeterRegistry meterRegistry) {
+        this.camelContext = camelContext;
+        this.activeJobsSupplier = activeJobsSupplier;
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.backoffRatio = backoffRatio;
+        this.latencyThreshold = latencyThreshold;
+        this.maxScheduledJobs = maxScheduledJobs;
+        this.refreshInterval = refreshInterval;
+        this.meterRegistry = meterRegistry;
+        this.submissionLatency = Timer.builder("marduk.chouette.submission.latency")
+                .description("Response time of Chouette job submissions")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void start() {
+        Gauge.builder("marduk.chouette.submission.limit", this, ChouetteSubmissionLimiter::getLimit)
+                .description("Current limit on the number of jobs in-flight in Chouette")
+                .register(meterRegistry);
+        Gauge.builder("marduk.chouette.submission.inflight", this, ChouetteSubmissionLimiter::getNbInFlightJobs)
+                .description("Number of jobs in-flight in Chouette")
+                .register(meterRegistry);
+        scheduler = camelContext.getExecutorServiceManager().newSingleThreadScheduledExecutor(this, "ChouetteSubmissionLimiter");
+        scheduler.scheduleWithFixedDelay(this::refreshQuietly, refreshInterval.toMillis(), refreshInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * List the jobs scheduled or started in Chouette, for all referentials.
+     */
+    @SuppressWarnings("unchecked")
+    private static Supplier<ActiveJobs> activeJobs(ProducerTemplate producerTemplate, String chouetteUrl) {
+        return () -> {
+            Exchange exchange = producerTemplate.send("direct:chouetteGetJobs", e -> {
+                e.setProperty("chouette_url", chouetteUrl + "/chouette_iev/referentials/jobs");
+                e.getIn().setHeader("status", List.of(Status.SCHEDULED.name(), Status.STARTED.name()));
+            });
+            if (exchange.getException() != null) {
+                throw new MardukException("Error while listing active Chouette jobs", exchange.getException());
+            }
+            return ActiveJobs.of(exchange.getMessage().getBody(List.class));
+        };
+    }
+
+    /**
+     * Check that a job can be submitted to Chouette. Must be called right before the submission request.
+     * The submission is counted as in-flight until the submission request completes.
+     *
+     * @throws ChouetteSubmissionHeldBackException if the limit on the number of in-flight jobs is reached.
+     */
+    public void acquire(Exchange exchange) {
+        lock.lock();
+        try {
+            if (getNbInFlightJobs() >= limit) {
+                heldBack = true;
+                throw new ChouetteSubmissionHeldBackException("Chouette job submission rejected, " + getNbInFlightJobs() + " jobs in-flight for a limit of " + limit);
+            }
+            nbSubmitting++;
+        } finally {
+            lock.unlock();
+        }
+        exchange.setProperty(SUBMISSION_START, System.nanoTime());
+        exchange.getExchangeExtension().addOnCompletion(new SynchronizationAdapter() {
+            @Override
+            public void onFailure(Exchange failedExchange) {
+                Long start = failedExchange.getProperty(SUBMISSION_START, Long.class);
+                if (start != null) {
+                    failedExchange.removeProperty(SUBMISSION_START);
+                    onSubmissionFailed(failedExchange.getException());
+                }
+            }
+        });
+    }
+
+    /**
+     * Record the response time of a successful submission. Must be called right after the submission request.
+     */
+    public void submitted(Exchange exchange) {
+        Long start = exchange.getProperty(SUBMISSION_START, Long.class);
+        if (start == null) {
+            return;
+        }
+        exchange.removeProperty(SUBMISSION_START);
+        long latency = System.nanoTime() - start;
+        submissionLatency.record(latency, TimeUnit.NANOSECONDS);
+        lock.lock();
+        try {
+            // the submitted job is now listed by Chouette
+            nbSubmitting--;
+            nbActiveJobs++;
+            if (latency > latencyThreshold.toNanos()) {
+                nbSlowResponses++;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onSubmissionFailed(Exception exception) {
+        lock.lock();
+        try {
+            nbSubmitting--;
+            if (exception instanceof HttpOperationFailedException httpException && OVERLOAD_STATUS_CODES.contains(httpException.getStatusCode())) {
+                nbOverloadResponses++;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Query the jobs active in Chouette and adjust the limit.
+     * Each instance adjusts its own limit, from the jobs active in Chouette for the whole cluster and from its own submission responses.
+     */
+    void refresh() {
+        ActiveJobs activeJobs = activeJobsSupplier.get();
+        lock.lock();
+        try {
+            nbActiveJobs = activeJobs.nbActive();
+            int previousLimit = limit;
+            if (nbOverloadResponses > 0 || nbSlowResponses > 0 || activeJobs.nbScheduled() > maxScheduledJobs) {
+                limit = Math.max(minLimit, (int) (limit * backoffRatio));
+            } else if (heldBack) {
+                limit = Math.min(maxLimit, limit + 1);
+            }
+            if (limit != previousLimit) {
+                LOGGER.info("Adjusted Chouette job submission limit from {} to {} ({} active jobs, {} scheduled, {} overload responses, {} slow responses)",
+                        previousLimit, limit, activeJobs.nbActive(), activeJobs.nbScheduled(), nbOverloadResponses, nbSlowResponses);
+            }
+            nbOverloadResponses = 0;
+            nbSlowResponses = 0;
+            heldBack = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void refreshQuietly() {
+        try {
+            refresh();
+        } catch (RuntimeException e) {
+            LOGGER.warn("Error while refreshing the Chouette job submission limit", e);
+        }
+    }
+
+    public int getLimit() {
+        lock.lock();
+        try {
+            return limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getNbInFlightJobs() {
+        lock.lock();
+        try {
+            return nbActiveJobs + nbSubmitting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (scheduler != null) {
+            camelContext.getExecutorServiceManager().shutdown(scheduler);
+        }
+    }
+}
@@ -61,7 +61,9 @@ public class ChouetteTransferToDataspaceRouteBuilder extends AbstractChouetteRou
 		        .to("direct:updateStatus")
 				.log(LoggingLevel.DEBUG, correlation() + "Creating multipart request")
                 .process(this::toGenericChouetteMultipart)
+                .process(chouetteSubmissionLimiter::acquire)
                 .toD(chouetteUrl + "/chouette_iev/referentials/${header." + CHOUETTE_REFERENTIAL + "}/exporter/transfer")
+                .process(chouetteSubmissionLimiter::submitted)
                 .process(e -> {
                     e.getIn().setHeader(Constants.CHOUETTE_JOB_STATUS_URL, e.getIn().getHeader("Location", String.class));
 	                e.getIn().setHeader(Constants.CHOUETTE_JOB_ID, getLastPathElementOfUrl(e.getIn().getHeader("Location", String.class)));
@@ -85,6 +87,7 @@ public class ChouetteTransferToDataspaceRouteBuilder extends AbstractChouetteRou
  		        .when(simple("${header.action_report_result} == 'OK'"))
 				 	.process(e -> JobEvent.providerJobBuilder(e).timetableAction(JobEvent.TimetableAction.DATASPACE_TRANSFER).state(State.OK).build())
 	 		        .to("direct:updateStatus")
+	 		        .to("direct:supersedeSpeculativeImports")
 	                .process(e -> {
 	                	// Update provider, now context switches to next provider level
 	                	Provider currentProvider = getProviderRepository().getProvider(e.getIn().getHeader(PROVIDER_ID, Long.class));
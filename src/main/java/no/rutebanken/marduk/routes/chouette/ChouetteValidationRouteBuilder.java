@@ -17,6 +17,7 @@
 package no.rutebanken.marduk.routes.chouette;
 
 import no.rutebanken.marduk.Constants;
+import no.rutebanken.marduk.repository.SpeculativeImportRepository;
 import no.rutebanken.marduk.routes.chouette.json.Parameters;
 import no.rutebanken.marduk.routes.status.JobEvent;
 import no.rutebanken.marduk.routes.status.JobEvent.State;
@@ -24,6 +25,7 @@ import no.rutebanken.marduk.routes.status.JobEvent.TimetableAction;
 import org.apache.camel.Exchange;
 import org.apache.camel.ExchangePattern;
 import org.apache.camel.LoggingLevel;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
@@ -47,6 +49,9 @@ public class ChouetteValidationRouteBuilder extends AbstractChouetteRouteBuilder
     @Value("${chouette.url}")
     private String chouetteUrl;
 
+    @Autowired
+    private SpeculativeImportRepository speculativeImportRepository;
+
     @Override
     public void configure() throws Exception {
         super.configure();
@@ -111,7 +116,9 @@ public class ChouetteValidationRouteBuilder extends AbstractChouetteRouteBuilder
                 .log(LoggingLevel.DEBUG, correlation() + "Creating multipart request")
                 .process(this::toGenericChouetteMultipart)
                 .setHeader(Exchange.CONTENT_TYPE, simple("multipart/form-data"))
+                .process(chouetteSubmissionLimiter::acquire)
                 .toD(chouetteUrl + "/chouette_iev/referentials/${header." + CHOUETTE_REFERENTIAL + "}/validator")
+                .process(chouetteSubmissionLimiter::submitted)
                 .process(e -> {
                     e.getIn().setHeader(Constants.CHOUETTE_JOB_STATUS_URL, e.getIn().getHeader("Location", String.class));
                     e.getIn().setHeader(Constants.CHOUETTE_JOB_ID, getLastPathElementOfUrl(e.getIn().getHeader("Location", String.class)));
@@ -160,6 +167,8 @@ public class ChouetteValidationRouteBuilder extends AbstractChouetteRouteBuilder
                 .choice()
                 .when().jsonpath("$.*[?(@.status == 'SCHEDULED')].status")
                 .log(LoggingLevel.INFO, correlation() + "Validation ok, skipping export as there are more import jobs active")
+                .when(e -> shouldTransferData(e) && speculativeImportRepository.hasUnapprovedImport(e.getIn().getHeader(CHOUETTE_REFERENTIAL, String.class)))
+                .log(LoggingLevel.INFO, correlation() + "Validation ok, skipping transfer as the data contains a speculative import that was not approved by the pre-validation")
                 .when(method(getClass(), "shouldTransferData").isEqualTo(true))
                 .log(LoggingLevel.INFO, correlation() + "Validation ok, transfering data to next dataspace")
                 .setBody(constant(""))
@@ -18,18 +18,17 @@ package no.rutebanken.marduk.routes.fetchosm;
 
 import no.rutebanken.marduk.Constants;
 import no.rutebanken.marduk.exceptions.MardukException;
-import no.rutebanken.marduk.exceptions.Md5ChecksumValidationException;
 import no.rutebanken.marduk.routes.BaseRouteBuilder;
 import org.apache.camel.Exchange;
 import org.apache.camel.ExchangePattern;
 import org.apache.camel.LoggingLevel;
-import org.apache.commons.codec.digest.DigestUtils;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import java.io.InputStream;
 
 import static no.rutebanken.marduk.Constants.FILE_HANDLE;
+import static no.rutebanken.marduk.Constants.TARGET_FILE_HANDLE;
 
 /**
  * Fetch data file as listed on: <a href="https://download.geofabrik.de/europe/norway.html">...</a>
@@ -40,8 +39,8 @@ import static no.rutebanken.marduk.Constants.FILE_HANDLE;
  * </p>
  * <p>
  *     <ul>
- *         <li>download pbf</li>
- *         <li>give to blob store route</li>
+ *         <li>stream pbf into the blob store, verifying the MD5 sum on the fly</li>
+ *         <li>store the MD5 sum once the pbf is stored</li>
  *     </ul>
  * </p>
  */
@@ -52,6 +51,8 @@ public class FetchOsmRouteBuilder extends BaseRouteBuilder {
 
     private static final String FINISHED = "FINISHED";
 
+    private static final String OSM_MAP_MD5_FILE = "OSM_MAP_MD5_FILE";
+
     /**
      * One time per 24H on MON-FRI
      */
@@ -67,6 +68,12 @@ public class FetchOsmRouteBuilder extends BaseRouteBuilder {
     @Value("${osm.pbf.blobstore.subdirectory:osm}")
     private String blobStoreSubdirectoryForOsm;
 
+    private final StreamingHttpFetcher streamingHttpFetcher;
+
+    public FetchOsmRouteBuilder(StreamingHttpFetcher streamingHttpFetcher) {
+        this.streamingHttpFetcher = streamingHttpFetcher;
+    }
+
     @Override
     public void configure() throws Exception {
         super.configure();
@@ -78,26 +85,21 @@ public class FetchOsmRouteBuilder extends BaseRouteBuilder {
         from("direct:fetchOsmMapOverNorway")
                 .log(LoggingLevel.DEBUG, correlation() + "Fetching OSM map over Norway.")
                 .to("direct:fetchOsmMapOverNorwayMd5")
-                // Storing the MD5
-                .convertBodyTo(InputStream.class)
-                .setHeader(FILE_HANDLE, simple(blobStoreSubdirectoryForOsm + "/" + "norway-latest.osm.pbf.md5"))
+                .setProperty(OSM_MAP_MD5_FILE, body())
+                // Stream the actual file into the blob store under a temporary name. The upload fails if the MD5 sum does not match,
+                // but the blob store may still have stored the content read so far.
+                .process(e -> e.getIn().setBody(streamingHttpFetcher.fetch(osmMapUrl, e.getIn().getHeader(Constants.FILE_TARGET_MD5, String.class))))
+                .setHeader(FILE_HANDLE, simple(blobStoreSubdirectoryForOsm + "/" + "norway-latest.osm.pbf.download"))
                 .to("direct:uploadBlob")
-                // Fetch the actual file
-                .setHeader(Exchange.HTTP_METHOD, constant(org.apache.camel.component.http.HttpMethods.GET))
-                .streamCaching()
-                .to(osmMapUrl)
-                .log(LoggingLevel.DEBUG, correlation() + "OSM map downloaded. Checking MD5")
+                .log(LoggingLevel.DEBUG, correlation() + "OSM map downloaded and MD5 verified")
+                // The map is published under its final name only once the MD5 sum is verified
+                .setHeader(TARGET_FILE_HANDLE, simple(blobStoreSubdirectoryForOsm + "/" + "norway-latest.osm.pbf"))
+                .to("direct:copyBlobInBucket")
+                .to("direct:deleteBlob")
+                // Storing the MD5 once the map is stored, so that a failed download is retried at the next run
+                .setBody(exchangeProperty(OSM_MAP_MD5_FILE))
                 .convertBodyTo(InputStream.class)
-                .process(p -> {
-                    // Throw exception if the expected MD5 does not match MD5 from body
-                    InputStream body = (InputStream) p.getIn().getBody();
-                    String md5 = DigestUtils.md5Hex(body);
-                    String md5FromFile = (String) p.getIn().getHeader(Constants.FILE_TARGET_MD5);
-                    if (!md5.equals(md5FromFile)) {
-                        throw new Md5ChecksumValidationException("MD5 of body (" + md5 + ") does not match MD5 which was read from source (" + md5FromFile + ").");
-                    }
-                })
-                .setHeader(FILE_HANDLE, simple(blobStoreSubdirectoryForOsm + "/" + "norway-latest.osm.pbf"))
+                .setHeader(FILE_HANDLE, simple(blobStoreSubdirectoryForOsm + "/" + "norway-latest.osm.pbf.md5"))
                 .to("direct:uploadBlob")
                 .setBody(simple("File fetched, and blob store has been correctly updated"))
                 .setHeader(FINISHED, simple("true", Boolean.class))
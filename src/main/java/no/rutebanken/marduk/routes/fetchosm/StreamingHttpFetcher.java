@@ -0,0 +1,285 @@
+package no.rutebanken.marduk.routes.fetchosm;
+
+import no.rutebanken.marduk.exceptions.MardukException;
+import no.rutebanken.marduk.exceptions.Md5ChecksumValidationException;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.security.DigestInputStream;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Download a file over HTTP as a stream that can be piped directly into the blob store.
+ * The MD5 sum of the content is computed while the stream is read, and the stream fails with a {@link Md5ChecksumValidationException}
+ * when the end of the content is reached and the MD5 sum does not match the expected one. Since the error is raised before
+ * the end of the stream is signaled, a blob upload reading the stream is aborted instead of completed.
+ * Since a blob store may still store the content read before the error, the stream must be uploaded under a temporary name
+ * and copied to its final name only once the stream is entirely read.
+ * If the connection drops part-way, or if no data is received for the read timeout, the download is resumed from the current position
+ * with an HTTP Range request. The If-Range header ensures that the download is not resumed over a different version of the file.
+ */
+@Component
+public class StreamingHttpFetcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StreamingHttpFetcher.class);
+
+    private final HttpClient httpClient;
+    private final int maxResumeAttempts;
+    private final Duration resumeBackoff;
+    private final Duration readTimeout;
+
+    public StreamingHttpFetcher(@Value("${fetch.osm.resume.max.attempts:5}") int maxResumeAttempts,
+                                @Value("${fetch.osm.resume.backoff:PT5S}") Duration resumeBackoff,
+                                @Value("${fetch.osm.connect.timeout:PT30S}") Duration connectTimeout,
+                                @Value("${fetch.osm.read.timeout:PT2M}") Duration readTimeout) {
+        this.maxResumeAttempts = maxResumeAttempts;
+        this.resumeBackoff = resumeBackoff;
+        this.readTimeout = readTimeout;
+        this.httpClient = HttpClient.newBuilder()
+                .connectTimeout(connectTimeout)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build();
+    }
+
+    /**
+     * Open a stream over the content at the given URL.
+     * The first request is sent immediately so that an unavailable file is reported before the stream is handed over.
+     *
+     * @param expectedMd5 the expected MD5 sum of the content, as a hexadecimal string.
+     */
+    public InputStream fetch(String url, String expectedMd5) {
+        ResumableHttpInputStream resumableStream = new ResumableHttpInputStream(URI.create(url));
+        try {
+            resumableStream.open();
+        } catch (IOException e) {
+            throw new MardukException("Error while fetching " + url, e);
+        }
+        return new Md5VerifyingInputStream(resumableStream, url, expectedMd5);
+    }
+
+    /**
+     * Fail at the end of the stream if the MD5 sum of the content does not match the expected one.
+     */
+    private static final class Md5VerifyingInputStream extends DigestInputStream {
+
+        private final String url;
+        private final String expectedMd5;
+        private boolean verified;
+
+        private Md5VerifyingInputStream(InputStream inputStream, String url, String expectedMd5) {
+            super(inputStream, DigestUtils.getMd5Digest());
+            this.url = url;
+            this.expectedMd5 = expectedMd5;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b < 0) {
+                verify();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n < 0) {
+                verify();
+            }
+            return n;
+        }
+
+        private void verify() {
+            if (verified) {
+                return;
+            }
+            String md5 = Hex.encodeHexString(getMessageDigest().digest());
+            if (!md5.equalsIgnoreCase(expectedMd5)) {
+                throw new Md5ChecksumValidationException("MD5 of " + url + " (" + md5 + ") does not match MD5 which was read from source (" + expectedMd5 + ").");
+            }
+            verified = true;
+        }
+    }
+
+    /**
+     * Stream over the body of an HTTP response that reconnects with a Range request when the connection fails
+     * or when the body ends before the announced content length.
+     * The Java HTTP client has no timeout on reading the response body: a read that does not return within the read timeout
+     * is aborted by closing the body from a timer, which fails the read and triggers a reconnection.
+     */
+    private final class ResumableHttpInputStream extends InputStream {
+
+        private final URI uri;
+        private volatile InputStream body;
+        private volatile long readStartedAt;
+        private volatile boolean finished;
+        private long position;
+        private long contentLength = -1;
+        private String validator;
+        private int nbResumes;
+
+        private ResumableHttpInputStream(URI uri) {
+            this.uri = uri;
+        }
+
+        private void open() throws IOException {
+            HttpRequest.Builder request = HttpRequest.newBuilder(uri).timeout(readTimeout).GET();
+            if (position > 0) {
+                request.header("Range", "bytes=" + position + "-");
+                if (validator != null) {
+                    request.header("If-Range", validator);
+                }
+            }
+            HttpResponse<InputStream> response;
+            try {
+                response = httpClient.send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while fetching " + uri, e);
+            }
+            int status = response.statusCode();
+            if (position == 0 && status == 200) {
+                contentLength = response.headers().firstValueAsLong("Content-Length").orElse(-1);
+                validator = validator(response).orElse(null);
+            } else if (position > 0 && status == 206) {
+                String contentRange = response.headers().firstValue("Content-Range").orElse("");
+                if (!contentRange.startsWith("bytes " + position + "-")) {
+                    response.body().close();
+                    throw new IOException("Unexpected Content-Range '" + contentRange + "' when resuming " + uri + " at byte " + position);
+                }
+            } else {
+                response.body().close();
+                if (position > 0 && status == 200) {
+                    throw new IOException("Cannot resume " + uri + ": the server does not support range requests or the file has changed");
+                }
+                throw new IOException("Unexpected HTTP status " + status + " while fetching " + uri);
+            }
+            body = response.body();
+            if (position == 0) {
+                scheduleReadTimeoutCheck();
+            }
+        }
+
+        private void scheduleReadTimeoutCheck() {
+            CompletableFuture.runAsync(this::checkReadTimeout, CompletableFuture.delayedExecutor(readTimeout.toMillis(), TimeUnit.MILLISECONDS));
+        }
+
+        /**
+         * Abort the read in progress if it has been waiting for data for longer than the read timeout.
+         * Runs on the timer thread, and is re-scheduled until the stream is entirely read, fails or is closed.
+         */
+        private void checkReadTimeout() {
+            if (finished) {
+                return;
+            }
+            long started = readStartedAt;
+            InputStream currentBody = body;
+            if (started != 0 && System.nanoTime() - started > readTimeout.toNanos() && currentBody != null) {
+                LOGGER.warn("No data received from {} for {} ms, aborting the connection", uri, readTimeout.toMillis());
+                try {
+                    currentBody.close();
+                } catch (IOException e) {
+                    LOGGER.debug("Error while aborting the connection to {}", uri, e);
+                }
+            }
+            scheduleReadTimeoutCheck();
+        }
+
+        /**
+         * The strong entity tag if there is one, otherwise the last modification date.
+         */
+        private static Optional<String> validator(HttpResponse<?> response) {
+            Optional<String> entityTag = response.headers().firstValue("ETag").filter(etag -> !etag.startsWith("W/"));
+            return entityTag.isPresent() ? entityTag : response.headers().firstValue("Last-Modified");
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (true) {
+                try {
+                    int n;
+                    readStartedAt = System.nanoTime();
+                    try {
+                        n = body.read(b, off, len);
+                    } finally {
+                        readStartedAt = 0;
+                    }
+                    if (n >= 0) {
+                        position += n;
+                        return n;
+                    }
+                    if (contentLength < 0 || position >= contentLength) {
+                        finished = true;
+                        return -1;
+                    }
+                    resume(new IOException("Connection closed after " + position + " of " + contentLength + " bytes"));
+                } catch (IOException e) {
+                    resume(e);
+                }
+            }
+        }
+
+        private void resume(IOException cause) throws IOException {
+            closeBody();
+            IOException lastFailure = cause;
+            while (nbResumes < maxResumeAttempts) {
+                nbResumes++;
+                LOGGER.warn("Download of {} interrupted after {} bytes, resuming (attempt {}/{}): {}", uri, position, nbResumes, maxResumeAttempts, lastFailure.getMessage());
+                try {
+                    Thread.sleep(resumeBackoff.toMillis());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while resuming " + uri, e);
+                }
+                try {
+                    open();
+                    return;
+                } catch (IOException e) {
+                    lastFailure = e;
+                }
+            }
+            if (lastFailure != cause) {
+                lastFailure.addSuppressed(cause);
+            }
+            finished = true;
+            throw lastFailure;
+        }
+
+        private void closeBody() {
+            if (body != null) {
+                try {
+                    body.close();
+                } catch (IOException e) {
+                    LOGGER.debug("Error while closing the connection to {}", uri, e);
+                }
+                body = null;
+            }
+        }
+
+        @Override
+        public void close() {
+            finished = true;
+            closeBody();
+        }
+    }
+}
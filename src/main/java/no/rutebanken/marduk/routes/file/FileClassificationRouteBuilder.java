@@ -151,6 +151,7 @@ public class FileClassificationRouteBuilder extends BaseRouteBuilder {
                 .when(header(IMPORT_TYPE).isEqualTo(IMPORT_TYPE_NETEX_FLEX))
                 .to("direct:flexibleLinesImport")
                 .otherwise()
+                .to("direct:startSpeculativeImport")
                 .to("direct:antuNetexPreValidation")
                 // launch the import process if this is a GTFS file or if the pre-validation is activated in chouette
                 .filter(PredicateBuilder.or(simple("{{chouette.enablePreValidation:true}}"), header(FILE_TYPE).isEqualTo(FileType.GTFS)))
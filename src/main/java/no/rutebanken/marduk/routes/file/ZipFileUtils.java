@@ -18,21 +18,29 @@ package no.rutebanken.marduk.routes.file;
 
 import no.rutebanken.marduk.exceptions.MardukException;
 import no.rutebanken.marduk.exceptions.MardukZipFileEntryNameEncodingException;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.zeroturnaround.zip.ZipUtil;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.MalformedInputException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.stream.Collectors;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 
 /**
  * Utility class for creating and reading zip files.
@@ -121,5 +129,45 @@ public class ZipFileUtils {
         ZipUtil.unpack(inputStream, new File(targetFolder));
     }
 
+    /**
+     * Compute a digest of the content of a zip archive that does not depend on the archive layout.
+     * The digest is computed over the names and contents of the entries, sorted by name, so that two archives
+     * containing the same files produce the same digest even if the entry order, timestamps or compression level differ.
+     * If the stream does not contain a zip archive, the digest is computed over the raw bytes.
+     *
+     * @param inputStream the archive content. The stream is consumed but not closed.
+     * @return the hex-encoded SHA-256 digest.
+     */
+    public static String computeCanonicalDigest(InputStream inputStream) {
+        try {
+            BufferedInputStream bufferedInputStream = new BufferedInputStream(inputStream);
+            bufferedInputStream.mark(4);
+            byte[] header = bufferedInputStream.readNBytes(4);
+            bufferedInputStream.reset();
+            if (!isZipFile(header)) {
+                return DigestUtils.sha256Hex(bufferedInputStream);
+            }
+            Map<String, String> entryDigests = new TreeMap<>();
+            ZipInputStream zipInputStream = new ZipInputStream(bufferedInputStream);
+            ZipEntry zipEntry = zipInputStream.getNextEntry();
+            while (zipEntry != null) {
+                if (!zipEntry.isDirectory()) {
+                    entryDigests.put(zipEntry.getName(), DigestUtils.sha256Hex(zipInputStream));
+                }
+                zipEntry = zipInputStream.getNextEntry();
+            }
+            MessageDigest archiveDigest = DigestUtils.getSha256Digest();
+            entryDigests.forEach((name, digest) -> {
+                archiveDigest.update(name.getBytes(StandardCharsets.UTF_8));
+                archiveDigest.update((byte) 0);
+                archiveDigest.update(digest.getBytes(StandardCharsets.UTF_8));
+                archiveDigest.update((byte) '\n');
+            });
+            return Hex.encodeHexString(archiveDigest.digest());
+        } catch (IOException e) {
+            throw new MardukException(e);
+        }
+    }
+
 
 }
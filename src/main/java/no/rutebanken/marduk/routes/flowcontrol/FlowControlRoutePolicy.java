@@ -0,0 +1,147 @@
+package no.rutebanken.marduk.routes.flowcontrol;
+
+import no.rutebanken.marduk.exceptions.MardukException;
+import org.apache.camel.Endpoint;
+import org.apache.camel.Exchange;
+import org.apache.camel.Route;
+import org.apache.camel.component.google.pubsub.GooglePubsubEndpoint;
+import org.apache.camel.component.master.MasterEndpoint;
+import org.apache.camel.support.RoutePolicySupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limit the number and total size of the PubSub messages processed at the same time by a route.
+ * An exchange received while the route is at its limits is not processed: it fails immediately so that the message is nacked
+ * and redelivered later by PubSub, instead of holding a subscriber thread and keeping the message leased.
+ * The message limit can be adjusted at runtime by the {@link PubSubFlowController}.
+ * The policy also tracks an exponentially weighted moving average of the exchange processing time.
+ */
+public class FlowControlRoutePolicy extends RoutePolicySupport {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FlowControlRoutePolicy.class);
+
+    private static final String ADMITTED_BYTES = "MardukFlowControlAdmittedBytes";
+    private static final String ADMISSION_TIME = "MardukFlowControlAdmissionTime";
+    private static final double LATENCY_SMOOTHING_FACTOR = 0.2;
+
+    private final FlowControlSettings settings;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private int limit;
+    private int outstandingMessages;
+    private long outstandingBytes;
+    private volatile double averageLatencyMillis;
+
+    public FlowControlRoutePolicy(FlowControlSettings settings) {
+        this.settings = settings;
+        this.limit = settings.maxOutstandingMessages();
+    }
+
+    @Override
+    public void onInit(Route route) {
+        GooglePubsubEndpoint endpoint = pubSubEndpoint(route.getEndpoint());
+        if (endpoint != null) {
+            endpoint.setConcurrentConsumers(settings.consumers());
+        }
+    }
+
+    private static GooglePubsubEndpoint pubSubEndpoint(Endpoint endpoint) {
+        if (endpoint instanceof GooglePubsubEndpoint googlePubsubEndpoint) {
+            return googlePubsubEndpoint;
+        }
+        if (endpoint instanceof MasterEndpoint masterEndpoint) {
+            return pubSubEndpoint(masterEndpoint.getEndpoint());
+        }
+        return null;
+    }
+
+    @Override
+    public void onExchangeBegin(Route route, Exchange exchange) {
+        long size = exchange.getIn().getBody() instanceof byte[] body ? body.length : 0;
+        lock.lock();
+        try {
+            if (!isAdmissible(size)) {
+                LOGGER.debug("Flow control limit reached on queue {}, releasing the message for redelivery", settings.queue());
+                exchange.setException(new MardukException("Flow control limit reached on queue " + settings.queue()));
+                exchange.setRouteStop(true);
+                return;
+            }
+            outstandingMessages++;
+            outstandingBytes += size;
+        } finally {
+            lock.unlock();
+        }
+        exchange.setProperty(ADMITTED_BYTES, size);
+        exchange.setProperty(ADMISSION_TIME, System.nanoTime());
+    }
+
+    /**
+     * A message larger than the byte limit is admitted when no other message is outstanding.
+     */
+    private boolean isAdmissible(long size) {
+        if (outstandingMessages >= limit) {
+            return false;
+        }
+        return settings.maxOutstandingBytes() == 0 || outstandingMessages == 0 || outstandingBytes + size <= settings.maxOutstandingBytes();
+    }
+
+    @Override
+    public void onExchangeDone(Route route, Exchange exchange) {
+        Long size = exchange.getProperty(ADMITTED_BYTES, Long.class);
+        if (size == null) {
+            return;
+        }
+        exchange.removeProperty(ADMITTED_BYTES);
+        lock.lock();
+        try {
+            outstandingMessages--;
+            outstandingBytes -= size;
+        } finally {
+            lock.unlock();
+        }
+        double latencyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - exchange.getProperty(ADMISSION_TIME, Long.class));
+        averageLatencyMillis = averageLatencyMillis == 0 ? latencyMillis : averageLatencyMillis + LATENCY_SMOOTHING_FACTOR * (latencyMillis - averageLatencyMillis);
+    }
+
+    public FlowControlSettings getSettings() {
+        return settings;
+    }
+
+    public int getLimit() {
+        lock.lock();
+        try {
+            return limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Set the maximum number of messages processed at the same time, bounded by the configured maximum.
+     */
+    public void setLimit(int newLimit) {
+        lock.lock();
+        try {
+            limit = Math.clamp(newLimit, 1, settings.maxOutstandingMessages());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getOutstandingMessages() {
+        lock.lock();
+        try {
+            return outstandingMessages;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public double getAverageLatencyMillis() {
+        return averageLatencyMillis;
+    }
+}
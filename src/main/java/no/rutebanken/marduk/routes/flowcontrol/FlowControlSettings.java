@@ -0,0 +1,40 @@
+package no.rutebanken.marduk.routes.flowcontrol;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Flow control settings of a PubSub queue.
+ *
+ * @param queue                  the PubSub subscription name.
+ * @param maxOutstandingMessages maximum number of messages processed at the same time.
+ * @param maxOutstandingBytes    maximum total size of the messages processed at the same time. 0 means no limit.
+ * @param consumers              number of concurrent PubSub consumers.
+ */
+public record FlowControlSettings(String queue, int maxOutstandingMessages, long maxOutstandingBytes, int consumers) {
+
+    public FlowControlSettings {
+        if (maxOutstandingMessages < 1 || maxOutstandingBytes < 0 || consumers < 1) {
+            throw new IllegalArgumentException("Invalid flow control settings for queue " + queue);
+        }
+    }
+
+    /**
+     * Parse a list of settings in the format queue:maxOutstandingMessages:maxOutstandingBytes:consumers.
+     */
+    public static List<FlowControlSettings> parse(String[] entries) {
+        return Arrays.stream(entries)
+                .map(String::trim)
+                .filter(entry -> !entry.isEmpty())
+                .map(FlowControlSettings::parse)
+                .toList();
+    }
+
+    private static FlowControlSettings parse(String entry) {
+        String[] fields = entry.split(":");
+        if (fields.length != 4) {
+            throw new IllegalArgumentException("Invalid flow control settings '" + entry + "', expected queue:maxOutstandingMessages:maxOutstandingBytes:consumers");
+        }
+        return new FlowControlSettings(fields[0], Integer.parseInt(fields[1]), Long.parseLong(fields[2]), Integer.parseInt(fields[3]));
+    }
+}
@@ -0,0 +1,180 @@
+package no.rutebanken.marduk.routes.flowcontrol;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import no.rutebanken.marduk.routes.PubSubAttributeCodec;
+import org.apache.camel.CamelContext;
+import org.apache.camel.NamedNode;
+import org.apache.camel.model.RouteDefinition;
+import org.apache.camel.spi.RoutePolicy;
+import org.apache.camel.spi.RoutePolicyFactory;
+import org.apache.camel.support.service.ServiceSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Apply per-queue flow control to the routes consuming PubSub queues, and adapt the number of messages processed at the same time
+ * to the available resources.
+ * The controller periodically samples the heap occupancy after the last garbage collection, the temporary disk usage
+ * and the average processing time of each queue. The heap occupancy is measured after garbage collection since the heap usage
+ * routinely approaches the max heap between two collections.
+ * When the heap or disk usage exceeds its threshold, the limit of every controlled queue is halved.
+ * When the average processing time of a queue exceeds the latency threshold, the limit of this queue is halved.
+ * Otherwise the limit is increased by one, up to the configured maximum (additive increase, multiplicative decrease).
+ */
+public class PubSubFlowController extends ServiceSupport implements RoutePolicyFactory {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PubSubFlowController.class);
+
+    /**
+     * Thresholds that trigger a reduction of the concurrency.
+     *
+     * @param heapUsage    maximum ratio of used heap to max heap after the last garbage collection.
+     * @param diskUsage    maximum ratio of used space to total space on the temporary disk.
+     * @param latency      maximum average processing time of a message.
+     */
+    public record Thresholds(double heapUsage, double diskUsage, Duration latency) {
+    }
+
+    private final CamelContext camelContext;
+    private final Map<String, FlowControlSettings> settingsByQueue;
+    private final Thresholds thresholds;
+    private final Duration interval;
+    private final DoubleSupplier heapUsage;
+    private final DoubleSupplier diskUsage;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, FlowControlRoutePolicy> policies = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService scheduler;
+
+    public PubSubFlowController(CamelContext camelContext, List<FlowControlSettings> settings, Thresholds thresholds, Duration interval, File temporaryDirectory, MeterRegistry meterRegistry) {
+        this(camelContext, settings, thresholds, interval, PubSubFlowController::heapUsage, () -> diskUsage(temporaryDirectory), meterRegistry);
+    }
+
+    PubSubFlowController(CamelContext camelContext, List<FlowControlSettings> settings, Thresholds thresholds, Duration interval, DoubleSupplier heapUsage, DoubleSupplier diskUsage, MeterRegistry meterRegistry) {
+        this.camelContext = camelContext;
+        this.settingsByQueue = settings.stream().collect(Collectors.toMap(FlowControlSettings::queue, Function.identity()));
+        this.thresholds = thresholds;
+        this.interval = interval;
+        this.heapUsage = heapUsage;
+        this.diskUsage = diskUsage;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Return the highest occupancy of the heap memory pools after the last garbage collection.
+     */
+    private static double heapUsage() {
+        double heapUsage = 0;
+        for (MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()) {
+            MemoryUsage collectionUsage = memoryPool.getType() == MemoryType.HEAP ? memoryPool.getCollectionUsage() : null;
+            if (collectionUsage != null && collectionUsage.getMax() > 0) {
+                heapUsage = Math.max(heapUsage, (double) collectionUsage.getUsed() / collectionUsage.getMax());
+            }
+        }
+        return heapUsage;
+    }
+
+    private static double diskUsage(File directory) {
+        long totalSpace = directory.getTotalSpace();
+        return totalSpace > 0 ? 1 - (double) directory.getUsableSpace() / totalSpace : 0;
+    }
+
+    /**
+     * Create a flow control policy for the routes consuming a configured PubSub queue.
+     */
+    @Override
+    public RoutePolicy createRoutePolicy(CamelContext camelContext, String routeId, NamedNode route) {
+        if (!(route instanceof RouteDefinition routeDefinition) || routeDefinition.getInput() == null) {
+            return null;
+        }
+        String endpointUri = routeDefinition.getInput().getEndpointUri();
+        if (endpointUri == null || !endpointUri.contains("google-pubsub:")) {
+            return null;
+        }
+        FlowControlSettings settings = settingsByQueue.get(PubSubAttributeCodec.destinationName(endpointUri));
+        if (settings == null) {
+            return null;
+        }
+        FlowControlRoutePolicy policy = new FlowControlRoutePolicy(settings);
+        policies.put(routeId, policy);
+        Gauge.builder("marduk.pubsub.flow.control.limit", policy, FlowControlRoutePolicy::getLimit)
+                .description("Maximum number of messages processed at the same time")
+                .tag("queue", settings.queue())
+                .tag("route", routeId)
+                .register(meterRegistry);
+        Gauge.builder("marduk.pubsub.flow.control.outstanding", policy, FlowControlRoutePolicy::getOutstandingMessages)
+                .description("Number of messages being processed")
+                .tag("queue", settings.queue())
+                .tag("route", routeId)
+                .register(meterRegistry);
+        LOGGER.info("Flow control enabled for queue {} in route {}: {}", settings.queue(), routeId, settings);
+        return policy;
+    }
+
+    /**
+     * Adjust the limit of every controlled route to the current resource usage.
+     */
+    void adjust() {
+        double currentHeapUsage = heapUsage.getAsDouble();
+        double currentDiskUsage = diskUsage.getAsDouble();
+        boolean resourcePressure = currentHeapUsage > thresholds.heapUsage() || currentDiskUsage > thresholds.diskUsage();
+        for (Map.Entry<String, FlowControlRoutePolicy> entry : policies.entrySet()) {
+            FlowControlRoutePolicy policy = entry.getValue();
+            boolean latencyPressure = policy.getAverageLatencyMillis() > thresholds.latency().toMillis();
+            int limit = policy.getLimit();
+            if (resourcePressure || latencyPressure) {
+                policy.setLimit(limit / 2);
+                if (policy.getLimit() < limit) {
+                    LOGGER.info("Reducing concurrency of route {} to {} (heap usage: {}, disk usage: {}, average latency: {} ms)",
+                            entry.getKey(), policy.getLimit(), currentHeapUsage, currentDiskUsage, policy.getAverageLatencyMillis());
+                }
+            } else if (limit < policy.getSettings().maxOutstandingMessages()) {
+                policy.setLimit(limit + 1);
+                LOGGER.debug("Increasing concurrency of route {} to {}", entry.getKey(), policy.getLimit());
+            }
+        }
+    }
+
+    private void adjustQuietly() {
+        try {
+            adjust();
+        } catch (RuntimeException e) {
+            LOGGER.warn("Error while adjusting PubSub flow control", e);
+        }
+    }
+
+    FlowControlRoutePolicy getPolicy(String routeId) {
+        return policies.get(routeId);
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        super.doStart();
+        scheduler = camelContext.getExecutorServiceManager().newSingleThreadScheduledExecutor(this, "PubSubFlowController");
+        scheduler.scheduleWithFixedDelay(this::adjustQuietly, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        if (scheduler != null) {
+            camelContext.getExecutorServiceManager().shutdown(scheduler);
+        }
+        super.doStop();
+    }
+}
@@ -78,6 +78,9 @@ public class NetexMergeChouetteWithFlexibleLineExportRouteBuilder extends BaseRo
                 .routeId("netex-export-merge-chouette-with-flexible-lines-queue");
 
         from("direct:mergeChouetteExportWithFlexibleLinesExport").streamCaching()
+                .onCompletion().onFailureOnly()
+                .to("direct:forgetExportDigest")
+                .end()
                 .process(this::setCorrelationIdIfMissing)
                 .log(LoggingLevel.INFO, getClass().getName(), correlation() + "Merging chouette NeTEx export with FlexibleLines")
                 .validate(header(Constants.CHOUETTE_REFERENTIAL).isNotNull())
@@ -0,0 +1,136 @@
+package no.rutebanken.marduk.routes.otp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Limit the number of concurrent remote graph builds, with priority given to production builds over candidate builds.
+ * Each priority class has its own limit on the number of concurrent builds, and the total number of concurrent builds is also limited.
+ * Builds that cannot start immediately are queued, no thread is blocked while a build waits for a slot or runs.
+ * A queued candidate build is not started as long as a production build is queued: production builds pre-empt queued candidate builds.
+ * Running builds are never interrupted.
+ * Production builds run one at a time by default: concurrent production builds may complete out of order,
+ * and an older graph would then overwrite the graph published by a more recent build.
+ * The limits apply to the builds started by this instance of Marduk.
+ */
+@Component
+public class GraphBuildScheduler {
+
+    public enum Priority {PRODUCTION, CANDIDATE}
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(GraphBuildScheduler.class);
+
+    private record QueuedBuild(Priority priority, Supplier<CompletableFuture<Void>> build, CompletableFuture<Void> result) {
+    }
+
+    private final int maxConcurrentBuilds;
+    private final Map<Priority, Integer> maxConcurrentBuildsPerPriority = new EnumMap<>(Priority.class);
+    private final Map<Priority, Integer> runningBuilds = new EnumMap<>(Priority.class);
+    private final Map<Priority, Deque<QueuedBuild>> queuedBuilds = new EnumMap<>(Priority.class);
+
+    public GraphBuildScheduler(@Value("${otp2.graph.build.max.concurrent:2}") int maxConcurrentBuilds,
+                               @Value("${otp2.graph.build.production.max.concurrent:1}") int maxConcurrentProductionBuilds,
+                               @Value("${otp2.graph.build.candidate.max.concurrent:1}") int maxConcurrentCandidateBuilds) {
+        this.maxConcurrentBuilds = maxConcurrentBuilds;
+        maxConcurrentBuildsPerPriority.put(Priority.PRODUCTION, maxConcurrentProductionBuilds);
+        maxConcurrentBuildsPerPriority.put(Priority.CANDIDATE, maxConcurrentCandidateBuilds);
+        for (Priority priority : Priority.values()) {
+            runningBuilds.put(priority, 0);
+            queuedBuilds.put(priority, new ArrayDeque<>());
+        }
+    }
+
+    /**
+     * Queue a graph build. The build is started once a slot is available for the given priority class.
+     *
+     * @param priority the priority class of the build.
+     * @param build    starts the graph build and returns a future completed when the build is complete.
+     * @return a future completed when the build is complete.
+     */
+    public CompletableFuture<Void> submit(Priority priority, Supplier<CompletableFuture<Void>> build) {
+        QueuedBuild queuedBuild = new QueuedBuild(priority, build, new CompletableFuture<>());
+        synchronized (this) {
+            queuedBuilds.get(priority).addLast(queuedBuild);
+            LOGGER.info("Queued {} graph build. Running builds: {}, queued builds: {}", priority, runningBuilds, getQueueSizes());
+        }
+        dispatch();
+        return queuedBuild.result();
+    }
+
+    /**
+     * Start the queued builds for which a slot is available.
+     * The builds are started outside the lock since starting a build involves remote calls.
+     */
+    private void dispatch() {
+        QueuedBuild next;
+        while ((next = nextStartableBuild()) != null) {
+            start(next);
+        }
+    }
+
+    private synchronized QueuedBuild nextStartableBuild() {
+        for (Priority priority : Priority.values()) {
+            if (!queuedBuilds.get(priority).isEmpty() && canStart(priority)) {
+                runningBuilds.merge(priority, 1, Integer::sum);
+                QueuedBuild queuedBuild = queuedBuilds.get(priority).removeFirst();
+                LOGGER.debug("Starting {} graph build. Running builds: {}", priority, runningBuilds);
+                return queuedBuild;
+            }
+        }
+        return null;
+    }
+
+    private void start(QueuedBuild queuedBuild) {
+        CompletableFuture<Void> buildCompletion;
+        try {
+            buildCompletion = queuedBuild.build().get();
+        } catch (RuntimeException e) {
+            buildCompletion = CompletableFuture.failedFuture(e);
+        }
+        buildCompletion.whenComplete((result, throwable) -> {
+            // release the slot and start the next builds before handing over to the caller, which may process the result for a long time
+            release(queuedBuild.priority());
+            dispatch();
+            if (throwable != null) {
+                queuedBuild.result().completeExceptionally(throwable);
+            } else {
+                queuedBuild.result().complete(null);
+            }
+        });
+    }
+
+    private synchronized void release(Priority priority) {
+        runningBuilds.merge(priority, -1, Integer::sum);
+    }
+
+    private boolean canStart(Priority priority) {
+        int totalRunningBuilds = runningBuilds.values().stream().mapToInt(Integer::intValue).sum();
+        if (totalRunningBuilds >= maxConcurrentBuilds || runningBuilds.get(priority) >= maxConcurrentBuildsPerPriority.get(priority)) {
+            return false;
+        }
+        return priority == Priority.PRODUCTION || queuedBuilds.get(Priority.PRODUCTION).isEmpty();
+    }
+
+    private Map<Priority, Integer> getQueueSizes() {
+        Map<Priority, Integer> queueSizes = new EnumMap<>(Priority.class);
+        queuedBuilds.forEach((priority, queue) -> queueSizes.put(priority, queue.size()));
+        return queueSizes;
+    }
+
+    synchronized int getRunningBuilds(Priority priority) {
+        return runningBuilds.get(priority);
+    }
+
+    synchronized int getQueuedBuilds(Priority priority) {
+        return queuedBuilds.get(priority).size();
+    }
+}
@@ -1,5 +1,7 @@
 package no.rutebanken.marduk.routes.otp;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * Base interface for OTP graph builders.
  */
@@ -10,6 +12,7 @@ public interface OtpGraphBuilder {
      * Depending on the implementation the working directory can be either a local or a remote directory.
      * @param otpWorkDir the directory where the graph is saved.
      * @param timestamp a timestamp used for creating unique file and directory names.
+     * @return a future completed when the graph is built.
      */
-    void build(String otpWorkDir, String timestamp, boolean candidate);
+    CompletableFuture<Void> build(String otpWorkDir, String timestamp, boolean candidate);
 }
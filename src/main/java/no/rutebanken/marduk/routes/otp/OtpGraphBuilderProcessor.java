@@ -1,18 +1,23 @@
 package no.rutebanken.marduk.routes.otp;
 
+import org.apache.camel.AsyncCallback;
 import org.apache.camel.Exchange;
-import org.apache.camel.Processor;
+import org.apache.camel.support.AsyncProcessorSupport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.CompletionException;
+
 import static no.rutebanken.marduk.Constants.OTP_BUILD_CANDIDATE;
 import static no.rutebanken.marduk.Constants.OTP_REMOTE_WORK_DIR;
 import static no.rutebanken.marduk.Constants.TIMESTAMP;
 
 /**
  * Camel processor that triggers the OTP graph build process,
+ * The processor is asynchronous: the calling thread is released while the build is queued or running,
+ * and the exchange is continued when the build completes.
  */
-public class OtpGraphBuilderProcessor implements Processor {
+public class OtpGraphBuilderProcessor extends AsyncProcessorSupport {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(OtpGraphBuilderProcessor.class);
 
@@ -23,16 +28,18 @@ public class OtpGraphBuilderProcessor implements Processor {
     }
 
     @Override
-    public void process(Exchange exchange) {
-
-        try {
-            String otpGraphDirectory = exchange.getProperty(OTP_REMOTE_WORK_DIR, String.class);
-            String timestamp = exchange.getProperty(TIMESTAMP, String.class);
-            boolean candidate = exchange.getProperty(OTP_BUILD_CANDIDATE, Boolean.FALSE, Boolean.class);
-            otpGraphBuilder.build(otpGraphDirectory, timestamp, candidate);
-        } catch (RuntimeException e) {
-            LOGGER.warn("Got exception while trying to build new OTP graph.", e);
-            throw e;
-        }
+    public boolean process(Exchange exchange, AsyncCallback callback) {
+        String otpGraphDirectory = exchange.getProperty(OTP_REMOTE_WORK_DIR, String.class);
+        String timestamp = exchange.getProperty(TIMESTAMP, String.class);
+        boolean candidate = exchange.getProperty(OTP_BUILD_CANDIDATE, Boolean.FALSE, Boolean.class);
+        otpGraphBuilder.build(otpGraphDirectory, timestamp, candidate).whenComplete((result, throwable) -> {
+            if (throwable != null) {
+                Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+                LOGGER.warn("Got exception while trying to build new OTP graph.", cause);
+                exchange.setException(cause);
+            }
+            callback.done(false);
+        });
+        return false;
     }
 }
@@ -2,11 +2,13 @@ package no.rutebanken.marduk.routes.otp.otp2;
 
 import io.fabric8.kubernetes.api.model.EnvVar;
 import no.rutebanken.marduk.kubernetes.KubernetesJobRunner;
+import no.rutebanken.marduk.routes.otp.GraphBuildScheduler;
 import no.rutebanken.marduk.routes.otp.OtpGraphBuilder;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Base class for OTP2 graph builders.
@@ -23,8 +25,11 @@ public abstract class AbstractOtp2GraphBuilder implements OtpGraphBuilder {
     @Autowired
     private KubernetesJobRunner kubernetesJobRunner;
 
+    @Autowired
+    private GraphBuildScheduler graphBuildScheduler;
+
     @Override
-    public void build(String otpWorkDir, String timestamp, boolean candidate) {
+    public CompletableFuture<Void> build(String otpWorkDir, String timestamp, boolean candidate) {
         String cronJobName;
         String jobNamePrefix;
         if(candidate) {
@@ -34,7 +39,8 @@ public abstract class AbstractOtp2GraphBuilder implements OtpGraphBuilder {
             cronJobName = graphBuilderCronJobName;
             jobNamePrefix = getJobNamePrefix();
         }
-        kubernetesJobRunner.runJob(cronJobName, jobNamePrefix, getEnvVars(otpWorkDir, candidate), timestamp);
+        GraphBuildScheduler.Priority priority = candidate ? GraphBuildScheduler.Priority.CANDIDATE : GraphBuildScheduler.Priority.PRODUCTION;
+        return graphBuildScheduler.submit(priority, () -> kubernetesJobRunner.runJobAsync(cronJobName, jobNamePrefix, getEnvVars(otpWorkDir, candidate), timestamp));
     }
 
     protected abstract List<EnvVar> getEnvVars(String otpWorkDir, boolean candidate);
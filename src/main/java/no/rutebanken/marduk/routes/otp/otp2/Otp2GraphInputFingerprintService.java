@@ -0,0 +1,126 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ */
+
+
+package no.rutebanken.marduk.routes.otp.otp2;
+
+import no.rutebanken.marduk.domain.BlobStoreFiles;
+import no.rutebanken.marduk.exceptions.MardukException;
+import no.rutebanken.marduk.repository.ProviderRepository;
+import no.rutebanken.marduk.services.MardukInternalBlobStoreService;
+import no.rutebanken.marduk.services.MardukPublicBlobStoreService;
+import no.rutebanken.marduk.services.OtpGraphsBlobStoreService;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static no.rutebanken.marduk.Constants.BLOBSTORE_PATH_OUTBOUND;
+import static no.rutebanken.marduk.Constants.CURRENT_AGGREGATED_NETEX_FILENAME;
+import static no.rutebanken.marduk.Constants.OTP2_STREET_GRAPH_DIR;
+
+/**
+ * Compute a fingerprint of the input data of the OTP2 NeTEx graph: the NeTEx exports of every provider, the stop place
+ * export and the street graph.
+ * The fingerprint is based on the blob metadata only (MD5 hash or object generation), the blobs are not downloaded.
+ * The fingerprint of the latest published graph is stored in the graphs bucket next to the reference to the current graph.
+ */
+@Component
+public class Otp2GraphInputFingerprintService {
+
+    private final ProviderRepository providerRepository;
+    private final MardukPublicBlobStoreService mardukPublicBlobStoreService;
+    private final MardukInternalBlobStoreService mardukInternalBlobStoreService;
+    private final OtpGraphsBlobStoreService otpGraphsBlobStoreService;
+    private final String stopPlaceExportBlobPath;
+    private final String streetGraphDirectory;
+    private final String fingerprintFile;
+
+    public Otp2GraphInputFingerprintService(ProviderRepository providerRepository,
+                                            MardukPublicBlobStoreService mardukPublicBlobStoreService,
+                                            MardukInternalBlobStoreService mardukInternalBlobStoreService,
+                                            OtpGraphsBlobStoreService otpGraphsBlobStoreService,
+                                            @Value("${netex.export.stop.place.blob.path:tiamat/Full_latest.zip}") String stopPlaceExportBlobPath,
+                                            @Value("${otp.graph.blobstore.subdirectory:graphs}") String blobStoreSubdirectory,
+                                            @Value("${otp2.graph.current.file:current-otp2}") String otpGraphCurrentFile) {
+        this.providerRepository = providerRepository;
+        this.mardukPublicBlobStoreService = mardukPublicBlobStoreService;
+        this.mardukInternalBlobStoreService = mardukInternalBlobStoreService;
+        this.otpGraphsBlobStoreService = otpGraphsBlobStoreService;
+        this.stopPlaceExportBlobPath = stopPlaceExportBlobPath;
+        this.streetGraphDirectory = blobStoreSubdirectory + "/" + OTP2_STREET_GRAPH_DIR + "/";
+        this.fingerprintFile = otpGraphCurrentFile + "-input-fingerprint";
+    }
+
+    /**
+     * Compute the fingerprint of the current input data.
+     */
+    public String computeFingerprint() {
+        Set<String> publicBlobs = new HashSet<>();
+        providerRepository.getProviders().stream()
+                .filter(p -> p.getChouetteInfo().getMigrateDataToProvider() == null)
+                .map(p -> BLOBSTORE_PATH_OUTBOUND + "netex/" + p.getChouetteInfo().getReferential() + "-" + CURRENT_AGGREGATED_NETEX_FILENAME)
+                .forEach(publicBlobs::add);
+        publicBlobs.add(stopPlaceExportBlobPath);
+
+        List<String> entries = new ArrayList<>();
+        mardukPublicBlobStoreService.listBlobsInFolders(publicBlobs).getFiles().stream()
+                .filter(file -> publicBlobs.contains(file.getName()))
+                .map(Otp2GraphInputFingerprintService::toFingerprintEntry)
+                .forEach(entries::add);
+        mardukInternalBlobStoreService.listBlobsInFolders(List.of(streetGraphDirectory)).getFiles().stream()
+                .map(Otp2GraphInputFingerprintService::toFingerprintEntry)
+                .forEach(entries::add);
+
+        return DigestUtils.sha256Hex(entries.stream().sorted().collect(Collectors.joining("\n")));
+    }
+
+    /**
+     * Return the fingerprint of the input data of the latest published graph, if any.
+     */
+    public Optional<String> getPublishedFingerprint() {
+        try (InputStream fingerprint = otpGraphsBlobStoreService.getBlob(fingerprintFile)) {
+            if (fingerprint == null) {
+                return Optional.empty();
+            }
+            return Optional.of(IOUtils.toString(fingerprint, StandardCharsets.UTF_8).trim());
+        } catch (IOException e) {
+            throw new MardukException("Failed to read the OTP2 graph input fingerprint", e);
+        }
+    }
+
+    /**
+     * The name of the blob containing the fingerprint of the latest published graph in the graphs bucket.
+     */
+    public String getFingerprintFile() {
+        return fingerprintFile;
+    }
+
+    private static String toFingerprintEntry(BlobStoreFiles.File file) {
+        String version = file.getContentFingerprint() != null ? file.getContentFingerprint() : file.getUpdated().toEpochMilli() + "/" + file.getFileSize();
+        return file.getName() + "=" + version;
+    }
+}
@@ -23,6 +23,7 @@ import no.rutebanken.marduk.routes.status.JobEvent;
 import no.rutebanken.marduk.services.OtpReportBlobStoreService;
 import org.apache.camel.Exchange;
 import org.apache.camel.LoggingLevel;
+import org.apache.camel.Message;
 import org.apache.camel.builder.PredicateBuilder;
 import org.apache.camel.processor.aggregate.GroupedMessageAggregationStrategy;
 import org.apache.commons.io.IOUtils;
@@ -32,6 +33,7 @@ import org.springframework.stereotype.Component;
 
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.List;
 import java.util.UUID;
 
 import static no.rutebanken.marduk.Constants.CHOUETTE_REFERENTIAL;
@@ -57,6 +59,10 @@ public class Otp2NetexGraphRouteBuilder extends BaseRouteBuilder {
 
     private static final String GRAPH_PATH_PROPERTY = "RutebankenGraphPath";
 
+    private static final String PROP_INPUT_FINGERPRINT = "RutebankenGraphInputFingerprint";
+
+    private static final String PROP_INPUT_UNCHANGED = "RutebankenGraphInputUnchanged";
+
     @Value("${otp.graph.blobstore.subdirectory:graphs}")
     private String blobStoreSubdirectory;
 
@@ -72,12 +78,18 @@ public class Otp2NetexGraphRouteBuilder extends BaseRouteBuilder {
     @Value("${blobstore.gcs.otpreport.container.name}")
     String otpReportContainerName;
 
+    @Value("${otp2.graph.build.skip.unchanged:true}")
+    private boolean skipUnchangedGraphBuild;
+
     @Autowired
     private Otp2NetexGraphBuilder otp2NetexGraphBuilder;
 
     @Autowired
     private OtpReportBlobStoreService otpReportBlobStoreService;
 
+    @Autowired
+    private Otp2GraphInputFingerprintService otp2GraphInputFingerprintService;
+
     @Override
     public void configure() throws Exception {
         super.configure();
@@ -85,7 +97,7 @@ public class Otp2NetexGraphRouteBuilder extends BaseRouteBuilder {
 
         singletonFrom("google-pubsub:{{marduk.pubsub.project.id}}:Otp2GraphBuildQueue?maxAckExtensionPeriod=14400").autoStartup("{{otp2.graph.build.autoStartup:true}}")
                 .process(this::removeSynchronizationForAggregatedExchange)
-                .aggregate(new GroupedMessageAggregationStrategy()).constant(true).completionSize(100).aggregateController(idleRouteAggregationMonitor.getAggregateControllerForRoute("otp2-remote-netex-graph-build"))
+                .aggregate(new GroupedMessageAggregationStrategy()).constant(true).completionSize(100).aggregateController(idleRouteAggregationMonitor.getAggregateControllerForRoute("otp2-graph-build"))
                 .process(this::addSynchronizationForAggregatedExchange)
                 .process(this::setNewCorrelationId)
                 .log(LoggingLevel.INFO, correlation() + "Aggregated ${exchangeProperty.CamelAggregatedSize} OTP2 graph building requests (aggregation completion triggered by ${exchangeProperty.CamelAggregatedCompletedBy}).")
@@ -94,7 +106,7 @@ public class Otp2NetexGraphRouteBuilder extends BaseRouteBuilder {
 
         singletonFrom("google-pubsub:{{marduk.pubsub.project.id}}:Otp2GraphCandidateBuildQueue").autoStartup("{{otp2.graph.build.autoStartup:true}}")
                 .process(this::removeSynchronizationForAggregatedExchange)
-                .aggregate(new GroupedMessageAggregationStrategy()).constant(true).completionSize(100).aggregateController(idleRouteAggregationMonitor.getAggregateControllerForRoute("otp2-remote-netex-graph-build"))
+                .aggregate(new GroupedMessageAggregationStrategy()).constant(true).completionSize(100).aggregateController(idleRouteAggregationMonitor.getAggregateControllerForRoute("otp2-graph-candidate-build"))
                 .process(this::addSynchronizationForAggregatedExchange)
                 .process(this::setNewCorrelationId)
                 .setProperty(OTP_BUILD_CANDIDATE, simple("true", Boolean.class))
@@ -105,6 +117,18 @@ public class Otp2NetexGraphRouteBuilder extends BaseRouteBuilder {
         from("direct:remoteBuildOtp2Graph")
                 .setProperty(PROP_MESSAGES, simple("${body}"))
                 .setProperty(TIMESTAMP, simple("${date:now:yyyyMMddHHmmssSSS}"))
+
+                .choice()
+                .when(PredicateBuilder.not(exchangeProperty(OTP_BUILD_CANDIDATE)))
+                .to("direct:checkOtp2GraphInputFingerprint")
+                .end()
+
+                .filter(exchangeProperty(PROP_INPUT_UNCHANGED))
+                .log(LoggingLevel.INFO, getClass().getName(), correlation() + "Skipping OTP2 graph building: the input data are unchanged since the last published graph.")
+                .to("direct:sendOtp2NetexGraphBuildSkippedEvents")
+                .stop()
+                .end()
+
                 .to("direct:sendOtp2NetexGraphBuildStartedEventsInNewTransaction")
                 .setProperty(OTP_REMOTE_WORK_DIR, simple(blobStoreSubdirectory + "/work/" + UUID.randomUUID() + "/${exchangeProperty." + TIMESTAMP + "}"))
                 .log(LoggingLevel.INFO, getClass().getName(), correlation() + "Starting OTP2 graph building in remote directory ${exchangeProperty." + OTP_REMOTE_WORK_DIR + "}.")
@@ -119,6 +143,11 @@ public class Otp2NetexGraphRouteBuilder extends BaseRouteBuilder {
                 .log(LoggingLevel.INFO, getClass().getName(), correlation() + "Done with OTP2 graph building route.")
                 .routeId("otp2-remote-netex-graph-build");
 
+        from("direct:checkOtp2GraphInputFingerprint")
+                .process(this::checkInputFingerprint)
+                .log(LoggingLevel.INFO, getClass().getName(), correlation() + "OTP2 graph input fingerprint: ${exchangeProperty." + PROP_INPUT_FINGERPRINT + "}, unchanged: ${exchangeProperty." + PROP_INPUT_UNCHANGED + "}")
+                .routeId("otp2-netex-graph-check-input-fingerprint");
+
         from("direct:remoteBuildOtp2NetexGraphAndSendStatus")
                 .log(LoggingLevel.INFO, correlation() + "Building OTP2 graph...")
                 .doTry()
@@ -168,6 +197,11 @@ public class Otp2NetexGraphRouteBuilder extends BaseRouteBuilder {
                 .to("direct:uploadOtpGraphsBlob")
                 .log(LoggingLevel.INFO, correlation() + "Done uploading reference to current OTP2 graph: ${header." + FILE_HANDLE + "}")
 
+                // store the fingerprint of the input data next to the reference to the current graph
+                .setBody(exchangeProperty(PROP_INPUT_FINGERPRINT))
+                .setHeader(FILE_HANDLE, constant(otp2GraphInputFingerprintService.getFingerprintFile()))
+                .to("direct:uploadOtpGraphsBlob")
+
                 // copy the graph build report and update the reference to the current report
                 .setHeader(FILE_HANDLE, exchangeProperty(GRAPH_PATH_PROPERTY))
                 .to("direct:remoteCopyVersionedOtp2GraphBuildReport")
@@ -214,6 +248,12 @@ public class Otp2NetexGraphRouteBuilder extends BaseRouteBuilder {
                 .to("direct:sendStatusForOtp2NetexJobs")
                 .routeId("otp2-netex-graph-send-started-events");
 
+        from("direct:sendOtp2NetexGraphBuildSkippedEvents")
+                .process(e -> JobEvent.systemJobBuilder(e).jobDomain(JobEvent.JobDomain.GRAPH).action(JobEvent.TimetableAction.OTP2_BUILD_GRAPH).state(JobEvent.State.SKIPPED).correlationId(e.getProperty(TIMESTAMP, String.class)).build()).to("direct:updateStatus")
+                .setProperty(PROP_STATUS, constant(JobEvent.State.SKIPPED))
+                .to("direct:sendStatusForOtp2NetexJobs")
+                .routeId("otp2-netex-graph-send-skipped-events");
+
         from("direct:sendStatusForOtp2NetexJobs")
                 .doTry() // <- doTry seems necessary for correct transactional handling. not sure why...
                 .split().exchangeProperty(PROP_MESSAGES)
@@ -227,6 +267,23 @@ public class Otp2NetexGraphRouteBuilder extends BaseRouteBuilder {
 
     }
 
+    /**
+     * Compare the fingerprint of the current input data with the one of the latest published graph.
+     * The build is forced if at least one of the aggregated requests has the header {@link Constants#FORCE_GRAPH_BUILD} set.
+     */
+    private void checkInputFingerprint(Exchange e) {
+        String fingerprint = otp2GraphInputFingerprintService.computeFingerprint();
+        e.setProperty(PROP_INPUT_FINGERPRINT, fingerprint);
+        List<?> messages = e.getProperty(PROP_MESSAGES, List.class);
+        boolean forceBuild = messages.stream()
+                .map(Message.class::cast)
+                .anyMatch(message -> message.getHeader(Constants.FORCE_GRAPH_BUILD, false, Boolean.class));
+        boolean unchanged = skipUnchangedGraphBuild
+                && !forceBuild
+                && otp2GraphInputFingerprintService.getPublishedFingerprint().filter(fingerprint::equals).isPresent();
+        e.setProperty(PROP_INPUT_UNCHANGED, unchanged);
+    }
+
     private InputStream createRedirectPage(String version) {
         String url = "http://" + otpReportContainerName + "/" + version + "/index.html";
         String html = "<html>\n" +
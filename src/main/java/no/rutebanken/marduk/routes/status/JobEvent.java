@@ -233,7 +233,7 @@ public class JobEvent {
 
     }
 
-    public enum State {PENDING, STARTED, TIMEOUT, FAILED, OK, DUPLICATE, CANCELLED}
+    public enum State {PENDING, STARTED, TIMEOUT, FAILED, OK, DUPLICATE, CANCELLED, SKIPPED}
 
     private String name;
 
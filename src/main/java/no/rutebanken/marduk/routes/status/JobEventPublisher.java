@@ -0,0 +1,333 @@
+package no.rutebanken.marduk.routes.status;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.cloud.pubsub.v1.Publisher;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.ByteString;
+import com.google.pubsub.v1.PubsubMessage;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import no.rutebanken.marduk.routes.PubSubAttributeCodec;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.component.google.pubsub.GooglePubsubEndpoint;
+import org.apache.camel.support.SynchronizationAdapter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static no.rutebanken.marduk.Constants.CORRELATION_ID;
+
+/**
+ * Publish job status events to the JobEventQueue in batches.
+ * Events are buffered in submission order and published when the buffer reaches the batch size, when the flush interval elapses,
+ * and when the exchange that submitted them completes. Flushes run on a dedicated thread, the exchange thread is never blocked.
+ * The correlation id of the event is used as PubSub ordering key, so that the events of a given job are delivered in the order
+ * they were emitted.
+ * When an event fails, the following events with the same ordering key are not published in the same batch: they are put back
+ * at the head of the buffer together with the failed event, in order, and retried at the next flush.
+ * Events whose publication does not complete within the publish timeout are left to the retry policy of the PubSub publisher
+ * and re-queued only if the publication eventually fails, so that they are not published twice.
+ */
+@Component
+public class JobEventPublisher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(JobEventPublisher.class);
+
+    static final String JOB_EVENT_QUEUE_ENDPOINT = "google-pubsub:{{nabu.pubsub.project.id}}:JobEventQueue?messageOrderingEnabled=true";
+    private static final String FLUSH_ON_COMPLETION_REGISTERED = "JOB_EVENT_FLUSH_ON_COMPLETION_REGISTERED";
+
+    /**
+     * Publish a single message to PubSub.
+     */
+    @FunctionalInterface
+    interface MessagePublisher {
+        ApiFuture<String> publish(PubsubMessage message) throws Exception;
+
+        /**
+         * Resume publishing messages with the given ordering key after a failure.
+         */
+        default void resumePublish(String orderingKey) {
+        }
+    }
+
+    private final CamelContext camelContext;
+    private final MessagePublisher messagePublisher;
+    private final PubSubAttributeCodec pubSubAttributeCodec;
+    private final int batchSize;
+    private final Duration flushInterval;
+    private final Duration publishTimeout;
+    private final Deque<PubsubMessage> buffer = new ArrayDeque<>();
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private ScheduledExecutorService scheduler;
+    private final Timer publishLatency;
+    private final DistributionSummary batchSizeSummary;
+    private final MeterRegistry meterRegistry;
+
+    @Autowired
+    public JobEventPublisher(CamelContext camelContext,
+                             PubSubAttributeCodec pubSubAttributeCodec,
+                             @Value("${job.event.batch.size:100}") int batchSize,
+                             @Value("${job.event.batch.flush.interval:PT1S}") Duration flushInterval,
+                             @Value("${job.event.publish.timeout:PT30S}") Duration publishTimeout,
+                             MeterRegistry meterRegistry) {
+        this(camelContext, pubSubPublisher(camelContext), pubSubAttributeCodec, batchSize, flushInterval, publishTimeout, meterRegistry);
+    }
+
+    JobEventPublisher(CamelContext camelContext, MessagePublisher messagePublisher, PubSubAttributeCodec pubSubAttributeCodec, int batchSize,
+                      Duration flushInterval, Duration publishTimeout, MeterRegistry meterRegistry) {
+        this.camelContext = camelContext;
+        this.messagePublisher = messagePublisher;
+        this.pubSubAttributeCodec = pubSubAttributeCodec;
+        this.batchSize = batchSize;
+        this.flushInterval = flushInterval;
+        this.publishTimeout = publishTimeout;
+        this.meterRegistry = meterRegistry;
+        this.publishLatency = Timer.builder("marduk.job.event.publish.latency")
+                .description("Time spent publishing a batch of job status events")
+                .register(meterRegistry);
+        this.batchSizeSummary = DistributionSummary.builder("marduk.job.event.batch.size")
+                .description("Number of job status events per published batch")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void start() {
+        Gauge.builder("marduk.job.event.pending", this, JobEventPublisher::getNbPendingEvents)
+                .description("Number of job status events waiting to be published")
+                .register(meterRegistry);
+        scheduler = camelContext.getExecutorServiceManager().newSingleThreadScheduledExecutor(this, "JobEventPublisher");
+        scheduler.scheduleWithFixedDelay(this::flushQuietly, flushInterval.toMillis(), flushInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Use the publisher managed by the Camel PubSub component, so that the endpoint configuration
+     * (credentials, emulator) is shared with the PubSub routes.
+     */
+    private static MessagePublisher pubSubPublisher(CamelContext camelContext) {
+        return new MessagePublisher() {
+            @Override
+            public ApiFuture<String> publish(PubsubMessage message) throws Exception {
+                return publisher().publish(message);
+            }
+
+            @Override
+            public void resumePublish(String orderingKey) {
+                try {
+                    publisher().resumePublish(orderingKey);
+                } catch (ExecutionException e) {
+                    LOGGER.warn("Could not resume publishing job status events for ordering key {}", orderingKey, e);
+                }
+            }
+
+            private Publisher publisher() throws ExecutionException {
+                GooglePubsubEndpoint endpoint = camelContext.getEndpoint(JOB_EVENT_QUEUE_ENDPOINT, GooglePubsubEndpoint.class);
+                String topicName = String.format("projects/%s/topics/%s", endpoint.getProjectId(), endpoint.getDestinationName());
+                return endpoint.getComponent().getPublisher(topicName, endpoint);
+            }
+        };
+    }
+
+    /**
+     * Buffer the job status event in the exchange body. The event is published at the latest when the exchange completes.
+     */
+    public void submit(Exchange exchange) {
+        PubsubMessage.Builder messageBuilder = PubsubMessage.newBuilder()
+                .setData(ByteString.copyFromUtf8(exchange.getIn().getBody(String.class)))
+                .putAllAttributes(pubSubAttributeCodec.toAttributes(exchange.getIn().getHeaders()));
+        String correlationId = exchange.getIn().getHeader(CORRELATION_ID, String.class);
+        if (correlationId != null) {
+            messageBuilder.setOrderingKey(correlationId);
+        }
+        PubsubMessage message = messageBuilder.build();
+        int nbPendingEvents;
+        synchronized (buffer) {
+            buffer.addLast(message);
+            nbPendingEvents = buffer.size();
+        }
+        if (nbPendingEvents >= batchSize) {
+            scheduleFlush();
+        }
+        if (exchange.getProperty(FLUSH_ON_COMPLETION_REGISTERED) == null) {
+            exchange.setProperty(FLUSH_ON_COMPLETION_REGISTERED, true);
+            exchange.getExchangeExtension().addOnCompletion(new SynchronizationAdapter() {
+                @Override
+                public void onDone(Exchange completedExchange) {
+                    scheduleFlush();
+                }
+            });
+        }
+    }
+
+    private void scheduleFlush() {
+        if (scheduler != null) {
+            scheduler.execute(this::flushQuietly);
+        }
+    }
+
+    /**
+     * Publish all buffered events, in batches.
+     *
+     * @return true if all events were published.
+     */
+    public boolean flush() {
+        flushLock.lock();
+        try {
+            List<PubsubMessage> batch = nextBatch();
+            while (!batch.isEmpty()) {
+                if (!publish(batch)) {
+                    return false;
+                }
+                batch = nextBatch();
+            }
+            return true;
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private List<PubsubMessage> nextBatch() {
+        synchronized (buffer) {
+            List<PubsubMessage> batch = new ArrayList<>(Math.min(batchSize, buffer.size()));
+            while (batch.size() < batchSize && !buffer.isEmpty()) {
+                batch.add(buffer.pollFirst());
+            }
+            return batch;
+        }
+    }
+
+    /**
+     * Publish the batch and wait for the messages to be acknowledged by PubSub.
+     * The messages that failed, and the messages following them with the same ordering key, are put back at the head of the buffer, in order.
+     * The messages that are still in flight when the publish timeout elapses are put back in the buffer only if their publication fails later on.
+     */
+    private boolean publish(List<PubsubMessage> batch) {
+        long start = System.nanoTime();
+        List<ApiFuture<String>> futures = new ArrayList<>(batch.size());
+        Set<String> failedOrderingKeys = new HashSet<>();
+        Exception failure = null;
+        for (PubsubMessage message : batch) {
+            if (failedOrderingKeys.contains(message.getOrderingKey())) {
+                futures.add(null);
+                continue;
+            }
+            try {
+                futures.add(messagePublisher.publish(message));
+            } catch (Exception e) {
+                futures.add(null);
+                failedOrderingKeys.add(message.getOrderingKey());
+                failure = e;
+            }
+        }
+        long deadline = start + publishTimeout.toNanos();
+        List<PubsubMessage> failed = new ArrayList<>();
+        int nbInFlight = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            PubsubMessage message = batch.get(i);
+            ApiFuture<String> future = futures.get(i);
+            try {
+                if (future == null) {
+                    failed.add(message);
+                } else {
+                    future.get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                requeueOnFailure(message, future);
+                nbInFlight++;
+                failure = e;
+            } catch (ExecutionException e) {
+                failed.add(message);
+                failedOrderingKeys.add(message.getOrderingKey());
+                failure = e;
+            } catch (TimeoutException e) {
+                requeueOnFailure(message, future);
+                nbInFlight++;
+                failure = e;
+            }
+        }
+        publishLatency.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        batchSizeSummary.record(batch.size());
+        if (failed.isEmpty() && nbInFlight == 0) {
+            LOGGER.debug("Published {} job status events", batch.size());
+            return true;
+        }
+        synchronized (buffer) {
+            for (int i = failed.size() - 1; i >= 0; i--) {
+                buffer.addFirst(failed.get(i));
+            }
+        }
+        failedOrderingKeys.stream().filter(orderingKey -> !orderingKey.isEmpty()).forEach(messagePublisher::resumePublish);
+        LOGGER.warn("Failed to publish {} of {} job status events, they will be retried at the next flush. {} events are still in flight",
+                failed.size(), batch.size(), nbInFlight, failure);
+        return false;
+    }
+
+    /**
+     * Put the message back in the buffer if its publication, still in progress, eventually fails.
+     */
+    private void requeueOnFailure(PubsubMessage message, ApiFuture<String> future) {
+        ApiFutures.addCallback(future, new ApiFutureCallback<>() {
+            @Override
+            public void onFailure(Throwable t) {
+                LOGGER.warn("Failed to publish job status event, it will be retried at the next flush", t);
+                synchronized (buffer) {
+                    buffer.addFirst(message);
+                }
+                if (!message.getOrderingKey().isEmpty()) {
+                    messagePublisher.resumePublish(message.getOrderingKey());
+                }
+            }
+
+            @Override
+            public void onSuccess(String messageId) {
+                // published
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            LOGGER.warn("Error while publishing job status events", e);
+        }
+    }
+
+    public int getNbPendingEvents() {
+        synchronized (buffer) {
+            return buffer.size();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (scheduler != null) {
+            camelContext.getExecutorServiceManager().shutdown(scheduler);
+        }
+        if (!flush()) {
+            LOGGER.error("{} job status events could not be published before shutdown", getNbPendingEvents());
+        }
+    }
+}
@@ -20,14 +20,26 @@ import no.rutebanken.marduk.routes.BaseRouteBuilder;
 import org.apache.camel.LoggingLevel;
 import org.springframework.stereotype.Component;
 
+/**
+ * Submit job status events to the {@link JobEventPublisher}, which publishes them to the JobEventQueue in batches.
+ */
 @Component
 public class StatusRouteBuilder extends BaseRouteBuilder {
 
+    private final JobEventPublisher jobEventPublisher;
+
+    public StatusRouteBuilder(JobEventPublisher jobEventPublisher) {
+        this.jobEventPublisher = jobEventPublisher;
+    }
+
     @Override
     public void configure() {
+        // register the JobEventQueue endpoint at startup so that the topic is created along with the other PubSub endpoints
+        endpoint(JobEventPublisher.JOB_EVENT_QUEUE_ENDPOINT);
+
         from("direct:updateStatus")
                 .log(LoggingLevel.INFO, getClass().getName(), correlation() + "Sending off job status event: ${body}")
-                .to("google-pubsub:{{nabu.pubsub.project.id}}:JobEventQueue")
+                .process(jobEventPublisher::submit)
                 .routeId("update-status").startupOrder(1);
     }
 }
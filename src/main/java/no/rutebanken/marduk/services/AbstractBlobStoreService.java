@@ -2,10 +2,14 @@ package no.rutebanken.marduk.services;
 
 import no.rutebanken.marduk.Constants;
 import no.rutebanken.marduk.domain.BlobStoreFiles;
+import no.rutebanken.marduk.exceptions.BulkBlobOperationException;
 import no.rutebanken.marduk.exceptions.MardukException;
+import no.rutebanken.marduk.json.BlobStoreFilesJsonInputStream;
+import no.rutebanken.marduk.repository.BulkOperationResult;
 import no.rutebanken.marduk.repository.MardukBlobStoreRepository;
 import org.apache.camel.Exchange;
 import org.apache.camel.Header;
+import org.springframework.beans.factory.annotation.Autowired;
 
 import java.io.InputStream;
 import java.util.Collection;
@@ -18,12 +22,19 @@ public abstract class AbstractBlobStoreService {
 
     private final String containerName;
 
+    private BlobMetadataCache blobMetadataCache = BlobMetadataCache.disabled();
+
     protected AbstractBlobStoreService(String containerName, MardukBlobStoreRepository repository) {
         this.containerName = containerName;
         this.repository = repository;
         this.repository.setContainerName(containerName);
     }
 
+    @Autowired
+    public void setBlobMetadataCache(BlobMetadataCache blobMetadataCache) {
+        this.blobMetadataCache = blobMetadataCache;
+    }
+
     public BlobStoreFiles listBlobsInFolder(@Header(value = Exchange.FILE_PARENT) String folder) {
         return repository.listBlobs(folder + "/");
     }
@@ -32,6 +43,16 @@ public abstract class AbstractBlobStoreService {
         return repository.listBlobs(folders);
     }
 
+    /**
+     * List the files under the given folders, using the blob metadata cache.
+     * The listing may not reflect the latest changes made by other applications.
+     */
+    public BlobStoreFiles listCachedBlobsInFolders(@Header(value = Constants.FILE_PARENT_COLLECTION) Collection<String> folders) {
+        BlobStoreFiles blobStoreFiles = new BlobStoreFiles();
+        folders.forEach(folder -> blobStoreFiles.add(blobMetadataCache.getFiles(containerName, folder, false, () -> repository.listBlobs(folder).getFiles())));
+        return blobStoreFiles;
+    }
+
     public BlobStoreFiles listBlobs(@Header(value = Constants.CHOUETTE_REFERENTIAL) String referential) {
         return repository.listBlobs(Constants.BLOBSTORE_PATH_INBOUND + referential + "/");
     }
@@ -40,6 +61,38 @@ public abstract class AbstractBlobStoreService {
         return repository.listBlobsFlat(Constants.BLOBSTORE_PATH_INBOUND + referential + "/");
     }
 
+    /**
+     * Return the list of files under the given folders as a JSON stream, serialized while the files are being listed.
+     * The files are served from the blob metadata cache when it is enabled.
+     */
+    public InputStream streamBlobsInFolders(@Header(value = Constants.FILE_PARENT_COLLECTION) Collection<String> folders) {
+        if (blobMetadataCache.isEnabled()) {
+            return new BlobStoreFilesJsonInputStream(listCachedBlobsInFolders(folders).getFiles().stream());
+        }
+        return new BlobStoreFilesJsonInputStream(repository.streamBlobs(folders));
+    }
+
+    /**
+     * Return the list of inbound files for the given referential as a JSON stream. The file names are stripped of the inbound folder.
+     * If a page size is provided, only one page of files is returned, together with a token to the next page.
+     */
+    public InputStream streamBlobsFlat(@Header(value = Constants.CHOUETTE_REFERENTIAL) String referential,
+                                       @Header(value = Constants.FILE_PAGE_TOKEN) String pageToken,
+                                       @Header(value = Constants.FILE_PAGE_SIZE) Integer pageSize) {
+        String prefix = Constants.BLOBSTORE_PATH_INBOUND + referential + "/";
+        if (pageSize == null) {
+            if (blobMetadataCache.isEnabled()) {
+                return new BlobStoreFilesJsonInputStream(blobMetadataCache.getFiles(containerName, prefix, true, () -> repository.listBlobsFlat(prefix).getFiles()).stream());
+            }
+            return new BlobStoreFilesJsonInputStream(repository.streamBlobsFlat(prefix));
+        }
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("Invalid page size: " + pageSize);
+        }
+        BlobStoreFiles page = repository.listBlobsFlat(prefix, pageToken, pageSize);
+        return new BlobStoreFilesJsonInputStream(page.getFiles().stream(), page.getNextPageToken());
+    }
+
     public BlobStoreFiles.File findBlob(@Header(value = Constants.FILE_PREFIX) String prefix) {
         BlobStoreFiles blobStoreFiles = repository.listBlobs(prefix);
         if(blobStoreFiles.getFiles().isEmpty()) {
@@ -54,20 +107,31 @@ public abstract class AbstractBlobStoreService {
         return repository.getBlob(name);
     }
 
+    protected BlobMetadataCache getBlobMetadataCache() {
+        return blobMetadataCache;
+    }
+
+    protected String getContainerName() {
+        return containerName;
+    }
+
     public void uploadBlob(@Header(value = Constants.FILE_HANDLE) String name,
                            InputStream inputStream, Exchange exchange) {
         long generation = repository.uploadBlob(name, inputStream);
+        blobMetadataCache.onBlobWritten(containerName, name);
         exchange.getIn().setHeader(Constants.FILE_VERSION, generation);
     }
 
     public void copyBlobInBucket(@Header(value = Constants.FILE_HANDLE) String sourceName, @Header(value = Constants.TARGET_FILE_HANDLE) String targetName) {
         repository.copyBlob(containerName, sourceName, containerName, targetName);
+        blobMetadataCache.onBlobWritten(containerName, targetName);
     }
 
     public void copyBlobToAnotherBucket(@Header(value = Constants.FILE_HANDLE) String sourceName,
                                         @Header(value = Constants.TARGET_CONTAINER) String targetContainerName,
                                         @Header(value = Constants.TARGET_FILE_HANDLE) String targetName) {
         repository.copyBlob(containerName, sourceName, targetContainerName, targetName);
+        blobMetadataCache.onBlobWritten(targetContainerName, targetName);
     }
 
     public void copyVersionedBlobToAnotherBucket(@Header(value = Constants.FILE_HANDLE) String sourceName,
@@ -75,18 +139,48 @@ public abstract class AbstractBlobStoreService {
                                         @Header(value = Constants.TARGET_CONTAINER) String targetContainerName,
                                         @Header(value = Constants.TARGET_FILE_HANDLE) String targetName) {
         repository.copyVersionedBlob(containerName, sourceName, sourceVersion, targetContainerName, targetName);
+        blobMetadataCache.onBlobWritten(targetContainerName, targetName);
     }
 
+    /**
+     * Copy all blobs in a folder, with bounded concurrency.
+     * @throws BulkBlobOperationException if some of the blobs could not be copied.
+     */
     public void copyAllBlobs(@Header(value = Exchange.FILE_PARENT) String sourceFolder, @Header(value = Constants.TARGET_CONTAINER) String targetContainerName, @Header(value = Constants.TARGET_FILE_PARENT) String targetFolder) {
-        repository.copyAllBlobs(containerName, sourceFolder, targetContainerName, targetFolder);
+        BulkOperationResult result = repository.copyBlobsInFolder(containerName, sourceFolder, targetContainerName, targetFolder);
+        blobMetadataCache.onFolderWritten(targetContainerName, targetFolder);
+        checkBulkOperationResult("Copy of the blobs in folder " + sourceFolder + " to " + targetContainerName + "/" + targetFolder, result);
     }
 
     public boolean deleteBlob(@Header(value = FILE_HANDLE) String name) {
-        return repository.delete(name);
+        boolean deleted = repository.delete(name);
+        blobMetadataCache.onBlobDeleted(containerName, name);
+        return deleted;
     }
 
+    /**
+     * Delete all blobs in a folder, using batched requests with bounded concurrency.
+     * @return true if at least one blob was deleted.
+     * @throws BulkBlobOperationException if some of the blobs could not be deleted.
+     */
     public boolean deleteAllBlobsInFolder(@Header(value = Exchange.FILE_PARENT) String folder) {
-        return repository.deleteAllFilesInFolder(folder);
+        BulkOperationResult result = repository.deleteBlobsInFolder(folder);
+        blobMetadataCache.onFolderWritten(containerName, folder);
+        checkBulkOperationResult("Deletion of the blobs in folder " + folder, result);
+        return result.nbSucceeded() > 0;
+    }
+
+    private void checkBulkOperationResult(String operation, BulkOperationResult result) {
+        if (result.hasFailures()) {
+            throw new BulkBlobOperationException(operation + " in bucket " + containerName + " partially failed: " + result.summary(), result);
+        }
+    }
+
+    /**
+     * Delete the stored contents that are not referenced any more, if the container uses content-addressed storage.
+     */
+    public void collectUnreferencedContent() {
+        repository.collectUnreferencedContent();
     }
 
 }
@@ -0,0 +1,142 @@
+package no.rutebanken.marduk.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.rutebanken.marduk.domain.BlobStoreFiles;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Cache of blob listings, per bucket and per prefix.
+ * Writes performed by Marduk through the blob store services update or invalidate the cached listings they affect.
+ * The cache is local to each Marduk instance and the invalidation applies only to the writes performed by this instance.
+ * Cached listings expire after a short, configurable time to live, so that writes performed by other Marduk instances
+ * or by other applications (for example the graph builder) are reflected within seconds.
+ * The cache is meant for listings displayed to users. Processing that relies on an up-to-date listing should not use it.
+ */
+@Component
+public class BlobMetadataCache {
+
+    private final boolean enabled;
+    private final long ttlNanos;
+    private final Map<CacheKey, CachedListing> cachedListings = new ConcurrentHashMap<>();
+
+    /**
+     * Incremented on every write, so that a listing loaded concurrently with a write is not cached.
+     */
+    private final AtomicLong writeCounter = new AtomicLong();
+
+    private final Counter hits;
+    private final Counter misses;
+
+    public BlobMetadataCache(MeterRegistry meterRegistry,
+                             @Value("${blobstore.metadata.cache.enabled:true}") boolean enabled,
+                             @Value("${blobstore.metadata.cache.ttl.seconds:30}") long ttlSeconds) {
+        this.enabled = enabled;
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        Counter hitCounter = Counter.builder("marduk.blobstore.metadata.cache.requests").tag("result", "hit").register(meterRegistry);
+        Counter missCounter = Counter.builder("marduk.blobstore.metadata.cache.requests").tag("result", "miss").register(meterRegistry);
+        Gauge.builder("marduk.blobstore.metadata.cache.hit.ratio", () -> hitRatio(hitCounter, missCounter)).register(meterRegistry);
+        Gauge.builder("marduk.blobstore.metadata.cache.size", cachedListings, Map::size).register(meterRegistry);
+        hits = hitCounter;
+        misses = missCounter;
+    }
+
+    /**
+     * A cache that does not cache anything, used when no cache is configured.
+     */
+    static BlobMetadataCache disabled() {
+        return new BlobMetadataCache(new SimpleMeterRegistry(), false, 0);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Return the cached listing for a prefix, or load it if it is not cached or has expired.
+     *
+     * @param containerName the bucket.
+     * @param prefix        the prefix.
+     * @param flat          true if the file names in the listing are stripped of the prefix.
+     * @param loader        retrieves the listing from the blob store.
+     * @return the files under the prefix.
+     */
+    public List<BlobStoreFiles.File> getFiles(String containerName, String prefix, boolean flat, Supplier<List<BlobStoreFiles.File>> loader) {
+        if (!enabled) {
+            return loader.get();
+        }
+        CacheKey cacheKey = new CacheKey(containerName, prefix, flat);
+        CachedListing cachedListing = cachedListings.get(cacheKey);
+        if (cachedListing != null && System.nanoTime() - cachedListing.loadedAt < ttlNanos) {
+            hits.increment();
+            return cachedListing.files;
+        }
+        misses.increment();
+        long writeCount = writeCounter.get();
+        long loadedAt = System.nanoTime();
+        List<BlobStoreFiles.File> files = List.copyOf(loader.get());
+        cachedListings.put(cacheKey, new CachedListing(files, loadedAt));
+        if (writeCounter.get() != writeCount) {
+            // a write may have happened while loading: the listing may be stale
+            cachedListings.remove(cacheKey);
+        }
+        return files;
+    }
+
+    /**
+     * Invalidate the listings containing a blob that was created or overwritten.
+     */
+    public void onBlobWritten(String containerName, String name) {
+        writeCounter.incrementAndGet();
+        cachedListings.keySet().removeIf(cacheKey -> cacheKey.containerName.equals(containerName) && name.startsWith(cacheKey.prefix));
+    }
+
+    /**
+     * Remove a deleted blob from the cached listings.
+     */
+    public void onBlobDeleted(String containerName, String name) {
+        writeCounter.incrementAndGet();
+        cachedListings.replaceAll((cacheKey, cachedListing) -> {
+            if (!cacheKey.containerName.equals(containerName) || !name.startsWith(cacheKey.prefix)) {
+                return cachedListing;
+            }
+            String fileName = cacheKey.flat ? name.substring(cacheKey.prefix.length()) : name;
+            List<BlobStoreFiles.File> files = cachedListing.files.stream().filter(file -> !fileName.equals(file.getName())).toList();
+            return new CachedListing(files, cachedListing.loadedAt);
+        });
+    }
+
+    /**
+     * Invalidate the listings overlapping a folder in which several blobs were written or deleted.
+     */
+    public void onFolderWritten(String containerName, String folder) {
+        writeCounter.incrementAndGet();
+        cachedListings.keySet().removeIf(cacheKey -> cacheKey.containerName.equals(containerName)
+                && (cacheKey.prefix.startsWith(folder) || folder.startsWith(cacheKey.prefix)));
+    }
+
+    double getHitRatio() {
+        return hitRatio(hits, misses);
+    }
+
+    private static double hitRatio(Counter hits, Counter misses) {
+        double total = hits.count() + misses.count();
+        return total == 0 ? 0 : hits.count() / total;
+    }
+
+    private record CacheKey(String containerName, String prefix, boolean flat) {
+    }
+
+    private record CachedListing(List<BlobStoreFiles.File> files, long loadedAt) {
+    }
+}
@@ -35,6 +35,7 @@ public class OtpReportBlobStoreService extends AbstractBlobStoreService {
 
     public void uploadHtmlBlob(String name, InputStream inputStream) {
         repository.uploadBlob(name, inputStream, "text/html");
+        getBlobMetadataCache().onBlobWritten(getContainerName(), name);
     }
 
 }
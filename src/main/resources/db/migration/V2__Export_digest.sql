@@ -0,0 +1,6 @@
+CREATE TABLE IF NOT EXISTS export_digest (
+     referential character varying(255) NOT NULL,
+     digest character varying(255) NOT NULL,
+     updatedat timestamp without time zone,
+     constraint export_digest_pk primary key (referential)
+);
@@ -0,0 +1,10 @@
+CREATE TABLE IF NOT EXISTS speculative_import (
+     correlation_id character varying(255) NOT NULL,
+     referential character varying(255) NOT NULL,
+     import_ok boolean NOT NULL DEFAULT false,
+     validation_ok boolean,
+     promoted boolean NOT NULL DEFAULT false,
+     createdat timestamp without time zone NOT NULL,
+     constraint speculative_import_pk primary key (correlation_id)
+);
+CREATE INDEX IF NOT EXISTS speculative_import_referential_index ON speculative_import (referential);
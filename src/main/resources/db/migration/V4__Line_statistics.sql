@@ -0,0 +1,9 @@
+CREATE TABLE IF NOT EXISTS line_statistics (
+     referential character varying(255) NOT NULL,
+     statistics text,
+     version bigint NOT NULL DEFAULT 0,
+     updatedat timestamp without time zone,
+     staleat timestamp without time zone,
+     constraint line_statistics_pk primary key (referential)
+);
+CREATE INDEX IF NOT EXISTS line_statistics_version_index ON line_statistics (version);
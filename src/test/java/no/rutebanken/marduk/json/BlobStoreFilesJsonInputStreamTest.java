@@ -0,0 +1,65 @@
+package no.rutebanken.marduk.json;
+
+import no.rutebanken.marduk.domain.BlobStoreFiles;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+class BlobStoreFilesJsonInputStreamTest {
+
+    @Test
+    void testSameOutputAsBlobStoreFilesSerialization() throws IOException {
+        List<BlobStoreFiles.File> files = List.of(
+                new BlobStoreFiles.File("inbound/received/rut/file1.zip", Instant.ofEpochMilli(1000), Instant.ofEpochMilli(2000), 10L),
+                new BlobStoreFiles.File("inbound/received/rut/file2.zip", Instant.ofEpochMilli(3000), Instant.ofEpochMilli(4000), 20L));
+        BlobStoreFiles blobStoreFiles = new BlobStoreFiles();
+        blobStoreFiles.add(files);
+
+        String expected = ObjectMapperFactory.getSharedObjectMapper().writeValueAsString(blobStoreFiles);
+        try (InputStream inputStream = new BlobStoreFilesJsonInputStream(files.stream())) {
+            Assertions.assertEquals(expected, new String(inputStream.readAllBytes(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    void testEmptyListWithNextPageToken() throws IOException {
+        try (InputStream inputStream = new BlobStoreFilesJsonInputStream(Stream.empty(), "token")) {
+            BlobStoreFiles blobStoreFiles = ObjectMapperFactory.getSharedObjectMapper().readValue(inputStream, BlobStoreFiles.class);
+            Assertions.assertTrue(blobStoreFiles.getFiles().isEmpty());
+            Assertions.assertEquals("token", blobStoreFiles.getNextPageToken());
+        }
+    }
+
+    @Test
+    void testListingFailureBeforeFirstFileIsThrownOnCreation() {
+        Stream<BlobStoreFiles.File> failingFiles = Stream.generate(() -> {
+            throw new IllegalStateException("blob store unavailable");
+        });
+        Assertions.assertThrows(IllegalStateException.class, () -> new BlobStoreFilesJsonInputStream(failingFiles));
+    }
+
+    @Test
+    void testListingFailureAfterFirstFileAbortsTheStream() throws IOException {
+        AtomicBoolean closed = new AtomicBoolean();
+        Iterator<BlobStoreFiles.File> files = List.of(new BlobStoreFiles.File("inbound/received/rut/file1.zip", Instant.ofEpochMilli(1000), Instant.ofEpochMilli(2000), 10L)).iterator();
+        Stream<BlobStoreFiles.File> failingFiles = Stream.generate(() -> {
+            if (files.hasNext()) {
+                return files.next();
+            }
+            throw new IllegalStateException("blob store unavailable");
+        }).onClose(() -> closed.set(true));
+
+        try (InputStream inputStream = new BlobStoreFilesJsonInputStream(failingFiles)) {
+            Assertions.assertThrows(IOException.class, inputStream::readAllBytes);
+            Assertions.assertTrue(closed.get());
+        }
+    }
+}
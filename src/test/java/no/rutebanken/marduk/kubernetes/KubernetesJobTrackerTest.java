@@ -0,0 +1,93 @@
+package no.rutebanken.marduk.kubernetes;
+
+import io.fabric8.kubernetes.api.model.Pod;
+import io.fabric8.kubernetes.api.model.PodBuilder;
+import io.fabric8.kubernetes.api.model.batch.v1.Job;
+import io.fabric8.kubernetes.api.model.batch.v1.JobBuilder;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+class KubernetesJobTrackerTest {
+
+    private static final String JOB_NAME = "graph-builder-20240101";
+
+    private final KubernetesJobTracker kubernetesJobTracker = new KubernetesJobTracker("default");
+
+    @Test
+    void testJobSucceeded() {
+        CompletableFuture<Void> jobCompletion = kubernetesJobTracker.register(job(2));
+        kubernetesJobTracker.onPodEvent(pod("pod-1", JOB_NAME, "Running"));
+        Assertions.assertFalse(jobCompletion.isDone());
+
+        kubernetesJobTracker.onPodEvent(pod("pod-1", JOB_NAME, "Succeeded"));
+        Assertions.assertTrue(jobCompletion.isDone());
+        Assertions.assertFalse(jobCompletion.isCompletedExceptionally());
+        Assertions.assertEquals(0, kubernetesJobTracker.getTrackedJobCount());
+    }
+
+    @Test
+    void testJobFailedAfterBackoffLimit() {
+        CompletableFuture<Void> jobCompletion = kubernetesJobTracker.register(job(2));
+        kubernetesJobTracker.onPodEvent(pod("pod-1", JOB_NAME, "Failed"));
+        // duplicate events for the same failed pod are counted once
+        kubernetesJobTracker.onPodEvent(pod("pod-1", JOB_NAME, "Failed"));
+        Assertions.assertFalse(jobCompletion.isDone());
+
+        kubernetesJobTracker.onPodEvent(pod("pod-2", JOB_NAME, "Failed"));
+        CompletionException exception = Assertions.assertThrows(CompletionException.class, jobCompletion::join);
+        Assertions.assertInstanceOf(KubernetesJobRunnerException.class, exception.getCause());
+    }
+
+    @Test
+    void testPodsOfOtherJobsAreIgnored() {
+        CompletableFuture<Void> jobCompletion = kubernetesJobTracker.register(job(1));
+        kubernetesJobTracker.onPodEvent(pod("pod-1", "other-job", "Succeeded"));
+        Assertions.assertFalse(jobCompletion.isDone());
+    }
+
+    @Test
+    void testJobDeleted() {
+        Job job = job(1);
+        CompletableFuture<Void> jobCompletion = kubernetesJobTracker.register(job);
+        kubernetesJobTracker.onJobDeleted(job);
+        Assertions.assertTrue(jobCompletion.isCompletedExceptionally());
+    }
+
+    @Test
+    void testInformerStoppedFailsTrackedJobsWithWatchException() {
+        CompletableFuture<Void> jobCompletion = kubernetesJobTracker.register(job(1));
+        kubernetesJobTracker.onInformerStopped(new KubernetesClientException("connection lost"));
+        CompletionException exception = Assertions.assertThrows(CompletionException.class, jobCompletion::join);
+        Assertions.assertInstanceOf(KubernetesJobWatchException.class, exception.getCause());
+        Assertions.assertEquals(0, kubernetesJobTracker.getTrackedJobCount());
+    }
+
+    @Test
+    void testJobsWithoutMardukLabelAreWatchedByName() {
+        Assertions.assertFalse(KubernetesJobTracker.isLabelled(job(1)));
+        Job labelledJob = new JobBuilder(job(1)).editMetadata()
+                .addToLabels(KubernetesJobTracker.MARDUK_JOB_LABEL, KubernetesJobTracker.MARDUK_JOB_LABEL_VALUE)
+                .endMetadata().build();
+        Assertions.assertTrue(KubernetesJobTracker.isLabelled(labelledJob));
+        Job jobManagedByAnotherTool = new JobBuilder(job(1)).editMetadata()
+                .addToLabels("app.kubernetes.io/managed-by", "marduk")
+                .endMetadata().build();
+        Assertions.assertFalse(KubernetesJobTracker.isLabelled(jobManagedByAnotherTool));
+    }
+
+    private static Job job(int backoffLimit) {
+        return new JobBuilder().withNewMetadata().withName(JOB_NAME).endMetadata()
+                .withNewSpec().withBackoffLimit(backoffLimit).endSpec()
+                .build();
+    }
+
+    private static Pod pod(String podName, String jobName, String phase) {
+        return new PodBuilder().withNewMetadata().withName(podName).addToLabels("job-name", jobName).endMetadata()
+                .withNewStatus().withPhase(phase).endStatus()
+                .build();
+    }
+}
@@ -0,0 +1,112 @@
+package no.rutebanken.marduk.kubernetes;
+
+import io.fabric8.kubernetes.api.model.ConfigMap;
+import io.fabric8.kubernetes.api.model.EnvVar;
+import io.fabric8.kubernetes.api.model.Pod;
+import io.fabric8.kubernetes.api.model.PodBuilder;
+import io.fabric8.kubernetes.api.model.batch.v1.Job;
+import io.fabric8.kubernetes.api.model.batch.v1.JobBuilder;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+class KubernetesWarmPoolTest {
+
+    private static final String CRON_JOB_NAME = "graph-builder-otp2";
+
+    @Test
+    void testSelectRunningUnassignedWorker() {
+        Job assignedWorker = worker("worker-1", "otp2-graph-builder-netex-20240101");
+        Job pendingWorker = worker("worker-2", null);
+        Job runningWorker = worker("worker-3", null);
+        Map<String, List<Pod>> pods = Map.of(
+                "worker-1", List.of(pod("worker-1-pod", "worker-1", "Running")),
+                "worker-2", List.of(pod("worker-2-pod", "worker-2", "Pending")),
+                "worker-3", List.of(pod("worker-3-pod", "worker-3", "Running")));
+
+        Optional<Pod> idleWorkerPod = KubernetesWarmPool.selectIdleWorkerPod(List.of(assignedWorker, pendingWorker, runningWorker), pods::get);
+
+        Assertions.assertTrue(idleWorkerPod.isPresent());
+        Assertions.assertEquals("worker-3-pod", idleWorkerPod.get().getMetadata().getName());
+    }
+
+    @Test
+    void testTerminatedWorkerIsNotSelected() {
+        Job worker = worker("worker-1", null);
+        Map<String, List<Pod>> pods = Map.of("worker-1", List.of(pod("worker-1-pod-1", "worker-1", "Failed"), pod("worker-1-pod-2", "worker-1", "Running")));
+
+        Assertions.assertTrue(KubernetesWarmPool.selectIdleWorkerPod(List.of(worker), pods::get).isEmpty());
+    }
+
+    @Test
+    void testToWorker() {
+        Job job = new JobBuilder().withNewMetadata().withName("worker-1").endMetadata()
+                .withNewSpec().withNewTemplate().withNewSpec().addNewContainer().withName("graph-builder").endContainer().endSpec().endTemplate().endSpec()
+                .build();
+
+        Job worker = KubernetesWarmPool.toWorker(job, CRON_JOB_NAME);
+
+        Assertions.assertEquals(CRON_JOB_NAME, worker.getMetadata().getLabels().get(KubernetesWarmPool.WARM_POOL_LABEL));
+        Assertions.assertEquals(CRON_JOB_NAME, worker.getSpec().getTemplate().getMetadata().getLabels().get(KubernetesWarmPool.WARM_POOL_LABEL));
+        Assertions.assertEquals(1, worker.getSpec().getTemplate().getSpec().getVolumes().size());
+        Assertions.assertEquals("worker-1", worker.getSpec().getTemplate().getSpec().getVolumes().getFirst().getConfigMap().getName());
+        Assertions.assertTrue(worker.getSpec().getTemplate().getSpec().getVolumes().getFirst().getConfigMap().getOptional());
+        Assertions.assertTrue(worker.getSpec().getTemplate().getSpec().getContainers().getFirst().getEnv().stream()
+                .anyMatch(envVar -> KubernetesWarmPool.WORK_ASSIGNMENT_FILE_ENV_VAR.equals(envVar.getName())));
+    }
+
+    @Test
+    void testEncodeWorkAssignment() {
+        String workAssignment = KubernetesWarmPool.encodeWorkAssignment(List.of(
+                new EnvVar("OTP_GCS_WORK_DIR", "work/123", null),
+                new EnvVar("OTP_GRAPH_MODE", "--loadStreet", null)));
+        Assertions.assertEquals("OTP_GCS_WORK_DIR='work/123'\nOTP_GRAPH_MODE='--loadStreet'\n", workAssignment);
+    }
+
+    @Test
+    void testEncodeWorkAssignmentEscapesValues() {
+        String workAssignment = KubernetesWarmPool.encodeWorkAssignment(List.of(
+                new EnvVar("VALUE", "it's\nOTHER=$(reboot)", null)));
+        Assertions.assertEquals("VALUE='it'\\''s\nOTHER=$(reboot)'\n", workAssignment);
+        List<EnvVar> invalidName = List.of(new EnvVar("A=B", "value", null));
+        Assertions.assertThrows(KubernetesJobRunnerException.class, () -> KubernetesWarmPool.encodeWorkAssignment(invalidName));
+    }
+
+    @Test
+    void testWorkAssignmentIsOwnedByWorkerJob() {
+        Job worker = new JobBuilder().withNewMetadata().withName("worker-1").withUid("uid-1").endMetadata().build();
+
+        ConfigMap workAssignment = KubernetesWarmPool.toWorkAssignment(worker, List.of(new EnvVar("OTP_GCS_WORK_DIR", "work/123", null)));
+
+        Assertions.assertEquals("worker-1", workAssignment.getMetadata().getName());
+        Assertions.assertEquals("uid-1", workAssignment.getMetadata().getOwnerReferences().getFirst().getUid());
+        Assertions.assertEquals("OTP_GCS_WORK_DIR='work/123'\n", workAssignment.getData().get("work-assignment"));
+    }
+
+    @Test
+    void testIdleWorkersExpire() {
+        Instant now = Instant.parse("2024-01-01T12:00:00Z");
+        Assertions.assertTrue(KubernetesWarmPool.isExpired(null, now, Duration.ofHours(2)));
+        Assertions.assertTrue(KubernetesWarmPool.isExpired(now.minus(Duration.ofHours(3)), now, Duration.ofHours(2)));
+        Assertions.assertFalse(KubernetesWarmPool.isExpired(now.minus(Duration.ofHours(1)), now, Duration.ofHours(2)));
+    }
+
+    private static Job worker(String name, String assignedJob) {
+        JobBuilder jobBuilder = new JobBuilder().withNewMetadata().withName(name).addToLabels(KubernetesWarmPool.WARM_POOL_LABEL, CRON_JOB_NAME).endMetadata();
+        if (assignedJob != null) {
+            jobBuilder.editMetadata().addToAnnotations(KubernetesWarmPool.ASSIGNED_JOB_ANNOTATION, assignedJob).endMetadata();
+        }
+        return jobBuilder.build();
+    }
+
+    private static Pod pod(String podName, String jobName, String phase) {
+        return new PodBuilder().withNewMetadata().withName(podName).addToLabels("job-name", jobName).endMetadata()
+                .withNewStatus().withPhase(phase).endStatus()
+                .build();
+    }
+}
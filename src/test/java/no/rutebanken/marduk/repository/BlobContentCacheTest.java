@@ -0,0 +1,134 @@
+package no.rutebanken.marduk.repository;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class BlobContentCacheTest {
+
+    @TempDir
+    Path cacheDirectory;
+
+    private BlobContentCache blobContentCache;
+    private AtomicInteger nbDownloads;
+
+    @BeforeEach
+    void setUp() {
+        blobContentCache = new BlobContentCache(cacheDirectory, 10, new SimpleMeterRegistry());
+        blobContentCache.init();
+        nbDownloads = new AtomicInteger();
+    }
+
+    @Test
+    void testCachedBlobIsNotDownloadedAgain() throws IOException {
+        Assertions.assertArrayEquals(new byte[]{1, 2}, read(blobContentCache.getBlob("blob@1", () -> download(new byte[]{1, 2}))));
+        Assertions.assertArrayEquals(new byte[]{1, 2}, read(blobContentCache.getBlob("blob@1", () -> download(new byte[]{1, 2}))));
+        Assertions.assertEquals(1, nbDownloads.get());
+        Assertions.assertEquals(2, blobContentCache.getTotalSize());
+    }
+
+    @Test
+    void testNewGenerationIsDownloaded() throws IOException {
+        read(blobContentCache.getBlob("blob@1", () -> download(new byte[]{1})));
+        Assertions.assertArrayEquals(new byte[]{2}, read(blobContentCache.getBlob("blob@2", () -> download(new byte[]{2}))));
+        Assertions.assertEquals(2, nbDownloads.get());
+    }
+
+    @Test
+    void testLeastRecentlyUsedBlobIsEvicted() throws IOException {
+        read(blobContentCache.getBlob("blob1", () -> download(new byte[4])));
+        read(blobContentCache.getBlob("blob2", () -> download(new byte[4])));
+        read(blobContentCache.getBlob("blob1", () -> download(new byte[4])));
+        read(blobContentCache.getBlob("blob3", () -> download(new byte[4])));
+        Assertions.assertEquals(3, nbDownloads.get());
+        Assertions.assertEquals(8, blobContentCache.getTotalSize());
+
+        read(blobContentCache.getBlob("blob1", () -> download(new byte[4])));
+        Assertions.assertEquals(3, nbDownloads.get());
+        read(blobContentCache.getBlob("blob2", () -> download(new byte[4])));
+        Assertions.assertEquals(4, nbDownloads.get());
+    }
+
+    @Test
+    void testBlobLargerThanCacheIsNotCached() throws IOException {
+        Assertions.assertEquals(20, read(blobContentCache.getBlob("large", () -> download(new byte[20]))).length);
+        Assertions.assertEquals(20, read(blobContentCache.getBlob("large", () -> download(new byte[20]))).length);
+        Assertions.assertEquals(2, nbDownloads.get());
+        Assertions.assertEquals(0, blobContentCache.getTotalSize());
+    }
+
+    @Test
+    void testMissingBlob() {
+        Assertions.assertNull(blobContentCache.getBlob("missing", () -> null));
+    }
+
+    @Test
+    void testConcurrentRequestsAreCoalesced() throws Exception {
+        CountDownLatch downloadStarted = new CountDownLatch(1);
+        CountDownLatch releaseDownload = new CountDownLatch(1);
+        CompletableFuture<byte[]> first = CompletableFuture.supplyAsync(() -> readQuietly(blobContentCache.getBlob("blob", () -> {
+            downloadStarted.countDown();
+            await(releaseDownload);
+            return download(new byte[]{1});
+        })));
+        Assertions.assertTrue(downloadStarted.await(10, TimeUnit.SECONDS));
+        CompletableFuture<byte[]> second = CompletableFuture.supplyAsync(() -> readQuietly(blobContentCache.getBlob("blob", () -> download(new byte[]{1}))));
+        // leaving time for the second request to join the ongoing download
+        Thread.sleep(200);
+        releaseDownload.countDown();
+        Assertions.assertArrayEquals(new byte[]{1}, first.get(10, TimeUnit.SECONDS));
+        Assertions.assertArrayEquals(new byte[]{1}, second.get(10, TimeUnit.SECONDS));
+        Assertions.assertEquals(1, nbDownloads.get());
+    }
+
+    @Test
+    void testCachingRepositoryDownloadsNewVersion() throws IOException {
+        InMemoryMardukBlobStoreRepository inMemoryRepository = new InMemoryMardukBlobStoreRepository(new HashMap<>());
+        CachingMardukBlobStoreRepository repository = new CachingMardukBlobStoreRepository(inMemoryRepository, blobContentCache);
+        repository.setContainerName("internal");
+        repository.uploadBlob("folder/blob", new ByteArrayInputStream(new byte[]{1}));
+        Assertions.assertArrayEquals(new byte[]{1}, read(repository.getBlob("folder/blob")));
+        repository.uploadBlob("folder/blob", new ByteArrayInputStream(new byte[]{2}));
+        Assertions.assertArrayEquals(new byte[]{2}, read(repository.getBlob("folder/blob")));
+        Assertions.assertNull(repository.getBlob("folder/missing"));
+    }
+
+    private InputStream download(byte[] content) {
+        nbDownloads.incrementAndGet();
+        return new ByteArrayInputStream(content);
+    }
+
+    private static byte[] read(InputStream inputStream) throws IOException {
+        try (inputStream) {
+            return inputStream.readAllBytes();
+        }
+    }
+
+    private static byte[] readQuietly(InputStream inputStream) {
+        try {
+            return read(inputStream);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
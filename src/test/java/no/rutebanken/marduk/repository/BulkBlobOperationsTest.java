@@ -0,0 +1,90 @@
+package no.rutebanken.marduk.repository;
+
+import no.rutebanken.marduk.exceptions.BulkBlobOperationException;
+import no.rutebanken.marduk.services.MardukInternalBlobStoreService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.IntStream;
+
+class BulkBlobOperationsTest {
+
+    private final ExecutorService executorService = Executors.newFixedThreadPool(4);
+
+    @AfterEach
+    void tearDown() {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    void testItemsAreProcessedInBatches() {
+        List<Integer> items = IntStream.range(0, 250).boxed().toList();
+        Map<Integer, Integer> batchSizes = new ConcurrentHashMap<>();
+        BulkOperationResult result = BulkBlobOperations.inBatches(items, 100, (batch, failures) -> batchSizes.put(batch.get(0), batch.size()), executorService);
+        Assertions.assertEquals(Map.of(0, 100, 100, 100, 200, 50), batchSizes);
+        Assertions.assertEquals(250, result.nbSucceeded());
+        Assertions.assertFalse(result.hasFailures());
+    }
+
+    @Test
+    void testPartialFailuresAreReported() {
+        List<String> items = List.of("a", "b", "c", "d");
+        BulkOperationResult result = BulkBlobOperations.inBatches(items, 2, (batch, failures) -> {
+            if (batch.contains("a")) {
+                failures.put("a", "not allowed");
+            } else {
+                throw new IllegalStateException("batch failed");
+            }
+        }, executorService);
+        Assertions.assertEquals(1, result.nbSucceeded());
+        Assertions.assertEquals(Map.of("a", "not allowed", "c", "batch failed", "d", "batch failed"), result.failures());
+    }
+
+    @Test
+    void testEmptyBulkOperation() {
+        Assertions.assertEquals(BulkOperationResult.empty(), BulkBlobOperations.forEach(List.of(), item -> Assertions.fail(), executorService));
+    }
+
+    @Test
+    void testCopyAndDeleteFolder() {
+        Map<String, Map<String, byte[]>> blobsInContainers = new HashMap<>();
+        InMemoryMardukBlobStoreRepository repository = new InMemoryMardukBlobStoreRepository(blobsInContainers);
+        MardukInternalBlobStoreService service = new MardukInternalBlobStoreService("internal", repository);
+        IntStream.range(0, 20).forEach(i -> repository.uploadBlob("work/report/file" + i, new ByteArrayInputStream(new byte[]{1})));
+
+        service.copyAllBlobs("work/report/", "report", "v1/");
+        Assertions.assertEquals(20, blobsInContainers.get("report").size());
+        Assertions.assertTrue(blobsInContainers.get("report").containsKey("v1/file7"));
+
+        Assertions.assertTrue(service.deleteAllBlobsInFolder("work/"));
+        Assertions.assertTrue(repository.listBlobs("work/").getFiles().isEmpty());
+    }
+
+    @Test
+    void testPartialDeletionFailureIsReported() {
+        InMemoryMardukBlobStoreRepository repository = new InMemoryMardukBlobStoreRepository(new ConcurrentHashMap<>()) {
+            @Override
+            public boolean delete(String name) {
+                if (name.endsWith("locked")) {
+                    throw new IllegalStateException("access denied");
+                }
+                return super.delete(name);
+            }
+        };
+        MardukInternalBlobStoreService service = new MardukInternalBlobStoreService("internal", repository);
+        repository.uploadBlob("work/file", new ByteArrayInputStream(new byte[]{1}));
+        repository.uploadBlob("work/locked", new ByteArrayInputStream(new byte[]{1}));
+
+        BulkBlobOperationException exception = Assertions.assertThrows(BulkBlobOperationException.class, () -> service.deleteAllBlobsInFolder("work/"));
+        Assertions.assertEquals(1, exception.getResult().nbSucceeded());
+        Assertions.assertEquals(Map.of("work/locked", "access denied"), exception.getResult().failures());
+    }
+}
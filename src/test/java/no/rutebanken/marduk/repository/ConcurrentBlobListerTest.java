@@ -0,0 +1,77 @@
+package no.rutebanken.marduk.repository;
+
+import no.rutebanken.marduk.exceptions.MardukException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+class ConcurrentBlobListerTest {
+
+    private final ExecutorService executorService = Executors.newFixedThreadPool(4);
+
+    @AfterEach
+    void tearDown() {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    void testListSeveralPrefixes() {
+        Map<String, List<String>> blobs = Map.of(
+                "a/", IntStream.range(0, 2500).mapToObj(i -> "a/" + i).toList(),
+                "b/", List.of("b/1", "b/2"),
+                "c/", List.of());
+
+        try (Stream<String> listing = ConcurrentBlobLister.list(List.of("a/", "b/", "c/"), prefix -> blobs.get(prefix).iterator(), executorService)) {
+            List<String> listedBlobs = listing.toList();
+            Assertions.assertEquals(2502, listedBlobs.size());
+            Assertions.assertTrue(listedBlobs.containsAll(blobs.get("b/")));
+        }
+    }
+
+    @Test
+    void testListingFailureIsPropagated() {
+        try (Stream<String> listing = ConcurrentBlobLister.list(List.of("a/", "b/"), prefix -> failingIterator(prefix), executorService)) {
+            Assertions.assertThrows(MardukException.class, listing::toList);
+        }
+    }
+
+    @Test
+    void testClosingTheStreamStopsTheListing() {
+        Iterator<String> infiniteIterator = Stream.iterate(0, i -> i + 1).map(String::valueOf).iterator();
+        try (Stream<String> listing = ConcurrentBlobLister.list(List.of("a/", "b/"), prefix -> "a/".equals(prefix) ? infiniteIterator : List.of("b/1").iterator(), executorService)) {
+            Assertions.assertEquals(10, listing.limit(10).count());
+        }
+    }
+
+    @Test
+    void testAbandonedStreamStopsTheListing() throws InterruptedException {
+        AtomicInteger nbListedItems = new AtomicInteger();
+        Iterator<String> infiniteIterator = Stream.iterate(0, i -> i + 1).map(i -> String.valueOf(nbListedItems.incrementAndGet())).iterator();
+        Stream<String> listing = ConcurrentBlobLister.list(List.of("a/", "b/"), prefix -> "a/".equals(prefix) ? infiniteIterator : List.of("b/1").iterator(), executorService, Duration.ofMillis(200));
+        Iterator<String> iterator = listing.iterator();
+        Assertions.assertTrue(iterator.hasNext());
+
+        // the stream is neither drained nor closed
+        Thread.sleep(1000);
+        int nbItemsAfterTimeout = nbListedItems.get();
+        Thread.sleep(500);
+        Assertions.assertEquals(nbItemsAfterTimeout, nbListedItems.get());
+    }
+
+    private static Iterator<String> failingIterator(String prefix) {
+        if ("b/".equals(prefix)) {
+            throw new IllegalStateException("listing failed");
+        }
+        return List.of(prefix + "1").iterator();
+    }
+}
@@ -0,0 +1,133 @@
+package no.rutebanken.marduk.repository;
+
+import no.rutebanken.marduk.domain.BlobStoreFiles;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+class ContentAddressedMardukBlobStoreRepositoryTest {
+
+    private static final String CONTAINER = "internal";
+    private static final String OTHER_CONTAINER = "exchange";
+
+    private Map<String, Map<String, byte[]>> blobsInContainers;
+    private InMemoryMardukBlobStoreRepository inMemoryRepository;
+    private ContentAddressedMardukBlobStoreRepository repository;
+
+    @BeforeEach
+    void setUp() {
+        blobsInContainers = new HashMap<>();
+        inMemoryRepository = new InMemoryMardukBlobStoreRepository(blobsInContainers);
+        repository = new ContentAddressedMardukBlobStoreRepository(inMemoryRepository, Set.of(CONTAINER), Duration.ZERO);
+        repository.setContainerName(CONTAINER);
+    }
+
+    @Test
+    void testIdenticalContentIsStoredOnce() throws IOException {
+        upload("inbound/received/rb_avi/file1.zip", "content");
+        upload("inbound/received/rb_avi/file2.zip", "content");
+        Assertions.assertEquals("content", read("inbound/received/rb_avi/file1.zip"));
+        Assertions.assertEquals("content", read("inbound/received/rb_avi/file2.zip"));
+        Assertions.assertEquals(1, inMemoryRepository.listBlobs(ContentAddressedMardukBlobStoreRepository.CONTENT_PREFIX).getFiles().size());
+    }
+
+    @Test
+    void testListingShowsReferencesWithContentSize() {
+        upload("inbound/received/rb_avi/file1.zip", "content");
+        List<BlobStoreFiles.File> files = repository.listBlobs("").getFiles();
+        Assertions.assertEquals(1, files.size());
+        Assertions.assertEquals("inbound/received/rb_avi/file1.zip", files.get(0).getName());
+        Assertions.assertEquals(7, files.get(0).getFileSize());
+
+        BlobStoreFiles.File flatFile = repository.listBlobsFlat("inbound/received/rb_avi/").getFiles().get(0);
+        Assertions.assertEquals("file1.zip", flatFile.getName());
+        Assertions.assertEquals(7, flatFile.getFileSize());
+    }
+
+    @Test
+    void testCopyInContainerCopiesReference() throws IOException {
+        upload("netex/file.zip", "content");
+        repository.copyBlob(CONTAINER, "netex/file.zip", CONTAINER, "netex/copy.zip");
+        Assertions.assertEquals("content", read("netex/copy.zip"));
+        Assertions.assertEquals(1, inMemoryRepository.listBlobs(ContentAddressedMardukBlobStoreRepository.CONTENT_PREFIX).getFiles().size());
+        Assertions.assertEquals(repository.getBlobFingerprint("netex/file.zip"), repository.getBlobFingerprint("netex/copy.zip"));
+    }
+
+    @Test
+    void testCopyToOtherContainerMaterializesContent() {
+        upload("netex/file.zip", "content");
+        repository.copyBlob(CONTAINER, "netex/file.zip", OTHER_CONTAINER, "netex/file.zip");
+        Assertions.assertEquals("content", new String(blobsInContainers.get(OTHER_CONTAINER).get("netex/file.zip")));
+    }
+
+    @Test
+    void testRegularBlobIsServedAsIs() throws IOException {
+        inMemoryRepository.uploadBlob("legacy/file.zip", new ByteArrayInputStream("legacy content".getBytes()));
+        Assertions.assertEquals("legacy content", read("legacy/file.zip"));
+    }
+
+    @Test
+    void testUnreferencedContentIsDeletedAfterTwoCollections() {
+        upload("netex/file1.zip", "content1");
+        upload("netex/file2.zip", "content2");
+        repository.delete("netex/file1.zip");
+
+        repository.collectUnreferencedContent();
+        Assertions.assertEquals(2, inMemoryRepository.listBlobs(ContentAddressedMardukBlobStoreRepository.CONTENT_PREFIX).getFiles().size());
+
+        repository.collectUnreferencedContent();
+        Assertions.assertEquals(1, inMemoryRepository.listBlobs(ContentAddressedMardukBlobStoreRepository.CONTENT_PREFIX).getFiles().size());
+        Assertions.assertNotNull(repository.getBlob("netex/file2.zip"));
+    }
+
+    @Test
+    void testUnreferencedContentsAreSharedBetweenInstances() {
+        upload("netex/file1.zip", "content1");
+        repository.delete("netex/file1.zip");
+        repository.collectUnreferencedContent();
+
+        // for example after a change of leader
+        ContentAddressedMardukBlobStoreRepository otherRepository = new ContentAddressedMardukBlobStoreRepository(inMemoryRepository, Set.of(CONTAINER), Duration.ZERO);
+        otherRepository.setContainerName(CONTAINER);
+        otherRepository.collectUnreferencedContent();
+        Assertions.assertTrue(inMemoryRepository.listBlobs(ContentAddressedMardukBlobStoreRepository.CONTENT_PREFIX).getFiles().isEmpty());
+        Assertions.assertTrue(repository.listBlobs("").getFiles().isEmpty(), "The garbage collection state should not be listed");
+    }
+
+    @Test
+    void testReferencedAgainContentIsNotDeleted() throws IOException {
+        upload("netex/file1.zip", "content1");
+        repository.delete("netex/file1.zip");
+        repository.collectUnreferencedContent();
+
+        upload("netex/file2.zip", "content1");
+        repository.collectUnreferencedContent();
+        Assertions.assertEquals("content1", read("netex/file2.zip"));
+    }
+
+    @Test
+    void testContentAddressingDisabledForOtherContainers() {
+        repository.setContainerName(OTHER_CONTAINER);
+        upload("netex/file.zip", "content");
+        Assertions.assertEquals("content", new String(blobsInContainers.get(OTHER_CONTAINER).get("netex/file.zip")));
+    }
+
+    private void upload(String name, String content) {
+        repository.uploadBlob(name, new ByteArrayInputStream(content.getBytes()));
+    }
+
+    private String read(String name) throws IOException {
+        try (InputStream inputStream = repository.getBlob(name)) {
+            return new String(inputStream.readAllBytes());
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package no.rutebanken.marduk.repository;
+
+import no.rutebanken.marduk.domain.BlobStoreFiles;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashMap;
+import java.util.List;
+
+class InMemoryMardukBlobStoreRepositoryTest {
+
+    private static final String PREFIX = "inbound/received/rut/";
+
+    @Test
+    void testListBlobsFlatByPage() {
+        InMemoryMardukBlobStoreRepository repository = new InMemoryMardukBlobStoreRepository(new HashMap<>());
+        repository.setContainerName("test");
+        for (String fileName : List.of("c.zip", "a.zip", "b.zip")) {
+            repository.uploadBlob(PREFIX + fileName, new ByteArrayInputStream(new byte[]{1}));
+        }
+
+        BlobStoreFiles firstPage = repository.listBlobsFlat(PREFIX, null, 2);
+        Assertions.assertEquals(List.of("a.zip", "b.zip"), firstPage.getFiles().stream().map(BlobStoreFiles.File::getName).toList());
+        Assertions.assertNotNull(firstPage.getNextPageToken());
+
+        BlobStoreFiles lastPage = repository.listBlobsFlat(PREFIX, firstPage.getNextPageToken(), 2);
+        Assertions.assertEquals(List.of("c.zip"), lastPage.getFiles().stream().map(BlobStoreFiles.File::getName).toList());
+        Assertions.assertNull(lastPage.getNextPageToken());
+    }
+
+    @Test
+    void testListBlobsFlatRejectsInvalidPageSize() {
+        InMemoryMardukBlobStoreRepository repository = new InMemoryMardukBlobStoreRepository(new HashMap<>());
+        repository.setContainerName("test");
+        repository.uploadBlob(PREFIX + "a.zip", new ByteArrayInputStream(new byte[]{1}));
+
+        Assertions.assertThrows(IllegalArgumentException.class, () -> repository.listBlobsFlat(PREFIX, null, 0));
+    }
+}
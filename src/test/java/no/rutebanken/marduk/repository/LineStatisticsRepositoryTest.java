@@ -0,0 +1,91 @@
+package no.rutebanken.marduk.repository;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LineStatisticsRepositoryTest {
+
+    private EmbeddedDatabase database;
+    private LineStatisticsRepository repository;
+
+    @BeforeEach
+    void setUp() {
+        database = new EmbeddedDatabaseBuilder()
+                .setType(EmbeddedDatabaseType.H2)
+                .generateUniqueName(true)
+                .addScript("db/migration/V4__Line_statistics.sql")
+                .build();
+        repository = new LineStatisticsRepository(database);
+    }
+
+    @AfterEach
+    void tearDown() {
+        database.shutdown();
+    }
+
+    @Test
+    void testStaleReferentialIsNotUpToDate() {
+        repository.markStale("rut");
+        assertTrue(repository.findUpToDateReferentials(Instant.EPOCH).isEmpty());
+        assertEquals(0, repository.getMaxVersion());
+        assertEquals(List.of(new LineStatisticsRepository.LineStatisticsEntry("rut", null, 0)), repository.findSinceVersion(0));
+    }
+
+    @Test
+    void testSaveClearsStaleFlag() {
+        repository.markStale("rut");
+        repository.save("rut", "{}", 1, Instant.now());
+        repository.save("rb_rut", "{\"lines\":[]}", 1, Instant.now());
+
+        assertEquals(List.of("rb_rut", "rut"), repository.findUpToDateReferentials(Instant.EPOCH).stream().sorted().toList());
+        assertTrue(repository.findUpToDateReferentials(Instant.now().plusSeconds(60)).isEmpty());
+
+        repository.markStale("rut");
+        assertEquals(List.of("rb_rut"), repository.findUpToDateReferentials(Instant.EPOCH));
+    }
+
+    @Test
+    void testReferentialMarkedStaleDuringRefreshStaysStale() {
+        Instant requestedAt = Instant.now().minusSeconds(60);
+        repository.markStale("rut");
+
+        repository.save("rut", "{}", 1, requestedAt);
+
+        assertTrue(repository.findUpToDateReferentials(Instant.EPOCH).isEmpty());
+        assertEquals("{}", repository.findSinceVersion(1).getFirst().statistics());
+    }
+
+    @Test
+    void testEachRefreshWritesNewVersion() {
+        repository.save("rut", "{\"v\":1}", 1, Instant.now());
+        repository.save("rb_rut", "{\"v\":1}", 1, Instant.now());
+        assertEquals(1, repository.getMaxVersion());
+
+        repository.save("rut", "{\"v\":2}", repository.getMaxVersion() + 1, Instant.now());
+        assertEquals(2, repository.getMaxVersion());
+
+        // the entries of the last loaded version are returned again
+        List<LineStatisticsRepository.LineStatisticsEntry> sinceVersion2 = repository.findSinceVersion(2);
+        assertEquals(List.of(new LineStatisticsRepository.LineStatisticsEntry("rut", "{\"v\":2}", 2)), sinceVersion2);
+        assertEquals(2, repository.findSinceVersion(1).size());
+        assertTrue(repository.findSinceVersion(3).isEmpty());
+    }
+
+    @Test
+    void testMissingStatisticsAreSavedAsNull() {
+        repository.save("rut", "{}", 1, Instant.now());
+        repository.save("rut", null, 2, Instant.now());
+        assertNull(repository.findSinceVersion(2).getFirst().statistics());
+    }
+}
@@ -0,0 +1,101 @@
+package no.rutebanken.marduk.repository;
+
+import no.rutebanken.marduk.domain.BlobStoreFiles;
+import org.rutebanken.helper.storage.BlobAlreadyExistsException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+class LocalDiskMardukBlobStoreRepositoryTest {
+
+    private static final String CONTAINER = "internal";
+
+    @TempDir
+    Path baseFolder;
+
+    private LocalDiskMardukBlobStoreRepository repository;
+
+    @BeforeEach
+    void setUp() {
+        repository = new LocalDiskMardukBlobStoreRepository(baseFolder.toString());
+        repository.setContainerName(CONTAINER);
+    }
+
+    @Test
+    void testListBlobsInNestedFolders() {
+        upload("netex/rb_avi-aggregated-netex.zip", "a");
+        upload("netex/old/rb_avi-aggregated-netex.zip", "bb");
+        upload("gtfs/rb_avi-aggregated-gtfs.zip", "c");
+
+        List<String> names = repository.listBlobs("netex/").getFiles().stream().map(BlobStoreFiles.File::getName).sorted().toList();
+        Assertions.assertEquals(List.of("netex/old/rb_avi-aggregated-netex.zip", "netex/rb_avi-aggregated-netex.zip"), names);
+
+        BlobStoreFiles.File file = repository.listBlobsFlat("netex/old/").getFiles().get(0);
+        Assertions.assertEquals("rb_avi-aggregated-netex.zip", file.getName());
+        Assertions.assertEquals(2, file.getFileSize());
+        Assertions.assertNotNull(file.getContentFingerprint());
+
+        Assertions.assertTrue(repository.listBlobs("missing/").getFiles().isEmpty());
+    }
+
+    @Test
+    void testUploadReplacesBlob() throws IOException {
+        upload("graphs/graph.obj", "first");
+        upload("graphs/graph.obj", "second");
+        Assertions.assertEquals("second", read("graphs/graph.obj"));
+        Assertions.assertNull(repository.getBlob("graphs/missing.obj"));
+        Assertions.assertEquals(1, repository.listBlobs("graphs/").getFiles().size());
+    }
+
+    @Test
+    void testUploadNewBlobDoesNotReplaceBlob() throws IOException {
+        repository.uploadNewBlob("graphs/graph.obj", new ByteArrayInputStream("first".getBytes()));
+        Assertions.assertThrows(BlobAlreadyExistsException.class, () -> repository.uploadNewBlob("graphs/graph.obj", new ByteArrayInputStream("second".getBytes())));
+        Assertions.assertEquals("first", read("graphs/graph.obj"));
+    }
+
+    @Test
+    void testCopyIsIndependentOfSource() throws IOException {
+        upload("netex/source.zip", "content");
+        repository.copyBlob(CONTAINER, "netex/source.zip", "exchange", "netex/target.zip");
+        Assertions.assertEquals(2, Files.getAttribute(baseFolder.resolve("exchange/netex/target.zip"), "unix:nlink"), "The copy should be a hard link");
+
+        upload("netex/source.zip", "updated");
+        repository.setContainerName("exchange");
+        Assertions.assertEquals("content", read("netex/target.zip"));
+    }
+
+    @Test
+    void testCopyAllBlobs() throws IOException {
+        upload("graphs/5/graph.obj", "graph");
+        upload("graphs/5/report/index.html", "report");
+        repository.copyAllBlobs(CONTAINER, "graphs/5/", CONTAINER, "graphs/current/");
+        Assertions.assertEquals("graph", read("graphs/current/graph.obj"));
+        Assertions.assertEquals("report", read("graphs/current/report/index.html"));
+    }
+
+    @Test
+    void testTemporaryFilesAreNotListed() throws IOException {
+        upload("netex/file.zip", "a");
+        Files.writeString(baseFolder.resolve(CONTAINER).resolve("netex/.file.zip.123.tmp"), "partial");
+        Assertions.assertEquals(1, repository.listBlobs("netex/").getFiles().size());
+    }
+
+    private void upload(String name, String content) {
+        repository.uploadBlob(name, new ByteArrayInputStream(content.getBytes()));
+    }
+
+    private String read(String name) throws IOException {
+        try (InputStream inputStream = repository.getBlob(name)) {
+            return new String(inputStream.readAllBytes());
+        }
+    }
+}
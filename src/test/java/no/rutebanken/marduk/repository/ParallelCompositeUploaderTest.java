@@ -0,0 +1,155 @@
+package no.rutebanken.marduk.repository;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.rutebanken.marduk.exceptions.MardukException;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+class ParallelCompositeUploaderTest {
+
+    private static final int PART_SIZE = 10;
+
+    private final ExecutorService executorService = Executors.newFixedThreadPool(4);
+    private SimpleMeterRegistry meterRegistry;
+    private ParallelCompositeUploader parallelCompositeUploader;
+    private InMemoryMardukBlobStoreRepository repository;
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        parallelCompositeUploader = new ParallelCompositeUploader(PART_SIZE, 4, executorService, meterRegistry);
+        repository = new InMemoryMardukBlobStoreRepository(new HashMap<>(), parallelCompositeUploader);
+        repository.setContainerName("internal");
+    }
+
+    @AfterEach
+    void tearDown() {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    void testSmallBlobIsUploadedInSingleStream() throws IOException {
+        byte[] content = randomContent(PART_SIZE);
+        repository.uploadBlob("small", new ByteArrayInputStream(content));
+        assertContent("small", content);
+        Assertions.assertEquals(1, throughput("single").count());
+        Assertions.assertEquals(0, throughput("composite").count());
+    }
+
+    @Test
+    void testLargeBlobIsUploadedInParts() throws IOException {
+        byte[] content = randomContent(PART_SIZE * 5 + 3);
+        repository.uploadBlob("large", new ByteArrayInputStream(content));
+        assertContent("large", content);
+        Assertions.assertEquals(1, throughput("composite").count());
+        Assertions.assertTrue(repository.listBlobs(ParallelCompositeUploader.PARTS_PREFIX).getFiles().isEmpty(), "Parts should be deleted after composition");
+    }
+
+    @Test
+    void testPartsAreComposedInSeveralLevels() throws IOException {
+        byte[] content = randomContent(PART_SIZE * (ParallelCompositeUploader.MAX_COMPOSE_SOURCES * 2 + 1));
+        repository.uploadBlob("huge", new ByteArrayInputStream(content));
+        assertContent("huge", content);
+        Assertions.assertTrue(repository.listBlobs(ParallelCompositeUploader.PARTS_PREFIX).getFiles().isEmpty());
+    }
+
+    @Test
+    void testFailedPartUploadCleansUpParts() {
+        InMemoryMardukBlobStoreRepository target = new InMemoryMardukBlobStoreRepository(new HashMap<>());
+        target.setContainerName("internal");
+        ParallelCompositeUploader.CompositeUploadTarget failingTarget = new ParallelCompositeUploader.CompositeUploadTarget() {
+            @Override
+            public long uploadBlob(String name, InputStream inputStream, String contentType) {
+                return target.uploadBlob(name, inputStream);
+            }
+
+            @Override
+            public void uploadPart(String partName, byte[] content, int length) {
+                if (partName.endsWith("000002")) {
+                    throw new IllegalStateException("upload failed");
+                }
+                synchronized (this) {
+                    target.uploadBlob(partName, new ByteArrayInputStream(content, 0, length));
+                }
+            }
+
+            @Override
+            public long compose(List<String> sourceNames, String targetName, String contentType, Map<String, String> metadata) {
+                throw new IllegalStateException("should not be called");
+            }
+
+            @Override
+            public void deletePart(String partName) {
+                target.delete(partName);
+            }
+        };
+        ByteArrayInputStream inputStream = new ByteArrayInputStream(randomContent(PART_SIZE * 5));
+        Assertions.assertThrows(MardukException.class, () -> parallelCompositeUploader.upload("large", inputStream, null, failingTarget));
+        Assertions.assertTrue(target.listBlobs(ParallelCompositeUploader.PARTS_PREFIX).getFiles().isEmpty());
+    }
+
+    @Test
+    void testComposedBlobHasMd5Metadata() {
+        byte[] content = randomContent(PART_SIZE * 3 + 1);
+        Map<String, Map<String, String>> composedMetadata = new HashMap<>();
+        InMemoryMardukBlobStoreRepository target = new InMemoryMardukBlobStoreRepository(new HashMap<>());
+        target.setContainerName("internal");
+        ParallelCompositeUploader.CompositeUploadTarget recordingTarget = new ParallelCompositeUploader.CompositeUploadTarget() {
+            @Override
+            public long uploadBlob(String name, InputStream inputStream, String contentType) {
+                return target.uploadBlob(name, inputStream);
+            }
+
+            @Override
+            public synchronized void uploadPart(String partName, byte[] content, int length) {
+                target.uploadBlob(partName, new ByteArrayInputStream(content, 0, length));
+            }
+
+            @Override
+            public long compose(List<String> sourceNames, String targetName, String contentType, Map<String, String> metadata) {
+                composedMetadata.put(targetName, metadata);
+                return 1;
+            }
+
+            @Override
+            public void deletePart(String partName) {
+                target.delete(partName);
+            }
+        };
+
+        parallelCompositeUploader.upload("large", new ByteArrayInputStream(content), "application/zip", recordingTarget);
+
+        Assertions.assertEquals(Base64.getEncoder().encodeToString(DigestUtils.md5(content)), composedMetadata.get("large").get(ParallelCompositeUploader.MD5_METADATA));
+    }
+
+    private void assertContent(String name, byte[] expected) throws IOException {
+        try (InputStream inputStream = repository.getBlob(name)) {
+            Assertions.assertArrayEquals(expected, inputStream.readAllBytes());
+        }
+    }
+
+    private DistributionSummary throughput(String mode) {
+        return meterRegistry.get("marduk.blobstore.upload.throughput").tag("mode", mode).summary();
+    }
+
+    private static byte[] randomContent(int size) {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return content;
+    }
+}
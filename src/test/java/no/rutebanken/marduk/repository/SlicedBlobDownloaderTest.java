@@ -0,0 +1,117 @@
+package no.rutebanken.marduk.repository;
+
+import no.rutebanken.marduk.exceptions.MardukException;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class SlicedBlobDownloaderTest {
+
+    @TempDir
+    Path downloadDirectory;
+
+    private final ExecutorService executorService = Executors.newFixedThreadPool(4);
+    private SlicedBlobDownloader slicedBlobDownloader;
+    private byte[] content;
+
+    @BeforeEach
+    void setUp() {
+        slicedBlobDownloader = new SlicedBlobDownloader(downloadDirectory, 100, 64, 2, executorService);
+        content = new byte[1000];
+        new Random(42).nextBytes(content);
+    }
+
+    @AfterEach
+    void tearDown() {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    void testIsApplicable() {
+        Assertions.assertFalse(slicedBlobDownloader.isApplicable(99));
+        Assertions.assertTrue(slicedBlobDownloader.isApplicable(100));
+        Assertions.assertFalse(new SlicedBlobDownloader(downloadDirectory, 0, 64, 1, executorService).isApplicable(1000));
+    }
+
+    @Test
+    void testDownloadIsVerifiedAgainstCrc32c() throws IOException {
+        String crc32c = crc32c(content);
+        try (InputStream inputStream = slicedBlobDownloader.download("blob", content.length, this::openRange, new SlicedBlobDownloader.Checksums(crc32c, null))) {
+            Assertions.assertArrayEquals(content, inputStream.readAllBytes());
+        }
+        try (var files = Files.list(downloadDirectory)) {
+            Assertions.assertEquals(0, files.count(), "The downloaded file should be deleted when the stream is closed");
+        }
+    }
+
+    @Test
+    void testDownloadIsVerifiedAgainstMd5() throws IOException {
+        String md5 = Base64.getEncoder().encodeToString(DigestUtils.md5(content));
+        try (InputStream inputStream = slicedBlobDownloader.download("blob", content.length, this::openRange, new SlicedBlobDownloader.Checksums(null, md5))) {
+            Assertions.assertArrayEquals(content, inputStream.readAllBytes());
+        }
+    }
+
+    @Test
+    void testFailedSliceIsRetried() throws IOException {
+        AtomicInteger nbFailures = new AtomicInteger();
+        SlicedBlobDownloader.RangeReader failingOnce = (offset, length) -> {
+            if (offset == 128 && nbFailures.get() == 0) {
+                nbFailures.incrementAndGet();
+                throw new IOException("connection reset");
+            }
+            return openRange(offset, length);
+        };
+        try (InputStream inputStream = slicedBlobDownloader.download("blob", content.length, failingOnce, new SlicedBlobDownloader.Checksums(crc32c(content), null))) {
+            Assertions.assertArrayEquals(content, inputStream.readAllBytes());
+        }
+        Assertions.assertEquals(1, nbFailures.get());
+    }
+
+    @Test
+    void testTruncatedSliceFailsAfterMaxAttempts() throws IOException {
+        SlicedBlobDownloader.RangeReader truncating = (offset, length) -> openRange(offset, offset == 0 ? length - 1 : length);
+        SlicedBlobDownloader.Checksums checksums = new SlicedBlobDownloader.Checksums(crc32c(content), null);
+        Assertions.assertThrows(MardukException.class, () -> slicedBlobDownloader.download("blob", content.length, truncating, checksums));
+        try (var files = Files.list(downloadDirectory)) {
+            Assertions.assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    void testChecksumMismatch() throws IOException {
+        byte[] otherContent = content.clone();
+        otherContent[0]++;
+        SlicedBlobDownloader.Checksums checksums = new SlicedBlobDownloader.Checksums(crc32c(otherContent), null);
+        Assertions.assertThrows(MardukException.class, () -> slicedBlobDownloader.download("blob", content.length, this::openRange, checksums));
+    }
+
+    private ReadableByteChannel openRange(long offset, long length) {
+        return Channels.newChannel(new ByteArrayInputStream(content, (int) offset, (int) length));
+    }
+
+    private String crc32c(byte[] bytes) throws IOException {
+        Path file = Files.write(downloadDirectory.resolveSibling(downloadDirectory.getFileName() + "-checksum"), bytes);
+        try {
+            return SlicedBlobDownloader.crc32c(file);
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package no.rutebanken.marduk.repository;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SpeculativeImportRepositoryTest {
+
+    private static final String REFERENTIAL = "rb_rut";
+
+    private EmbeddedDatabase database;
+    private SpeculativeImportRepository repository;
+
+    @BeforeEach
+    void setUp() {
+        database = new EmbeddedDatabaseBuilder()
+                .setType(EmbeddedDatabaseType.H2)
+                .generateUniqueName(true)
+                .addScript("db/migration/V3__Speculative_import.sql")
+                .build();
+        repository = new SpeculativeImportRepository(database);
+    }
+
+    @AfterEach
+    void tearDown() {
+        database.shutdown();
+    }
+
+    @Test
+    void testImportIsRegisteredOnce() {
+        assertTrue(repository.register("import-1", REFERENTIAL));
+        assertFalse(repository.register("import-1", REFERENTIAL));
+        assertTrue(repository.isSpeculative("import-1"));
+        assertFalse(repository.isSpeculative("import-2"));
+    }
+
+    @Test
+    void testImportIsPromotedOnceWhenImportCompletesFirst() {
+        repository.register("import-1", REFERENTIAL);
+        repository.importSucceeded("import-1");
+        assertFalse(repository.promote("import-1"));
+        assertTrue(repository.hasUnapprovedImport(REFERENTIAL));
+
+        repository.validationCompleted("import-1", true);
+        assertTrue(repository.promote("import-1"));
+        assertFalse(repository.promote("import-1"));
+        assertFalse(repository.hasUnapprovedImport(REFERENTIAL));
+    }
+
+    @Test
+    void testImportIsPromotedOnceWhenValidationCompletesFirst() {
+        repository.register("import-1", REFERENTIAL);
+        repository.validationCompleted("import-1", true);
+        assertFalse(repository.promote("import-1"));
+        assertTrue(repository.hasUnapprovedImport(REFERENTIAL));
+
+        repository.importSucceeded("import-1");
+        assertTrue(repository.promote("import-1"));
+        assertFalse(repository.hasUnapprovedImport(REFERENTIAL));
+    }
+
+    @Test
+    void testDiscardedImportBlocksTransferUntilSuperseded() {
+        repository.register("import-1", REFERENTIAL);
+        repository.validationCompleted("import-1", false);
+        repository.importSucceeded("import-1");
+        assertFalse(repository.promote("import-1"));
+        assertTrue(repository.hasUnapprovedImport(REFERENTIAL));
+        assertFalse(repository.hasUnapprovedImport("rb_other"));
+
+        repository.supersede(REFERENTIAL);
+        assertFalse(repository.hasUnapprovedImport(REFERENTIAL));
+        assertFalse(repository.isSpeculative("import-1"));
+    }
+
+    @Test
+    void testDiscardedImportInProgressIsNotSuperseded() {
+        repository.register("import-1", REFERENTIAL);
+        repository.validationCompleted("import-1", false);
+
+        repository.supersede(REFERENTIAL);
+        assertTrue(repository.hasUnapprovedImport(REFERENTIAL));
+
+        repository.importSucceeded("import-1");
+        repository.supersede(REFERENTIAL);
+        assertFalse(repository.hasUnapprovedImport(REFERENTIAL));
+    }
+
+    @Test
+    void testFailedImportIsForgotten() {
+        repository.register("import-1", REFERENTIAL);
+        repository.validationCompleted("import-1", false);
+        repository.importFailed("import-1");
+        assertFalse(repository.hasUnapprovedImport(REFERENTIAL));
+        assertFalse(repository.isSpeculative("import-1"));
+    }
+
+    @Test
+    void testPromotionForgetsOlderCompletedImportsOnly() throws InterruptedException {
+        repository.register("discarded", REFERENTIAL);
+        repository.validationCompleted("discarded", false);
+        repository.importSucceeded("discarded");
+        repository.register("in-progress", REFERENTIAL);
+        Thread.sleep(5);
+        repository.register("promoted", REFERENTIAL);
+        repository.importSucceeded("promoted");
+        repository.validationCompleted("promoted", true);
+
+        assertTrue(repository.promote("promoted"));
+        assertFalse(repository.isSpeculative("discarded"));
+        // the older import in progress is kept, so that it is not imported again after its pre-validation
+        assertTrue(repository.isSpeculative("in-progress"));
+        assertFalse(repository.hasUnapprovedImport(REFERENTIAL));
+    }
+}
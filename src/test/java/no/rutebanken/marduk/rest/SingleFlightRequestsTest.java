@@ -0,0 +1,96 @@
+package no.rutebanken.marduk.rest;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.rutebanken.marduk.exceptions.MardukException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class SingleFlightRequestsTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final MutableClock clock = new MutableClock();
+    private final SingleFlightRequests singleFlightRequests = new SingleFlightRequests(null, Duration.ofSeconds(5), clock, meterRegistry);
+    private final AtomicInteger nbExecutions = new AtomicInteger();
+
+    @Test
+    void testConcurrentRequestsShareOneExecution() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Object> first = CompletableFuture.supplyAsync(() -> singleFlightRequests.execute("list-graphs", "", () -> {
+            started.countDown();
+            await(release);
+            return "graphs-" + nbExecutions.incrementAndGet();
+        }));
+        Assertions.assertTrue(started.await(5, TimeUnit.SECONDS));
+        CompletableFuture<Object> second = CompletableFuture.supplyAsync(() -> singleFlightRequests.execute("list-graphs", "", () -> "graphs-" + nbExecutions.incrementAndGet()));
+        Thread.sleep(100);
+        Assertions.assertFalse(second.isDone());
+
+        release.countDown();
+        Assertions.assertEquals("graphs-1", first.get(5, TimeUnit.SECONDS));
+        Assertions.assertEquals("graphs-1", second.get(5, TimeUnit.SECONDS));
+        Assertions.assertEquals(1, nbExecutions.get());
+        Assertions.assertEquals(1.0, meterRegistry.get("marduk.admin.single.flight.requests").tag("operation", "list-graphs").tag("coalesced", "true").counter().count());
+    }
+
+    @Test
+    void testResultIsSharedUntilTtlExpires() {
+        Assertions.assertEquals("jobs-1", singleFlightRequests.execute("list-jobs-all", "status=STARTED", () -> "jobs-" + nbExecutions.incrementAndGet()));
+        Assertions.assertEquals("jobs-1", singleFlightRequests.execute("list-jobs-all", "status=STARTED", () -> "jobs-" + nbExecutions.incrementAndGet()));
+        // different parameters are not coalesced
+        Assertions.assertEquals("jobs-2", singleFlightRequests.execute("list-jobs-all", "status=SCHEDULED", () -> "jobs-" + nbExecutions.incrementAndGet()));
+
+        clock.advance(Duration.ofSeconds(6));
+        Assertions.assertEquals("jobs-3", singleFlightRequests.execute("list-jobs-all", "status=STARTED", () -> "jobs-" + nbExecutions.incrementAndGet()));
+    }
+
+    @Test
+    void testFailedResultIsNotShared() {
+        Assertions.assertThrows(MardukException.class, () -> singleFlightRequests.execute("list-export-files", "", () -> {
+            throw new MardukException("blob store unavailable");
+        }));
+        Assertions.assertEquals("files", singleFlightRequests.execute("list-export-files", "", () -> "files"));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class MutableClock extends Clock {
+
+        private Instant instant = Instant.parse("2024-01-01T00:00:00Z");
+
+        void advance(Duration duration) {
+            instant = instant.plus(duration);
+        }
+
+        @Override
+        public ZoneOffset getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return instant;
+        }
+    }
+}
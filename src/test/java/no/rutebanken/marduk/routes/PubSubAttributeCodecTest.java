@@ -0,0 +1,101 @@
+package no.rutebanken.marduk.routes;
+
+import no.rutebanken.marduk.Constants;
+import org.apache.camel.Message;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultMessage;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+class PubSubAttributeCodecTest {
+
+    private static final String POLL_QUEUE = "google-pubsub:project:ChouettePollStatusQueue";
+
+    private final DefaultCamelContext camelContext = new DefaultCamelContext();
+
+    @Test
+    void testOnlyDeclaredHeadersAreSent() {
+        PubSubAttributeCodec codec = new PubSubAttributeCodec(new String[]{"customHeader"}, new String[0]);
+        Message message = message();
+        message.setHeader("customHeader", "custom");
+        message.setHeader("CamelHttpResponseCode", 200);
+        message.setHeader("providerId", "2");
+        message.setHeader("CamelGooglePubsubMessageId", "1");
+
+        Map<String, String> attributes = codec.encode(POLL_QUEUE, message);
+
+        Assertions.assertEquals(Map.of(
+                Constants.PROVIDER_ID, "2",
+                Constants.CORRELATION_ID, "correlation-1",
+                Constants.VALIDATION_CLIENT_HEADER, "Marduk",
+                "loopCounter", "3",
+                "customHeader", "custom"), attributes);
+    }
+
+    @Test
+    void testValuesExceedingAttributeLimitAreNotSent() {
+        PubSubAttributeCodec codec = new PubSubAttributeCodec(new String[0], new String[0]);
+        Message message = message();
+        message.setHeader(Constants.FILE_NAME, "x".repeat(PubSubAttributeCodec.MAX_ATTRIBUTE_VALUE_LENGTH + 1));
+        Assertions.assertFalse(codec.encode(POLL_QUEUE, message).containsKey(Constants.FILE_NAME));
+    }
+
+    @Test
+    void testEnvelopeRoundTrip() {
+        PubSubAttributeCodec codec = new PubSubAttributeCodec(new String[0], new String[]{"ChouettePollStatusQueue"});
+        Message message = message();
+        message.setHeader(Constants.FILE_NAME, "x".repeat(2000));
+
+        Map<String, String> attributes = codec.encode(POLL_QUEUE + "?synchronousPull=true", message);
+        Assertions.assertTrue(attributes.isEmpty());
+        byte[] body = (byte[]) message.getBody();
+        Assertions.assertTrue(PubSubAttributeCodec.hasEnvelope(body));
+
+        Message received = new DefaultMessage(camelContext);
+        received.setBody(body);
+        codec.decode(Map.of("CamelGooglePubsubMessageId", "1"), received);
+        Assertions.assertEquals("body", new String((byte[]) received.getBody(), StandardCharsets.UTF_8));
+        Assertions.assertEquals("2", received.getHeader(Constants.PROVIDER_ID));
+        Assertions.assertEquals("3", received.getHeader("loopCounter"));
+        Assertions.assertEquals(2000, received.getHeader(Constants.FILE_NAME, String.class).length());
+        Assertions.assertNull(received.getHeader("CamelGooglePubsubMessageId"));
+    }
+
+    @Test
+    void testEnvelopeIsOnlyUsedForConfiguredQueues() {
+        PubSubAttributeCodec codec = new PubSubAttributeCodec(new String[0], new String[]{"ChouettePollStatusQueue"});
+        Message message = message();
+        Map<String, String> attributes = codec.encode("google-pubsub:project:AntuNetexValidationQueue", message);
+        Assertions.assertEquals("2", attributes.get(Constants.PROVIDER_ID));
+        Assertions.assertEquals("body", message.getBody());
+    }
+
+    @Test
+    void testDecodeMessageWithoutEnvelope() {
+        PubSubAttributeCodec codec = new PubSubAttributeCodec(new String[0], new String[]{"ChouettePollStatusQueue"});
+        Message received = new DefaultMessage(camelContext);
+        received.setBody("body".getBytes(StandardCharsets.UTF_8));
+        codec.decode(Map.of(Constants.PROVIDER_ID, "2", "ExternalHeader", "value"), received);
+        Assertions.assertEquals("2", received.getHeader(Constants.PROVIDER_ID));
+        Assertions.assertEquals("value", received.getHeader("ExternalHeader"));
+        Assertions.assertEquals("body", new String((byte[]) received.getBody(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testDestinationName() {
+        Assertions.assertEquals("ChouettePollStatusQueue", PubSubAttributeCodec.destinationName("google-pubsub://project:ChouettePollStatusQueue?ackMode=NONE"));
+    }
+
+    private Message message() {
+        Message message = new DefaultMessage(camelContext);
+        message.setBody("body");
+        message.setHeader(Constants.PROVIDER_ID, 2L);
+        message.setHeader(Constants.CORRELATION_ID, "correlation-1");
+        message.setHeader(Constants.VALIDATION_CLIENT_HEADER, Constants.VALIDATION_CLIENT_MARDUK);
+        message.setHeader("loopCounter", 3);
+        return message;
+    }
+}
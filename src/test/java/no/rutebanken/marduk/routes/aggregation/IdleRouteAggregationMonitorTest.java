@@ -0,0 +1,169 @@
+package no.rutebanken.marduk.routes.aggregation;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.component.mock.MockEndpoint;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.processor.aggregate.GroupedBodyAggregationStrategy;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+class IdleRouteAggregationMonitorTest {
+
+    private CamelContext camelContext;
+    private ProducerTemplate producerTemplate;
+    private CountDownLatch started;
+    private CountDownLatch release;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        start(IdleRouteAggregationMonitor::new, true);
+    }
+
+    private void start(Function<CamelContext, IdleRouteAggregationMonitor> monitorFactory, boolean eventNotifier) throws Exception {
+        camelContext = new DefaultCamelContext();
+        IdleRouteAggregationMonitor idleRouteAggregationMonitor = monitorFactory.apply(camelContext);
+        if (eventNotifier) {
+            camelContext.getManagementStrategy().addEventNotifier(idleRouteAggregationMonitor);
+        } else {
+            camelContext.addService(idleRouteAggregationMonitor);
+        }
+        started = new CountDownLatch(1);
+        release = new CountDownLatch(0);
+
+        camelContext.addRoutes(new RouteBuilder() {
+            @Override
+            public void configure() {
+                from("direct:request")
+                        .aggregate(constant(true), new GroupedBodyAggregationStrategy()).completionSize(100)
+                        .aggregateController(idleRouteAggregationMonitor.getAggregateControllerForRoute("monitored-route"))
+                        .to("direct:monitored")
+                        .routeId("aggregating-route");
+
+                from("direct:otherRequest")
+                        .aggregate(constant(true), new GroupedBodyAggregationStrategy()).completionSize(100)
+                        .aggregateController(idleRouteAggregationMonitor.getAggregateControllerForRoute("other-aggregating-route"))
+                        .to("mock:otherResult")
+                        .routeId("other-aggregating-route");
+
+                from("direct:selfMonitoredRequest")
+                        .aggregate(constant(true), new GroupedBodyAggregationStrategy()).completionSize(100)
+                        .aggregateController(idleRouteAggregationMonitor.getAggregateControllerForRoute("self-monitored-aggregating-route"))
+                        .to("direct:monitored")
+                        .routeId("self-monitored-aggregating-route");
+
+                from("direct:monitored")
+                        .process(e -> {
+                            started.countDown();
+                            release.await(10, TimeUnit.SECONDS);
+                        })
+                        .to("mock:result")
+                        .routeId("monitored-route");
+            }
+        });
+        camelContext.start();
+        producerTemplate = camelContext.createProducerTemplate();
+    }
+
+    private void restart(Function<CamelContext, IdleRouteAggregationMonitor> monitorFactory, boolean eventNotifier) throws Exception {
+        camelContext.stop();
+        start(monitorFactory, eventNotifier);
+    }
+
+    @AfterEach
+    void tearDown() {
+        camelContext.stop();
+    }
+
+    @Test
+    void testAggregationTriggeredWhenRouteIsIdle() throws Exception {
+        MockEndpoint result = camelContext.getEndpoint("mock:result", MockEndpoint.class);
+        result.expectedMessageCount(1);
+
+        producerTemplate.sendBody("direct:request", "request1");
+
+        result.assertIsSatisfied(5000);
+        Assertions.assertEquals(List.of("request1"), result.getExchanges().getFirst().getIn().getBody(List.class));
+    }
+
+    @Test
+    void testRequestsAccumulatedWhileRouteIsBusy() throws Exception {
+        release = new CountDownLatch(1);
+        MockEndpoint result = camelContext.getEndpoint("mock:result", MockEndpoint.class);
+        result.expectedMessageCount(2);
+
+        producerTemplate.sendBody("direct:request", "request1");
+        Assertions.assertTrue(started.await(5, TimeUnit.SECONDS));
+        producerTemplate.sendBody("direct:request", "request2");
+        producerTemplate.sendBody("direct:request", "request3");
+        release.countDown();
+
+        result.assertIsSatisfied(5000);
+        Assertions.assertEquals(List.of("request1"), result.getExchanges().get(0).getIn().getBody(List.class));
+        Assertions.assertEquals(List.of("request2", "request3"), result.getExchanges().get(1).getIn().getBody(List.class));
+    }
+
+    @Test
+    void testAggregatorMonitoringItselfIsNotBlockedByOtherAggregators() throws Exception {
+        release = new CountDownLatch(1);
+        MockEndpoint otherResult = camelContext.getEndpoint("mock:otherResult", MockEndpoint.class);
+        otherResult.expectedMessageCount(1);
+
+        producerTemplate.sendBody("direct:selfMonitoredRequest", "request1");
+        Assertions.assertTrue(started.await(5, TimeUnit.SECONDS));
+        producerTemplate.sendBody("direct:otherRequest", "other1");
+
+        otherResult.assertIsSatisfied(5000);
+        release.countDown();
+    }
+
+    @Test
+    void testAggregatorMonitoringItselfAccumulatesWhileBusy() throws Exception {
+        release = new CountDownLatch(1);
+        MockEndpoint result = camelContext.getEndpoint("mock:result", MockEndpoint.class);
+        result.expectedMessageCount(2);
+
+        producerTemplate.sendBody("direct:selfMonitoredRequest", "request1");
+        Assertions.assertTrue(started.await(5, TimeUnit.SECONDS));
+        producerTemplate.sendBody("direct:selfMonitoredRequest", "request2");
+        producerTemplate.sendBody("direct:selfMonitoredRequest", "request3");
+        release.countDown();
+
+        result.assertIsSatisfied(5000);
+        Assertions.assertEquals(List.of("request2", "request3"), result.getExchanges().get(1).getIn().getBody(List.class));
+    }
+
+    @Test
+    void testRequestsAccumulatedDuringDebounceWindow() throws Exception {
+        restart(context -> new IdleRouteAggregationMonitor(context, 500, 0), true);
+        MockEndpoint result = camelContext.getEndpoint("mock:result", MockEndpoint.class);
+        result.expectedMessageCount(1);
+
+        producerTemplate.sendBody("direct:request", "request1");
+        producerTemplate.sendBody("direct:request", "request2");
+
+        result.assertIsSatisfied(5000);
+        Assertions.assertEquals(List.of("request1", "request2"), result.getExchanges().getFirst().getIn().getBody(List.class));
+    }
+
+    @Test
+    void testPeriodicCheckTriggersAggregationWithoutEvent() throws Exception {
+        restart(context -> new IdleRouteAggregationMonitor(context, 0, 100), false);
+        MockEndpoint result = camelContext.getEndpoint("mock:result", MockEndpoint.class);
+        result.expectedMessageCount(1);
+
+        producerTemplate.sendBody("direct:request", "request1");
+
+        result.assertIsSatisfied(5000);
+        Assertions.assertEquals(List.of("request1"), result.getExchanges().getFirst().getIn().getBody(List.class));
+    }
+
+}
@@ -19,20 +19,26 @@ package no.rutebanken.marduk.routes.chouette;
 import no.rutebanken.marduk.Constants;
 import no.rutebanken.marduk.MardukRouteBuilderIntegrationTestBase;
 import no.rutebanken.marduk.TestConstants;
+import no.rutebanken.marduk.repository.ExportDigestRepository;
+import no.rutebanken.marduk.routes.file.ZipFileUtils;
+import no.rutebanken.marduk.routes.status.JobEvent;
 import org.apache.camel.*;
 import org.apache.camel.builder.AdviceWith;
 import org.apache.camel.component.mock.MockEndpoint;
 import org.apache.camel.model.language.SimpleExpression;
 import org.apache.commons.io.IOUtils;
 import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 
 import static no.rutebanken.marduk.Constants.CHOUETTE_REFERENTIAL;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 
 class ChouetteExportNetexFileMardukRouteIntegrationTest extends MardukRouteBuilderIntegrationTestBase {
@@ -65,6 +71,9 @@ class ChouetteExportNetexFileMardukRouteIntegrationTest extends MardukRouteBuild
 	@Produce("direct:processNetexExportResult")
 	protected ProducerTemplate processExportResultTemplate;
 
+	@Autowired
+	private ExportDigestRepository exportDigestRepository;
+
 	@Value("${chouette.url}")
 	private String chouetteUrl;
 
@@ -72,7 +81,38 @@ class ChouetteExportNetexFileMardukRouteIntegrationTest extends MardukRouteBuild
 
 	@Test
 	void testExportNetex() throws Exception {
+		mockExportRoutes();
+
+		updateStatus.expectedMessageCount(3);
+		mergeWithFlexibleLinesMock.expectedMessageCount(1);
+		exportNetexBlocksQueue.expectedMessageCount(1);
+
+		runExport();
+
+		updateStatus.assertIsSatisfied();
+		mergeWithFlexibleLinesMock.assertIsSatisfied();
+		exportGtfsQueue.assertIsSatisfied();
+		exportNetexBlocksQueue.assertIsSatisfied();
+
+	}
+
+	@Test
+	void testUnchangedExportStillTriggersBlocksExport() throws Exception {
+		mockExportRoutes();
+		exportDigestRepository.saveDigest(TestConstants.CHOUETTE_REFERENTIAL_RUT, ZipFileUtils.computeCanonicalDigest(exportData()));
+
+		mergeWithFlexibleLinesMock.expectedMessageCount(0);
+		exportNetexBlocksQueue.expectedMessageCount(1);
 
+		runExport();
+
+		mergeWithFlexibleLinesMock.assertIsSatisfied();
+		exportNetexBlocksQueue.assertIsSatisfied();
+		assertTrue(updateStatus.getExchanges().stream().map(e -> JobEvent.fromString(e.getIn().getBody(String.class)))
+				.anyMatch(je -> JobEvent.TimetableAction.EXPORT_NETEX.name().equals(je.getAction()) && JobEvent.State.SKIPPED.equals(je.getState())));
+	}
+
+	private void mockExportRoutes() throws Exception {
 		// Mock initial call to Chouette to import job
 		AdviceWith.adviceWith(context, "chouette-start-export-netex", a -> {
 			a.weaveByToUri(chouetteUrl + "/chouette_iev/referentials/${header." + CHOUETTE_REFERENTIAL + "}/exporter/netexprofile")
@@ -106,8 +146,7 @@ class ChouetteExportNetexFileMardukRouteIntegrationTest extends MardukRouteBuild
 			public <T> T evaluate(Exchange ex, Class<T> arg1) {
 				try {
 					// Should be GTFS contnet
-					return (T) IOUtils.toString(getClass()
-							                            .getResourceAsStream("/no/rutebanken/marduk/chouette/getActionReportResponseOK.json"), StandardCharsets.UTF_8);
+					return (T) IOUtils.toString(exportData(), StandardCharsets.UTF_8);
 				} catch (IOException e) {
 					throw new RuntimeException(e);
 				}
@@ -116,7 +155,9 @@ class ChouetteExportNetexFileMardukRouteIntegrationTest extends MardukRouteBuild
 
 		// we must manually start when we are done with all the advice with
 		context.start();
+	}
 
+	private void runExport() throws Exception {
 		// 1 initial import call
 		chouetteCreateExport.expectedMessageCount(1);
 		chouetteCreateExport.returnReplyHeader("Location", new SimpleExpression(
@@ -124,11 +165,6 @@ class ChouetteExportNetexFileMardukRouteIntegrationTest extends MardukRouteBuild
 
 
 		pollJobStatus.expectedMessageCount(1);
-		updateStatus.expectedMessageCount(3);
-
-
-		mergeWithFlexibleLinesMock.expectedMessageCount(1);
-		exportNetexBlocksQueue.expectedMessageCount(1);
 
 		Map<String, String> headers = new HashMap<>();
 		headers.put(Constants.PROVIDER_ID, TestConstants.PROVIDER_ID_AS_STRING_RUT);
@@ -143,10 +179,9 @@ class ChouetteExportNetexFileMardukRouteIntegrationTest extends MardukRouteBuild
 		processExportResultTemplate.send(exchange );
 
 		chouetteGetData.assertIsSatisfied();
-		updateStatus.assertIsSatisfied();
-		mergeWithFlexibleLinesMock.assertIsSatisfied();
-		exportGtfsQueue.assertIsSatisfied();
-		exportNetexBlocksQueue.assertIsSatisfied();
+	}
 
+	private InputStream exportData() {
+		return getClass().getResourceAsStream("/no/rutebanken/marduk/chouette/getActionReportResponseOK.json");
 	}
 }
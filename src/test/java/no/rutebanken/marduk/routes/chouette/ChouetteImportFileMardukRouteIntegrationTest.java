@@ -22,20 +22,18 @@ import no.rutebanken.marduk.TestConstants;
 import no.rutebanken.marduk.routes.status.JobEvent;
 import org.apache.camel.EndpointInject;
 import org.apache.camel.Exchange;
-import org.apache.camel.Expression;
 import org.apache.camel.Produce;
 import org.apache.camel.ProducerTemplate;
 import org.apache.camel.builder.AdviceWith;
 import org.apache.camel.component.mock.MockEndpoint;
 import org.apache.camel.model.language.SimpleExpression;
-import org.apache.commons.io.IOUtils;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -66,9 +64,18 @@ class ChouetteImportFileMardukRouteIntegrationTest extends MardukRouteBuilderInt
     @EndpointInject("mock:updateStatus")
     protected MockEndpoint updateStatus;
 
+    @EndpointInject("mock:chouetteImportDataspace")
+    protected MockEndpoint chouetteImportDataspace;
+
+    @Autowired
+    private ChouetteImportScheduler chouetteImportScheduler;
+
     @Produce("google-pubsub:{{marduk.pubsub.project.id}}:ProcessFileQueue")
     protected ProducerTemplate importTemplate;
 
+    @Produce("google-pubsub:{{marduk.pubsub.project.id}}:ChouetteImportQueue")
+    protected ProducerTemplate importQueueTemplate;
+
     @Produce("direct:processImportResult")
     protected ProducerTemplate processImportResultTemplate;
 
@@ -88,6 +95,7 @@ class ChouetteImportFileMardukRouteIntegrationTest extends MardukRouteBuilderInt
         chouetteValidationQueue.reset();
         checkScheduledJobsBeforeTriggeringNextAction.reset();
         updateStatus.reset();
+        chouetteImportDataspace.reset();
     }
 
     @Test
@@ -174,56 +182,63 @@ class ChouetteImportFileMardukRouteIntegrationTest extends MardukRouteBuilderInt
 
 
     @Test
-    void testJobListResponseTerminated() throws Exception {
-        testJobListResponse("/no/rutebanken/marduk/chouette/getJobListResponseAllTerminated.json", true);
-    }
+    void testImportCompletionsAreDebounced() throws Exception {
 
-    @Test
-    void testJobListResponseScheduled() throws Exception {
-        testJobListResponse("/no/rutebanken/marduk/chouette/getJobListResponseScheduled.json", false);
-    }
+        AdviceWith.adviceWith(context, "chouette-debounce-import-completions", a ->
+                a.weaveByToUri("google-pubsub:(.*):ChouetteValidationQueue").replace().to("mock:chouetteValidationQueue"));
 
-    void testJobListResponse(String jobListResponseClasspathReference, boolean expectExport) throws Exception {
+        context.start();
 
-        AdviceWith.adviceWith(context, "chouette-process-job-list-after-import", a -> {
-            a.interceptSendToEndpoint(chouetteUrl + "/*")
-                    .skipSendToOriginalEndpoint()
-                    .to("mock:chouetteGetJobsForProvider");
+        chouetteValidationQueue.expectedMessageCount(1);
+        chouetteValidationQueue.expectedHeaderReceived(Constants.CORRELATION_ID, "corr_id_2");
 
-            a.weaveByToUri("google-pubsub:(.*):ChouetteValidationQueue").replace().to("mock:chouetteValidationQueue");
+        Map<String, Object> headers = new HashMap<>();
+        headers.put(Constants.PROVIDER_ID, TestConstants.PROVIDER_ID_AS_STRING_RUT);
+        headers.put(Constants.CHOUETTE_REFERENTIAL, TestConstants.CHOUETTE_REFERENTIAL_RUT);
+        headers.put(Constants.CORRELATION_ID, "corr_id_1");
+        triggerJobListTemplate.sendBodyAndHeaders(null, headers);
+        headers.put(Constants.CORRELATION_ID, "corr_id_2");
+        triggerJobListTemplate.sendBodyAndHeaders(null, headers);
 
-        });
+        chouetteValidationQueue.assertIsSatisfied();
+
+    }
+
+    @Test
+    void testImportCompletionIsNotDebouncedWhileNextImportIsRunning() throws Exception {
+
+        AdviceWith.adviceWith(context, "chouette-debounce-import-completions", a ->
+                a.weaveByToUri("google-pubsub:(.*):ChouetteValidationQueue").replace().to("mock:chouetteValidationQueue"));
+        AdviceWith.adviceWith(context, ChouetteImportScheduler.IMPORT_QUEUE_ROUTE_ID, a -> a.weaveByToUri("direct:updateStatus").replace().to("mock:updateStatus"));
+        // the import submitted to Chouette is still running when the quiet period ends
+        AdviceWith.adviceWith(context, "chouette-import-dataspace", a -> a.weaveAddFirst().to("mock:chouetteImportDataspace").stop());
 
         context.start();
 
-        // 1 call to list other import jobs in referential
-        chouetteGetJobs.expectedMessageCount(1);
-        chouetteGetJobs.returnReplyBody(new Expression() {
-
-            @SuppressWarnings("unchecked")
-            @Override
-            public <T> T evaluate(Exchange ex, Class<T> arg1) {
-                try {
-                    return (T) IOUtils.toString(getClass().getResourceAsStream(jobListResponseClasspathReference), StandardCharsets.UTF_8);
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
-            }
-        });
+        chouetteImportDataspace.expectedMessageCount(1);
+        Map<String, String> importHeaders = new HashMap<>();
+        importHeaders.put(Constants.PROVIDER_ID, TestConstants.PROVIDER_ID_AS_STRING_RUT);
+        importHeaders.put(Constants.CORRELATION_ID, "corr_id_2");
+        sendBodyAndHeadersToPubSub(importQueueTemplate, "", importHeaders);
+        chouetteImportDataspace.assertIsSatisfied();
 
+        chouetteValidationQueue.expectedMessageCount(0);
+        chouetteValidationQueue.setAssertPeriod(2000);
         Map<String, Object> headers = new HashMap<>();
         headers.put(Constants.PROVIDER_ID, TestConstants.PROVIDER_ID_AS_STRING_RUT);
         headers.put(Constants.CHOUETTE_REFERENTIAL, TestConstants.CHOUETTE_REFERENTIAL_RUT);
-
+        headers.put(Constants.CORRELATION_ID, "corr_id_1");
         triggerJobListTemplate.sendBodyAndHeaders(null, headers);
-
-        chouetteGetJobs.assertIsSatisfied();
-
-        if (expectExport) {
-            chouetteValidationQueue.expectedMessageCount(1);
-        }
         chouetteValidationQueue.assertIsSatisfied();
 
+        // the running import completes
+        chouetteValidationQueue.reset();
+        chouetteValidationQueue.expectedMessageCount(1);
+        chouetteValidationQueue.expectedHeaderReceived(Constants.CORRELATION_ID, "corr_id_2");
+        chouetteImportScheduler.release(TestConstants.CHOUETTE_REFERENTIAL_RUT, "corr_id_2");
+        headers.put(Constants.CORRELATION_ID, "corr_id_2");
+        triggerJobListTemplate.sendBodyAndHeaders(null, headers);
+        chouetteValidationQueue.assertIsSatisfied();
     }
 
-}
\ No newline at end of file
+}
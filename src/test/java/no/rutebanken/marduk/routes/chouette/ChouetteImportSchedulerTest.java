@@ -0,0 +1,264 @@
+package no.rutebanken.marduk.routes.chouette;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.rutebanken.marduk.Constants;
+import org.apache.camel.Exchange;
+import org.apache.camel.component.google.pubsub.GooglePubsubConstants;
+import org.apache.camel.component.google.pubsub.consumer.AcknowledgeCompletion;
+import org.apache.camel.component.google.pubsub.consumer.GooglePubsubAcknowledge;
+import org.apache.camel.http.base.HttpOperationFailedException;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.engine.DefaultUnitOfWork;
+import org.apache.camel.support.DefaultExchange;
+import org.apache.camel.support.UnitOfWorkHelper;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+class ChouetteImportSchedulerTest {
+
+    private final DefaultCamelContext camelContext = new DefaultCamelContext();
+    private final List<String> dispatched = new ArrayList<>();
+    private final Map<String, Integer> activeImportJobs = new HashMap<>();
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final MutableClock clock = new MutableClock();
+    private boolean leader = true;
+
+    @Test
+    void testImportsAreDispatchedRoundRobinAcrossReferentials() {
+        ChouetteImportScheduler scheduler = scheduler(1, 0, Map.of());
+        scheduler.enqueue(exchange("rb_avi", "avi-1"));
+        scheduler.enqueue(exchange("rb_avi", "avi-2"));
+        scheduler.enqueue(exchange("rb_avi", "avi-3"));
+        scheduler.enqueue(exchange("rb_rut", "rut-1"));
+        scheduler.enqueue(exchange("rb_rut", "rut-2"));
+
+        Assertions.assertEquals(List.of("avi-1", "rut-1"), dispatched);
+        Assertions.assertTrue(scheduler.hasPendingImports("rb_avi"));
+
+        scheduler.release("rb_avi", "avi-1");
+        scheduler.release("rb_rut", "rut-1");
+        Assertions.assertEquals(List.of("avi-1", "rut-1", "avi-2", "rut-2"), dispatched);
+        Assertions.assertEquals(1, scheduler.getQueueDepth("rb_avi"));
+        Assertions.assertEquals(0, scheduler.getQueueDepth("rb_rut"));
+        Assertions.assertEquals(1.0, meterRegistry.get("marduk.chouette.import.queue.depth").tag("referential", "rb_avi").gauge().value());
+        Assertions.assertEquals(2, meterRegistry.get("marduk.chouette.import.wait.time").tag("referential", "rb_rut").timer().count());
+    }
+
+    @Test
+    void testGlobalConcurrencyIsSharedFairly() {
+        ChouetteImportScheduler scheduler = scheduler(2, 2, Map.of());
+        scheduler.enqueue(exchange("rb_avi", "avi-1"));
+        scheduler.enqueue(exchange("rb_avi", "avi-2"));
+        scheduler.enqueue(exchange("rb_avi", "avi-3"));
+        Assertions.assertEquals(List.of("avi-1", "avi-2"), dispatched);
+
+        scheduler.enqueue(exchange("rb_rut", "rut-1"));
+        scheduler.release("rb_avi", "avi-1");
+        // rb_avi had its turn, the free slot goes to rb_rut
+        Assertions.assertEquals(List.of("avi-1", "avi-2", "rut-1"), dispatched);
+    }
+
+    @Test
+    void testWeightIncreasesReferentialShare() {
+        ChouetteImportScheduler scheduler = scheduler(1, 0, Map.of("rb_avi", 2));
+        scheduler.enqueue(exchange("rb_avi", "avi-1"));
+        scheduler.enqueue(exchange("rb_avi", "avi-2"));
+        scheduler.enqueue(exchange("rb_avi", "avi-3"));
+        scheduler.enqueue(exchange("rb_rut", "rut-1"));
+        scheduler.enqueue(exchange("rb_rut", "rut-2"));
+
+        Assertions.assertEquals(List.of("avi-1", "avi-2", "rut-1"), dispatched);
+        Assertions.assertEquals(2, scheduler.getNbRunning("rb_avi"));
+    }
+
+    @Test
+    void testRedeliveredRequestReplacesQueuedRequest() {
+        ChouetteImportScheduler scheduler = scheduler(1, 0, Map.of());
+        scheduler.enqueue(exchange("rb_avi", "avi-1"));
+        Exchange queued = exchange("rb_avi", "avi-2");
+        queued.getIn().setHeader(GooglePubsubConstants.MESSAGE_ID, "message-2");
+        scheduler.enqueue(queued);
+        scheduler.enqueue(queued);
+        Assertions.assertEquals(1, scheduler.getQueueDepth("rb_avi"));
+    }
+
+    @Test
+    void testSlotsAreReleasedOnTimeoutAndReconciliation() {
+        ChouetteImportScheduler scheduler = scheduler(1, 0, Map.of());
+        scheduler.enqueue(exchange("rb_avi", "avi-1"));
+        scheduler.enqueue(exchange("rb_avi", "avi-2"));
+        scheduler.enqueue(exchange("rb_avi", "avi-3"));
+
+        // the import is still active in Chouette
+        activeImportJobs.put("rb_avi", 1);
+        clock.advance(Duration.ofMinutes(5));
+        scheduler.reconcile();
+        Assertions.assertEquals(List.of("avi-1"), dispatched);
+
+        // the import completed, but its status was processed by another instance
+        activeImportJobs.put("rb_avi", 0);
+        scheduler.reconcile();
+        Assertions.assertEquals(List.of("avi-1", "avi-2"), dispatched);
+
+        // a slot dispatched less than a reconcile interval ago is kept
+        scheduler.reconcile();
+        Assertions.assertEquals(List.of("avi-1", "avi-2"), dispatched);
+
+        clock.advance(Duration.ofHours(2));
+        scheduler.enqueue(exchange("rb_avi", "avi-4"));
+        Assertions.assertEquals(List.of("avi-1", "avi-2", "avi-3"), dispatched);
+    }
+
+    @Test
+    void testImportWaitingForTooLongIsSubmittedBeforeItsAcknowledgementDeadline() {
+        ChouetteImportScheduler scheduler = new ChouetteImportScheduler(camelContext, 1, 0, Map.of(), Duration.ofHours(6), Duration.ofMinutes(1), Duration.ofHours(3),
+                e -> dispatched.add(e.getIn().getHeader(Constants.CORRELATION_ID, String.class)),
+                referential -> 2, (referential, correlationId) -> {
+        }, () -> true, clock, meterRegistry);
+        scheduler.enqueue(exchange("rb_avi", "avi-1"));
+        scheduler.enqueue(exchange("rb_avi", "avi-2"));
+        clock.advance(Duration.ofHours(1));
+        scheduler.enqueue(exchange("rb_avi", "avi-3"));
+
+        clock.advance(Duration.ofMinutes(100));
+        scheduler.reconcile();
+        Assertions.assertEquals(List.of("avi-1"), dispatched);
+
+        clock.advance(Duration.ofMinutes(31));
+        scheduler.reconcile();
+        Assertions.assertEquals(List.of("avi-1", "avi-2"), dispatched);
+        Assertions.assertEquals(2, scheduler.getNbRunning("rb_avi"));
+        Assertions.assertEquals(1, scheduler.getQueueDepth("rb_avi"));
+    }
+
+    @Test
+    void testMaxWaitMustBeShorterThanAcknowledgementExtension() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new ChouetteImportScheduler(camelContext, 1, 0, Map.of(), Duration.ofHours(6),
+                Duration.ofMinutes(1), Duration.ofHours(4), e -> {
+        }, referential -> 0, (referential, correlationId) -> {
+        }, () -> true, clock, meterRegistry));
+    }
+
+    @Test
+    void testQueuedImportsAreReleasedWhenLeadershipIsLost() {
+        ChouetteImportScheduler scheduler = scheduler(1, 0, Map.of());
+        scheduler.enqueue(exchange("rb_avi", "avi-1"));
+        Exchange queued = exchange("rb_avi", "avi-2");
+        List<String> nacked = new ArrayList<>();
+        queued.getExchangeExtension().setUnitOfWork(new DefaultUnitOfWork(queued));
+        queued.getExchangeExtension().addOnCompletion(new AcknowledgeCompletion(new GooglePubsubAcknowledge() {
+            @Override
+            public void ack(Exchange exchange) {
+                Assertions.fail("The released import request should not be acknowledged");
+            }
+
+            @Override
+            public void nack(Exchange exchange) {
+                nacked.add(exchange.getIn().getHeader(Constants.CORRELATION_ID, String.class));
+            }
+        }));
+        scheduler.enqueue(queued);
+
+        leader = false;
+        scheduler.reconcile();
+        Assertions.assertEquals(List.of("avi-2"), nacked);
+        Assertions.assertEquals(0, scheduler.getQueueDepth("rb_avi"));
+        Assertions.assertEquals(0, scheduler.getNbRunning("rb_avi"));
+        Assertions.assertEquals(List.of("avi-1"), dispatched);
+    }
+
+    @Test
+    void testImportJobDoneOnAnyInstanceReleasesTheSlot() {
+        ChouetteImportScheduler scheduler = scheduler(1, 0, Map.of());
+        scheduler.enqueue(exchange("rb_avi", "avi-1"));
+        scheduler.enqueue(exchange("rb_avi", "avi-2"));
+        scheduler.importJobDone("rb_avi", "avi-1");
+        Assertions.assertEquals(List.of("avi-1", "avi-2"), dispatched);
+
+        // the next import is running
+        Assertions.assertFalse(scheduler.hasPendingImports("rb_avi"));
+        Assertions.assertTrue(scheduler.hasPendingOrRunningImports("rb_avi"));
+        scheduler.importJobDone("rb_avi", "avi-2");
+        Assertions.assertFalse(scheduler.hasPendingOrRunningImports("rb_avi"));
+    }
+
+    @Test
+    void testSlotIsReleasedWhenSubmissionFails() {
+        List<Exchange> submitted = new ArrayList<>();
+        ChouetteImportScheduler scheduler = new ChouetteImportScheduler(camelContext, 1, 0, Map.of(), Duration.ofHours(6), Duration.ofMinutes(1), Duration.ofHours(3),
+                e -> {
+                    submitted.add(e);
+                    dispatched.add(e.getIn().getHeader(Constants.CORRELATION_ID, String.class));
+                },
+                referential -> 1, (referential, correlationId) -> {
+        }, () -> true, clock, meterRegistry);
+        scheduler.enqueue(exchange("rb_avi", "avi-1"));
+        scheduler.enqueue(exchange("rb_avi", "avi-2"));
+        Assertions.assertEquals(List.of("avi-1"), dispatched);
+
+        // the submission is rejected by Chouette
+        Exchange failed = submitted.getFirst();
+        failed.setException(new HttpOperationFailedException("http://chouette", 423, "Locked", null, null, null));
+        UnitOfWorkHelper.doneSynchronizations(failed, failed.getExchangeExtension().handoverCompletions());
+        Assertions.assertEquals(List.of("avi-1", "avi-2"), dispatched);
+        Assertions.assertEquals(1, scheduler.getNbRunning("rb_avi"));
+
+        // a successful submission keeps its slot until the import job is done
+        Exchange succeeded = submitted.getLast();
+        UnitOfWorkHelper.doneSynchronizations(succeeded, succeeded.getExchangeExtension().handoverCompletions());
+        Assertions.assertEquals(1, scheduler.getNbRunning("rb_avi"));
+    }
+
+    private ChouetteImportScheduler scheduler(int referentialConcurrency, int maxConcurrency, Map<String, Integer> weights) {
+        AtomicReference<ChouetteImportScheduler> scheduler = new AtomicReference<>();
+        scheduler.set(new ChouetteImportScheduler(camelContext, referentialConcurrency, maxConcurrency, weights, Duration.ofHours(1), Duration.ofMinutes(1),
+                Duration.ofHours(3),
+                e -> dispatched.add(e.getIn().getHeader(Constants.CORRELATION_ID, String.class)),
+                referential -> activeImportJobs.getOrDefault(referential, 0),
+                // the notification is consumed by the leader, here the same scheduler
+                (referential, correlationId) -> scheduler.get().release(referential, correlationId),
+                () -> leader, clock, meterRegistry));
+        return scheduler.get();
+    }
+
+    private Exchange exchange(String referential, String correlationId) {
+        Exchange exchange = new DefaultExchange(camelContext);
+        exchange.getIn().setHeader(Constants.CHOUETTE_REFERENTIAL, referential);
+        exchange.getIn().setHeader(Constants.CORRELATION_ID, correlationId);
+        return exchange;
+    }
+
+    private static final class MutableClock extends Clock {
+
+        private Instant instant = Instant.parse("2024-01-01T00:00:00Z");
+
+        void advance(Duration duration) {
+            instant = instant.plus(duration);
+        }
+
+        @Override
+        public ZoneOffset getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(java.time.ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return instant;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package no.rutebanken.marduk.routes.chouette;
+
+import no.rutebanken.marduk.MardukRouteBuilderIntegrationTestBase;
+import no.rutebanken.marduk.repository.SpeculativeImportRepository;
+import org.apache.camel.EndpointInject;
+import org.apache.camel.Produce;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.builder.AdviceWith;
+import org.apache.camel.component.mock.MockEndpoint;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.io.IOException;
+import java.util.Map;
+
+import static no.rutebanken.marduk.Constants.CHOUETTE_REFERENTIAL;
+import static no.rutebanken.marduk.Constants.CORRELATION_ID;
+import static no.rutebanken.marduk.Constants.SPECULATIVE_IMPORT;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChouetteSpeculativeImportRouteBuilderTest extends MardukRouteBuilderIntegrationTestBase {
+
+    @Autowired
+    private SpeculativeImportRepository speculativeImportRepository;
+
+    @Produce("direct:speculativeImportSucceeded")
+    protected ProducerTemplate importSucceededTemplate;
+
+    @Produce("direct:importAfterPreValidation")
+    protected ProducerTemplate validationSucceededTemplate;
+
+    @Produce("direct:discardSpeculativeImport")
+    protected ProducerTemplate validationFailedTemplate;
+
+    @Produce("direct:checkScheduledJobsBeforeTriggeringNextAction")
+    protected ProducerTemplate importCompletedTemplate;
+
+    @EndpointInject("mock:checkScheduledJobsBeforeTriggeringNextAction")
+    protected MockEndpoint nextActionMock;
+
+    @EndpointInject("mock:chouetteImportCompletedQueue")
+    protected MockEndpoint importCompletedQueueMock;
+
+    @BeforeEach
+    protected void setUp() throws IOException {
+        super.setUp();
+        nextActionMock.reset();
+        importCompletedQueueMock.reset();
+    }
+
+    @Test
+    void testPromoteWhenImportCompletesBeforeValidation() throws Exception {
+        mockNextAction();
+        String referential = "rb_import_first";
+        speculativeImportRepository.register("import-first", referential);
+
+        nextActionMock.expectedMessageCount(1);
+        importSucceededTemplate.sendBodyAndHeaders("", Map.of(CORRELATION_ID, "import-first", SPECULATIVE_IMPORT, true));
+        assertTrue(speculativeImportRepository.hasUnapprovedImport(referential));
+        validationSucceededTemplate.sendBodyAndHeader("", CORRELATION_ID, "import-first");
+
+        nextActionMock.assertIsSatisfied();
+        assertFalse(nextActionMock.getExchanges().getFirst().getIn().getHeader(SPECULATIVE_IMPORT, false, Boolean.class));
+        assertFalse(speculativeImportRepository.hasUnapprovedImport(referential));
+    }
+
+    @Test
+    void testPromoteWhenValidationCompletesBeforeImport() throws Exception {
+        mockNextAction();
+        String referential = "rb_validation_first";
+        speculativeImportRepository.register("validation-first", referential);
+
+        nextActionMock.expectedMessageCount(1);
+        validationSucceededTemplate.sendBodyAndHeader("", CORRELATION_ID, "validation-first");
+        assertTrue(speculativeImportRepository.hasUnapprovedImport(referential));
+        importSucceededTemplate.sendBodyAndHeaders("", Map.of(CORRELATION_ID, "validation-first", SPECULATIVE_IMPORT, true));
+
+        nextActionMock.assertIsSatisfied();
+        assertFalse(speculativeImportRepository.hasUnapprovedImport(referential));
+    }
+
+    @Test
+    void testDiscardWhenImportCompletesBeforeValidation() throws Exception {
+        mockNextAction();
+        String referential = "rb_discard_import_first";
+        speculativeImportRepository.register("discard-import-first", referential);
+
+        nextActionMock.expectedMessageCount(0);
+        importSucceededTemplate.sendBodyAndHeaders("", Map.of(CORRELATION_ID, "discard-import-first", SPECULATIVE_IMPORT, true));
+        validationFailedTemplate.sendBodyAndHeader("", CORRELATION_ID, "discard-import-first");
+
+        nextActionMock.assertIsSatisfied();
+        assertTrue(speculativeImportRepository.hasUnapprovedImport(referential));
+    }
+
+    @Test
+    void testDiscardWhenValidationCompletesBeforeImport() throws Exception {
+        mockNextAction();
+        String referential = "rb_discard_validation_first";
+        speculativeImportRepository.register("discard-validation-first", referential);
+
+        nextActionMock.expectedMessageCount(0);
+        validationFailedTemplate.sendBodyAndHeader("", CORRELATION_ID, "discard-validation-first");
+        importSucceededTemplate.sendBodyAndHeaders("", Map.of(CORRELATION_ID, "discard-validation-first", SPECULATIVE_IMPORT, true));
+
+        nextActionMock.assertIsSatisfied();
+        assertTrue(speculativeImportRepository.hasUnapprovedImport(referential));
+    }
+
+    @Test
+    void testDiscardedImportIsSupersededByLaterImport() throws Exception {
+        AdviceWith.adviceWith(context, "chouette-process-job-list-after-import", a -> a.weaveByToUri("google-pubsub:(.*):ChouetteImportCompletedQueue")
+                .replace()
+                .to("mock:chouetteImportCompletedQueue"));
+        context.start();
+        String referential = "rb_superseded";
+        speculativeImportRepository.register("discarded", referential);
+        speculativeImportRepository.validationCompleted("discarded", false);
+        speculativeImportRepository.importSucceeded("discarded");
+        assertTrue(speculativeImportRepository.hasUnapprovedImport(referential));
+
+        importCompletedQueueMock.expectedMessageCount(1);
+        importCompletedTemplate.sendBodyAndHeaders("", Map.of(CORRELATION_ID, "gtfs-import", CHOUETTE_REFERENTIAL, referential));
+
+        importCompletedQueueMock.assertIsSatisfied();
+        assertFalse(speculativeImportRepository.hasUnapprovedImport(referential));
+    }
+
+    private void mockNextAction() throws Exception {
+        AdviceWith.adviceWith(context, "chouette-promote-speculative-import", a -> a.interceptSendToEndpoint("direct:checkScheduledJobsBeforeTriggeringNextAction")
+                .skipSendToOriginalEndpoint()
+                .to("mock:checkScheduledJobsBeforeTriggeringNextAction"));
+        context.start();
+    }
+}
@@ -68,6 +68,15 @@ class ChouetteStatsRouteBuilderTest {
         assertFalse(new ChouetteStatsRouteBuilder().isMatch(provider(3L, null), "level2", List.of("1", PROVIDER_ID_AS_STRING_RUT)));
     }
 
+    @Test
+    void testIfNoneMatchComparedToEntityTag() {
+        assertTrue(ChouetteStatsRouteBuilder.isNotModified("\"2a-1f\"", "\"2a-1f\""));
+        assertTrue(ChouetteStatsRouteBuilder.isNotModified("\"1\", W/\"2a-1f\"", "\"2a-1f\""));
+        assertTrue(ChouetteStatsRouteBuilder.isNotModified("*", "\"2a-1f\""));
+        assertFalse(ChouetteStatsRouteBuilder.isNotModified("\"2a-1e\"", "\"2a-1f\""));
+        assertFalse(ChouetteStatsRouteBuilder.isNotModified(null, "\"2a-1f\""));
+    }
+
 
     Provider provider(Long id, Long migrateDataToProviderId) {
         Provider provider = new Provider();
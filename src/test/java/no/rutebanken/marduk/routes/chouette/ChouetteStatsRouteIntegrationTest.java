@@ -0,0 +1,122 @@
+package no.rutebanken.marduk.routes.chouette;
+
+import no.rutebanken.marduk.MardukRouteBuilderIntegrationTestBase;
+import no.rutebanken.marduk.repository.LineStatisticsRepository;
+import no.rutebanken.marduk.routes.status.JobEvent;
+import org.apache.camel.Exchange;
+import org.apache.camel.Produce;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.builder.AdviceWith;
+import org.apache.camel.http.base.HttpOperationFailedException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+import static no.rutebanken.marduk.Constants.CHOUETTE_JOB_STATUS_JOB_TYPE;
+import static no.rutebanken.marduk.Constants.CHOUETTE_REFERENTIAL;
+import static no.rutebanken.marduk.Constants.PROVIDER_ID;
+import static no.rutebanken.marduk.TestConstants.CHOUETTE_REFERENTIAL_RB_RUT;
+import static no.rutebanken.marduk.TestConstants.CHOUETTE_REFERENTIAL_RUT;
+import static no.rutebanken.marduk.TestConstants.PROVIDER_ID_RB_RUT;
+import static no.rutebanken.marduk.TestConstants.PROVIDER_ID_RUT;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.when;
+
+class ChouetteStatsRouteIntegrationTest extends MardukRouteBuilderIntegrationTestBase {
+
+    private static final String CHOUETTE_STATS_URL = "${exchangeProperty.chouette_url}";
+
+    @Autowired
+    private LineStatisticsRepository lineStatisticsRepository;
+
+    @Produce("direct:chouetteUpdateStaleStats")
+    protected ProducerTemplate updateStaleStatsTemplate;
+
+    @Produce("direct:chouetteLoadStatsCache")
+    protected ProducerTemplate loadStatsCacheTemplate;
+
+    @Produce("direct:chouetteGetStatsSingleProvider")
+    protected ProducerTemplate getStatsTemplate;
+
+    @Produce("direct:chouetteMarkStatsStale")
+    protected ProducerTemplate markStatsStaleTemplate;
+
+    @BeforeEach
+    protected void setUp() throws IOException {
+        super.setUp();
+        when(providerRepository.getReferential(PROVIDER_ID_RUT)).thenReturn(CHOUETTE_REFERENTIAL_RUT);
+        when(providerRepository.getReferential(PROVIDER_ID_RB_RUT)).thenReturn(CHOUETTE_REFERENTIAL_RB_RUT);
+    }
+
+    @Test
+    void testUpdateSavesStatsOfStaleReferentialsWithNewVersion() throws Exception {
+        AdviceWith.adviceWith(context, "chouette-line-stats-get-fresh", a -> a.weaveByToUri(CHOUETTE_STATS_URL)
+                .replace()
+                .setBody().constant("{\"rut\":{\"lines\":1},\"rb_rut\":{\"lines\":2}}"));
+        context.start();
+
+        updateStaleStatsTemplate.sendBody("");
+
+        assertEquals(1, lineStatisticsRepository.getMaxVersion());
+        assertEquals(List.of(CHOUETTE_REFERENTIAL_RB_RUT, CHOUETTE_REFERENTIAL_RUT), lineStatisticsRepository.findUpToDateReferentials(Instant.EPOCH).stream().sorted().toList());
+        Exchange response = getStatsTemplate.request("", e -> e.getIn().setHeader(PROVIDER_ID, PROVIDER_ID_RUT));
+        assertEquals("{\"lines\":1}", new String(response.getMessage().getBody(byte[].class), StandardCharsets.UTF_8));
+        assertEquals("\"1\"", response.getMessage().getHeader("ETag"));
+    }
+
+    @Test
+    void testReferentialsStayStaleWhenChouetteIsBusy() throws Exception {
+        AdviceWith.adviceWith(context, "chouette-line-stats-get-fresh", a -> a.weaveByToUri(CHOUETTE_STATS_URL)
+                .replace()
+                .throwException(new HttpOperationFailedException("http://chouette/statistics", 423, "Locked", null, null, null)));
+        context.start();
+        lineStatisticsRepository.markStale(CHOUETTE_REFERENTIAL_RUT);
+
+        updateStaleStatsTemplate.sendBody("");
+
+        assertEquals(0, lineStatisticsRepository.getMaxVersion());
+        assertTrue(lineStatisticsRepository.findUpToDateReferentials(Instant.EPOCH).isEmpty());
+    }
+
+    @Test
+    void testCacheLoadsEntriesUpdatedSinceLastLoad() throws Exception {
+        context.start();
+        lineStatisticsRepository.save(CHOUETTE_REFERENTIAL_RUT, "{\"lines\":1}", 1, Instant.now());
+        lineStatisticsRepository.save(CHOUETTE_REFERENTIAL_RB_RUT, "{\"lines\":2}", 1, Instant.now());
+        loadStatsCacheTemplate.sendBody("");
+
+        lineStatisticsRepository.save(CHOUETTE_REFERENTIAL_RUT, "{\"lines\":3}", 2, Instant.now());
+        lineStatisticsRepository.save(CHOUETTE_REFERENTIAL_RB_RUT, null, 2, Instant.now());
+        loadStatsCacheTemplate.sendBody("");
+
+        Exchange response = getStatsTemplate.request("", e -> e.getIn().setHeader(PROVIDER_ID, PROVIDER_ID_RUT));
+        assertEquals("{\"lines\":3}", new String(response.getMessage().getBody(byte[].class), StandardCharsets.UTF_8));
+        assertEquals("\"2\"", response.getMessage().getHeader("ETag"));
+        Exchange removed = getStatsTemplate.request("", e -> e.getIn().setHeader(PROVIDER_ID, PROVIDER_ID_RB_RUT));
+        assertNull(removed.getMessage().getBody());
+    }
+
+    @Test
+    void testTransferMarksTargetReferentialStale() throws Exception {
+        context.start();
+        providerRepository.getProvider(PROVIDER_ID_RUT).getChouetteInfo().setMigrateDataToProvider(PROVIDER_ID_RB_RUT);
+        lineStatisticsRepository.save(CHOUETTE_REFERENTIAL_RUT, "{}", 1, Instant.now());
+        lineStatisticsRepository.save(CHOUETTE_REFERENTIAL_RB_RUT, "{}", 1, Instant.now());
+
+        markStatsStaleTemplate.sendBodyAndHeaders("", Map.of(CHOUETTE_REFERENTIAL, CHOUETTE_REFERENTIAL_RUT, PROVIDER_ID, PROVIDER_ID_RUT,
+                CHOUETTE_JOB_STATUS_JOB_TYPE, JobEvent.TimetableAction.IMPORT.name()));
+        assertEquals(List.of(CHOUETTE_REFERENTIAL_RB_RUT), lineStatisticsRepository.findUpToDateReferentials(Instant.EPOCH));
+
+        markStatsStaleTemplate.sendBodyAndHeaders("", Map.of(CHOUETTE_REFERENTIAL, CHOUETTE_REFERENTIAL_RUT, PROVIDER_ID, PROVIDER_ID_RUT,
+                CHOUETTE_JOB_STATUS_JOB_TYPE, JobEvent.TimetableAction.DATASPACE_TRANSFER.name()));
+        assertTrue(lineStatisticsRepository.findUpToDateReferentials(Instant.EPOCH).isEmpty());
+    }
+}
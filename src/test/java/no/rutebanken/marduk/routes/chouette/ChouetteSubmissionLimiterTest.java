@@ -0,0 +1,122 @@
+package no.rutebanken.marduk.routes.chouette;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.rutebanken.marduk.exceptions.ChouetteSubmissionHeldBackException;
+import org.apache.camel.Exchange;
+import org.apache.camel.http.base.HttpOperationFailedException;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.apache.camel.support.UnitOfWorkHelper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+class ChouetteSubmissionLimiterTest {
+
+    private final DefaultCamelContext camelContext = new DefaultCamelContext();
+    private final AtomicReference<ChouetteSubmissionLimiter.ActiveJobs> activeJobs = new AtomicReference<>(new ChouetteSubmissionLimiter.ActiveJobs(0, 0));
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private ChouetteSubmissionLimiter limiter;
+
+    @AfterEach
+    void tearDown() {
+        if (limiter != null) {
+            limiter.shutdown();
+        }
+    }
+
+    @Test
+    void testSubmissionIsRejectedAtLimit() {
+        limiter = limiter(2);
+        Exchange first = exchange();
+        limiter.acquire(first);
+        limiter.acquire(exchange());
+        Assertions.assertEquals(2, limiter.getNbInFlightJobs());
+
+        Exchange rejected = exchange();
+        Assertions.assertThrows(ChouetteSubmissionHeldBackException.class, () -> limiter.acquire(rejected));
+
+        // the first submission completed, its job is counted as active until the next refresh
+        limiter.submitted(first);
+        Assertions.assertEquals(2, limiter.getNbInFlightJobs());
+        Assertions.assertThrows(ChouetteSubmissionHeldBackException.class, () -> limiter.acquire(rejected));
+
+        // the job completed in Chouette
+        activeJobs.set(new ChouetteSubmissionLimiter.ActiveJobs(0, 0));
+        limiter.refresh();
+        limiter.acquire(exchange());
+        Assertions.assertEquals(2, limiter.getNbInFlightJobs());
+    }
+
+    @Test
+    void testActiveJobsAreNotQueriedOnSubmission() {
+        AtomicInteger nbQueries = new AtomicInteger();
+        limiter = new ChouetteSubmissionLimiter(camelContext, () -> {
+            nbQueries.incrementAndGet();
+            return activeJobs.get();
+        }, 2, 2, 100, 0.75, Duration.ofSeconds(30), 10, Duration.ofHours(1), meterRegistry);
+        limiter.acquire(exchange());
+        limiter.acquire(exchange());
+        Exchange rejected = exchange();
+        Assertions.assertThrows(ChouetteSubmissionHeldBackException.class, () -> limiter.acquire(rejected));
+        Assertions.assertEquals(0, nbQueries.get());
+    }
+
+    @Test
+    void testJobsSubmittedByOtherInstancesAreCounted() {
+        limiter = limiter(2);
+        limiter.acquire(exchange());
+        activeJobs.set(new ChouetteSubmissionLimiter.ActiveJobs(1, 0));
+        limiter.refresh();
+        Exchange exchange = exchange();
+        Assertions.assertThrows(ChouetteSubmissionHeldBackException.class, () -> limiter.acquire(exchange));
+    }
+
+    @Test
+    void testLimitIncreasesWhenSubmissionsAreHeldBack() {
+        limiter = limiter(2);
+        limiter.start();
+        activeJobs.set(new ChouetteSubmissionLimiter.ActiveJobs(2, 0));
+        limiter.refresh();
+        Exchange exchange = exchange();
+        Assertions.assertThrows(ChouetteSubmissionHeldBackException.class, () -> limiter.acquire(exchange));
+        limiter.refresh();
+        Assertions.assertEquals(3, limiter.getLimit());
+        Assertions.assertEquals(3.0, meterRegistry.get("marduk.chouette.submission.limit").gauge().value());
+
+        // no submission held back, the limit is kept
+        limiter.refresh();
+        Assertions.assertEquals(3, limiter.getLimit());
+    }
+
+    @Test
+    void testLimitDecreasesOnOverload() {
+        limiter = limiter(20);
+        Exchange exchange = exchange();
+        limiter.acquire(exchange);
+        Assertions.assertEquals(1, limiter.getNbInFlightJobs());
+
+        exchange.setException(new HttpOperationFailedException("http://chouette", 423, "Locked", null, null, null));
+        UnitOfWorkHelper.doneSynchronizations(exchange, exchange.getExchangeExtension().handoverCompletions());
+        Assertions.assertEquals(0, limiter.getNbInFlightJobs());
+        limiter.refresh();
+        Assertions.assertEquals(15, limiter.getLimit());
+
+        // too many jobs waiting in the Chouette job queue
+        activeJobs.set(new ChouetteSubmissionLimiter.ActiveJobs(12, 11));
+        limiter.refresh();
+        Assertions.assertEquals(11, limiter.getLimit());
+    }
+
+    private ChouetteSubmissionLimiter limiter(int initialLimit) {
+        return new ChouetteSubmissionLimiter(camelContext, activeJobs::get, initialLimit, 2, 100, 0.75, Duration.ofSeconds(30), 10, Duration.ofHours(1), meterRegistry);
+    }
+
+    private Exchange exchange() {
+        return new DefaultExchange(camelContext);
+    }
+}
@@ -0,0 +1,194 @@
+package no.rutebanken.marduk.routes.fetchosm;
+
+import no.rutebanken.marduk.exceptions.MardukException;
+import no.rutebanken.marduk.exceptions.Md5ChecksumValidationException;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+class StreamingHttpFetcherTest {
+
+    private static final String ETAG = "\"v1\"";
+
+    private ServerSocket serverSocket;
+    private byte[] content;
+    private String url;
+    private final List<String> ranges = Collections.synchronizedList(new ArrayList<>());
+    private volatile int nbTruncatedResponses;
+    private volatile int nbStalledResponses;
+    private final List<Socket> stalledSockets = Collections.synchronizedList(new ArrayList<>());
+
+    @BeforeEach
+    void setUp() throws IOException {
+        content = new byte[200_000];
+        new Random(42).nextBytes(content);
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread serverThread = new Thread(this::serve);
+        serverThread.setDaemon(true);
+        serverThread.start();
+        url = "http://localhost:" + serverSocket.getLocalPort() + "/map.osm.pbf";
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        serverSocket.close();
+        for (Socket socket : stalledSockets) {
+            socket.close();
+        }
+    }
+
+    private void serve() {
+        while (!serverSocket.isClosed()) {
+            Socket socket = null;
+            try {
+                socket = serverSocket.accept();
+                if (handle(socket)) {
+                    socket.close();
+                } else {
+                    // the connection stays open without sending the rest of the body
+                    stalledSockets.add(socket);
+                }
+            } catch (IOException e) {
+                // server stopped or connection reset by the client
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+
+    /**
+     * Serve the content, honouring Range requests. The first responses are cut in the middle of the body.
+     *
+     * @return false if the response is stalled in the middle of the body.
+     */
+    private boolean handle(Socket socket) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+        String requestLine = reader.readLine();
+        String range = null;
+        String ifRange = null;
+        for (String line = reader.readLine(); line != null && !line.isEmpty(); line = reader.readLine()) {
+            String name = line.substring(0, line.indexOf(':')).trim();
+            String value = line.substring(line.indexOf(':') + 1).trim();
+            if (name.equalsIgnoreCase("Range")) {
+                range = value;
+            } else if (name.equalsIgnoreCase("If-Range")) {
+                ifRange = value;
+            }
+        }
+        OutputStream out = socket.getOutputStream();
+        if (!requestLine.contains("/map.osm.pbf")) {
+            out.write("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            return true;
+        }
+        ranges.add(range);
+        int start = 0;
+        String headers;
+        if (range != null && ETAG.equals(ifRange)) {
+            start = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+            headers = "HTTP/1.1 206 Partial Content\r\nContent-Range: bytes " + start + "-" + (content.length - 1) + "/" + content.length + "\r\n";
+        } else {
+            headers = "HTTP/1.1 200 OK\r\n";
+        }
+        headers += "ETag: " + ETAG + "\r\nContent-Length: " + (content.length - start) + "\r\nConnection: close\r\n\r\n";
+        out.write(headers.getBytes(StandardCharsets.US_ASCII));
+        if (nbStalledResponses > 0) {
+            nbStalledResponses--;
+            out.write(content, start, 50_000);
+            out.flush();
+            return false;
+        }
+        if (nbTruncatedResponses > 0) {
+            nbTruncatedResponses--;
+            out.write(content, start, 50_000);
+        } else {
+            out.write(content, start, content.length - start);
+        }
+        out.flush();
+        return true;
+    }
+
+    @Test
+    void testFetchVerifiesMd5() throws IOException {
+        try (InputStream inputStream = fetcher(0).fetch(url, DigestUtils.md5Hex(content))) {
+            Assertions.assertArrayEquals(content, inputStream.readAllBytes());
+        }
+        Assertions.assertEquals(Collections.singletonList(null), ranges);
+    }
+
+    @Test
+    void testMd5MismatchFailsAtEndOfStream() throws IOException {
+        try (InputStream inputStream = fetcher(0).fetch(url, DigestUtils.md5Hex("other content"))) {
+            Assertions.assertThrows(Md5ChecksumValidationException.class, inputStream::readAllBytes);
+        }
+    }
+
+    @Test
+    void testDownloadIsResumedWithRangeRequest() throws IOException {
+        nbTruncatedResponses = 2;
+        try (InputStream inputStream = fetcher(3).fetch(url, DigestUtils.md5Hex(content))) {
+            Assertions.assertArrayEquals(content, inputStream.readAllBytes());
+        }
+        Assertions.assertEquals(3, ranges.size());
+        Assertions.assertNull(ranges.get(0));
+        Assertions.assertTrue(ranges.get(1).startsWith("bytes="));
+    }
+
+    @Test
+    void testStalledDownloadIsResumedAfterReadTimeout() {
+        nbStalledResponses = 1;
+        Assertions.assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            try (InputStream inputStream = fetcher(1).fetch(url, DigestUtils.md5Hex(content))) {
+                Assertions.assertArrayEquals(content, inputStream.readAllBytes());
+            }
+        });
+        Assertions.assertEquals(2, ranges.size());
+        Assertions.assertTrue(ranges.get(1).startsWith("bytes="));
+    }
+
+    @Test
+    void testDownloadFailsAfterMaxResumeAttempts() {
+        nbTruncatedResponses = 3;
+        Assertions.assertThrows(IOException.class, () -> {
+            try (InputStream inputStream = fetcher(1).fetch(url, DigestUtils.md5Hex(content))) {
+                inputStream.readAllBytes();
+            }
+        });
+    }
+
+    @Test
+    void testUnavailableFile() {
+        StreamingHttpFetcher fetcher = fetcher(0);
+        String missingUrl = url.replace("map", "missing");
+        Assertions.assertThrows(MardukException.class, () -> fetcher.fetch(missingUrl, "md5"));
+    }
+
+    private static StreamingHttpFetcher fetcher(int maxResumeAttempts) {
+        return new StreamingHttpFetcher(maxResumeAttempts, Duration.ZERO, Duration.ofSeconds(5), Duration.ofMillis(500));
+    }
+}
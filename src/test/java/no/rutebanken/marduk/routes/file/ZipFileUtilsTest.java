@@ -0,0 +1,67 @@
+package no.rutebanken.marduk.routes.file;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.attribute.FileTime;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class ZipFileUtilsTest {
+
+    @Test
+    void testCanonicalDigestIgnoresEntryOrderAndTimestamps() throws IOException {
+        byte[] archive = zip(new String[]{"a.xml", "b.xml"}, new String[]{"aaa", "bbb"}, 1000L, Deflater.DEFAULT_COMPRESSION);
+        byte[] reorderedArchive = zip(new String[]{"b.xml", "a.xml"}, new String[]{"bbb", "aaa"}, 2000L, Deflater.BEST_COMPRESSION);
+        assertEquals(digest(archive), digest(reorderedArchive), "Archives with the same entries should have the same digest");
+    }
+
+    @Test
+    void testCanonicalDigestDetectsContentChange() throws IOException {
+        byte[] archive = zip(new String[]{"a.xml", "b.xml"}, new String[]{"aaa", "bbb"}, 1000L, Deflater.DEFAULT_COMPRESSION);
+        byte[] modifiedArchive = zip(new String[]{"a.xml", "b.xml"}, new String[]{"aaa", "bbc"}, 1000L, Deflater.DEFAULT_COMPRESSION);
+        byte[] renamedArchive = zip(new String[]{"a.xml", "c.xml"}, new String[]{"aaa", "bbb"}, 1000L, Deflater.DEFAULT_COMPRESSION);
+        assertNotEquals(digest(archive), digest(modifiedArchive), "A modified entry should change the digest");
+        assertNotEquals(digest(archive), digest(renamedArchive), "A renamed entry should change the digest");
+    }
+
+    @Test
+    void testCanonicalDigestOfNonZipContent() {
+        assertEquals(digest("content".getBytes(StandardCharsets.UTF_8)), digest("content".getBytes(StandardCharsets.UTF_8)));
+        assertNotEquals(digest("content".getBytes(StandardCharsets.UTF_8)), digest("other content".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    void testCanonicalDigestOfTestArchive() {
+        InputStream netexArchive = getClass().getResourceAsStream("/no/rutebanken/marduk/routes/file/beans/netex.zip");
+        InputStream sameNetexArchive = getClass().getResourceAsStream("/no/rutebanken/marduk/routes/file/beans/netex.zip");
+        assertEquals(ZipFileUtils.computeCanonicalDigest(netexArchive), ZipFileUtils.computeCanonicalDigest(sameNetexArchive));
+    }
+
+    private static String digest(byte[] data) {
+        return ZipFileUtils.computeCanonicalDigest(new ByteArrayInputStream(data));
+    }
+
+    private static byte[] zip(String[] names, String[] contents, long time, int level) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (ZipOutputStream zos = new ZipOutputStream(bos)) {
+            zos.setLevel(level);
+            for (int i = 0; i < names.length; i++) {
+                ZipEntry zipEntry = new ZipEntry(names[i]);
+                zipEntry.setLastModifiedTime(FileTime.fromMillis(time));
+                zos.putNextEntry(zipEntry);
+                zos.write(contents[i].getBytes(StandardCharsets.UTF_8));
+                zos.closeEntry();
+            }
+        }
+        return bos.toByteArray();
+    }
+}
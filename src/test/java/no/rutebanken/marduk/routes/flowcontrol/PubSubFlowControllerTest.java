@@ -0,0 +1,141 @@
+package no.rutebanken.marduk.routes.flowcontrol;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.camel.Exchange;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.model.RouteDefinition;
+import org.apache.camel.support.DefaultExchange;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+class PubSubFlowControllerTest {
+
+    private final DefaultCamelContext camelContext = new DefaultCamelContext();
+    private final AtomicReference<Double> heapUsage = new AtomicReference<>(0.5);
+
+    @Test
+    void testParseSettings() {
+        List<FlowControlSettings> settings = FlowControlSettings.parse(new String[]{"ChouetteImportQueue:4:0:1", " ProcessFileQueue:2:1048576:2", ""});
+        Assertions.assertEquals(List.of(new FlowControlSettings("ChouetteImportQueue", 4, 0, 1), new FlowControlSettings("ProcessFileQueue", 2, 1048576, 2)), settings);
+        Assertions.assertThrows(IllegalArgumentException.class, () -> FlowControlSettings.parse(new String[]{"ChouetteImportQueue:0:0:1"}));
+    }
+
+    @Test
+    void testPolicyIsOnlyCreatedForConfiguredQueues() {
+        PubSubFlowController controller = controller();
+        Assertions.assertNotNull(controller.createRoutePolicy(camelContext, "chouette-import", route("master:lock:google-pubsub:{{marduk.pubsub.project.id}}:ChouetteImportQueue")));
+        Assertions.assertNull(controller.createRoutePolicy(camelContext, "poll", route("google-pubsub:{{marduk.pubsub.project.id}}:ChouettePollStatusQueue")));
+        Assertions.assertNull(controller.createRoutePolicy(camelContext, "direct", route("direct:ChouetteImportQueue")));
+    }
+
+    @Test
+    void testConcurrencyIsReducedUnderPressureAndRecovers() {
+        PubSubFlowController controller = controller();
+        controller.createRoutePolicy(camelContext, "chouette-import", route("google-pubsub:project:ChouetteImportQueue"));
+        FlowControlRoutePolicy policy = controller.getPolicy("chouette-import");
+        Assertions.assertEquals(8, policy.getLimit());
+
+        heapUsage.set(0.95);
+        controller.adjust();
+        Assertions.assertEquals(4, policy.getLimit());
+        controller.adjust();
+        controller.adjust();
+        controller.adjust();
+        Assertions.assertEquals(1, policy.getLimit());
+
+        heapUsage.set(0.5);
+        controller.adjust();
+        controller.adjust();
+        Assertions.assertEquals(3, policy.getLimit());
+        for (int i = 0; i < 10; i++) {
+            controller.adjust();
+        }
+        Assertions.assertEquals(8, policy.getLimit());
+    }
+
+    @Test
+    void testExchangesAboveLimitAreRejected() {
+        FlowControlRoutePolicy policy = new FlowControlRoutePolicy(new FlowControlSettings("ChouetteImportQueue", 1, 0, 1));
+        Exchange first = new DefaultExchange(camelContext);
+        policy.onExchangeBegin(null, first);
+        Assertions.assertEquals(1, policy.getOutstandingMessages());
+
+        Exchange second = new DefaultExchange(camelContext);
+        policy.onExchangeBegin(null, second);
+        Assertions.assertNotNull(second.getException(), "The second exchange should be rejected while the first one is processed");
+        Assertions.assertTrue(second.isRouteStop());
+        policy.onExchangeDone(null, second);
+        Assertions.assertEquals(1, policy.getOutstandingMessages());
+
+        policy.onExchangeDone(null, first);
+        Exchange third = new DefaultExchange(camelContext);
+        policy.onExchangeBegin(null, third);
+        Assertions.assertNull(third.getException());
+        Assertions.assertEquals(1, policy.getOutstandingMessages());
+    }
+
+    @Test
+    void testByteLimit() {
+        FlowControlRoutePolicy policy = new FlowControlRoutePolicy(new FlowControlSettings("ProcessFileQueue", 10, 100, 1));
+        Exchange large = exchange(150);
+        policy.onExchangeBegin(null, large);
+        Assertions.assertNull(large.getException(), "A message larger than the limit is admitted when no other message is outstanding");
+
+        Exchange small = exchange(10);
+        policy.onExchangeBegin(null, small);
+        Assertions.assertNotNull(small.getException());
+        policy.onExchangeDone(null, large);
+
+        Exchange next = exchange(10);
+        policy.onExchangeBegin(null, next);
+        Assertions.assertNull(next.getException());
+    }
+
+    @Test
+    void testRejectedExchangeIsNotProcessedByTheRoute() throws Exception {
+        FlowControlRoutePolicy policy = new FlowControlRoutePolicy(new FlowControlSettings("ChouetteImportQueue", 1, 0, 1));
+        AtomicInteger processed = new AtomicInteger();
+        camelContext.addRoutes(new RouteBuilder() {
+            @Override
+            public void configure() {
+                from("direct:start").routePolicy(policy).process(exchange -> processed.incrementAndGet());
+            }
+        });
+        camelContext.start();
+        try (ProducerTemplate producerTemplate = camelContext.createProducerTemplate()) {
+            policy.onExchangeBegin(null, new DefaultExchange(camelContext));
+            Exchange rejected = producerTemplate.send("direct:start", exchange -> exchange.getIn().setBody("message"));
+            Assertions.assertTrue(rejected.isFailed(), "The rejected exchange should fail so that the PubSub message is nacked");
+            Assertions.assertEquals(0, processed.get());
+        } finally {
+            camelContext.stop();
+        }
+    }
+
+    private Exchange exchange(int size) {
+        Exchange exchange = new DefaultExchange(camelContext);
+        exchange.getIn().setBody(new byte[size]);
+        return exchange;
+    }
+
+    private PubSubFlowController controller() {
+        return new PubSubFlowController(camelContext,
+                List.of(new FlowControlSettings("ChouetteImportQueue", 8, 0, 1)),
+                new PubSubFlowController.Thresholds(0.85, 0.85, Duration.ofMinutes(10)),
+                Duration.ofSeconds(15),
+                heapUsage::get,
+                () -> 0.1,
+                new SimpleMeterRegistry());
+    }
+
+    private static RouteDefinition route(String uri) {
+        return new RouteDefinition().from(uri);
+    }
+}
@@ -0,0 +1,72 @@
+package no.rutebanken.marduk.routes.otp;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static no.rutebanken.marduk.routes.otp.GraphBuildScheduler.Priority.CANDIDATE;
+import static no.rutebanken.marduk.routes.otp.GraphBuildScheduler.Priority.PRODUCTION;
+
+class GraphBuildSchedulerTest {
+
+    @Test
+    void testConcurrentBuildsPerPriority() {
+        GraphBuildScheduler scheduler = new GraphBuildScheduler(2, 1, 1);
+        CompletableFuture<Void> firstProductionBuild = new CompletableFuture<>();
+        CompletableFuture<Void> secondProductionBuild = new CompletableFuture<>();
+
+        CompletableFuture<Void> firstProductionResult = scheduler.submit(PRODUCTION, () -> firstProductionBuild);
+        scheduler.submit(CANDIDATE, CompletableFuture::new);
+        Assertions.assertEquals(1, scheduler.getRunningBuilds(PRODUCTION));
+        Assertions.assertEquals(1, scheduler.getRunningBuilds(CANDIDATE));
+
+        // the calling thread is not blocked while the build is queued
+        CompletableFuture<Void> secondProductionResult = scheduler.submit(PRODUCTION, () -> secondProductionBuild);
+        Assertions.assertEquals(1, scheduler.getQueuedBuilds(PRODUCTION));
+        Assertions.assertEquals(1, scheduler.getRunningBuilds(PRODUCTION));
+
+        firstProductionBuild.complete(null);
+        Assertions.assertTrue(firstProductionResult.isDone());
+        Assertions.assertEquals(0, scheduler.getQueuedBuilds(PRODUCTION));
+        Assertions.assertEquals(1, scheduler.getRunningBuilds(PRODUCTION));
+
+        secondProductionBuild.completeExceptionally(new IllegalStateException("build failed"));
+        Assertions.assertTrue(secondProductionResult.isCompletedExceptionally());
+        Assertions.assertEquals(0, scheduler.getRunningBuilds(PRODUCTION));
+    }
+
+    @Test
+    void testProductionBuildPreemptsQueuedCandidateBuild() {
+        GraphBuildScheduler scheduler = new GraphBuildScheduler(1, 1, 1);
+        CompletableFuture<Void> firstBuild = new CompletableFuture<>();
+        List<GraphBuildScheduler.Priority> startedBuilds = new CopyOnWriteArrayList<>();
+
+        scheduler.submit(PRODUCTION, () -> firstBuild);
+        scheduler.submit(CANDIDATE, () -> started(startedBuilds, CANDIDATE));
+        scheduler.submit(PRODUCTION, () -> started(startedBuilds, PRODUCTION));
+        Assertions.assertEquals(1, scheduler.getQueuedBuilds(CANDIDATE));
+        Assertions.assertEquals(1, scheduler.getQueuedBuilds(PRODUCTION));
+
+        firstBuild.complete(null);
+        Assertions.assertEquals(List.of(PRODUCTION, CANDIDATE), startedBuilds);
+    }
+
+    @Test
+    void testBuildFailingToStartReleasesSlot() {
+        GraphBuildScheduler scheduler = new GraphBuildScheduler(1, 1, 1);
+
+        CompletableFuture<Void> result = scheduler.submit(PRODUCTION, () -> {
+            throw new IllegalStateException("could not create job");
+        });
+        Assertions.assertTrue(result.isCompletedExceptionally());
+        Assertions.assertEquals(0, scheduler.getRunningBuilds(PRODUCTION));
+    }
+
+    private static CompletableFuture<Void> started(List<GraphBuildScheduler.Priority> startedBuilds, GraphBuildScheduler.Priority priority) {
+        startedBuilds.add(priority);
+        return CompletableFuture.completedFuture(null);
+    }
+}
@@ -0,0 +1,92 @@
+package no.rutebanken.marduk.routes.otp.otp2;
+
+import no.rutebanken.marduk.domain.ChouetteInfo;
+import no.rutebanken.marduk.domain.Provider;
+import no.rutebanken.marduk.repository.InMemoryMardukBlobStoreRepository;
+import no.rutebanken.marduk.repository.ProviderRepository;
+import no.rutebanken.marduk.services.MardukInternalBlobStoreService;
+import no.rutebanken.marduk.services.MardukPublicBlobStoreService;
+import no.rutebanken.marduk.services.OtpGraphsBlobStoreService;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+class Otp2GraphInputFingerprintServiceTest {
+
+    private static final String NETEX_EXPORT = "outbound/netex/rb_rut-aggregated-netex.zip";
+    private static final String STOP_PLACE_EXPORT = "tiamat/Full_latest.zip";
+    private static final String STREET_GRAPH = "graphs/street/streetGraph-otp2-1.obj";
+
+    private InMemoryMardukBlobStoreRepository publicRepository;
+    private InMemoryMardukBlobStoreRepository internalRepository;
+    private InMemoryMardukBlobStoreRepository graphsRepository;
+    private Otp2GraphInputFingerprintService fingerprintService;
+
+    @BeforeEach
+    void setUp() {
+        Map<String, Map<String, byte[]>> blobs = new HashMap<>();
+        publicRepository = new InMemoryMardukBlobStoreRepository(blobs);
+        internalRepository = new InMemoryMardukBlobStoreRepository(blobs);
+        graphsRepository = new InMemoryMardukBlobStoreRepository(blobs);
+
+        Provider provider = new Provider();
+        provider.setId(2L);
+        provider.setChouetteInfo(new ChouetteInfo().setReferential("rb_rut"));
+        ProviderRepository providerRepository = Mockito.mock(ProviderRepository.class);
+        Mockito.when(providerRepository.getProviders()).thenReturn(List.of(provider));
+
+        fingerprintService = new Otp2GraphInputFingerprintService(providerRepository,
+                new MardukPublicBlobStoreService("public", publicRepository),
+                new MardukInternalBlobStoreService("internal", internalRepository),
+                new OtpGraphsBlobStoreService("graphs", graphsRepository),
+                STOP_PLACE_EXPORT, "graphs", "current-otp2");
+
+        publicRepository.uploadBlob(NETEX_EXPORT, stream("netex"));
+        publicRepository.uploadBlob(STOP_PLACE_EXPORT, stream("stops"));
+        internalRepository.uploadBlob(STREET_GRAPH, stream("street"));
+    }
+
+    @Test
+    void testFingerprintIsStable() {
+        Assertions.assertEquals(fingerprintService.computeFingerprint(), fingerprintService.computeFingerprint());
+    }
+
+    @Test
+    void testFingerprintChangesWithNetexExport() {
+        String fingerprint = fingerprintService.computeFingerprint();
+        publicRepository.uploadBlob(NETEX_EXPORT, stream("updated netex"));
+        Assertions.assertNotEquals(fingerprint, fingerprintService.computeFingerprint());
+    }
+
+    @Test
+    void testFingerprintChangesWithStreetGraph() {
+        String fingerprint = fingerprintService.computeFingerprint();
+        internalRepository.uploadBlob(STREET_GRAPH, stream("updated street"));
+        Assertions.assertNotEquals(fingerprint, fingerprintService.computeFingerprint());
+    }
+
+    @Test
+    void testFingerprintIgnoresOtherBlobs() {
+        String fingerprint = fingerprintService.computeFingerprint();
+        publicRepository.uploadBlob("outbound/netex/rb_rut-aggregated-netex.zip.bak", stream("other"));
+        Assertions.assertEquals(fingerprint, fingerprintService.computeFingerprint());
+    }
+
+    @Test
+    void testPublishedFingerprint() {
+        Assertions.assertTrue(fingerprintService.getPublishedFingerprint().isEmpty());
+        graphsRepository.uploadBlob(fingerprintService.getFingerprintFile(), stream("abc\n"));
+        Assertions.assertEquals("abc", fingerprintService.getPublishedFingerprint().orElseThrow());
+    }
+
+    private static ByteArrayInputStream stream(String content) {
+        return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+    }
+}
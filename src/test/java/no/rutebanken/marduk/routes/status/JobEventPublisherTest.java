@@ -0,0 +1,221 @@
+package no.rutebanken.marduk.routes.status;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.api.core.SettableApiFuture;
+import com.google.pubsub.v1.PubsubMessage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.rutebanken.marduk.routes.PubSubAttributeCodec;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+class JobEventPublisherTest {
+
+    private final List<String> published = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicBoolean failing = new AtomicBoolean();
+    private final DefaultCamelContext camelContext = new DefaultCamelContext();
+    private final List<JobEventPublisher> publishers = new ArrayList<>();
+    private SimpleMeterRegistry meterRegistry;
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+    }
+
+    @AfterEach
+    void tearDown() {
+        publishers.forEach(JobEventPublisher::shutdown);
+    }
+
+    private JobEventPublisher publisher(int batchSize, Duration flushInterval) {
+        return start(new JobEventPublisher(camelContext, message -> {
+            if (failing.get()) {
+                return ApiFutures.immediateFailedFuture(new IllegalStateException("PubSub unavailable"));
+            }
+            published.add(message.getData().toStringUtf8());
+            return ApiFutures.immediateFuture("id");
+        }, new PubSubAttributeCodec(new String[0], new String[0]), batchSize, flushInterval, Duration.ofSeconds(1), meterRegistry));
+    }
+
+    private JobEventPublisher start(JobEventPublisher jobEventPublisher) {
+        jobEventPublisher.start();
+        publishers.add(jobEventPublisher);
+        return jobEventPublisher;
+    }
+
+    @Test
+    void testEventsArePublishedInOrderWhenExchangeCompletes() throws InterruptedException {
+        JobEventPublisher jobEventPublisher = publisher(100, Duration.ofHours(1));
+        Exchange exchange = new DefaultExchange(camelContext);
+        for (int i = 0; i < 5; i++) {
+            exchange.getIn().setBody("event-" + i);
+            exchange.getIn().setHeader("RutebankenCorrelationId", "correlation-1");
+            jobEventPublisher.submit(exchange);
+        }
+        Assertions.assertTrue(published.isEmpty());
+        Assertions.assertEquals(5, jobEventPublisher.getNbPendingEvents());
+
+        exchange.getExchangeExtension().handoverCompletions().forEach(synchronization -> synchronization.onComplete(exchange));
+        // the events are published asynchronously
+        for (int i = 0; i < 200 && published.size() < 5; i++) {
+            Thread.sleep(10);
+        }
+
+        Assertions.assertEquals(List.of("event-0", "event-1", "event-2", "event-3", "event-4"), published);
+        Assertions.assertEquals(0, jobEventPublisher.getNbPendingEvents());
+        Assertions.assertEquals(1, meterRegistry.get("marduk.job.event.batch.size").summary().count());
+    }
+
+    @Test
+    void testFlushPublishesInBatches() {
+        JobEventPublisher jobEventPublisher = publisher(2, Duration.ofHours(1));
+        for (int i = 0; i < 5; i++) {
+            submit(jobEventPublisher, "event-" + i);
+        }
+        Assertions.assertTrue(jobEventPublisher.flush());
+        Assertions.assertEquals(List.of("event-0", "event-1", "event-2", "event-3", "event-4"), published);
+        Assertions.assertEquals(3, meterRegistry.get("marduk.job.event.batch.size").summary().count());
+        Assertions.assertEquals(5, meterRegistry.get("marduk.job.event.batch.size").summary().totalAmount());
+    }
+
+    @Test
+    void testEventsArePublishedAfterFlushInterval() throws InterruptedException {
+        JobEventPublisher jobEventPublisher = publisher(100, Duration.ofMillis(10));
+        submit(jobEventPublisher, "event");
+        for (int i = 0; i < 200 && published.isEmpty(); i++) {
+            Thread.sleep(10);
+        }
+        Assertions.assertEquals(List.of("event"), published);
+    }
+
+    @Test
+    void testFailedEventsAreRetriedInOrder() {
+        JobEventPublisher jobEventPublisher = publisher(100, Duration.ofHours(1));
+        submit(jobEventPublisher, "event-0");
+        submit(jobEventPublisher, "event-1");
+        failing.set(true);
+        Assertions.assertFalse(jobEventPublisher.flush());
+        Assertions.assertEquals(2, jobEventPublisher.getNbPendingEvents());
+
+        submit(jobEventPublisher, "event-2");
+        failing.set(false);
+        Assertions.assertTrue(jobEventPublisher.flush());
+        Assertions.assertEquals(List.of("event-0", "event-1", "event-2"), published);
+    }
+
+    @Test
+    void testEventsFollowingAFailedEventWithTheSameOrderingKeyAreRetried() {
+        List<String> resumedOrderingKeys = new ArrayList<>();
+        Set<String> pausedOrderingKeys = new HashSet<>();
+        // like the PubSub publisher, reject the messages with the ordering key of a failed message until publishing is resumed
+        JobEventPublisher jobEventPublisher = start(new JobEventPublisher(camelContext, new JobEventPublisher.MessagePublisher() {
+            @Override
+            public ApiFuture<String> publish(PubsubMessage message) {
+                if (pausedOrderingKeys.contains(message.getOrderingKey()) || failing.getAndSet(false)) {
+                    pausedOrderingKeys.add(message.getOrderingKey());
+                    return ApiFutures.immediateFailedFuture(new IllegalStateException("PubSub unavailable"));
+                }
+                published.add(message.getData().toStringUtf8());
+                return ApiFutures.immediateFuture("id");
+            }
+
+            @Override
+            public void resumePublish(String orderingKey) {
+                pausedOrderingKeys.remove(orderingKey);
+                resumedOrderingKeys.add(orderingKey);
+            }
+        }, new PubSubAttributeCodec(new String[0], new String[0]), 100, Duration.ofHours(1), Duration.ofSeconds(1), meterRegistry));
+        submit(jobEventPublisher, "job-1-event-0", "correlation-1");
+        submit(jobEventPublisher, "job-2-event-0", "correlation-2");
+        submit(jobEventPublisher, "job-1-event-1", "correlation-1");
+        failing.set(true);
+
+        Assertions.assertFalse(jobEventPublisher.flush());
+        Assertions.assertEquals(List.of("job-2-event-0"), published);
+        Assertions.assertEquals(List.of("correlation-1"), resumedOrderingKeys);
+        Assertions.assertEquals(2, jobEventPublisher.getNbPendingEvents());
+
+        Assertions.assertTrue(jobEventPublisher.flush());
+        Assertions.assertEquals(List.of("job-2-event-0", "job-1-event-0", "job-1-event-1"), published);
+    }
+
+    @Test
+    void testEventInFlightAfterTimeoutIsRetriedOnlyIfItFails() {
+        SettableApiFuture<String> succeedingPublication = SettableApiFuture.create();
+        SettableApiFuture<String> failingPublication = SettableApiFuture.create();
+        List<SettableApiFuture<String>> publications = new ArrayList<>(List.of(succeedingPublication, failingPublication));
+        JobEventPublisher jobEventPublisher = start(new JobEventPublisher(camelContext, message -> {
+            if (publications.isEmpty()) {
+                published.add(message.getData().toStringUtf8());
+                return ApiFutures.immediateFuture("id");
+            }
+            return publications.removeFirst();
+        }, new PubSubAttributeCodec(new String[0], new String[0]), 100, Duration.ofHours(1), Duration.ofMillis(10), meterRegistry));
+        submit(jobEventPublisher, "event-0", "correlation-1");
+        submit(jobEventPublisher, "event-1", "correlation-2");
+
+        Assertions.assertFalse(jobEventPublisher.flush());
+        Assertions.assertEquals(0, jobEventPublisher.getNbPendingEvents());
+
+        succeedingPublication.set("id");
+        failingPublication.setException(new IllegalStateException("PubSub unavailable"));
+        Assertions.assertEquals(1, jobEventPublisher.getNbPendingEvents());
+        Assertions.assertTrue(jobEventPublisher.flush());
+        Assertions.assertEquals(List.of("event-1"), published);
+    }
+
+    @Test
+    void testCorrelationIdIsUsedAsOrderingKey() {
+        List<PubsubMessage> messages = new ArrayList<>();
+        JobEventPublisher jobEventPublisher = start(new JobEventPublisher(camelContext, message -> {
+            messages.add(message);
+            return ApiFutures.immediateFuture("id");
+        }, new PubSubAttributeCodec(new String[0], new String[0]), 100, Duration.ofHours(1), Duration.ofSeconds(1), meterRegistry));
+        submit(jobEventPublisher, "event", "correlation-1");
+        submit(jobEventPublisher, "event-without-correlation-id");
+        jobEventPublisher.flush();
+        Assertions.assertEquals("correlation-1", messages.get(0).getOrderingKey());
+        Assertions.assertEquals("", messages.get(1).getOrderingKey());
+    }
+
+    @Test
+    void testHeadersArePublishedAsAttributes() {
+        List<PubsubMessage> messages = new ArrayList<>();
+        JobEventPublisher jobEventPublisher = start(new JobEventPublisher(camelContext, message -> {
+            messages.add(message);
+            return ApiFutures.immediateFuture("id");
+        }, new PubSubAttributeCodec(new String[0], new String[0]), 100, Duration.ofHours(1), Duration.ofSeconds(1), meterRegistry));
+        Exchange exchange = new DefaultExchange(camelContext);
+        exchange.getIn().setBody("event");
+        exchange.getIn().setHeader("RutebankenCorrelationId", "correlation-1");
+        exchange.getIn().setHeader("CamelGooglePubsubAttributes", "internal");
+        jobEventPublisher.submit(exchange);
+        jobEventPublisher.flush();
+        Assertions.assertEquals("correlation-1", messages.getFirst().getAttributesMap().get("RutebankenCorrelationId"));
+        Assertions.assertFalse(messages.getFirst().getAttributesMap().containsKey("CamelGooglePubsubAttributes"));
+    }
+
+    private void submit(JobEventPublisher jobEventPublisher, String event) {
+        submit(jobEventPublisher, event, null);
+    }
+
+    private void submit(JobEventPublisher jobEventPublisher, String event, String correlationId) {
+        Exchange exchange = new DefaultExchange(camelContext);
+        exchange.getIn().setBody(event);
+        exchange.getIn().setHeader("RutebankenCorrelationId", correlationId);
+        jobEventPublisher.submit(exchange);
+    }
+}
@@ -0,0 +1,85 @@
+package no.rutebanken.marduk.services;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.rutebanken.marduk.domain.BlobStoreFiles;
+import no.rutebanken.marduk.repository.InMemoryMardukBlobStoreRepository;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class BlobMetadataCacheTest {
+
+    private static final String CONTAINER = "internal";
+    private static final String FOLDER = "graphs/street/";
+
+    private BlobMetadataCache blobMetadataCache;
+    private InMemoryMardukBlobStoreRepository repository;
+    private MardukInternalBlobStoreService service;
+
+    @BeforeEach
+    void setUp() {
+        blobMetadataCache = new BlobMetadataCache(new SimpleMeterRegistry(), true, 300);
+        repository = new InMemoryMardukBlobStoreRepository(new HashMap<>());
+        service = new MardukInternalBlobStoreService(CONTAINER, repository);
+        service.setBlobMetadataCache(blobMetadataCache);
+        repository.uploadBlob(FOLDER + "graph1.obj", new ByteArrayInputStream(new byte[]{1}));
+    }
+
+    @Test
+    void testListingServedFromCache() {
+        AtomicInteger nbLoads = new AtomicInteger();
+        blobMetadataCache.getFiles(CONTAINER, FOLDER, false, () -> {
+            nbLoads.incrementAndGet();
+            return List.of();
+        });
+        blobMetadataCache.getFiles(CONTAINER, FOLDER, false, () -> {
+            nbLoads.incrementAndGet();
+            return List.of();
+        });
+        Assertions.assertEquals(1, nbLoads.get());
+        Assertions.assertEquals(0.5, blobMetadataCache.getHitRatio());
+    }
+
+    @Test
+    void testExpiredListingIsReloaded() {
+        BlobMetadataCache expiringCache = new BlobMetadataCache(new SimpleMeterRegistry(), true, 0);
+        AtomicInteger nbLoads = new AtomicInteger();
+        expiringCache.getFiles(CONTAINER, FOLDER, false, () -> List.of(new BlobStoreFiles.File("graph" + nbLoads.incrementAndGet(), null, null, null)));
+        expiringCache.getFiles(CONTAINER, FOLDER, false, () -> List.of(new BlobStoreFiles.File("graph" + nbLoads.incrementAndGet(), null, null, null)));
+        Assertions.assertEquals(2, nbLoads.get());
+    }
+
+    @Test
+    void testCopyInvalidatesListing() {
+        Assertions.assertEquals(1, service.listCachedBlobsInFolders(List.of(FOLDER)).getFiles().size());
+        service.copyBlobInBucket(FOLDER + "graph1.obj", FOLDER + "graph2.obj");
+        Assertions.assertEquals(2, service.listCachedBlobsInFolders(List.of(FOLDER)).getFiles().size());
+    }
+
+    @Test
+    void testWriteInOtherBucketDoesNotInvalidateListing() {
+        Assertions.assertEquals(1, service.listCachedBlobsInFolders(List.of(FOLDER)).getFiles().size());
+        repository.uploadBlob(FOLDER + "graph2.obj", new ByteArrayInputStream(new byte[]{1}));
+        blobMetadataCache.onBlobWritten("other", FOLDER + "graph2.obj");
+        Assertions.assertEquals(1, service.listCachedBlobsInFolders(List.of(FOLDER)).getFiles().size());
+    }
+
+    @Test
+    void testDeleteUpdatesListing() {
+        Assertions.assertEquals(1, service.listCachedBlobsInFolders(List.of(FOLDER)).getFiles().size());
+        service.deleteBlob(FOLDER + "graph1.obj");
+        Assertions.assertTrue(service.listCachedBlobsInFolders(List.of(FOLDER)).getFiles().isEmpty());
+    }
+
+    @Test
+    void testFolderDeletionInvalidatesNestedListings() {
+        Assertions.assertEquals(1, service.listCachedBlobsInFolders(List.of(FOLDER)).getFiles().size());
+        service.deleteAllBlobsInFolder("graphs/");
+        Assertions.assertTrue(service.listCachedBlobsInFolders(List.of(FOLDER)).getFiles().isEmpty());
+    }
+}
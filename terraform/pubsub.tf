@@ -222,6 +222,40 @@ resource "google_pubsub_subscription" "ChouetteValidationQueue" {
   }
 }
 
+resource "google_pubsub_topic" "ChouetteImportCompletedQueue" {
+  name = "ChouetteImportCompletedQueue"
+  project = var.gcp_resources_project
+  labels = var.labels
+}
+
+resource "google_pubsub_subscription" "ChouetteImportCompletedQueue" {
+  name = "ChouetteImportCompletedQueue"
+  topic = google_pubsub_topic.ChouetteImportCompletedQueue.name
+  project = var.gcp_resources_project
+  labels = var.labels
+  ack_deadline_seconds = 60
+  retry_policy {
+    minimum_backoff = "10s"
+  }
+}
+
+resource "google_pubsub_topic" "ChouetteImportJobDoneQueue" {
+  name = "ChouetteImportJobDoneQueue"
+  project = var.gcp_resources_project
+  labels = var.labels
+}
+
+resource "google_pubsub_subscription" "ChouetteImportJobDoneQueue" {
+  name = "ChouetteImportJobDoneQueue"
+  topic = google_pubsub_topic.ChouetteImportJobDoneQueue.name
+  project = var.gcp_resources_project
+  labels = var.labels
+  ack_deadline_seconds = 60
+  retry_policy {
+    minimum_backoff = "10s"
+  }
+}
+
 resource "google_pubsub_topic" "GtfsBasicExportMergedQueue" {
   name = "GtfsBasicExportMergedQueue"
   project = var.gcp_resources_project